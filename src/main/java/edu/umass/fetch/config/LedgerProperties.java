@@ -0,0 +1,122 @@
+package edu.umass.fetch.config;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "fetch.ledger")
+public class LedgerProperties {
+
+  /**
+   * Number of shards accounts are spread across. Each shard owns its accounts and a single writer thread.
+   */
+  private int shards = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Number of decimal places clients may send in points. With a scale of 2 a request for 12.34 points is stored, and
+   * reported back, as 1234 ledger points. Decimals with more places than the scale are rejected.
+   */
+  private int pointsScale = 0;
+
+  /**
+   * How each shard hands writes to its writer thread.
+   */
+  private Engine engine = Engine.EXECUTOR;
+
+  /**
+   * Slots in each shard's ring with the {@code ring-buffer} engine, rounded up to a power of two. Callers wait once
+   * this many writes are queued on a shard.
+   */
+  private int ringSize = 1024;
+
+  /**
+   * One write in this many, rounded down to a power of two, is timed for the {@code ledger.add} and
+   * {@code ledger.spend} timers. 1 times every write.
+   */
+  private int timedWrites = 32;
+
+  /**
+   * One balance read in this many, rounded down to a power of two, is timed for the {@code ledger.balance.read}
+   * timer.
+   */
+  private int timedBalanceReads = 1024;
+
+  /**
+   * How long points stay spendable, counted from the timestamp of their transaction. Zero, the default, keeps them
+   * forever.
+   */
+  private Duration pointsExpiry = Duration.ZERO;
+
+  /**
+   * Expiry by payer name, in place of {@link #pointsExpiry} for that payer. Zero keeps the payer's points forever.
+   */
+  private Map<String, Duration> payerPointsExpiry = new HashMap<>();
+
+  /**
+   * How often accounts are swept for expired points. Writes to an account expire its points first anyway; the sweep
+   * is for accounts that are not being written to.
+   */
+  private Duration expirySweepInterval = Duration.ofMinutes(1);
+
+  /**
+   * How long the outcome of an add or spend made with an {@code Idempotency-Key} header is kept to answer retries.
+   */
+  private Duration idempotencyKeyTtl = Duration.ofMinutes(10);
+
+  /**
+   * Most idempotency keys kept at once; the oldest are dropped first. Each takes a few hundred bytes.
+   */
+  private int idempotencyKeys = 1_000_000;
+
+  /**
+   * Whether adds, spent lots and expiries are recorded for the {@code /history} endpoints. History starts empty on
+   * every start; writes replayed from the log are not recorded.
+   */
+  private boolean historyEnabled = true;
+
+  /**
+   * History rows of each account kept in memory, about 33 bytes each, in chunks of 4096. With a spill directory, older
+   * chunks are moved to a file in it; without one they are dropped, and history only goes back this many rows.
+   */
+  private int historyRowsInMemory = 65_536;
+
+  /**
+   * Directory of the file history rows beyond {@link #historyRowsInMemory} are moved to. Empty, the default, drops
+   * them.
+   */
+  private String historySpillDirectory = "";
+
+  /**
+   * Where open lots are kept. Each lot takes a 20-byte record and two 4-byte index entries either way.
+   */
+  private LotStorage lotStorage = LotStorage.HEAP;
+
+  public enum Engine {
+    /**
+     * Writes are tasks on a single-thread executor, one queue node and task per write.
+     */
+    EXECUTOR,
+    /**
+     * Writes are published into a ring of slots allocated up front, and the writer applies everything published since
+     * its last pass as one batch.
+     */
+    RING_BUFFER
+  }
+
+  public enum LotStorage {
+    /**
+     * Records in heap buffers, counted against {@code -Xmx}.
+     */
+    HEAP,
+    /**
+     * Records in direct buffers outside the heap, counted against {@code -XX:MaxDirectMemorySize}. The heap then only
+     * holds the indexes, for millions of lots with short pauses and a small heap.
+     */
+    OFF_HEAP
+  }
+}
@@ -0,0 +1,31 @@
+package edu.umass.fetch.config;
+
+import java.time.Duration;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "fetch.persistence")
+public class PersistenceProperties {
+
+  /**
+   * Whether accepted adds and spends are written to the write-ahead log and replayed on startup.
+   */
+  private boolean enabled = false;
+
+  private String directory = "data";
+
+  /**
+   * Size of each memory-mapped log segment. A record larger than this gets a segment of its own.
+   */
+  private DataSize segmentSize = DataSize.ofMegabytes(64);
+
+  /**
+   * How often a snapshot of every ledger is written in the background, after which the log segments it covers are
+   * deleted. Zero disables periodic snapshots.
+   */
+  private Duration snapshotInterval = Duration.ofMinutes(10);
+}
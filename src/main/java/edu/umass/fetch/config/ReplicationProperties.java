@@ -0,0 +1,45 @@
+package edu.umass.fetch.config;
+
+import java.time.Duration;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "fetch.replication")
+public class ReplicationProperties {
+
+  /**
+   * Whether this node ships its write-ahead log to followers, follows a leader, or neither. Replication ships the log,
+   * so it requires persistence.
+   */
+  private Role role = Role.NONE;
+
+  /**
+   * Port a leader accepts followers on, and a follower will once promoted. 0 picks a free port.
+   */
+  private int port = 7450;
+
+  /**
+   * {@code host:port} of the leader a follower streams the log from.
+   */
+  private String leader = "";
+
+  /**
+   * How long a follower waits before connecting again after losing or failing to reach its leader.
+   */
+  private Duration reconnectInterval = Duration.ofSeconds(1);
+
+  public enum Role {
+    NONE,
+    /**
+     * Accepts writes and streams every durable log record to the followers connected to {@link #port}.
+     */
+    LEADER,
+    /**
+     * Applies the leader's log and serves reads; writes are rejected until the node is promoted.
+     */
+    FOLLOWER
+  }
+}
@@ -0,0 +1,46 @@
+package edu.umass.fetch.config;
+
+import edu.umass.fetch.config.WebProperties.ExecutionMode;
+import edu.umass.fetch.response.JsonResponseConverter;
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+@Configuration
+public class WebConfig implements WebMvcConfigurer {
+
+  @Override
+  public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+    converters.add(0, new JsonResponseConverter());
+  }
+
+  /**
+   * Hands Tomcat a virtual thread per task executor in {@link ExecutionMode#VIRTUAL_THREADS} mode. Looked up
+   * reflectively so the application still builds and runs on Java 11.
+   */
+  @Bean
+  TomcatProtocolHandlerCustomizer<?> executionModeCustomizer(WebProperties webProperties) {
+    return protocolHandler -> {
+      if (webProperties.getExecutionMode() == ExecutionMode.VIRTUAL_THREADS) {
+        protocolHandler.setExecutor(newVirtualThreadPerTaskExecutor());
+      }
+    };
+  }
+
+  private static ExecutorService newVirtualThreadPerTaskExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (NoSuchMethodException e) {
+      throw new IllegalStateException("fetch.web.execution-mode=virtual-threads needs Java 21 or later, running "
+          + Runtime.version());
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      throw new IllegalStateException("Could not create a virtual thread executor", e);
+    }
+  }
+}
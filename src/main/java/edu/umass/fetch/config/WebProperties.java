@@ -0,0 +1,36 @@
+package edu.umass.fetch.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Data
+@Component
+@ConfigurationProperties(prefix = "fetch.web")
+public class WebProperties {
+
+  public enum ExecutionMode {
+
+    /**
+     * Each request holds a Tomcat worker thread until its add or spend is applied and on disk.
+     */
+    BLOCKING,
+
+    /**
+     * Adds and spends return futures, so the worker thread is released while the ledger applies them and the log is
+     * forced.
+     */
+    ASYNC,
+
+    /**
+     * Requests are handled as in {@link #BLOCKING}, but each on a virtual thread instead of a pooled worker thread.
+     * Needs Java 21 or later.
+     */
+    VIRTUAL_THREADS
+  }
+
+  /**
+   * How request threads wait for adds and spends.
+   */
+  private ExecutionMode executionMode = ExecutionMode.BLOCKING;
+}
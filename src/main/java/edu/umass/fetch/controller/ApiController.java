@@ -1,20 +1,31 @@
 package edu.umass.fetch.controller;
 
-import com.google.gson.Gson;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import edu.umass.fetch.request.Transaction;
+import edu.umass.fetch.request.SpendMode;
 import edu.umass.fetch.request.SpendTransaction;
-import edu.umass.fetch.response.PointBalance;
+import edu.umass.fetch.request.TransactionBatch;
+import edu.umass.fetch.response.JsonResponse;
+import edu.umass.fetch.response.ReplicationStatus;
+import edu.umass.fetch.response.SpendResult;
+import edu.umass.fetch.service.BalanceView;
 import edu.umass.fetch.service.PointsService;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.format.annotation.DateTimeFormat.ISO;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -22,33 +33,77 @@ import org.springframework.web.bind.annotation.RestController;
 @Slf4j
 public class ApiController {
 
-  private final Gson gson;
+  static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
+  /**
+   * Header naming a client-chosen key for an add or spend. A retry with the same key, to the same endpoint and account,
+   * gets the first attempt's response and is not applied again.
+   */
+  static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
   private final PointsService pointsService;
+  private final ObjectReader transactionReader;
 
-  public ApiController(final PointsService pointsService) {
+  public ApiController(final PointsService pointsService, final ObjectMapper objectMapper) {
     this.pointsService = pointsService;
-    gson = new Gson();
+    this.transactionReader = objectMapper.readerFor(Transaction.class);
   }
 
+  /**
+   * Streaming form of {@code /addTransactions}, chosen by {@code stream=true} for a JSON array or by an NDJSON body.
+   * Transactions are parsed one at a time into a columnar batch rather than bound to a list of objects.
+   */
   @PostMapping(path = "/addTransactions",
-      consumes = MediaType.APPLICATION_JSON_VALUE,
+      consumes = {MediaType.APPLICATION_JSON_VALUE, APPLICATION_NDJSON_VALUE},
+      produces = MediaType.TEXT_PLAIN_VALUE,
+      params = "stream=true")
+  @ResponseBody ResponseEntity<String> addTransactionsStream(
+      @RequestParam(defaultValue = PointsService.DEFAULT_ACCOUNT) String accountId,
+      @RequestHeader(name = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+      InputStream body) {
+    return addTransactionStream(accountId, idempotencyKey, body);
+  }
+
+  @PostMapping(path = "/addTransactions",
+      consumes = APPLICATION_NDJSON_VALUE,
       produces = MediaType.TEXT_PLAIN_VALUE)
-  @ResponseBody ResponseEntity<String> addTransactions(@RequestBody List<Transaction> transactions) {
+  @ResponseBody ResponseEntity<String> addTransactionsNdjson(
+      @RequestParam(defaultValue = PointsService.DEFAULT_ACCOUNT) String accountId,
+      @RequestHeader(name = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+      InputStream body) {
+    return addTransactionStream(accountId, idempotencyKey, body);
+  }
+
+  /**
+   * Applies the spends in order in one pass. With mode PER_ITEM a spend that cannot be applied is reported in its
+   * result; with ALL_OR_NOTHING (the default) it rejects the whole batch.
+   */
+  @PostMapping(path = "/spendPoints/batch",
+      consumes = MediaType.APPLICATION_JSON_VALUE,
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  @ResponseBody ResponseEntity<?> spendPointsBatch(
+      @RequestParam(defaultValue = PointsService.DEFAULT_ACCOUNT) String accountId,
+      @RequestParam(defaultValue = "ALL_OR_NOTHING") SpendMode mode,
+      @RequestBody List<SpendTransaction> spendTransactions) {
     try {
-      pointsService.addPoints(transactions);
-      return ResponseEntity.ok("Transactions added successfully");
+      List<SpendResult> spendResults = pointsService.spendPoints(accountId, spendTransactions, mode);
+      return ResponseEntity.ok(pointsService.toJson(spendResults));
     } catch (IllegalStateException e) {
       return new ResponseEntity<>(e.getMessage(), HttpStatus.UNPROCESSABLE_ENTITY);
     }
   }
 
-  @PostMapping(path = "/spendPoints",
-      consumes= MediaType.APPLICATION_JSON_VALUE,
+  /**
+   * What {@code /spendPoints} would take from each payer right now, in the same form, without spending anything.
+   */
+  @PostMapping(path = "/spendPoints/quote",
+      consumes = MediaType.APPLICATION_JSON_VALUE,
       produces = MediaType.APPLICATION_JSON_VALUE)
-  @ResponseBody ResponseEntity<String> spendPoints(@RequestBody SpendTransaction spendTransaction) {
+  @ResponseBody ResponseEntity<?> quoteSpend(
+      @RequestParam(defaultValue = PointsService.DEFAULT_ACCOUNT) String accountId,
+      @RequestBody SpendTransaction spendTransaction) {
     try {
-      Set<PointBalance> payerPointsBalances = pointsService.spendPoints(spendTransaction);
-      return ResponseEntity.ok(gson.toJson(payerPointsBalances));
+      return ResponseEntity.ok(pointsService.toJson(pointsService.quoteSpend(accountId, spendTransaction)));
     } catch (IllegalStateException e) {
       return new ResponseEntity<>(e.getMessage(), HttpStatus.UNPROCESSABLE_ENTITY);
     }
@@ -56,9 +111,81 @@ public class ApiController {
 
   @GetMapping(path = "/getPointsBalance",
     produces = MediaType.APPLICATION_JSON_VALUE)
-  @ResponseBody ResponseEntity<String> getPointsBalance() {
-    Map<String, Double> pointsBalances = pointsService.getPointsBalance();
-    return ResponseEntity.ok(gson.toJson(pointsBalances));
+  @ResponseBody ResponseEntity<JsonResponse> getPointsBalance(
+      @RequestParam(defaultValue = PointsService.DEFAULT_ACCOUNT) String accountId) {
+    // Spring answers 304 Not Modified, without writing the body, when If-None-Match names this ETag
+    BalanceView balanceView = pointsService.getBalanceView(accountId);
+    return ResponseEntity.ok().eTag(balanceView.getETag()).body(balanceView.toJson());
+  }
+
+  /**
+   * What changed the account's points from {@code from} inclusive to {@code to} exclusive, oldest first: each
+   * transaction added, each part of a lot a spend took and each payer's expired points, optionally of one payer only.
+   * Times are ISO date-times, like transaction timestamps.
+   */
+  @GetMapping(path = "/history",
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  @ResponseBody ResponseEntity<?> getHistory(
+      @RequestParam(defaultValue = PointsService.DEFAULT_ACCOUNT) String accountId,
+      @RequestParam(required = false) String payer,
+      @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE_TIME) LocalDateTime from,
+      @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE_TIME) LocalDateTime to) {
+    try {
+      return ResponseEntity.ok(pointsService.getHistoryJson(accountId, payer, from, to));
+    } catch (IllegalStateException e) {
+      return new ResponseEntity<>(e.getMessage(), HttpStatus.UNPROCESSABLE_ENTITY);
+    }
+  }
+
+  /**
+   * The account's spends from {@code from} inclusive to {@code to} exclusive, oldest first, each with the points every
+   * payer gave up and the lots it drew from.
+   */
+  @GetMapping(path = "/history/spends",
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  @ResponseBody ResponseEntity<?> getSpendHistory(
+      @RequestParam(defaultValue = PointsService.DEFAULT_ACCOUNT) String accountId,
+      @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE_TIME) LocalDateTime from,
+      @RequestParam(required = false) @DateTimeFormat(iso = ISO.DATE_TIME) LocalDateTime to) {
+    try {
+      return ResponseEntity.ok(pointsService.getSpendHistoryJson(accountId, from, to));
+    } catch (IllegalStateException e) {
+      return new ResponseEntity<>(e.getMessage(), HttpStatus.UNPROCESSABLE_ENTITY);
+    }
+  }
+
+  @GetMapping(path = "/replication",
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  @ResponseBody ReplicationStatus getReplicationStatus() {
+    return pointsService.getReplicationStatus();
+  }
+
+  /**
+   * Makes this follower the leader once it has applied everything received. Stop the old leader first.
+   */
+  @PostMapping(path = "/replication/promote",
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  @ResponseBody ResponseEntity<?> promote() {
+    try {
+      return ResponseEntity.ok(pointsService.promote());
+    } catch (IllegalStateException e) {
+      return new ResponseEntity<>(e.getMessage(), HttpStatus.UNPROCESSABLE_ENTITY);
+    }
+  }
+
+  private ResponseEntity<String> addTransactionStream(String accountId, String idempotencyKey, InputStream body) {
+    TransactionBatch batch;
+    try {
+      batch = TransactionBatch.read(body, transactionReader);
+    } catch (IOException | IllegalArgumentException e) {
+      return new ResponseEntity<>("Malformed transactions: " + e.getMessage(), HttpStatus.BAD_REQUEST);
+    }
+    try {
+      pointsService.addPoints(accountId, batch, idempotencyKey);
+      return ResponseEntity.ok("Transactions added successfully");
+    } catch (IllegalStateException e) {
+      return new ResponseEntity<>(e.getMessage(), HttpStatus.UNPROCESSABLE_ENTITY);
+    }
   }
 
 }
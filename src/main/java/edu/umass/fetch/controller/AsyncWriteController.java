@@ -0,0 +1,72 @@
+package edu.umass.fetch.controller;
+
+import edu.umass.fetch.request.SpendTransaction;
+import edu.umass.fetch.request.Transaction;
+import edu.umass.fetch.service.PointsService;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Adds and spends in {@code async} execution mode. Handlers return as soon as the command is queued on its shard and
+ * the response is written when the future completes, so no Tomcat thread waits for the ledger or for the log to be
+ * forced.
+ */
+@RestController
+@ConditionalOnExpression("'${fetch.web.execution-mode:blocking}'.equalsIgnoreCase('async')")
+public class AsyncWriteController {
+
+  private final PointsService pointsService;
+
+  public AsyncWriteController(final PointsService pointsService) {
+    this.pointsService = pointsService;
+  }
+
+  @PostMapping(path = "/addTransactions",
+      consumes = MediaType.APPLICATION_JSON_VALUE,
+      produces = MediaType.TEXT_PLAIN_VALUE)
+  @ResponseBody CompletableFuture<ResponseEntity<?>> addTransactions(
+      @RequestParam(defaultValue = PointsService.DEFAULT_ACCOUNT) String accountId,
+      @RequestHeader(name = ApiController.IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+      @RequestBody List<Transaction> transactions) {
+    return pointsService.addPointsAsync(accountId, transactions, idempotencyKey)
+        .handle((added, e) -> e == null ? ResponseEntity.ok("Transactions added successfully") : rejected(e));
+  }
+
+  @PostMapping(path = "/spendPoints",
+      consumes = MediaType.APPLICATION_JSON_VALUE,
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  @ResponseBody CompletableFuture<ResponseEntity<?>> spendPoints(
+      @RequestParam(defaultValue = PointsService.DEFAULT_ACCOUNT) String accountId,
+      @RequestHeader(name = ApiController.IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+      @RequestBody SpendTransaction spendTransaction) {
+    return pointsService.spendPointsAsync(accountId, spendTransaction, idempotencyKey)
+        .handle((payerPointsBalances, e) -> e == null
+            ? ResponseEntity.ok(pointsService.toJson(payerPointsBalances)) : rejected(e));
+  }
+
+  /**
+   * Answers malformed transactions with 400 and a rejected add or spend with 422, as the blocking handlers do. Any
+   * other failure is rethrown for Spring to handle.
+   */
+  private static ResponseEntity<?> rejected(Throwable e) {
+    Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    if (cause instanceof IllegalArgumentException) {
+      return new ResponseEntity<>("Malformed transactions: " + cause.getMessage(), HttpStatus.BAD_REQUEST);
+    }
+    if (cause instanceof IllegalStateException) {
+      return new ResponseEntity<>(cause.getMessage(), HttpStatus.UNPROCESSABLE_ENTITY);
+    }
+    throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(cause);
+  }
+}
@@ -0,0 +1,65 @@
+package edu.umass.fetch.controller;
+
+import edu.umass.fetch.request.SpendTransaction;
+import edu.umass.fetch.request.Transaction;
+import edu.umass.fetch.response.PointBalance;
+import edu.umass.fetch.service.PointsService;
+import java.util.List;
+import java.util.Set;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Adds and spends that hold the request thread until they are applied and on disk. Serves every execution mode but
+ * {@code async}; in {@code virtual-threads} mode the request thread is a virtual one.
+ */
+@RestController
+@ConditionalOnExpression("!'${fetch.web.execution-mode:blocking}'.equalsIgnoreCase('async')")
+public class BlockingWriteController {
+
+  private final PointsService pointsService;
+
+  public BlockingWriteController(final PointsService pointsService) {
+    this.pointsService = pointsService;
+  }
+
+  @PostMapping(path = "/addTransactions",
+      consumes = MediaType.APPLICATION_JSON_VALUE,
+      produces = MediaType.TEXT_PLAIN_VALUE)
+  @ResponseBody ResponseEntity<String> addTransactions(
+      @RequestParam(defaultValue = PointsService.DEFAULT_ACCOUNT) String accountId,
+      @RequestHeader(name = ApiController.IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+      @RequestBody List<Transaction> transactions) {
+    try {
+      pointsService.addPoints(accountId, transactions, idempotencyKey);
+      return ResponseEntity.ok("Transactions added successfully");
+    } catch (IllegalArgumentException e) {
+      return new ResponseEntity<>("Malformed transactions: " + e.getMessage(), HttpStatus.BAD_REQUEST);
+    } catch (IllegalStateException e) {
+      return new ResponseEntity<>(e.getMessage(), HttpStatus.UNPROCESSABLE_ENTITY);
+    }
+  }
+
+  @PostMapping(path = "/spendPoints",
+      consumes= MediaType.APPLICATION_JSON_VALUE,
+      produces = MediaType.APPLICATION_JSON_VALUE)
+  @ResponseBody ResponseEntity<?> spendPoints(
+      @RequestParam(defaultValue = PointsService.DEFAULT_ACCOUNT) String accountId,
+      @RequestHeader(name = ApiController.IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+      @RequestBody SpendTransaction spendTransaction) {
+    try {
+      Set<PointBalance> payerPointsBalances = pointsService.spendPoints(accountId, spendTransaction, idempotencyKey);
+      return ResponseEntity.ok(pointsService.toJson(payerPointsBalances));
+    } catch (IllegalStateException e) {
+      return new ResponseEntity<>(e.getMessage(), HttpStatus.UNPROCESSABLE_ENTITY);
+    }
+  }
+}
@@ -0,0 +1,20 @@
+package edu.umass.fetch.persistence;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Outcome of one applied request made with an idempotency key, as kept in a snapshot. The operation is the record type
+ * of the request, {@link LedgerRecords#ADD} or {@link LedgerRecords#SPEND}; a spend's outcome is the points each payer
+ * gave up, an add has none.
+ */
+@Getter
+@AllArgsConstructor
+public class IdempotencyImage {
+
+  private final byte operation;
+  private final String accountId;
+  private final IdempotencyKey idempotencyKey;
+  private final String[] payers;
+  private final long[] points;
+}
@@ -0,0 +1,16 @@
+package edu.umass.fetch.persistence;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Idempotency key a logged add or spend was made with, and the wall-clock time in epoch milliseconds until which a
+ * retry with the key is answered from the first outcome.
+ */
+@Getter
+@AllArgsConstructor
+public class IdempotencyKey {
+
+  private final String key;
+  private final long expiresAtMillis;
+}
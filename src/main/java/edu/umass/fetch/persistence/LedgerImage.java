@@ -0,0 +1,23 @@
+package edu.umass.fetch.persistence;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * State of one account as of the last log record applied to it. Payers are referenced by their index in the payer
+ * table of the snapshot, lots by the balance slot of their payer, and lots are listed in spend order
+ * with their timestamps in epoch nanoseconds.
+ */
+@Getter
+@AllArgsConstructor
+public class LedgerImage {
+
+  private final String accountId;
+  private final long appliedLsn;
+  private final long availablePointsBalance;
+  private final int[] payerIds;
+  private final long[] balances;
+  private final int[] lotSlots;
+  private final long[] lotPoints;
+  private final long[] lotTimestampNanos;
+}
@@ -0,0 +1,251 @@
+package edu.umass.fetch.persistence;
+
+import edu.umass.fetch.request.EpochNanos;
+import edu.umass.fetch.request.SpendMode;
+import edu.umass.fetch.request.SpendTransaction;
+import edu.umass.fetch.request.Transaction;
+import edu.umass.fetch.request.TransactionBatch;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary form of the ledger commands kept in the write-ahead log. Spends are logged as the requested points rather
+ * than their outcome: a spend is deterministic given the ledger state, so replaying the commands in log order rebuilds
+ * the same lots and balances.
+ *
+ * <p>An add or spend made with an idempotency key carries the key after its fields, see
+ * {@link #withIdempotencyKey(ByteBuffer, IdempotencyKey)}.
+ *
+ * <p>Adds are logged as {@link #ADD_NANOS}, with timestamps in epoch nanoseconds. Expiries are logged as
+ * {@link #EXPIRE_CUTOFFS}, with the cutoff the expiry applied to each payer, so replay drops the same lots whatever the
+ * expiry settings are by then. Logs written before carry adds as {@link #ADD} in epoch microseconds and expiries as
+ * {@link #EXPIRE} or {@link #EXPIRE_NANOS} with only the time they ran, and still decode.
+ */
+public final class LedgerRecords {
+
+  public static final byte ADD = 1;
+  public static final byte SPEND = 2;
+  public static final byte SPEND_BATCH = 3;
+  public static final byte EXPIRE = 4;
+  public static final byte ADD_NANOS = 5;
+  public static final byte EXPIRE_NANOS = 6;
+  public static final byte EXPIRE_CUTOFFS = 7;
+
+  private LedgerRecords() {
+  }
+
+  public interface Visitor {
+
+    /**
+     * @param idempotencyKey key the add was made with, or null
+     */
+    void add(long lsn, String accountId, List<Transaction> transactions, IdempotencyKey idempotencyKey);
+
+    /**
+     * @param idempotencyKey key the spend was made with, or null
+     */
+    void spend(long lsn, String accountId, long points, IdempotencyKey idempotencyKey);
+
+    void spendBatch(long lsn, String accountId, SpendMode mode, List<SpendTransaction> spendTransactions);
+
+    /**
+     * @param cutoffNanosByPayer cutoff the expiry applied to each payer with points due, or null for records logged
+     *     before cutoffs were, which only tell when the expiry ran
+     */
+    void expire(long lsn, String accountId, long nowNanos, Map<String, Long> cutoffNanosByPayer);
+  }
+
+  /**
+   * @throws IllegalArgumentException if a transaction has no payer or no timestamp, or one out of range
+   */
+  public static ByteBuffer add(String accountId, List<Transaction> transactions) {
+    byte[] account = accountId.getBytes(StandardCharsets.UTF_8);
+    byte[][] payers = new byte[transactions.size()][];
+    long[] timestamps = new long[transactions.size()];
+    int size = 2 + account.length + 4;
+    for (int i = 0; i < payers.length; i++) {
+      Transaction transaction = transactions.get(i);
+      timestamps[i] = TransactionBatch.timestampNanos(i, transaction.getPayer(), transaction.getTimestamp());
+      payers[i] = transaction.getPayer().getBytes(StandardCharsets.UTF_8);
+      size += 2 + payers[i].length + 8 + 8;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    putString(buffer, account);
+    buffer.putInt(transactions.size());
+    for (int i = 0; i < payers.length; i++) {
+      putString(buffer, payers[i]);
+      buffer.putLong(transactions.get(i).getPoints());
+      buffer.putLong(timestamps[i]);
+    }
+    return buffer.flip();
+  }
+
+  /**
+   * Encodes a streamed batch in the same layout as a list of transactions, so replay does not tell them apart.
+   */
+  public static ByteBuffer add(String accountId, TransactionBatch batch) {
+    byte[] account = accountId.getBytes(StandardCharsets.UTF_8);
+    byte[][] payers = new byte[batch.getPayerCount()][];
+    for (int i = 0; i < payers.length; i++) {
+      payers[i] = batch.getPayer(i).getBytes(StandardCharsets.UTF_8);
+    }
+    long size = 2 + account.length + 4;
+    for (int i = 0; i < batch.size(); i++) {
+      size += 2 + payers[batch.getPayerIndex(i)].length + 8 + 8;
+    }
+    if (size > Integer.MAX_VALUE - 64) {
+      throw new IllegalStateException("A single batch is limited to 2 GB in the write-ahead log");
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate((int) size);
+    putString(buffer, account);
+    buffer.putInt(batch.size());
+    for (int i = 0; i < batch.size(); i++) {
+      putString(buffer, payers[batch.getPayerIndex(i)]);
+      buffer.putLong(batch.getPoints(i));
+      buffer.putLong(batch.getTimestampNanos(i));
+    }
+    return buffer.flip();
+  }
+
+  public static ByteBuffer spend(String accountId, long points) {
+    byte[] account = accountId.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(2 + account.length + 8);
+    putString(buffer, account);
+    buffer.putLong(points);
+    return buffer.flip();
+  }
+
+  /**
+   * Encodes a spend batch as its mode and the requested points. Which spends a per-item batch rejects follows from the
+   * ledger state, so replay reaches the same outcome.
+   */
+  public static ByteBuffer spendBatch(String accountId, SpendMode mode, List<SpendTransaction> spendTransactions) {
+    byte[] account = accountId.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(2 + account.length + 1 + 4 + 8 * spendTransactions.size());
+    putString(buffer, account);
+    buffer.put((byte) mode.ordinal());
+    buffer.putInt(spendTransactions.size());
+    for (SpendTransaction spendTransaction : spendTransactions) {
+      buffer.putLong(spendTransaction.getPoints());
+    }
+    return buffer.flip();
+  }
+
+  /**
+   * Encodes an expiry as the time it ran at and the cutoff it applied to each payer. Which lots expired follows from
+   * the ledger state and the cutoffs alone.
+   */
+  public static ByteBuffer expire(String accountId, long nowNanos, Map<String, Long> cutoffNanosByPayer) {
+    byte[] account = accountId.getBytes(StandardCharsets.UTF_8);
+    byte[][] payers = new byte[cutoffNanosByPayer.size()][];
+    int size = 2 + account.length + 8 + 4;
+    int i = 0;
+    for (String payer : cutoffNanosByPayer.keySet()) {
+      payers[i] = payer.getBytes(StandardCharsets.UTF_8);
+      size += 2 + payers[i++].length + 8;
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    putString(buffer, account);
+    buffer.putLong(nowNanos);
+    buffer.putInt(payers.length);
+    i = 0;
+    for (long cutoffNanos : cutoffNanosByPayer.values()) {
+      putString(buffer, payers[i++]);
+      buffer.putLong(cutoffNanos);
+    }
+    return buffer.flip();
+  }
+
+  /**
+   * Appends the idempotency key to an encoded add or spend. Records without one simply end after their fields, so logs
+   * written before keys existed still decode.
+   */
+  public static ByteBuffer withIdempotencyKey(ByteBuffer record, IdempotencyKey idempotencyKey) {
+    byte[] key = idempotencyKey.getKey().getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(record.remaining() + 2 + key.length + 8);
+    buffer.put(record.duplicate());
+    putString(buffer, key);
+    buffer.putLong(idempotencyKey.getExpiresAtMillis());
+    return buffer.flip();
+  }
+
+  public static void decode(long lsn, byte type, ByteBuffer payload, Visitor visitor) {
+    String accountId = getString(payload);
+    switch (type) {
+      case ADD:
+      case ADD_NANOS:
+        int count = payload.getInt();
+        List<Transaction> transactions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+          String payer = getString(payload);
+          long points = payload.getLong();
+          long timestamp = type == ADD ? EpochNanos.ofMicros(payload.getLong()) : payload.getLong();
+          transactions.add(new Transaction(payer, points, EpochNanos.toLocalDateTime(timestamp)));
+        }
+        visitor.add(lsn, accountId, transactions, getIdempotencyKey(payload));
+        break;
+      case SPEND:
+        visitor.spend(lsn, accountId, payload.getLong(), getIdempotencyKey(payload));
+        break;
+      case SPEND_BATCH:
+        SpendMode mode = SpendMode.values()[payload.get()];
+        int spends = payload.getInt();
+        List<SpendTransaction> spendTransactions = new ArrayList<>(spends);
+        for (int i = 0; i < spends; i++) {
+          spendTransactions.add(new SpendTransaction(payload.getLong()));
+        }
+        visitor.spendBatch(lsn, accountId, mode, spendTransactions);
+        break;
+      case EXPIRE:
+        visitor.expire(lsn, accountId, EpochNanos.ofMicros(payload.getLong()), null);
+        break;
+      case EXPIRE_NANOS:
+        visitor.expire(lsn, accountId, payload.getLong(), null);
+        break;
+      case EXPIRE_CUTOFFS:
+        long nowNanos = payload.getLong();
+        int payers = payload.getInt();
+        Map<String, Long> cutoffNanosByPayer = new LinkedHashMap<>();
+        for (int i = 0; i < payers; i++) {
+          cutoffNanosByPayer.put(getString(payload), payload.getLong());
+        }
+        visitor.expire(lsn, accountId, nowNanos, cutoffNanosByPayer);
+        break;
+      default:
+        throw new IllegalStateException("Unknown ledger record type " + type);
+    }
+  }
+
+  private static IdempotencyKey getIdempotencyKey(ByteBuffer payload) {
+    return payload.hasRemaining() ? new IdempotencyKey(getString(payload), payload.getLong()) : null;
+  }
+
+  static void putString(ByteBuffer buffer, byte[] bytes) {
+    if (bytes.length > 0xFFFF) {
+      throw new IllegalStateException("Account and payer names are limited to 65535 bytes");
+    }
+    buffer.putShort((short) bytes.length);
+    buffer.put(bytes);
+  }
+
+  static String getString(ByteBuffer buffer) {
+    int length = buffer.getShort() & 0xFFFF;
+    String value;
+    if (buffer.hasArray()) {
+      value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+      buffer.position(buffer.position() + length);
+    } else {
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      value = new String(bytes, StandardCharsets.UTF_8);
+    }
+    return value;
+  }
+}
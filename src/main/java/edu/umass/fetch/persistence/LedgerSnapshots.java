@@ -0,0 +1,449 @@
+package edu.umass.fetch.persistence;
+
+import edu.umass.fetch.request.EpochNanos;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Snapshot files of every ledger, named after the lsn the snapshot was started at. Every record up to that lsn is
+ * reflected in the snapshot; an account may also reflect later records, up to the applied lsn of its image.
+ *
+ * <p>Layout: {@code [int magic][long lsn][byte 1][account]*[byte 0][int payerCount][payer name]*[int keyCount]
+ * [idempotency key]*[long tableOffset]} and a trailing crc32 of everything before it. The payer table comes last so
+ * that it also names the payers first seen while the accounts were being written. Snapshots from before idempotency
+ * keys end the table after the payer names. Lot timestamps are in epoch nanoseconds; snapshots with the magic of
+ * {@link #MICROS_MAGIC} have them in epoch microseconds, as they were written before. A snapshot is written to a
+ * temporary file and only renamed into place once complete and on disk.
+ */
+@Slf4j
+public final class LedgerSnapshots {
+
+  private static final int MAGIC = 0x464C5332;
+  private static final int MICROS_MAGIC = 0x464C5331;
+  private static final int BUFFER_BYTES = 1 << 20;
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String SNAPSHOT_SUFFIX = ".bin";
+  private static final String TEMPORARY_NAME = "snapshot.tmp";
+
+  private LedgerSnapshots() {
+  }
+
+  public interface Visitor {
+
+    void payers(String[] names);
+
+    void ledger(LedgerImage image);
+
+    void idempotencyKey(IdempotencyImage image);
+  }
+
+  /**
+   * Starts a snapshot covering every record up to {@code lsn}.
+   */
+  public static Writer create(Path directory, long lsn) throws IOException {
+    Files.createDirectories(directory);
+    Writer writer = new Writer(directory, lsn);
+    writer.buffer.putInt(MAGIC);
+    writer.buffer.putLong(lsn);
+    return writer;
+  }
+
+  /**
+   * Passes the latest snapshot in the directory to the visitor and returns its lsn, or returns 0 when there is none.
+   */
+  public static long load(Path directory, Visitor visitor) throws IOException {
+    List<Path> snapshots = snapshots(directory);
+    if (snapshots.isEmpty()) {
+      return 0;
+    }
+    Path file = snapshots.get(snapshots.size() - 1);
+    long startNanos = System.nanoTime();
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      verifyChecksum(file, channel);
+      long end = channel.size() - 4;
+      ByteBuffer header = ByteBuffer.allocate(12);
+      channel.read(header, 0);
+      header.flip();
+      int magic = header.getInt();
+      if (magic != MAGIC && magic != MICROS_MAGIC) {
+        throw new IOException("Not a ledger snapshot: " + file);
+      }
+      long lsn = header.getLong();
+      ByteBuffer trailer = ByteBuffer.allocate(8);
+      channel.read(trailer, end - 8);
+      long tableOffset = trailer.flip().getLong();
+
+      Reader table = new Reader(channel, tableOffset, end - 8);
+      String[] payerNames = new String[table.getInt()];
+      for (int i = 0; i < payerNames.length; i++) {
+        payerNames[i] = table.getString();
+      }
+      visitor.payers(payerNames);
+      int keyCount = table.hasRemaining() ? table.getInt() : 0;
+      for (int i = 0; i < keyCount; i++) {
+        visitor.idempotencyKey(table.getIdempotencyImage());
+      }
+
+      Reader accounts = new Reader(channel, 12, tableOffset);
+      long ledgers = 0;
+      long lots = 0;
+      while (accounts.nextByte() != 0) {
+        LedgerImage image = accounts.getImage(magic == MICROS_MAGIC);
+        ledgers++;
+        lots += image.getLotSlots().length;
+        visitor.ledger(image);
+      }
+      log.info("Loaded snapshot {} with {} accounts and {} lots in {} s", file.getFileName(), ledgers, lots,
+          String.format("%.3f", (System.nanoTime() - startNanos) / 1e9));
+      return lsn;
+    }
+  }
+
+  /**
+   * The latest snapshot in the directory, or null when there is none.
+   */
+  public static Path latest(Path directory) throws IOException {
+    List<Path> snapshots = snapshots(directory);
+    return snapshots.isEmpty() ? null : snapshots.get(snapshots.size() - 1);
+  }
+
+  /**
+   * Lsn a snapshot file covers, from its name.
+   */
+  public static long lsnOf(Path snapshot) {
+    String name = snapshot.getFileName().toString();
+    return Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(), name.length() - SNAPSHOT_SUFFIX.length()));
+  }
+
+  /**
+   * Copies {@code length} bytes of a snapshot file taken elsewhere, covering every record up to {@code lsn}, into the
+   * directory in place of its snapshots. The copy is checked when it is loaded.
+   */
+  public static void install(Path directory, long lsn, InputStream in, long length) throws IOException {
+    Files.createDirectories(directory);
+    Path temporary = directory.resolve(TEMPORARY_NAME);
+    try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      byte[] buffer = new byte[BUFFER_BYTES];
+      long remaining = length;
+      while (remaining > 0) {
+        int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+        if (read < 0) {
+          throw new EOFException("Snapshot ended after " + (length - remaining) + " of " + length + " bytes");
+        }
+        ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+        while (chunk.hasRemaining()) {
+          channel.write(chunk);
+        }
+        remaining -= read;
+      }
+      channel.force(true);
+    }
+    Path target = directory.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, lsn, SNAPSHOT_SUFFIX));
+    Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    forceDirectory(directory);
+    for (Path previous : snapshots(directory)) {
+      if (!previous.equals(target)) {
+        Files.delete(previous);
+      }
+    }
+  }
+
+  /**
+   * Makes the rename of a snapshot into the directory durable, before the previous snapshot and the log it covers are
+   * deleted: otherwise a power loss can undo the rename but not the deletes. Windows cannot open a directory to force
+   * it, so there the rename is left to the file system.
+   */
+  private static void forceDirectory(Path directory) throws IOException {
+    if (System.getProperty("os.name").startsWith("Windows")) {
+      return;
+    }
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    }
+  }
+
+  private static void verifyChecksum(Path file, FileChannel channel) throws IOException {
+    long dataBytes = channel.size() - 4;
+    if (dataBytes < 0) {
+      throw new IOException("Snapshot is truncated: " + file);
+    }
+    CRC32 crc = new CRC32();
+    ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+    long position = 0;
+    while (position < dataBytes) {
+      buffer.clear().limit((int) Math.min(buffer.capacity(), dataBytes - position));
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new EOFException("Snapshot is truncated: " + file);
+      }
+      position += read;
+      crc.update(buffer.flip());
+    }
+    ByteBuffer stored = ByteBuffer.allocate(4);
+    channel.read(stored, dataBytes);
+    if (stored.flip().getInt() != (int) crc.getValue()) {
+      throw new IOException("Snapshot fails its checksum: " + file);
+    }
+  }
+
+  private static List<Path> snapshots(Path directory) throws IOException {
+    if (!Files.isDirectory(directory)) {
+      return List.of();
+    }
+    try (Stream<Path> listing = Files.list(directory)) {
+      return listing
+          .filter(path -> path.getFileName().toString().startsWith(SNAPSHOT_PREFIX))
+          .filter(path -> path.getFileName().toString().endsWith(SNAPSHOT_SUFFIX))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Streams ledger images into the temporary snapshot file. Nothing replaces the current snapshot until
+   * {@link #commit(String[])}; closing an uncommitted writer discards the file.
+   */
+  public static final class Writer implements Closeable {
+
+    private final Path directory;
+    private final long lsn;
+    private final Path temporary;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+    private final CRC32 crc = new CRC32();
+    private long written;
+    private boolean committed;
+
+    private Writer(Path directory, long lsn) throws IOException {
+      this.directory = directory;
+      this.lsn = lsn;
+      this.temporary = directory.resolve(TEMPORARY_NAME);
+      this.channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    public void append(LedgerImage image) throws IOException {
+      require(1);
+      buffer.put((byte) 1);
+      putString(image.getAccountId());
+      require(24);
+      buffer.putLong(image.getAppliedLsn());
+      buffer.putLong(image.getAvailablePointsBalance());
+      int[] payerIds = image.getPayerIds();
+      long[] balances = image.getBalances();
+      buffer.putInt(payerIds.length);
+      for (int i = 0; i < payerIds.length; i++) {
+        require(12);
+        buffer.putInt(payerIds[i]);
+        buffer.putLong(balances[i]);
+      }
+      int[] lotSlots = image.getLotSlots();
+      long[] lotPoints = image.getLotPoints();
+      long[] lotTimestampNanos = image.getLotTimestampNanos();
+      require(4);
+      buffer.putInt(lotSlots.length);
+      for (int i = 0; i < lotSlots.length; i++) {
+        require(20);
+        buffer.putInt(lotSlots[i]);
+        buffer.putLong(lotPoints[i]);
+        buffer.putLong(lotTimestampNanos[i]);
+      }
+    }
+
+    /**
+     * Completes the snapshot, makes it durable and puts it in place of the previous one. Payer ids in the images index
+     * {@code payerNames}. The outcomes of keyed requests are kept with the payer table, so that a retry is still
+     * recognized once the records it was logged in are deleted.
+     */
+    public void commit(String[] payerNames, List<IdempotencyImage> idempotencyImages) throws IOException {
+      require(5);
+      buffer.put((byte) 0);
+      long tableOffset = written + buffer.position();
+      buffer.putInt(payerNames.length);
+      for (String name : payerNames) {
+        putString(name);
+      }
+      require(4);
+      buffer.putInt(idempotencyImages.size());
+      for (IdempotencyImage image : idempotencyImages) {
+        require(1);
+        buffer.put(image.getOperation());
+        putString(image.getAccountId());
+        putString(image.getIdempotencyKey().getKey());
+        require(12);
+        buffer.putLong(image.getIdempotencyKey().getExpiresAtMillis());
+        buffer.putInt(image.getPayers().length);
+        for (int i = 0; i < image.getPayers().length; i++) {
+          putString(image.getPayers()[i]);
+          require(8);
+          buffer.putLong(image.getPoints()[i]);
+        }
+      }
+      require(8);
+      buffer.putLong(tableOffset);
+      flush();
+      ByteBuffer checksum = ByteBuffer.allocate(4).putInt((int) crc.getValue()).flip();
+      while (checksum.hasRemaining()) {
+        channel.write(checksum);
+      }
+      channel.force(true);
+      channel.close();
+
+      Path target = directory.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, lsn, SNAPSHOT_SUFFIX));
+      Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      committed = true;
+      forceDirectory(directory);
+      for (Path previous : snapshots(directory)) {
+        if (!previous.equals(target)) {
+          Files.delete(previous);
+        }
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!committed) {
+        channel.close();
+        Files.deleteIfExists(temporary);
+      }
+    }
+
+    private void putString(String value) throws IOException {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      require(2 + bytes.length);
+      LedgerRecords.putString(buffer, bytes);
+    }
+
+    private void require(int bytes) throws IOException {
+      if (buffer.remaining() < bytes) {
+        flush();
+      }
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      crc.update(buffer.duplicate());
+      while (buffer.hasRemaining()) {
+        written += channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+
+  /**
+   * Buffered reads of the bytes of a snapshot file between {@code start} and {@code end}.
+   */
+  private static final class Reader {
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_BYTES);
+    private long position;
+    private final long end;
+
+    Reader(FileChannel channel, long start, long end) {
+      this.channel = channel;
+      this.position = start;
+      this.end = end;
+      buffer.limit(0);
+    }
+
+    boolean hasRemaining() {
+      return buffer.hasRemaining() || position < end;
+    }
+
+    byte nextByte() throws IOException {
+      require(1);
+      return buffer.get();
+    }
+
+    int getInt() throws IOException {
+      require(4);
+      return buffer.getInt();
+    }
+
+    String getString() throws IOException {
+      require(2);
+      require(2 + (buffer.getShort(buffer.position()) & 0xFFFF));
+      return LedgerRecords.getString(buffer);
+    }
+
+    LedgerImage getImage(boolean timestampMicros) throws IOException {
+      String accountId = getString();
+      require(20);
+      long appliedLsn = buffer.getLong();
+      long available = buffer.getLong();
+      int payerCount = buffer.getInt();
+      int[] payerIds = new int[payerCount];
+      long[] balances = new long[payerCount];
+      for (int i = 0; i < payerCount; i++) {
+        require(12);
+        payerIds[i] = buffer.getInt();
+        balances[i] = buffer.getLong();
+      }
+      require(4);
+      int lotCount = buffer.getInt();
+      int[] lotSlots = new int[lotCount];
+      long[] lotPoints = new long[lotCount];
+      long[] lotTimestampNanos = new long[lotCount];
+      for (int i = 0; i < lotCount; i++) {
+        require(20);
+        lotSlots[i] = buffer.getInt();
+        lotPoints[i] = buffer.getLong();
+        lotTimestampNanos[i] = timestampMicros ? EpochNanos.ofMicros(buffer.getLong()) : buffer.getLong();
+      }
+      return new LedgerImage(accountId, appliedLsn, available, payerIds, balances, lotSlots, lotPoints,
+          lotTimestampNanos);
+    }
+
+    IdempotencyImage getIdempotencyImage() throws IOException {
+      byte operation = nextByte();
+      String accountId = getString();
+      String key = getString();
+      require(12);
+      long expiresAtMillis = buffer.getLong();
+      int payerCount = buffer.getInt();
+      String[] payers = new String[payerCount];
+      long[] points = new long[payerCount];
+      for (int i = 0; i < payerCount; i++) {
+        payers[i] = getString();
+        require(8);
+        points[i] = buffer.getLong();
+      }
+      return new IdempotencyImage(operation, accountId, new IdempotencyKey(key, expiresAtMillis), payers, points);
+    }
+
+    private void require(int bytes) throws IOException {
+      if (buffer.remaining() >= bytes) {
+        return;
+      }
+      buffer.compact();
+      while (buffer.position() < bytes) {
+        if (position == end) {
+          throw new EOFException("Snapshot ends in the middle of a record");
+        }
+        buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + end - position));
+        int read = channel.read(buffer, position);
+        if (read < 0) {
+          throw new EOFException("Snapshot ends in the middle of a record");
+        }
+        position += read;
+      }
+      buffer.flip();
+    }
+  }
+}
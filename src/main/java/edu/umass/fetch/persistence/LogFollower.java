@@ -0,0 +1,174 @@
+package edu.umass.fetch.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.function.LongSupplier;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Streams a leader's write-ahead log into a follower, see {@link LogShipper}. A thread of its own connects to the
+ * leader, asks for the records after the follower's last lsn and passes whatever arrives to the handler, in log order.
+ * When the connection drops, or the leader refuses the follower, it connects again after the reconnect interval.
+ */
+@Slf4j
+public class LogFollower implements Closeable {
+
+  private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+  public interface Handler {
+
+    /**
+     * Installs the leader's snapshot, covering every record up to {@code lsn}, from the next {@code length} bytes.
+     */
+    void snapshot(long lsn, InputStream in, long length) throws IOException;
+
+    void record(long lsn, byte type, ByteBuffer payload);
+
+    /**
+     * The leader has nothing more to send for now; every record up to {@code leaderLsn} has been passed on.
+     */
+    void caughtUp(long leaderLsn);
+  }
+
+  private final InetSocketAddress leader;
+  private final Duration reconnectInterval;
+  private final LongSupplier lastLsn;
+  private final Handler handler;
+  private final Thread thread;
+  private volatile Socket socket;
+  private volatile boolean closed;
+  private volatile boolean connected;
+  private volatile long leaderLsn;
+
+  private LogFollower(InetSocketAddress leader, Duration reconnectInterval, LongSupplier lastLsn, Handler handler) {
+    this.leader = leader;
+    this.reconnectInterval = reconnectInterval;
+    this.lastLsn = lastLsn;
+    this.handler = handler;
+    this.thread = new Thread(this::follow, "log-follower");
+    thread.setDaemon(true);
+  }
+
+  /**
+   * Starts following the leader at {@code host:port}. {@code lastLsn} is asked for the follower's position on every
+   * connection.
+   */
+  public static LogFollower start(String leader, Duration reconnectInterval, LongSupplier lastLsn, Handler handler) {
+    int colon = leader.lastIndexOf(':');
+    if (colon <= 0) {
+      throw new IllegalArgumentException("The leader must be given as host:port, got '" + leader + "'");
+    }
+    InetSocketAddress address = InetSocketAddress.createUnresolved(leader.substring(0, colon),
+        Integer.parseInt(leader.substring(colon + 1)));
+    LogFollower follower = new LogFollower(address, reconnectInterval, lastLsn, handler);
+    follower.thread.start();
+    return follower;
+  }
+
+  public boolean isConnected() {
+    return connected;
+  }
+
+  /**
+   * Last lsn the leader is known to have made durable.
+   */
+  public long getLeaderLsn() {
+    return leaderLsn;
+  }
+
+  /**
+   * Stops following and waits for the record being handled, if any. Nothing is passed to the handler afterwards.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    Socket current = socket;
+    if (current != null) {
+      current.close();
+    }
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void follow() {
+    while (!closed) {
+      try (Socket current = new Socket()) {
+        socket = current;
+        current.connect(new InetSocketAddress(leader.getHostString(), leader.getPort()), CONNECT_TIMEOUT_MILLIS);
+        current.setTcpNoDelay(true);
+        stream(current);
+      } catch (IOException e) {
+        if (!closed) {
+          log.warn("Lost the leader at {}: {}", leader, e.toString());
+        }
+      } catch (RuntimeException e) {
+        log.error("Could not apply the leader's log; following again from the last record applied", e);
+      } finally {
+        connected = false;
+      }
+      try {
+        Thread.sleep(reconnectInterval.toMillis());
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  private void stream(Socket current) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(current.getOutputStream()));
+    out.writeInt(LogShipper.MAGIC);
+    out.writeLong(lastLsn.getAsLong());
+    out.flush();
+    DataInputStream in = new DataInputStream(new BufferedInputStream(current.getInputStream(), 1 << 16));
+    connected = true;
+    log.info("Following the leader at {} from lsn {}", leader, lastLsn.getAsLong());
+    byte[] payload = new byte[256];
+    while (!closed) {
+      byte frame = in.readByte();
+      switch (frame) {
+        case LogShipper.RECORD:
+          long lsn = in.readLong();
+          byte type = in.readByte();
+          int length = in.readInt();
+          if (payload.length < length) {
+            payload = new byte[Math.max(length, payload.length * 2)];
+          }
+          in.readFully(payload, 0, length);
+          leaderLsn = Math.max(leaderLsn, lsn);
+          if (!closed) {
+            handler.record(lsn, type, ByteBuffer.wrap(payload, 0, length).slice());
+          }
+          if (in.available() == 0) {
+            handler.caughtUp(leaderLsn);
+          }
+          break;
+        case LogShipper.SNAPSHOT:
+          long snapshotLsn = in.readLong();
+          handler.snapshot(snapshotLsn, in, in.readLong());
+          leaderLsn = Math.max(leaderLsn, snapshotLsn);
+          break;
+        case LogShipper.HEARTBEAT:
+          leaderLsn = Math.max(leaderLsn, in.readLong());
+          handler.caughtUp(leaderLsn);
+          break;
+        case LogShipper.ERROR:
+          throw new IOException("The leader refused to ship its log: " + in.readUTF());
+        default:
+          throw new IOException("Unknown replication frame " + frame);
+      }
+    }
+  }
+}
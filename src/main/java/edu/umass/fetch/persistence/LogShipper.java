@@ -0,0 +1,196 @@
+package edu.umass.fetch.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Streams the write-ahead log of a leader to its followers over TCP. Only durable records are shipped, in log order,
+ * so a follower never holds a record the leader could lose in a crash.
+ *
+ * <p>A follower opens with {@code [int magic][long lastLsn]}. If the log no longer holds the records after its lsn,
+ * the leader first sends its latest snapshot; either way it then reads the log from the follower's position and keeps
+ * sending records as they become durable, and a heartbeat with its durable lsn whenever it has been idle for
+ * {@value #HEARTBEAT_MILLIS} ms. Each follower has a thread of its own.
+ *
+ * <p>Frames: {@code [byte RECORD][long lsn][byte type][int length][payload]},
+ * {@code [byte SNAPSHOT][long lsn][long length][snapshot file]}, {@code [byte HEARTBEAT][long durableLsn]} and
+ * {@code [byte ERROR][utf message]}, after which the leader hangs up.
+ */
+@Slf4j
+public class LogShipper implements Closeable {
+
+  static final int MAGIC = 0x464C5231;
+  static final byte RECORD = 1;
+  static final byte SNAPSHOT = 2;
+  static final byte HEARTBEAT = 3;
+  static final byte ERROR = 4;
+  static final int HEARTBEAT_MILLIS = 1000;
+  private static final int RECORDS_PER_READ = 1024;
+  private static final int BUFFER_BYTES = 1 << 16;
+
+  private final WriteAheadLog writeAheadLog;
+  private final Path directory;
+  private final ServerSocket serverSocket;
+  private final Set<Socket> followers = ConcurrentHashMap.newKeySet();
+
+  private LogShipper(WriteAheadLog writeAheadLog, Path directory, ServerSocket serverSocket) {
+    this.writeAheadLog = writeAheadLog;
+    this.directory = directory;
+    this.serverSocket = serverSocket;
+  }
+
+  /**
+   * Accepts followers on the port, shipping them the log, and snapshots from {@code directory} when they are too far
+   * behind.
+   */
+  public static LogShipper start(WriteAheadLog writeAheadLog, Path directory, int port) throws IOException {
+    ServerSocket serverSocket = new ServerSocket();
+    serverSocket.setReuseAddress(true);
+    serverSocket.bind(new InetSocketAddress(port));
+    LogShipper shipper = new LogShipper(writeAheadLog, directory, serverSocket);
+    Thread acceptor = new Thread(shipper::accept, "log-shipper");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    log.info("Shipping the write-ahead log to followers on port {}", shipper.getPort());
+    return shipper;
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Number of followers connected.
+   */
+  public int getFollowers() {
+    return followers.size();
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    for (Socket follower : followers) {
+      follower.close();
+    }
+  }
+
+  private void accept() {
+    while (!serverSocket.isClosed()) {
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        if (!serverSocket.isClosed()) {
+          log.error("Could not accept a follower", e);
+        }
+        continue;
+      }
+      followers.add(socket);
+      Thread thread = new Thread(() -> ship(socket), "log-shipper-" + socket.getRemoteSocketAddress());
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  private void ship(Socket socket) {
+    try (Socket follower = socket) {
+      follower.setTcpNoDelay(true);
+      DataInputStream in = new DataInputStream(new BufferedInputStream(follower.getInputStream()));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(follower.getOutputStream(), BUFFER_BYTES));
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a follower");
+      }
+      long lastLsn = in.readLong();
+      log.info("Follower {} connected at lsn {}", follower.getRemoteSocketAddress(), lastLsn);
+      if (lastLsn > writeAheadLog.lastLsn()) {
+        refuse(out, "The follower is ahead of the leader, at lsn " + lastLsn + " of " + writeAheadLog.lastLsn());
+        return;
+      }
+      if (lastLsn + 1 >= writeAheadLog.firstLsn()) {
+        stream(writeAheadLog.tail(lastLsn), out);
+        return;
+      }
+      Path snapshot = LedgerSnapshots.latest(directory);
+      if (snapshot == null || lastLsn != 0) {
+        refuse(out, "The leader's log starts after lsn " + lastLsn + ". Start the follower with an empty persistence "
+            + "directory to copy the leader's snapshot");
+        return;
+      }
+      // Map the records after the snapshot before sending it, so a newer snapshot cannot delete them meanwhile
+      WriteAheadLog.Tail tail = writeAheadLog.tail(LedgerSnapshots.lsnOf(snapshot));
+      sendSnapshot(out, snapshot);
+      stream(tail, out);
+    } catch (SocketException e) {
+      log.info("Follower {} disconnected: {}", socket.getRemoteSocketAddress(), e.getMessage());
+    } catch (IOException e) {
+      log.warn("Stopped shipping the log to follower {}", socket.getRemoteSocketAddress(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      followers.remove(socket);
+    }
+  }
+
+  private static void sendSnapshot(DataOutputStream out, Path snapshot) throws IOException {
+    out.writeByte(SNAPSHOT);
+    out.writeLong(LedgerSnapshots.lsnOf(snapshot));
+    out.writeLong(Files.size(snapshot));
+    Files.copy(snapshot, out);
+    out.flush();
+    log.info("Sent snapshot {} to a follower", snapshot.getFileName());
+  }
+
+  private void stream(WriteAheadLog.Tail tail, DataOutputStream out) throws IOException, InterruptedException {
+    byte[] payload = new byte[BUFFER_BYTES];
+    IOException[] failure = new IOException[1];
+    while (!serverSocket.isClosed()) {
+      int read = tail.read((lsn, type, record) -> {
+        try {
+          int length = record.remaining();
+          out.writeByte(RECORD);
+          out.writeLong(lsn);
+          out.writeByte(type);
+          out.writeInt(length);
+          while (record.hasRemaining()) {
+            int chunk = Math.min(payload.length, record.remaining());
+            record.get(payload, 0, chunk);
+            out.write(payload, 0, chunk);
+          }
+        } catch (IOException e) {
+          failure[0] = e;
+        }
+      }, RECORDS_PER_READ);
+      if (failure[0] != null) {
+        throw failure[0];
+      }
+      if (read == 0) {
+        out.flush();
+        if (writeAheadLog.awaitDurable(tail.lastLsn(), HEARTBEAT_MILLIS) <= tail.lastLsn()) {
+          out.writeByte(HEARTBEAT);
+          out.writeLong(writeAheadLog.durableLsn());
+          out.flush();
+        }
+      }
+    }
+  }
+
+  private static void refuse(DataOutputStream out, String message) throws IOException {
+    log.warn("Refused a follower: {}", message);
+    out.writeByte(ERROR);
+    out.writeUTF(message);
+    out.flush();
+  }
+}
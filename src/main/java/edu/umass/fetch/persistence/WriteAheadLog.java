@@ -0,0 +1,521 @@
+package edu.umass.fetch.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append-only log of ledger commands in memory-mapped segment files.
+ *
+ * <p>Each record is {@code [int bodyLength][int crc32(body)][body]} with body {@code [long lsn][byte type][payload]}.
+ * Log sequence numbers are consecutive, and segments are named after the lsn of their first record. Recovery stops at
+ * the first record that is missing, torn, fails its checksum or breaks the lsn sequence, and wipes everything after it.
+ *
+ * <p>{@link #sync(long)} is a group commit: the first caller to find its record not yet durable forces the segment
+ * for every record appended so far, and callers queued behind it usually find their record already covered.
+ * {@link #syncAsync(long)} is the same without a waiting thread per caller: one syncer thread forces the log for all
+ * records requested since its last pass and completes their futures together.
+ *
+ * <p>{@link #tail(long)} reads the durable records back from the segment files, for shipping them to followers.
+ */
+@Slf4j
+public class WriteAheadLog implements Closeable {
+
+  private static final int HEADER_BYTES = 8;
+  private static final int BODY_PREFIX_BYTES = 9;
+  private static final String SEGMENT_PREFIX = "wal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  public interface RecordHandler {
+
+    void accept(long lsn, byte type, ByteBuffer payload);
+  }
+
+  private final Path directory;
+  private final int segmentSize;
+  private final ReentrantLock appendLock = new ReentrantLock();
+  private final ReentrantLock syncLock = new ReentrantLock();
+  private final CRC32 crc = new CRC32();
+
+  private volatile Segment active;
+  private long nextLsn;
+  private volatile long appendedLsn;
+  private volatile long durableLsn;
+
+  /**
+   * Signalled whenever records become durable, for tails waiting in {@link #awaitDurable(long, long)}.
+   */
+  private final Object durableSignal = new Object();
+  private volatile int durableWaiters;
+
+  private final BlockingQueue<PendingSync> pendingSyncs = new LinkedBlockingQueue<>();
+  private volatile Thread syncer;
+
+  private WriteAheadLog(Path directory, int segmentSize) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Opens the log in the directory, passing every intact record with an lsn above {@code afterLsn} to the handler in
+   * log order before returning.
+   */
+  public static WriteAheadLog open(Path directory, int segmentSize, long afterLsn, RecordHandler handler)
+      throws IOException {
+    Files.createDirectories(directory);
+    WriteAheadLog log = new WriteAheadLog(directory, segmentSize);
+    log.recover(afterLsn, handler);
+    return log;
+  }
+
+  /**
+   * Appends a record and returns its lsn. The record is not durable until {@link #sync(long)} returns for it.
+   */
+  public long append(byte type, ByteBuffer payload) {
+    int bodyLength = BODY_PREFIX_BYTES + payload.remaining();
+    appendLock.lock();
+    try {
+      Segment segment = active;
+      if (segment == null || segment.buffer.remaining() < HEADER_BYTES + bodyLength) {
+        segment = rollOver(HEADER_BYTES + bodyLength);
+      }
+      MappedByteBuffer buffer = segment.buffer;
+      long lsn = nextLsn++;
+      int start = buffer.position();
+      buffer.position(start + HEADER_BYTES);
+      buffer.putLong(lsn);
+      buffer.put(type);
+      buffer.put(payload);
+
+      crc.reset();
+      crc.update(buffer.duplicate().position(start + HEADER_BYTES).limit(start + HEADER_BYTES + bodyLength));
+      buffer.putInt(start + 4, (int) crc.getValue());
+      buffer.putInt(start, bodyLength);
+
+      segment.lastLsn = lsn;
+      appendedLsn = lsn;
+      return lsn;
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  /**
+   * Blocks until the record with the given lsn, and every record before it, is on disk.
+   */
+  public void sync(long lsn) {
+    if (durableLsn >= lsn) {
+      return;
+    }
+    syncLock.lock();
+    try {
+      if (durableLsn >= lsn) {
+        return;
+      }
+      long target = appendedLsn;
+      Segment segment = active;
+      if (segment != null) {
+        segment.buffer.force();
+      }
+      durableLsn = target;
+    } finally {
+      syncLock.unlock();
+    }
+    if (durableWaiters > 0) {
+      synchronized (durableSignal) {
+        durableSignal.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Returns a future completed once the record with the given lsn, and every record before it, is on disk, or completed
+   * exceptionally if forcing the log fails.
+   */
+  public CompletableFuture<Void> syncAsync(long lsn) {
+    if (durableLsn >= lsn) {
+      return CompletableFuture.completedFuture(null);
+    }
+    if (syncer == null) {
+      startSyncer();
+    }
+    CompletableFuture<Void> durable = new CompletableFuture<>();
+    pendingSyncs.add(new PendingSync(lsn, durable));
+    return durable;
+  }
+
+  /**
+   * Makes every record appended so far durable.
+   */
+  public void sync() {
+    sync(appendedLsn);
+  }
+
+  public long lastLsn() {
+    return appendedLsn;
+  }
+
+  public long durableLsn() {
+    return durableLsn;
+  }
+
+  /**
+   * Lsn of the oldest record still in the log, or the next lsn when the log is empty.
+   */
+  public long firstLsn() throws IOException {
+    List<Path> files = segmentFiles();
+    return files.isEmpty() ? lastLsn() + 1 : Math.min(firstLsnOf(files.get(0)), lastLsn() + 1);
+  }
+
+  /**
+   * Waits until a record after {@code lsn} is durable or the timeout passes, and returns the durable lsn.
+   */
+  public long awaitDurable(long lsn, long timeoutMillis) throws InterruptedException {
+    if (durableLsn > lsn) {
+      return durableLsn;
+    }
+    synchronized (durableSignal) {
+      durableWaiters++;
+      try {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (durableLsn <= lsn && remaining > 0) {
+          durableSignal.wait(remaining);
+          remaining = deadline - System.currentTimeMillis();
+        }
+      } finally {
+        durableWaiters--;
+      }
+    }
+    return durableLsn;
+  }
+
+  /**
+   * Opens a reader of the durable records after {@code afterLsn}, in log order.
+   *
+   * @throws IOException if the log no longer holds the record after {@code afterLsn}
+   */
+  public Tail tail(long afterLsn) throws IOException {
+    Tail tail = new Tail(afterLsn);
+    if (afterLsn < durableLsn) {
+      tail.open(afterLsn + 1);
+    }
+    return tail;
+  }
+
+  /**
+   * Makes an empty log continue after {@code lsn}, as after installing a snapshot that covers every record up to it.
+   */
+  public void restartAt(long lsn) throws IOException {
+    appendLock.lock();
+    try {
+      if (appendedLsn != 0) {
+        throw new IllegalStateException("Only an empty log can restart at another lsn");
+      }
+      for (Path file : segmentFiles()) {
+        Files.delete(file);
+      }
+      active = null;
+      nextLsn = lsn + 1;
+      appendedLsn = lsn;
+      durableLsn = lsn;
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  /**
+   * Deletes the segments whose records all have an lsn of at most {@code lsn}, except the active one. Used once a
+   * snapshot covers those records.
+   */
+  public void truncateThrough(long lsn) throws IOException {
+    appendLock.lock();
+    try {
+      List<Path> files = segmentFiles();
+      for (int i = 0; i + 1 < files.size(); i++) {
+        if (firstLsnOf(files.get(i + 1)) - 1 > lsn) {
+          break;
+        }
+        Files.delete(files.get(i));
+      }
+    } finally {
+      appendLock.unlock();
+    }
+  }
+
+  @Override
+  public void close() {
+    Thread running = syncer;
+    if (running != null) {
+      running.interrupt();
+    }
+    sync();
+    List<PendingSync> pending = new ArrayList<>();
+    pendingSyncs.drainTo(pending);
+    pending.forEach(pendingSync -> pendingSync.durable.complete(null));
+  }
+
+  private synchronized void startSyncer() {
+    if (syncer == null) {
+      Thread thread = new Thread(this::runSyncer, "wal-syncer");
+      thread.setDaemon(true);
+      thread.start();
+      syncer = thread;
+    }
+  }
+
+  private void runSyncer() {
+    List<PendingSync> batch = new ArrayList<>();
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        batch.add(pendingSyncs.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      pendingSyncs.drainTo(batch);
+      long lsn = 0;
+      for (PendingSync pendingSync : batch) {
+        lsn = Math.max(lsn, pendingSync.lsn);
+      }
+      try {
+        sync(lsn);
+        batch.forEach(pendingSync -> pendingSync.durable.complete(null));
+      } catch (RuntimeException e) {
+        batch.forEach(pendingSync -> pendingSync.durable.completeExceptionally(e));
+      }
+      batch.clear();
+    }
+  }
+
+  private void recover(long afterLsn, RecordHandler handler) throws IOException {
+    List<Path> files = segmentFiles();
+
+    long expectedLsn = -1;
+    long replayed = 0;
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < files.size(); i++) {
+      Path file = files.get(i);
+      Segment segment = Segment.map(file, Files.size(file));
+      MappedByteBuffer buffer = segment.buffer;
+      if (expectedLsn < 0) {
+        if (segment.firstLsn > afterLsn + 1) {
+          throw new IOException("Write-ahead log starts at lsn " + segment.firstLsn + " but the snapshot only covers up "
+              + "to lsn " + afterLsn + ": the records in between are lost");
+        }
+        expectedLsn = segment.firstLsn;
+      }
+
+      boolean intact = true;
+      while (buffer.remaining() >= HEADER_BYTES) {
+        int start = buffer.position();
+        int bodyLength = buffer.getInt(start);
+        if (bodyLength == 0) {
+          break;
+        }
+        if (bodyLength < BODY_PREFIX_BYTES || bodyLength > buffer.remaining() - HEADER_BYTES) {
+          intact = false;
+          break;
+        }
+        ByteBuffer body = buffer.duplicate().position(start + HEADER_BYTES).limit(start + HEADER_BYTES + bodyLength);
+        crc.reset();
+        crc.update(body.duplicate());
+        long lsn = body.getLong();
+        if ((int) crc.getValue() != buffer.getInt(start + 4) || lsn != expectedLsn) {
+          intact = false;
+          break;
+        }
+        byte type = body.get();
+        if (lsn > afterLsn) {
+          handler.accept(lsn, type, body.slice());
+          replayed++;
+        }
+        segment.lastLsn = lsn;
+        expectedLsn = lsn + 1;
+        buffer.position(start + HEADER_BYTES + bodyLength);
+      }
+
+      if (!intact) {
+        log.warn("Write-ahead log is damaged in {} at offset {}; discarding it and every later record", file,
+            buffer.position());
+        wipe(buffer);
+        for (Path later : files.subList(i + 1, files.size())) {
+          Files.delete(later);
+        }
+        active = segment;
+        break;
+      }
+      active = segment;
+    }
+
+    nextLsn = Math.max(expectedLsn, afterLsn + 1);
+    nextLsn = Math.max(nextLsn, 1);
+    appendedLsn = nextLsn - 1;
+    durableLsn = appendedLsn;
+    if (replayed > 0) {
+      double seconds = (System.nanoTime() - startNanos) / 1e9;
+      log.info("Replayed {} write-ahead log records in {} s ({} records/s)", replayed, String.format("%.3f", seconds),
+          String.format("%.0f", replayed / seconds));
+    }
+  }
+
+  private List<Path> segmentFiles() throws IOException {
+    try (Stream<Path> listing = Files.list(directory)) {
+      return listing
+          .filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX))
+          .filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+          .sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private static long firstLsnOf(Path file) {
+    String name = file.getFileName().toString();
+    return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  private Segment rollOver(int recordBytes) {
+    try {
+      Segment previous = active;
+      if (previous != null) {
+        previous.buffer.force();
+      }
+      Path file = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextLsn, SEGMENT_SUFFIX));
+      active = Segment.map(file, Math.max(segmentSize, recordBytes));
+      return active;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void wipe(MappedByteBuffer buffer) {
+    for (int i = buffer.position(); i < buffer.limit(); i++) {
+      buffer.put(i, (byte) 0);
+    }
+    buffer.force();
+  }
+
+  /**
+   * Reads durable records from the segment files, each segment through a read-only mapping of its own. Segments it has
+   * mapped stay readable after {@link #truncateThrough(long)} deletes them; a segment it has not reached yet may not.
+   */
+  public final class Tail {
+
+    private MappedByteBuffer buffer;
+    private long lastLsn;
+
+    private Tail(long afterLsn) {
+      this.lastLsn = afterLsn;
+    }
+
+    /**
+     * Lsn of the last record read.
+     */
+    public long lastLsn() {
+      return lastLsn;
+    }
+
+    /**
+     * Passes up to {@code maxRecords} durable records after the last one read to the handler and returns how many it
+     * passed, 0 when there is no durable record to read yet.
+     *
+     * @throws IOException if the next record is no longer in the log or is damaged
+     */
+    public int read(RecordHandler handler, int maxRecords) throws IOException {
+      int read = 0;
+      while (read < maxRecords && lastLsn < durableLsn) {
+        if (buffer == null || buffer.remaining() < HEADER_BYTES || buffer.getInt(buffer.position()) == 0) {
+          open(lastLsn + 1);
+        }
+        int start = buffer.position();
+        int bodyLength = buffer.getInt(start);
+        if (bodyLength < BODY_PREFIX_BYTES || bodyLength > buffer.remaining() - HEADER_BYTES) {
+          throw new IOException("Write-ahead log record " + (lastLsn + 1) + " is damaged");
+        }
+        ByteBuffer body = buffer.duplicate().position(start + HEADER_BYTES).limit(start + HEADER_BYTES + bodyLength);
+        long lsn = body.getLong();
+        if (lsn != lastLsn + 1) {
+          throw new IOException("Write-ahead log record " + (lastLsn + 1) + " is missing, found " + lsn);
+        }
+        byte type = body.get();
+        handler.accept(lsn, type, body.slice());
+        lastLsn = lsn;
+        buffer.position(start + HEADER_BYTES + bodyLength);
+        read++;
+      }
+      return read;
+    }
+
+    /**
+     * Maps the segment holding {@code lsn} and positions the tail at that record.
+     */
+    private void open(long lsn) throws IOException {
+      Path segment = null;
+      for (Path file : segmentFiles()) {
+        if (firstLsnOf(file) <= lsn) {
+          segment = file;
+        }
+      }
+      if (segment == null) {
+        throw new IOException("Write-ahead log record " + lsn + " is no longer in the log");
+      }
+      try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } catch (NoSuchFileException e) {
+        throw new IOException("Write-ahead log record " + lsn + " is no longer in the log", e);
+      }
+      for (long skipped = firstLsnOf(segment); skipped < lsn; skipped++) {
+        int bodyLength = buffer.remaining() < HEADER_BYTES ? 0 : buffer.getInt(buffer.position());
+        if (bodyLength == 0) {
+          throw new IOException("Write-ahead log record " + lsn + " is missing from " + segment.getFileName());
+        }
+        buffer.position(buffer.position() + HEADER_BYTES + bodyLength);
+      }
+    }
+  }
+
+  @AllArgsConstructor
+  private static final class PendingSync {
+
+    private final long lsn;
+    private final CompletableFuture<Void> durable;
+  }
+
+  private static final class Segment {
+
+    private final long firstLsn;
+    private final MappedByteBuffer buffer;
+    private long lastLsn;
+
+    private Segment(long firstLsn, MappedByteBuffer buffer) {
+      this.firstLsn = firstLsn;
+      this.buffer = buffer;
+      this.lastLsn = firstLsn - 1;
+    }
+
+    static Segment map(Path file, long size) throws IOException {
+      long firstLsn = firstLsnOf(file);
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+          StandardOpenOption.WRITE)) {
+        return new Segment(firstLsn, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+      }
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package edu.umass.fetch.request;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * Timestamps as nanoseconds since the epoch in UTC, the full precision of a {@link LocalDateTime}, so a timestamp comes
+ * back exactly as the client sent it and lots apart by less than a microsecond keep their order. Used wherever
+ * timestamps are kept in primitive arrays or written out. A long covers the years 1677 to 2262.
+ */
+public final class EpochNanos {
+
+  private static final long NANOS_PER_SECOND = 1_000_000_000L;
+  private static final long NANOS_PER_MICRO = 1_000L;
+
+  private EpochNanos() {
+  }
+
+  /**
+   * @throws IllegalArgumentException if the timestamp is outside the years a long of nanoseconds covers
+   */
+  public static long of(LocalDateTime timestamp) {
+    try {
+      return Math.addExact(Math.multiplyExact(timestamp.toEpochSecond(ZoneOffset.UTC), NANOS_PER_SECOND),
+          timestamp.getNano());
+    } catch (ArithmeticException e) {
+      throw new IllegalArgumentException("Timestamp " + timestamp + " is outside the years 1677 to 2262");
+    }
+  }
+
+  /**
+   * Like {@link #of}, but a timestamp out of range becomes the earliest or latest time a long holds, as the bound of a
+   * range of times.
+   */
+  public static long saturated(LocalDateTime timestamp) {
+    try {
+      return of(timestamp);
+    } catch (IllegalArgumentException e) {
+      return timestamp.getYear() < 1970 ? Long.MIN_VALUE : Long.MAX_VALUE;
+    }
+  }
+
+  public static LocalDateTime toLocalDateTime(long nanos) {
+    return LocalDateTime.ofEpochSecond(Math.floorDiv(nanos, NANOS_PER_SECOND),
+        (int) Math.floorMod(nanos, NANOS_PER_SECOND), ZoneOffset.UTC);
+  }
+
+  /**
+   * Nanoseconds of a timestamp written in epoch microseconds, as logs and snapshots were before, saturating at the
+   * range of a long.
+   */
+  public static long ofMicros(long micros) {
+    long nanos = micros * NANOS_PER_MICRO;
+    if (nanos / NANOS_PER_MICRO != micros) {
+      return micros < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+    }
+    return nanos;
+  }
+}
@@ -0,0 +1,61 @@
+package edu.umass.fetch.request;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
+import edu.umass.fetch.config.LedgerProperties;
+import java.io.IOException;
+import java.math.BigDecimal;
+import org.springframework.beans.factory.annotation.Autowired;
+
+/**
+ * Reads points into whole ledger points. Clients that still send decimals keep working as long as the value is exact
+ * at the configured scale: with scale 0, 100.0 is accepted as 100 while 100.5 is rejected instead of being truncated.
+ */
+public class PointsDeserializer extends StdDeserializer<Long> {
+
+  private final int scale;
+
+  public PointsDeserializer() {
+    this(0);
+  }
+
+  @Autowired
+  public PointsDeserializer(LedgerProperties ledgerProperties) {
+    this(ledgerProperties.getPointsScale());
+  }
+
+  public PointsDeserializer(int scale) {
+    super(Long.class);
+    this.scale = scale;
+  }
+
+  @Override
+  public Long deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+    JsonToken token = parser.currentToken();
+    if (token == JsonToken.VALUE_NUMBER_INT && scale == 0) {
+      return parser.getLongValue();
+    }
+
+    BigDecimal points;
+    if (token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT) {
+      points = parser.getDecimalValue();
+    } else if (token == JsonToken.VALUE_STRING) {
+      try {
+        points = new BigDecimal(parser.getText().trim());
+      } catch (NumberFormatException e) {
+        return (Long) context.handleWeirdStringValue(Long.class, parser.getText(), "not a number");
+      }
+    } else {
+      return (Long) context.handleUnexpectedToken(Long.class, parser);
+    }
+
+    try {
+      return points.movePointRight(scale).longValueExact();
+    } catch (ArithmeticException e) {
+      return (Long) context.handleWeirdNumberValue(Long.class, points,
+          "points must be a whole number with at most " + scale + " decimal places");
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package edu.umass.fetch.request;
+
+/**
+ * How a batch of spends treats a spend that cannot be applied.
+ */
+public enum SpendMode {
+
+  /**
+   * The whole batch is rejected and nothing is spent.
+   */
+  ALL_OR_NOTHING,
+
+  /**
+   * Only that spend is rejected; the others are applied in order.
+   */
+  PER_ITEM
+}
@@ -1,5 +1,6 @@
 package edu.umass.fetch.request;
 
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -8,5 +9,6 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 public class SpendTransaction {
-  double points;
+  @JsonDeserialize(using = PointsDeserializer.class)
+  long points;
 }
@@ -1,5 +1,6 @@
 package edu.umass.fetch.request;
 
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import java.time.LocalDateTime;
 import lombok.AllArgsConstructor;
 import lombok.Data;
@@ -11,6 +12,7 @@ import lombok.NoArgsConstructor;
 public class Transaction {
 
   private String payer;
-  private double points;
+  @JsonDeserialize(using = PointsDeserializer.class)
+  private long points;
   private LocalDateTime timestamp;
 }
@@ -0,0 +1,251 @@
+package edu.umass.fetch.request;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.stream.IntStream;
+import lombok.Getter;
+
+/**
+ * Transactions of one add kept in columns instead of objects: per transaction only the index of its payer in the
+ * batch's payer table, its points and its timestamp in epoch nanoseconds, 20 bytes in all. Totals per payer are summed
+ * as transactions are appended, so validating the batch walks its payers rather than its transactions.
+ */
+public class TransactionBatch {
+
+  /**
+   * Transactions each task of {@link #of} converts.
+   */
+  private static final int CHUNK_TRANSACTIONS = 1 << 15;
+
+  private final Map<String, Integer> payerIndexes = new HashMap<>();
+  private String[] payers = new String[8];
+  private long[] payerTotals = new long[8];
+  private long[] payerDebits = new long[8];
+  @Getter
+  private int payerCount;
+
+  private int[] payerIndexOf;
+  private long[] points;
+  private long[] timestamps;
+  private int size;
+
+  @Getter
+  private long totalPoints;
+
+  public TransactionBatch() {
+    this(16);
+  }
+
+  private TransactionBatch(int capacity) {
+    payerIndexOf = new int[Math.max(capacity, 1)];
+    points = new long[payerIndexOf.length];
+    timestamps = new long[payerIndexOf.length];
+  }
+
+  /**
+   * Converts a list of transactions into columns. Lists of several chunks of {@value #CHUNK_TRANSACTIONS} are converted
+   * in parallel on the common fork-join pool: each chunk fills its range of the columns and sums its payers' totals
+   * into primitive arrays of its own, then the chunks' payer tables are merged in list order, so payers get the same
+   * indexes as if the transactions were added one at a time.
+   *
+   * @throws IllegalArgumentException if a transaction has no payer or no timestamp, or one out of range
+   */
+  public static TransactionBatch of(List<Transaction> transactions) {
+    int size = transactions.size();
+    TransactionBatch batch = new TransactionBatch(size);
+    if (size < 2 * CHUNK_TRANSACTIONS || !(transactions instanceof RandomAccess)) {
+      for (Transaction transaction : transactions) {
+        batch.add(transaction.getPayer(), transaction.getPoints(), transaction.getTimestamp());
+      }
+      return batch;
+    }
+    Chunk[] chunks = IntStream.range(0, (size + CHUNK_TRANSACTIONS - 1) / CHUNK_TRANSACTIONS).parallel()
+        .mapToObj(chunk -> batch.convert(transactions, chunk * CHUNK_TRANSACTIONS,
+            Math.min(size, (chunk + 1) * CHUNK_TRANSACTIONS)))
+        .toArray(Chunk[]::new);
+    for (Chunk chunk : chunks) {
+      chunk.batchPayerIndexes = new int[chunk.payers.size()];
+      for (int i = 0; i < chunk.payers.size(); i++) {
+        Integer payerIndex = batch.payerIndexes.get(chunk.payers.get(i));
+        if (payerIndex == null) {
+          payerIndex = batch.addPayer(chunk.payers.get(i));
+        }
+        chunk.batchPayerIndexes[i] = payerIndex;
+        batch.payerTotals[payerIndex] += chunk.payerTotals[i];
+        batch.payerDebits[payerIndex] += chunk.payerDebits[i];
+      }
+      batch.totalPoints += chunk.totalPoints;
+    }
+    Arrays.stream(chunks).parallel().forEach(chunk -> {
+      for (int i = chunk.from; i < chunk.to; i++) {
+        batch.payerIndexOf[i] = chunk.batchPayerIndexes[batch.payerIndexOf[i]];
+      }
+    });
+    batch.size = size;
+    return batch;
+  }
+
+  /**
+   * Reads a JSON array of transactions, or transactions as consecutive JSON objects such as NDJSON, one transaction at
+   * a time. Each parsed transaction is only held until it is appended to the batch.
+   */
+  public static TransactionBatch read(InputStream body, ObjectReader reader) throws IOException {
+    TransactionBatch batch = new TransactionBatch();
+    try (MappingIterator<Transaction> transactions = reader.forType(Transaction.class).readValues(body)) {
+      while (transactions.hasNextValue()) {
+        Transaction transaction = transactions.nextValue();
+        batch.add(transaction.getPayer(), transaction.getPoints(), transaction.getTimestamp());
+      }
+    }
+    return batch;
+  }
+
+  /**
+   * The timestamp of a transaction in epoch nanoseconds, once checked that the transaction can be added.
+   *
+   * @param transaction position of the transaction in its list, for the message
+   * @throws IllegalArgumentException if the transaction has no payer or no timestamp, or one out of range
+   */
+  public static long timestampNanos(int transaction, String payer, LocalDateTime timestamp) {
+    if (payer == null || timestamp == null) {
+      throw new IllegalArgumentException("Transaction " + transaction + " has no payer or no timestamp");
+    }
+    return EpochNanos.of(timestamp);
+  }
+
+  public void add(String payer, long transactionPoints, LocalDateTime timestamp) {
+    long timestampNanos = timestampNanos(size, payer, timestamp);
+    Integer payerIndex = payerIndexes.get(payer);
+    if (payerIndex == null) {
+      payerIndex = addPayer(payer);
+    }
+    if (size == points.length) {
+      payerIndexOf = Arrays.copyOf(payerIndexOf, size * 2);
+      points = Arrays.copyOf(points, size * 2);
+      timestamps = Arrays.copyOf(timestamps, size * 2);
+    }
+    payerIndexOf[size] = payerIndex;
+    points[size] = transactionPoints;
+    timestamps[size] = timestampNanos;
+    size++;
+    payerTotals[payerIndex] += transactionPoints;
+    if (transactionPoints < 0) {
+      payerDebits[payerIndex] -= transactionPoints;
+    }
+    totalPoints += transactionPoints;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public String getPayer(int payerIndex) {
+    return payers[payerIndex];
+  }
+
+  public long getPayerTotal(int payerIndex) {
+    return payerTotals[payerIndex];
+  }
+
+  /**
+   * Points the payer's debits take off its lots, the negated sum of its negative transactions.
+   */
+  public long getPayerDebits(int payerIndex) {
+    return payerDebits[payerIndex];
+  }
+
+  /**
+   * Index in the payer table of the payer of the transaction.
+   */
+  public int getPayerIndex(int transaction) {
+    return payerIndexOf[transaction];
+  }
+
+  public long getPoints(int transaction) {
+    return points[transaction];
+  }
+
+  public long getTimestampNanos(int transaction) {
+    return timestamps[transaction];
+  }
+
+  private int addPayer(String payer) {
+    if (payerCount == payers.length) {
+      payers = Arrays.copyOf(payers, payerCount * 2);
+      payerTotals = Arrays.copyOf(payerTotals, payerCount * 2);
+      payerDebits = Arrays.copyOf(payerDebits, payerCount * 2);
+    }
+    payers[payerCount] = payer;
+    payerIndexes.put(payer, payerCount);
+    return payerCount++;
+  }
+
+  /**
+   * Fills the columns of the transactions in {@code [from, to)}, with payer indexes into a payer table of the chunk's
+   * own, which {@link #of} then maps to the batch's.
+   */
+  private Chunk convert(List<Transaction> transactions, int from, int to) {
+    Chunk chunk = new Chunk(from, to);
+    Map<String, Integer> chunkPayerIndexes = new HashMap<>();
+    for (int i = from; i < to; i++) {
+      Transaction transaction = transactions.get(i);
+      long timestampNanos = timestampNanos(i, transaction.getPayer(), transaction.getTimestamp());
+      Integer payerIndex = chunkPayerIndexes.get(transaction.getPayer());
+      if (payerIndex == null) {
+        payerIndex = chunk.addPayer(transaction.getPayer());
+        chunkPayerIndexes.put(transaction.getPayer(), payerIndex);
+      }
+      long transactionPoints = transaction.getPoints();
+      payerIndexOf[i] = payerIndex;
+      points[i] = transactionPoints;
+      timestamps[i] = timestampNanos;
+      chunk.payerTotals[payerIndex] += transactionPoints;
+      if (transactionPoints < 0) {
+        chunk.payerDebits[payerIndex] -= transactionPoints;
+      }
+      chunk.totalPoints += transactionPoints;
+    }
+    return chunk;
+  }
+
+  /**
+   * Payer table and totals of one chunk of a parallel conversion.
+   */
+  private static final class Chunk {
+
+    private final int from;
+    private final int to;
+    private final List<String> payers = new ArrayList<>();
+    private long[] payerTotals = new long[8];
+    private long[] payerDebits = new long[8];
+    private long totalPoints;
+    /**
+     * Index in the batch's payer table of each of the chunk's payers, once merged.
+     */
+    private int[] batchPayerIndexes;
+
+    Chunk(int from, int to) {
+      this.from = from;
+      this.to = to;
+    }
+
+    int addPayer(String payer) {
+      int payerIndex = payers.size();
+      if (payerIndex == payerTotals.length) {
+        payerTotals = Arrays.copyOf(payerTotals, payerIndex * 2);
+        payerDebits = Arrays.copyOf(payerDebits, payerIndex * 2);
+      }
+      payers.add(payer);
+      return payerIndex;
+    }
+  }
+}
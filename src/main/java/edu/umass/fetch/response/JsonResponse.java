@@ -0,0 +1,19 @@
+package edu.umass.fetch.response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A response body that writes its own JSON to the response stream.
+ */
+public interface JsonResponse {
+
+  void writeTo(OutputStream out) throws IOException;
+
+  /**
+   * Length in bytes when known up front, or null to send the response chunked.
+   */
+  default Long contentLength() {
+    return null;
+  }
+}
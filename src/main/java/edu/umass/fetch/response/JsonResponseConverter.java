@@ -0,0 +1,44 @@
+package edu.umass.fetch.response;
+
+import java.io.IOException;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+/**
+ * Hands the response stream to a {@link JsonResponse}, so it is written without an intermediate String or object
+ * mapping.
+ */
+public class JsonResponseConverter extends AbstractHttpMessageConverter<JsonResponse> {
+
+  public JsonResponseConverter() {
+    super(MediaType.APPLICATION_JSON);
+  }
+
+  @Override
+  protected boolean supports(Class<?> clazz) {
+    return JsonResponse.class.isAssignableFrom(clazz);
+  }
+
+  @Override
+  protected boolean canRead(MediaType mediaType) {
+    return false;
+  }
+
+  @Override
+  protected JsonResponse readInternal(Class<? extends JsonResponse> clazz, HttpInputMessage inputMessage) {
+    throw new HttpMessageNotReadableException("JSON responses are write-only", inputMessage);
+  }
+
+  @Override
+  protected Long getContentLength(JsonResponse response, MediaType contentType) {
+    return response.contentLength();
+  }
+
+  @Override
+  protected void writeInternal(JsonResponse response, HttpOutputMessage outputMessage) throws IOException {
+    response.writeTo(outputMessage.getBody());
+  }
+}
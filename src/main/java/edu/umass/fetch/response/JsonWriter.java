@@ -0,0 +1,105 @@
+package edu.umass.fetch.response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes JSON bytes to a stream through a small buffer, without building a String. Names are written from bytes that
+ * were encoded once with {@link #quoted(String)}, numbers digit by digit.
+ */
+public class JsonWriter {
+
+  private static final byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+  private final OutputStream out;
+  private final byte[] buffer = new byte[512];
+  private int position;
+
+  public JsonWriter(OutputStream out) {
+    this.out = out;
+  }
+
+  /**
+   * The string as a quoted and escaped UTF-8 JSON string.
+   */
+  public static byte[] quoted(String value) {
+    StringBuilder escaped = new StringBuilder(value.length() + 2).append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        escaped.append('\\').append(c);
+      } else if (c < 0x20) {
+        escaped.append("\\u00").append((char) HEX[c >> 4]).append((char) HEX[c & 0xF]);
+      } else {
+        escaped.append(c);
+      }
+    }
+    return escaped.append('"').toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  public JsonWriter raw(byte b) throws IOException {
+    if (position == buffer.length) {
+      flushBuffer();
+    }
+    buffer[position++] = b;
+    return this;
+  }
+
+  public JsonWriter raw(byte[] bytes) throws IOException {
+    if (bytes.length > buffer.length - position) {
+      flushBuffer();
+      if (bytes.length > buffer.length) {
+        out.write(bytes);
+        return this;
+      }
+    }
+    System.arraycopy(bytes, 0, buffer, position, bytes.length);
+    position += bytes.length;
+    return this;
+  }
+
+  public JsonWriter number(long value) throws IOException {
+    if (value == Long.MIN_VALUE) {
+      return raw(MIN_LONG);
+    }
+    if (buffer.length - position < 20) {
+      flushBuffer();
+    }
+    if (value < 0) {
+      buffer[position++] = '-';
+      value = -value;
+    }
+    int end = position + digits(value);
+    for (int i = end - 1; i >= position; i--) {
+      buffer[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    position = end;
+    return this;
+  }
+
+  /**
+   * Writes out the buffered bytes. The stream itself is left to its owner to flush.
+   */
+  public void flush() throws IOException {
+    flushBuffer();
+  }
+
+  private void flushBuffer() throws IOException {
+    if (position > 0) {
+      out.write(buffer, 0, position);
+      position = 0;
+    }
+  }
+
+  private static int digits(long value) {
+    int digits = 1;
+    while (value >= 10) {
+      value /= 10;
+      digits++;
+    }
+    return digits;
+  }
+}
@@ -7,5 +7,5 @@ import lombok.Data;
 @AllArgsConstructor
 public class PointBalance {
   String payer;
-  double points;
+  long points;
 }
@@ -0,0 +1,44 @@
+package edu.umass.fetch.response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.function.Function;
+import lombok.AllArgsConstructor;
+
+/**
+ * Writes point balances as {@code [{"payer":"NAME","points":-100},...]} using the payer names encoded in advance.
+ */
+@AllArgsConstructor
+public class PointBalancesJson implements JsonResponse {
+
+  private static final byte[] PAYER = "{\"payer\":".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] POINTS = ",\"points\":".getBytes(StandardCharsets.US_ASCII);
+
+  private final Collection<PointBalance> pointBalances;
+  private final Function<String, byte[]> quotedPayerNames;
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    JsonWriter writer = new JsonWriter(out);
+    write(writer, pointBalances, quotedPayerNames);
+    writer.flush();
+  }
+
+  static void write(JsonWriter writer, Collection<PointBalance> pointBalances,
+      Function<String, byte[]> quotedPayerNames) throws IOException {
+    writer.raw((byte) '[');
+    boolean first = true;
+    for (PointBalance pointBalance : pointBalances) {
+      if (!first) {
+        writer.raw((byte) ',');
+      }
+      first = false;
+      writer.raw(PAYER).raw(quotedPayerNames.apply(pointBalance.getPayer()))
+          .raw(POINTS).number(pointBalance.getPoints())
+          .raw((byte) '}');
+    }
+    writer.raw((byte) ']');
+  }
+}
@@ -0,0 +1,21 @@
+package edu.umass.fetch.response;
+
+import edu.umass.fetch.config.ReplicationProperties.Role;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Where a node stands in replication: its role and the last lsn in its log, and for a follower the last lsn its leader
+ * is known to hold, or for a leader the followers connected and the port they connect to.
+ */
+@Getter
+@AllArgsConstructor
+public class ReplicationStatus {
+
+  private final Role role;
+  private final long lastLsn;
+  private final long leaderLsn;
+  private final boolean connected;
+  private final int followers;
+  private final int port;
+}
@@ -0,0 +1,24 @@
+package edu.umass.fetch.response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import lombok.AllArgsConstructor;
+
+/**
+ * JSON that was serialized ahead of time, such as a cached balance map. Written as is, with its length known.
+ */
+@AllArgsConstructor
+public class SerializedJson implements JsonResponse {
+
+  private final byte[] json;
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(json);
+  }
+
+  @Override
+  public Long contentLength() {
+    return (long) json.length;
+  }
+}
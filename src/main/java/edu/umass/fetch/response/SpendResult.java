@@ -0,0 +1,30 @@
+package edu.umass.fetch.response;
+
+import java.util.Collection;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Outcome of one spend of a batch: the points each payer gave up, or why the spend was rejected.
+ */
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class SpendResult {
+
+  private final long points;
+  private final Collection<PointBalance> pointBalances;
+  private final String error;
+
+  public static SpendResult accepted(long points, Collection<PointBalance> pointBalances) {
+    return new SpendResult(points, pointBalances, null);
+  }
+
+  public static SpendResult rejected(long points, String error) {
+    return new SpendResult(points, null, error);
+  }
+
+  public boolean isAccepted() {
+    return error == null;
+  }
+}
@@ -0,0 +1,44 @@
+package edu.umass.fetch.response;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Function;
+import lombok.AllArgsConstructor;
+
+/**
+ * Writes the results of a spend batch in order, as {@code {"points":100,"accepted":true,"payers":[...]}} or
+ * {@code {"points":100,"accepted":false,"error":"..."}}.
+ */
+@AllArgsConstructor
+public class SpendResultsJson implements JsonResponse {
+
+  private static final byte[] POINTS = "{\"points\":".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] ACCEPTED = ",\"accepted\":true,\"payers\":".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] REJECTED = ",\"accepted\":false,\"error\":".getBytes(StandardCharsets.US_ASCII);
+
+  private final List<SpendResult> spendResults;
+  private final Function<String, byte[]> quotedPayerNames;
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    JsonWriter writer = new JsonWriter(out);
+    writer.raw((byte) '[');
+    for (int i = 0; i < spendResults.size(); i++) {
+      SpendResult spendResult = spendResults.get(i);
+      if (i > 0) {
+        writer.raw((byte) ',');
+      }
+      writer.raw(POINTS).number(spendResult.getPoints());
+      if (spendResult.isAccepted()) {
+        writer.raw(ACCEPTED);
+        PointBalancesJson.write(writer, spendResult.getPointBalances(), quotedPayerNames);
+      } else {
+        writer.raw(REJECTED).raw(JsonWriter.quoted(spendResult.getError()));
+      }
+      writer.raw((byte) '}');
+    }
+    writer.raw((byte) ']').flush();
+  }
+}
@@ -0,0 +1,87 @@
+package edu.umass.fetch.service;
+
+import edu.umass.fetch.response.JsonResponse;
+import edu.umass.fetch.response.JsonWriter;
+import edu.umass.fetch.response.SerializedJson;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import lombok.Getter;
+
+/**
+ * Balances of one ledger as of one version, never changed once built. The JSON form is encoded on first use and then
+ * shared by every reader of the same version.
+ */
+public final class BalanceView {
+
+  /**
+   * Tells versions of different runs apart in entity tags, since versions start again at 0 on restart.
+   */
+  private static final String RUN = Long.toString(System.currentTimeMillis(), 36);
+
+  static final BalanceView EMPTY = new BalanceView(0, null, new int[0], new long[0]);
+
+  /**
+   * Number of writes to the ledger's balances before this view.
+   */
+  @Getter
+  private final long version;
+  private final PayerRegistry payerRegistry;
+  private final int[] payerIds;
+  private final long[] balances;
+  private volatile byte[] json;
+
+  BalanceView(long version, PayerRegistry payerRegistry, int[] payerIds, long[] balances) {
+    this.version = version;
+    this.payerRegistry = payerRegistry;
+    this.payerIds = payerIds;
+    this.balances = balances;
+  }
+
+  /**
+   * Strong entity tag of the view, the same for every view of the same version within a run.
+   */
+  public String getETag() {
+    return "\"" + RUN + "-" + version + "\"";
+  }
+
+  public Map<String, Long> toMap() {
+    Map<String, Long> map = new HashMap<>();
+    for (int i = 0; i < payerIds.length; i++) {
+      map.put(payerRegistry.nameOf(payerIds[i]), balances[i]);
+    }
+    return map;
+  }
+
+  /**
+   * The balance map as JSON, {@code {"PAYER":points,...}}.
+   */
+  public JsonResponse toJson() {
+    byte[] encoded = json;
+    if (encoded == null) {
+      encoded = encode();
+      json = encoded;
+    }
+    return new SerializedJson(encoded);
+  }
+
+  private byte[] encode() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(16 + 24 * payerIds.length);
+    try {
+      JsonWriter writer = new JsonWriter(out);
+      writer.raw((byte) '{');
+      for (int i = 0; i < payerIds.length; i++) {
+        if (i > 0) {
+          writer.raw((byte) ',');
+        }
+        writer.raw(payerRegistry.quotedNameOf(payerIds[i])).raw((byte) ':').number(balances[i]);
+      }
+      writer.raw((byte) '}').flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return out.toByteArray();
+  }
+}
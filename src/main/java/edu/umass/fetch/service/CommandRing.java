@@ -0,0 +1,189 @@
+package edu.umass.fetch.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Ledger commands of one shard in a bounded ring of slots allocated up front, in the style of the LMAX disruptor. Any
+ * thread may publish: it claims the next sequence, fills the slot for it and marks the slot with the sequence. A single
+ * writer thread applies the commands in sequence order. Each pass takes every command published since the previous one
+ * as a batch, applies the whole batch and only then completes the callers' futures.
+ *
+ * <p>A publisher that finds the ring full waits for the writer to free a slot, so the ring also bounds how far callers
+ * can run ahead of the writer.
+ */
+final class CommandRing {
+
+  private static final int SPINS = 100;
+  private static final int YIELDS = 10;
+
+  private final Slot[] slots;
+  private final int mask;
+  private final Function<String, Ledger> ledgers;
+  private final Thread writer;
+
+  /**
+   * Next sequence to claim, or {@code -n - 1} once the ring is shut down after {@code n} claims.
+   */
+  private final AtomicLong nextClaim = new AtomicLong();
+
+  /**
+   * Last sequence the writer is done with; its slot and every earlier one may be reused.
+   */
+  private volatile long consumed = -1;
+  private volatile boolean writerParked;
+
+  /**
+   * @param size number of slots, rounded up to a power of two
+   * @param ledgers looks up or creates the ledger of an account on the writer thread
+   */
+  CommandRing(String name, int size, Function<String, Ledger> ledgers) {
+    int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+    this.slots = new Slot[capacity];
+    for (int i = 0; i < capacity; i++) {
+      slots[i] = new Slot();
+    }
+    this.mask = capacity - 1;
+    this.ledgers = ledgers;
+    this.writer = new Thread(this::runWriter, name);
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Queues the command for the writer without waiting for it to be applied. The future fails with whatever the command
+   * threw, or with {@link RejectedExecutionException} once the ring is shut down.
+   */
+  @SuppressWarnings("unchecked")
+  <T> CompletableFuture<T> publish(String accountId, Function<Ledger, T> command) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    long sequence;
+    do {
+      sequence = nextClaim.get();
+      if (sequence < 0) {
+        future.completeExceptionally(new RejectedExecutionException("The ledger shard is shut down"));
+        return future;
+      }
+    } while (!nextClaim.compareAndSet(sequence, sequence + 1));
+    int idle = 0;
+    while (sequence - slots.length > consumed) {
+      idle = idle(idle);
+    }
+    Slot slot = slots[(int) sequence & mask];
+    slot.accountId = accountId;
+    slot.command = (Function<Ledger, Object>) command;
+    slot.future = (CompletableFuture<Object>) future;
+    slot.sequence = sequence;
+    if (writerParked) {
+      LockSupport.unpark(writer);
+    }
+    return future;
+  }
+
+  /**
+   * Stops taking commands. Commands already published are still applied.
+   */
+  void shutdown() {
+    long claimed;
+    do {
+      claimed = nextClaim.get();
+    } while (claimed >= 0 && !nextClaim.compareAndSet(claimed, -claimed - 1));
+    LockSupport.unpark(writer);
+  }
+
+  private void runWriter() {
+    long next = 0;
+    int idle = 0;
+    while (true) {
+      long end = next;
+      while (end - next < slots.length && slots[(int) end & mask].sequence == end) {
+        end++;
+      }
+      if (end == next) {
+        if (nextClaim.get() == -next - 1) {
+          return;
+        }
+        idle = idle < SPINS + YIELDS ? idle(idle) : park(next);
+        continue;
+      }
+      idle = 0;
+
+      for (long sequence = next; sequence < end; sequence++) {
+        slots[(int) sequence & mask].apply(ledgers);
+      }
+      for (long sequence = next; sequence < end; sequence++) {
+        slots[(int) sequence & mask].complete();
+      }
+      consumed = end - 1;
+      next = end;
+    }
+  }
+
+  /**
+   * Backs off one step while waiting for the other side: spins first, then yields, then sleeps briefly.
+   */
+  private int idle(int idle) {
+    if (idle < SPINS) {
+      Thread.onSpinWait();
+    } else if (idle < SPINS + YIELDS) {
+      Thread.yield();
+    } else {
+      LockSupport.parkNanos(this, 50_000);
+    }
+    return idle + 1;
+  }
+
+  /**
+   * Parks the idle writer until a publisher wakes it. The writer announces the park before checking the slot one last
+   * time, and a publisher checks for the announcement after filling the slot, so one of them always sees the other.
+   */
+  private int park(long next) {
+    writerParked = true;
+    if (slots[(int) next & mask].sequence != next && nextClaim.get() >= 0) {
+      LockSupport.park(this);
+    }
+    writerParked = false;
+    return SPINS + YIELDS;
+  }
+
+  private static final class Slot {
+
+    /**
+     * Sequence of the command in the slot, written last by the publisher, so the writer sees the rest of the slot once
+     * it sees the sequence.
+     */
+    volatile long sequence = -1;
+    String accountId;
+    Function<Ledger, Object> command;
+    CompletableFuture<Object> future;
+    Object result;
+    Throwable failure;
+
+    void apply(Function<String, Ledger> ledgers) {
+      try {
+        result = command.apply(ledgers.apply(accountId));
+      } catch (Throwable e) {
+        failure = e;
+      }
+    }
+
+    void complete() {
+      CompletableFuture<Object> completed = future;
+      Object value = result;
+      Throwable error = failure;
+      accountId = null;
+      command = null;
+      future = null;
+      result = null;
+      failure = null;
+      if (error == null) {
+        completed.complete(value);
+      } else {
+        completed.completeExceptionally(error);
+      }
+    }
+  }
+}
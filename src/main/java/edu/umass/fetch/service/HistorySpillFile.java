@@ -0,0 +1,67 @@
+package edu.umass.fetch.service;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * File the full history chunks of every ledger are moved to once they age out of memory. Chunks are appended and read
+ * back by offset. History is not kept across restarts, so the file starts empty and is deleted on close, or right away
+ * where the platform allows.
+ */
+final class HistorySpillFile implements Closeable {
+
+  static final String FILE_NAME = "history.spill";
+
+  private final FileChannel channel;
+  private long end;
+
+  private HistorySpillFile(FileChannel channel) {
+    this.channel = channel;
+  }
+
+  static HistorySpillFile open(Path directory) throws IOException {
+    Files.createDirectories(directory);
+    return new HistorySpillFile(FileChannel.open(directory.resolve(FILE_NAME), StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.DELETE_ON_CLOSE));
+  }
+
+  /**
+   * Writes the bytes at the end of the file and returns their offset.
+   */
+  synchronized long append(ByteBuffer bytes) throws IOException {
+    long offset = end;
+    while (bytes.hasRemaining()) {
+      end += channel.write(bytes, end);
+    }
+    return offset;
+  }
+
+  /**
+   * Bytes appended so far.
+   */
+  synchronized long size() {
+    return end;
+  }
+
+  ByteBuffer read(long offset, int length) throws IOException {
+    ByteBuffer bytes = ByteBuffer.allocate(length);
+    while (bytes.hasRemaining()) {
+      if (channel.read(bytes, offset + bytes.position()) < 0) {
+        throw new EOFException("History spill file ends in the middle of a chunk");
+      }
+    }
+    return bytes.flip();
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
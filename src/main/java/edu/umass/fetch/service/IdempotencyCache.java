@@ -0,0 +1,239 @@
+package edu.umass.fetch.service;
+
+import edu.umass.fetch.persistence.IdempotencyKey;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Outcomes of adds and spends made with an idempotency key, so that a retry is answered with the outcome of the first
+ * attempt instead of being applied again. Keys are scoped to the operation and the account.
+ *
+ * <p>Every entry lives for the same time, so insertion order is also expiry order. Entries are kept in a FIFO next to
+ * the map, and each insert drops entries from its head while the head has expired or the cache is over its size. A
+ * lookup is a map read and a clock read; nothing on the lookup path takes a lock.
+ */
+final class IdempotencyCache {
+
+  private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+  private final ConcurrentLinkedQueue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+  /**
+   * Entries in {@link #insertionOrder}, including any already replaced or removed from the map.
+   */
+  private final AtomicInteger queued = new AtomicInteger();
+  private final ReentrantLock evictionLock = new ReentrantLock();
+  private final int maxEntries;
+  private final long ttlMillis;
+  private final LongSupplier clockMillis;
+
+  IdempotencyCache(int maxEntries, Duration ttl) {
+    this(maxEntries, ttl, System::currentTimeMillis);
+  }
+
+  IdempotencyCache(int maxEntries, Duration ttl, LongSupplier clockMillis) {
+    this.maxEntries = Math.max(1, maxEntries);
+    this.ttlMillis = ttl.toMillis();
+    this.clockMillis = clockMillis;
+  }
+
+  /**
+   * Entry for a new request with the key, expiring one time-to-live from now. It is not in the cache until
+   * {@link #putIfAbsent(Entry)}.
+   */
+  Entry newEntry(byte operation, String accountId, String idempotencyKey) {
+    return new Entry(new Key(operation, accountId, idempotencyKey),
+        new IdempotencyKey(idempotencyKey, clockMillis.getAsLong() + ttlMillis));
+  }
+
+  /**
+   * Adds the entry of a new request and returns null, or returns the entry of the live request with the same key and
+   * leaves the cache as it is. The caller of a new request must {@link #settle} its entry.
+   */
+  Entry putIfAbsent(Entry entry) {
+    long now = clockMillis.getAsLong();
+    Entry earlier = entries.get(entry.key);
+    while (true) {
+      if (earlier == null) {
+        earlier = entries.putIfAbsent(entry.key, entry);
+        if (earlier == null) {
+          enqueue(entry, now);
+          return null;
+        }
+      }
+      if (!earlier.expired(now)) {
+        return earlier;
+      }
+      if (entries.replace(entry.key, earlier, entry)) {
+        enqueue(entry, now);
+        return null;
+      }
+      earlier = entries.get(entry.key);
+    }
+  }
+
+  /**
+   * Records the outcome of a request. A rejection is kept like a result, since retrying it would be rejected again or
+   * apply a request the client already saw refused; any other failure frees the key for a retry.
+   */
+  void settle(Entry entry, Object result, Throwable failure) {
+    if (failure == null) {
+      entry.outcome.complete(result);
+      return;
+    }
+    Throwable cause = failure instanceof CompletionException && failure.getCause() != null
+        ? failure.getCause() : failure;
+    if (!(cause instanceof IllegalStateException)) {
+      entries.remove(entry.key, entry);
+    }
+    entry.outcome.completeExceptionally(cause);
+  }
+
+  /**
+   * Adds the outcome of a request that was applied before a restart, unless it has expired since.
+   */
+  void restore(byte operation, String accountId, IdempotencyKey idempotencyKey, Object result) {
+    long now = clockMillis.getAsLong();
+    if (idempotencyKey.getExpiresAtMillis() <= now) {
+      return;
+    }
+    Entry entry = new Entry(new Key(operation, accountId, idempotencyKey.getKey()), idempotencyKey);
+    entry.outcome.complete(result);
+    entries.put(entry.key, entry);
+    enqueue(entry, now);
+  }
+
+  /**
+   * The live entries in insertion order, waiting for those still running. Only entries whose request was applied are
+   * returned.
+   */
+  List<Entry> applied() {
+    List<Entry> applied = new ArrayList<>();
+    long now = clockMillis.getAsLong();
+    for (Entry entry : insertionOrder) {
+      if (entries.get(entry.key) != entry || entry.expired(now)) {
+        continue;
+      }
+      try {
+        entry.outcome.join();
+        applied.add(entry);
+      } catch (CompletionException e) {
+        // Rejected or failed, so nothing was applied
+      }
+    }
+    return applied;
+  }
+
+  int size() {
+    return entries.size();
+  }
+
+  private void enqueue(Entry entry, long now) {
+    insertionOrder.offer(entry);
+    queued.incrementAndGet();
+    // One thread evicting at a time keeps the head stable between the check and the poll; the others move on
+    if (evictionLock.tryLock()) {
+      try {
+        Entry head;
+        while ((head = insertionOrder.peek()) != null && (queued.get() > maxEntries || head.expired(now))) {
+          insertionOrder.poll();
+          queued.decrementAndGet();
+          entries.remove(head.key, head);
+        }
+      } finally {
+        evictionLock.unlock();
+      }
+    }
+  }
+
+  static final class Entry {
+
+    private final Key key;
+    private final IdempotencyKey idempotencyKey;
+    /**
+     * Completes with the result once the request is applied and, with persistence, durable, or fails with its
+     * rejection.
+     */
+    private final CompletableFuture<Object> outcome = new CompletableFuture<>();
+
+    private Entry(Key key, IdempotencyKey idempotencyKey) {
+      this.key = key;
+      this.idempotencyKey = idempotencyKey;
+    }
+
+    byte getOperation() {
+      return key.operation;
+    }
+
+    String getAccountId() {
+      return key.accountId;
+    }
+
+    IdempotencyKey getIdempotencyKey() {
+      return idempotencyKey;
+    }
+
+    /**
+     * Waits for the outcome of the request, rethrowing its rejection.
+     */
+    @SuppressWarnings("unchecked")
+    <T> T await() {
+      try {
+        return (T) outcome.join();
+      } catch (CompletionException e) {
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw e;
+      }
+    }
+
+    /**
+     * The outcome of the request, as a future the caller is free to complete or cancel.
+     */
+    @SuppressWarnings("unchecked")
+    <T> CompletableFuture<T> outcome() {
+      return (CompletableFuture<T>) outcome.copy();
+    }
+
+    private boolean expired(long now) {
+      return idempotencyKey.getExpiresAtMillis() <= now;
+    }
+  }
+
+  private static final class Key {
+
+    private final byte operation;
+    private final String accountId;
+    private final String idempotencyKey;
+    private final int hash;
+
+    Key(byte operation, String accountId, String idempotencyKey) {
+      this.operation = operation;
+      this.accountId = accountId;
+      this.idempotencyKey = idempotencyKey;
+      this.hash = (31 * accountId.hashCode() + idempotencyKey.hashCode()) * 31 + operation;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) o;
+      return operation == other.operation && hash == other.hash && idempotencyKey.equals(other.idempotencyKey)
+          && accountId.equals(other.accountId);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
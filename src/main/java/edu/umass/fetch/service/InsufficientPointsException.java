@@ -0,0 +1,11 @@
+package edu.umass.fetch.service;
+
+/**
+ * A spend was rejected because it asked for more points than the account has.
+ */
+public class InsufficientPointsException extends IllegalStateException {
+
+  public InsufficientPointsException(String message) {
+    super(message);
+  }
+}
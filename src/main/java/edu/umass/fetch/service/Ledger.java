@@ -0,0 +1,864 @@
+package edu.umass.fetch.service;
+
+import edu.umass.fetch.config.LedgerProperties.LotStorage;
+import edu.umass.fetch.persistence.LedgerImage;
+import edu.umass.fetch.request.EpochNanos;
+import edu.umass.fetch.request.SpendMode;
+import edu.umass.fetch.request.SpendTransaction;
+import edu.umass.fetch.request.Transaction;
+import edu.umass.fetch.request.TransactionBatch;
+import edu.umass.fetch.response.JsonResponse;
+import edu.umass.fetch.response.PointBalance;
+import edu.umass.fetch.response.SpendResult;
+import java.lang.invoke.VarHandle;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import lombok.Getter;
+import lombok.Setter;
+import org.apache.commons.collections4.CollectionUtils;
+
+/**
+ * Points ledger of a single account. Mutations are serialized by the ledger lock; balance reads never take it.
+ */
+public class Ledger {
+
+  private static final long[] NO_POINTS = new long[0];
+  private static final int[] NO_SLOTS = new int[0];
+  private static final boolean[] NO_MARKS = new boolean[0];
+  /**
+   * Lock-free attempts a quote makes before it walks the lots under the lock.
+   */
+  private static final int OPTIMISTIC_QUOTES = 8;
+  /**
+   * Scratch space of the quotes of each thread. Quotes run on the caller's thread, so they cannot share the ledger's.
+   */
+  private static final ThreadLocal<LotQueue.Quote> QUOTES = ThreadLocal.withInitial(LotQueue.Quote::new);
+  /**
+   * Adds of at least this many transactions are applied as a {@link TransactionBatch}, with their lots queued in bulk.
+   */
+  static final int BULK_ADD_TRANSACTIONS = 1024;
+  private static final String NOT_POSITIVE_MESSAGE =
+      "Spending negative points is not allowed. Try a positive number greater than zero";
+
+  /**
+   * Guards every mutation of the queue and the balances. Spends walk lots of every payer in timestamp order, so an
+   * account cannot be split further than a single lock.
+   */
+  private final ReentrantLock ledgerLock = new ReentrantLock();
+
+  private final PayerRegistry payerRegistry;
+  private final PointsExpiry pointsExpiry;
+
+  @Getter
+  private volatile long availablePointsBalance = 0;
+
+  @Getter
+  private final LotQueue pointsQueue;
+
+  private final PayerBalances pointsBalance = new PayerBalances();
+
+  /**
+   * Seqlock over the balances, odd while a writer is changing them. Readers copy the balances without the ledger lock
+   * and keep the copy only if the sequence has not moved meanwhile; the copy is then shared until the next write.
+   */
+  private volatile long balanceSequence;
+  private volatile BalanceView balanceView;
+
+  /**
+   * Lsn of the last write-ahead log record applied to the ledger. Only accessed under the ledger lock or during replay.
+   */
+  @Getter
+  @Setter
+  private long appliedLsn;
+
+  /**
+   * Per-slot scratch space for the payer totals of the batch or spend being applied, and the slots it touched. Only
+   * used under the ledger lock, and zeroed again before the lock is released.
+   */
+  private long[] pointsPerSlot = NO_POINTS;
+  private boolean[] slotTouched = NO_MARKS;
+  private int[] touchedSlots = NO_SLOTS;
+
+  /**
+   * Expiry of each slot's payer, looked up once per slot. Only accessed under the ledger lock.
+   */
+  private long[] expiryNanosBySlot = NO_POINTS;
+
+  /**
+   * Earliest time at which a lot may be due to expire, {@link Long#MAX_VALUE} when none can. Never later than the true
+   * time, so that nothing is due before it; spends and debits can only make it early.
+   */
+  @Getter
+  private volatile long nextExpiryNanos = Long.MAX_VALUE;
+
+  /**
+   * Where applied writes are recorded, or null while they are not.
+   */
+  private volatile LedgerHistory history;
+
+  public Ledger(PayerRegistry payerRegistry) {
+    this(payerRegistry, PointsExpiry.NONE);
+  }
+
+  public Ledger(PayerRegistry payerRegistry, PointsExpiry pointsExpiry) {
+    this(payerRegistry, pointsExpiry, new LotStore(LotStorage.HEAP));
+  }
+
+  /**
+   * A ledger keeping its lots in {@code lotStore}, which it may share with ledgers written by the same thread.
+   */
+  Ledger(PayerRegistry payerRegistry, PointsExpiry pointsExpiry, LotStore lotStore) {
+    this.payerRegistry = payerRegistry;
+    this.pointsExpiry = pointsExpiry;
+    this.pointsQueue = new LotQueue(lotStore);
+  }
+
+  public void addPoints(List<Transaction> transactions) throws IllegalStateException {
+    addPoints(transactions, null);
+  }
+
+  /**
+   * Adds the transactions, running {@code onAccepted} (when given) once they passed validation and before any of them
+   * is applied. If it throws, the ledger is left unchanged. Credits become lots first; each debit is then taken off the
+   * oldest lots of its payer, which validation guarantees can cover it. Lists of {@value #BULK_ADD_TRANSACTIONS} or
+   * more are converted to a batch first.
+   *
+   * @throws IllegalArgumentException if a transaction has no payer or no timestamp, or one out of range; nothing is
+   *     added then either
+   */
+  public void addPoints(List<Transaction> transactions, Runnable onAccepted) throws IllegalStateException {
+
+    if (CollectionUtils.isEmpty(transactions)) {
+      return;
+    }
+    if (transactions.size() >= BULK_ADD_TRANSACTIONS) {
+      addPoints(TransactionBatch.of(transactions), onAccepted);
+      return;
+    }
+    long[] timestamps = new long[transactions.size()];
+    for (int i = 0; i < timestamps.length; i++) {
+      Transaction transaction = transactions.get(i);
+      timestamps[i] = TransactionBatch.timestampNanos(i, transaction.getPayer(), transaction.getTimestamp());
+    }
+    int[] payerIds = new int[transactions.size()];
+    for (int i = 0; i < payerIds.length; i++) {
+      payerIds[i] = payerRegistry.idOf(transactions.get(i).getPayer());
+    }
+
+    ledgerLock.lock();
+    int touched = 0;
+    try {
+      int payerCount = pointsBalance.count();
+      int[] slots = new int[payerIds.length];
+      for (int i = 0; i < payerIds.length; i++) {
+        int slot = pointsBalance.find(payerIds[i], payerCount);
+        if (slot < 0) {
+          slot = payerCount++;
+          pointsBalance.reserve(payerIds[i], slot);
+        }
+        slots[i] = slot;
+      }
+
+      ensureScratchCapacity(payerCount);
+      for (int i = 0; i < slots.length; i++) {
+        touched = accumulate(slots[i], transactions.get(i).getPoints(), touched);
+      }
+
+      for (int i = 0; i < touched; i++) {
+        int slot = touchedSlots[i];
+        long balance = slot < pointsBalance.count() ? pointsBalance.balance(slot) : 0;
+        if (pointsPerSlot[slot] + balance < 0) {
+          throw new NegativeBalanceException(payerRegistry.nameOf(pointsBalance.payerId(slot)));
+        }
+      }
+
+      if (onAccepted != null) {
+        onAccepted.run();
+      }
+      startBalanceWrite();
+
+      LedgerHistory history = this.history;
+      if (history != null) {
+        history.startEvent(EpochNanos.of(LocalDateTime.now()));
+        for (int i = 0; i < transactions.size(); i++) {
+          history.add(slots[i], transactions.get(i).getPoints(), timestamps[i]);
+        }
+      }
+      for (int i = 0; i < transactions.size(); i++) {
+        long points = transactions.get(i).getPoints();
+        if (points > 0) {
+          pointsQueue.offer(slots[i], points, timestamps[i]);
+        }
+      }
+      for (int i = 0; i < transactions.size(); i++) {
+        if (transactions.get(i).getPoints() < 0) {
+          pointsQueue.debit(slots[i], -transactions.get(i).getPoints());
+        }
+      }
+      long pointsAdded = 0;
+      for (int i = 0; i < touched; i++) {
+        int slot = touchedSlots[i];
+        pointsBalance.add(slot, pointsPerSlot[slot]);
+        pointsAdded += pointsPerSlot[slot];
+      }
+      pointsBalance.publish(payerCount);
+      availablePointsBalance += pointsAdded;
+      updateNextExpiry();
+    } finally {
+      clearScratch(touched);
+      unlock();
+    }
+  }
+
+  /**
+   * Adds a streamed batch with the same all-or-nothing semantics as a list of transactions. The batch already carries
+   * its totals per payer, so validation, debits and balance updates under the lock are one step per payer and only
+   * building the lots is one step per transaction. Large batches queue their lots in bulk.
+   */
+  public void addPoints(TransactionBatch batch, Runnable onAccepted) throws IllegalStateException {
+    if (batch.size() == 0) {
+      return;
+    }
+    int[] payerIds = new int[batch.getPayerCount()];
+    for (int i = 0; i < payerIds.length; i++) {
+      payerIds[i] = payerRegistry.idOf(batch.getPayer(i));
+    }
+
+    ledgerLock.lock();
+    try {
+      int payerCount = pointsBalance.count();
+      int[] slots = new int[payerIds.length];
+      for (int i = 0; i < payerIds.length; i++) {
+        int slot = pointsBalance.find(payerIds[i], payerCount);
+        if (slot < 0) {
+          slot = payerCount++;
+          pointsBalance.reserve(payerIds[i], slot);
+        }
+        slots[i] = slot;
+      }
+
+      for (int i = 0; i < slots.length; i++) {
+        long balance = slots[i] < pointsBalance.count() ? pointsBalance.balance(slots[i]) : 0;
+        if (batch.getPayerTotal(i) + balance < 0) {
+          throw new NegativeBalanceException(batch.getPayer(i));
+        }
+      }
+
+      if (onAccepted != null) {
+        onAccepted.run();
+      }
+      startBalanceWrite();
+
+      LedgerHistory history = this.history;
+      if (history != null) {
+        history.startEvent(EpochNanos.of(LocalDateTime.now()));
+        for (int i = 0; i < batch.size(); i++) {
+          history.add(slots[batch.getPayerIndex(i)], batch.getPoints(i), batch.getTimestampNanos(i));
+        }
+      }
+      if (batch.size() >= BULK_ADD_TRANSACTIONS) {
+        pointsQueue.offerAll(batch, slots);
+      } else {
+        for (int i = 0; i < batch.size(); i++) {
+          if (batch.getPoints(i) > 0) {
+            pointsQueue.offer(slots[batch.getPayerIndex(i)], batch.getPoints(i), batch.getTimestampNanos(i));
+          }
+        }
+      }
+      for (int i = 0; i < slots.length; i++) {
+        if (batch.getPayerDebits(i) > 0) {
+          pointsQueue.debit(slots[i], batch.getPayerDebits(i));
+        }
+      }
+      for (int i = 0; i < slots.length; i++) {
+        pointsBalance.add(slots[i], batch.getPayerTotal(i));
+      }
+      pointsBalance.publish(payerCount);
+      availablePointsBalance += batch.getTotalPoints();
+      updateNextExpiry();
+    } finally {
+      unlock();
+    }
+  }
+
+  public Set<PointBalance> spendPoints(SpendTransaction spendTransaction) throws IllegalStateException {
+    return spendPoints(spendTransaction, null);
+  }
+
+  /**
+   * Spends the points, running {@code onAccepted} (when given) once the spend passed validation and before any lot is
+   * consumed. If it throws, the ledger is left unchanged.
+   */
+  public Set<PointBalance> spendPoints(SpendTransaction spendTransaction, Runnable onAccepted)
+      throws IllegalStateException {
+    long spendPoints = spendTransaction.getPoints();
+
+    if (spendPoints <= 0) {
+      throw new IllegalStateException(NOT_POSITIVE_MESSAGE);
+    }
+
+    Set<PointBalance> payerToSpentPoints = new HashSet<>();
+
+    ledgerLock.lock();
+    try {
+      if (spendPoints > availablePointsBalance) {
+        throw new InsufficientPointsException(insufficientMessage(availablePointsBalance, spendPoints));
+      }
+
+      if (onAccepted != null) {
+        onAccepted.run();
+      }
+      startBalanceWrite();
+
+      consume(spendPoints, payerToSpentPoints);
+    } finally {
+      unlock();
+    }
+
+    return payerToSpentPoints;
+  }
+
+  /**
+   * Applies the spends in order under a single lock acquisition, each one continuing from the lot where the previous
+   * one stopped. Every spend is validated against the balance left by the spends before it. In
+   * {@link SpendMode#ALL_OR_NOTHING} mode the first invalid spend rejects the batch with an exception; in
+   * {@link SpendMode#PER_ITEM} mode it only gets a rejected result. {@code onAccepted} (when given) runs once, before
+   * anything is consumed, if at least one spend will be applied.
+   */
+  public List<SpendResult> spendPoints(List<SpendTransaction> spendTransactions, SpendMode mode,
+      Runnable onAccepted) throws IllegalStateException {
+    List<SpendResult> results = new ArrayList<>(spendTransactions.size());
+
+    ledgerLock.lock();
+    try {
+      String[] errors = new String[spendTransactions.size()];
+      long available = availablePointsBalance;
+      int accepted = 0;
+      for (int i = 0; i < errors.length; i++) {
+        long spendPoints = spendTransactions.get(i).getPoints();
+        if (spendPoints <= 0) {
+          errors[i] = NOT_POSITIVE_MESSAGE;
+        } else if (spendPoints > available) {
+          errors[i] = insufficientMessage(available, spendPoints);
+        } else {
+          available -= spendPoints;
+          accepted++;
+        }
+        if (errors[i] != null && mode == SpendMode.ALL_OR_NOTHING) {
+          String message = "Spend " + i + ": " + errors[i];
+          throw spendPoints > 0 ? new InsufficientPointsException(message) : new IllegalStateException(message);
+        }
+      }
+
+      if (accepted > 0) {
+        if (onAccepted != null) {
+          onAccepted.run();
+        }
+        startBalanceWrite();
+      }
+
+      for (int i = 0; i < errors.length; i++) {
+        long spendPoints = spendTransactions.get(i).getPoints();
+        if (errors[i] != null) {
+          results.add(SpendResult.rejected(spendPoints, errors[i]));
+        } else {
+          List<PointBalance> payerToSpentPoints = new ArrayList<>();
+          consume(spendPoints, payerToSpentPoints);
+          results.add(SpendResult.accepted(spendPoints, payerToSpentPoints));
+        }
+      }
+    } finally {
+      unlock();
+    }
+
+    return results;
+  }
+
+  /**
+   * What {@link #spendPoints(SpendTransaction)} would take from each payer right now, without spending anything. Costs
+   * one step per lot the spend would reach, and neither copies the lots nor takes the ledger lock: the lots are walked
+   * under the balance seqlock and the walk is retried if a write moved it. Only if walks keep racing writes, or a walk
+   * reaches lots that arrived out of order and have not been sorted yet, is it finished under the lock. Points due
+   * to expire that neither a write nor the sweep has expired yet are quoted as spendable.
+   */
+  public Set<PointBalance> quoteSpend(SpendTransaction spendTransaction) throws IllegalStateException {
+    long spendPoints = spendTransaction.getPoints();
+    if (spendPoints <= 0) {
+      throw new IllegalStateException(NOT_POSITIVE_MESSAGE);
+    }
+    LotQueue.Quote quote = QUOTES.get();
+    int attempts = 0;
+    while (attempts < OPTIMISTIC_QUOTES) {
+      long sequence = balanceSequence;
+      if ((sequence & 1) != 0) {
+        Thread.onSpinWait();
+        continue;
+      }
+      attempts++;
+      long available = availablePointsBalance;
+      int payerCount = pointsBalance.count();
+      quote.reset(payerCount);
+      long uncovered;
+      try {
+        uncovered = available < spendPoints ? 0 : pointsQueue.quote(spendPoints, quote, false);
+      } catch (RuntimeException e) {
+        // Read lots a writer was changing; the sequence has moved
+        continue;
+      }
+      VarHandle.acquireFence();
+      if (balanceSequence != sequence) {
+        continue;
+      }
+      if (available < spendPoints) {
+        throw new InsufficientPointsException(insufficientMessage(available, spendPoints));
+      }
+      if (uncovered == 0) {
+        return quoted(quote);
+      }
+      if (uncovered < 0) {
+        break;
+      }
+    }
+
+    ledgerLock.lock();
+    try {
+      if (spendPoints > availablePointsBalance) {
+        throw new InsufficientPointsException(insufficientMessage(availablePointsBalance, spendPoints));
+      }
+      quote.reset(pointsBalance.count());
+      pointsQueue.quote(spendPoints, quote, true);
+      return quoted(quote);
+    } finally {
+      ledgerLock.unlock();
+    }
+  }
+
+  /**
+   * Expires the lots whose payer's expiry has passed at {@code nowNanos}, oldest first per payer, and takes their
+   * points off the balances. Costs one step per payer and per lot expired, and nothing before
+   * {@link #getNextExpiryNanos()}. {@code onExpiring} (when given) is passed the cutoff of every payer with points due
+   * first, in the form {@link #applyExpiry} takes, if anything is going to expire; if it throws, the ledger is left
+   * unchanged. Returns the points expired.
+   */
+  public long expirePoints(long nowNanos, Consumer<Map<String, Long>> onExpiring) {
+    if (nowNanos < nextExpiryNanos) {
+      return 0;
+    }
+    long expiredPoints = 0;
+    ledgerLock.lock();
+    try {
+      int payerCount = pointsBalance.count();
+      long[] cutoffNanosBySlot = null;
+      for (int slot = 0; slot < payerCount; slot++) {
+        if (expiresAt(slot) <= nowNanos) {
+          if (cutoffNanosBySlot == null) {
+            cutoffNanosBySlot = new long[payerCount];
+            Arrays.fill(cutoffNanosBySlot, Long.MIN_VALUE);
+          }
+          cutoffNanosBySlot[slot] = nowNanos - expiryNanos(slot);
+        }
+      }
+      if (cutoffNanosBySlot != null) {
+        if (onExpiring != null) {
+          Map<String, Long> cutoffNanosByPayer = new LinkedHashMap<>();
+          for (int slot = 0; slot < payerCount; slot++) {
+            if (cutoffNanosBySlot[slot] != Long.MIN_VALUE) {
+              cutoffNanosByPayer.put(payerRegistry.nameOf(pointsBalance.payerId(slot)), cutoffNanosBySlot[slot]);
+            }
+          }
+          onExpiring.accept(cutoffNanosByPayer);
+        }
+        expiredPoints = expire(nowNanos, cutoffNanosBySlot);
+      }
+      updateNextExpiry();
+    } finally {
+      unlock();
+    }
+    return expiredPoints;
+  }
+
+  /**
+   * Expires each payer's lots with a timestamp up to the payer's cutoff, as an expiry that ran at {@code nowNanos}
+   * decided, whatever this ledger's own expiry settings. Replays and followers apply logged expiries this way, so they
+   * drop exactly the lots the expiry did. Payers the account does not have are skipped. Returns the points expired.
+   */
+  public long applyExpiry(long nowNanos, Map<String, Long> cutoffNanosByPayer) {
+    long expiredPoints;
+    ledgerLock.lock();
+    try {
+      long[] cutoffNanosBySlot = new long[pointsBalance.count()];
+      Arrays.fill(cutoffNanosBySlot, Long.MIN_VALUE);
+      cutoffNanosByPayer.forEach((payer, cutoffNanos) -> {
+        int slot = slotOf(payer);
+        if (slot >= 0) {
+          cutoffNanosBySlot[slot] = cutoffNanos;
+        }
+      });
+      expiredPoints = expire(nowNanos, cutoffNanosBySlot);
+      updateNextExpiry();
+    } finally {
+      unlock();
+    }
+    return expiredPoints;
+  }
+
+  /**
+   * Drops the lots of each slot up to its cutoff, {@link Long#MIN_VALUE} for none, and records the expiry. Called under
+   * the lock.
+   */
+  private long expire(long nowNanos, long[] cutoffNanosBySlot) {
+    startBalanceWrite();
+    LedgerHistory history = this.history;
+    if (history != null) {
+      history.startEvent(nowNanos);
+    }
+    long expiredPoints = 0;
+    for (int slot = 0; slot < cutoffNanosBySlot.length; slot++) {
+      long cutoffNanos = cutoffNanosBySlot[slot];
+      if (cutoffNanos == Long.MIN_VALUE) {
+        continue;
+      }
+      long expired = pointsQueue.expire(slot, cutoffNanos);
+      pointsBalance.add(slot, -expired);
+      expiredPoints += expired;
+      if (history != null && expired > 0) {
+        history.expire(slot, -expired, cutoffNanos);
+      }
+    }
+    availablePointsBalance -= expiredPoints;
+    return expiredPoints;
+  }
+
+  /**
+   * Copy of the balance per payer name.
+   */
+  public Map<String, Long> getPointsBalance() {
+    return getBalanceView().toMap();
+  }
+
+  /**
+   * The balances as of the last completed write. Never waits for the ledger lock: while a write is in progress the copy
+   * is retried, and between writes every reader gets the same view.
+   */
+  public BalanceView getBalanceView() {
+    BalanceView view = balanceView;
+    long sequence = balanceSequence;
+    if (view != null && view.getVersion() << 1 == sequence) {
+      return view;
+    }
+    while (true) {
+      sequence = balanceSequence;
+      if ((sequence & 1) == 0) {
+        int payerCount = pointsBalance.count();
+        int[] payerIds = new int[payerCount];
+        long[] balances = new long[payerCount];
+        for (int slot = 0; slot < payerCount; slot++) {
+          payerIds[slot] = pointsBalance.payerId(slot);
+          balances[slot] = pointsBalance.balance(slot);
+        }
+        if (balanceSequence == sequence) {
+          view = new BalanceView(sequence >> 1, payerRegistry, payerIds, balances);
+          balanceView = view;
+          return view;
+        }
+      }
+      Thread.onSpinWait();
+    }
+  }
+
+  /**
+   * Adds the number of lots of each payer to {@code lotsByPayerId}, indexed by registry id. Takes the ledger lock, so
+   * the counts are those between two writes.
+   */
+  public void countLots(long[] lotsByPayerId) {
+    ledgerLock.lock();
+    try {
+      for (int slot = 0; slot < pointsBalance.count(); slot++) {
+        int payerId = pointsBalance.payerId(slot);
+        if (payerId < lotsByPayerId.length) {
+          lotsByPayerId[payerId] += pointsQueue.size(slot);
+        }
+      }
+    } finally {
+      ledgerLock.unlock();
+    }
+  }
+
+  /**
+   * Starts recording every write applied from now on in the history. Called before the ledger is shared or on its
+   * writer thread.
+   */
+  public void recordHistory(LedgerHistory history) {
+    this.history = history;
+  }
+
+  /**
+   * The history rows of the payer, or of every payer when null, from {@code fromNanos} inclusive to {@code toNanos}
+   * exclusive. Null when history is not recorded. Never takes the ledger lock.
+   */
+  public JsonResponse history(String payer, long fromNanos, long toNanos) {
+    LedgerHistory history = this.history;
+    if (history == null) {
+      return null;
+    }
+    int slot = -1;
+    if (payer != null) {
+      slot = slotOf(payer);
+      // A payer the account never had gets a slot past every slot, which has no rows
+      slot = slot < 0 ? Integer.MAX_VALUE : slot;
+    }
+    return history.rowsJson(slot, fromNanos, toNanos, this::quotedPayer);
+  }
+
+  /**
+   * Slot of the payer in this account, or -1 if the account never had it. The slot index is the writer's, so this
+   * scans the published slots and works without the lock.
+   */
+  private int slotOf(String payer) {
+    int payerId = payerRegistry.find(payer);
+    int payerCount = pointsBalance.count();
+    for (int i = 0; i < payerCount && payerId >= 0; i++) {
+      if (pointsBalance.payerId(i) == payerId) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * The spends from {@code fromNanos} inclusive to {@code toNanos} exclusive, with the lots each drew from. Null when
+   * history is not recorded. Never takes the ledger lock.
+   */
+  public JsonResponse spendHistory(long fromNanos, long toNanos) {
+    LedgerHistory history = this.history;
+    return history == null ? null : history.spendsJson(fromNanos, toNanos, this::quotedPayer);
+  }
+
+  /**
+   * Copy of the ledger taken under its lock, so it reflects exactly the log records up to the applied lsn. Payers are
+   * identified by registry id.
+   */
+  public LedgerImage image(String accountId) {
+    ledgerLock.lock();
+    try {
+      int payerCount = pointsBalance.count();
+      int[] payerIds = new int[payerCount];
+      long[] balances = new long[payerCount];
+      for (int slot = 0; slot < payerCount; slot++) {
+        payerIds[slot] = pointsBalance.payerId(slot);
+        balances[slot] = pointsBalance.balance(slot);
+      }
+      int lotCount = pointsQueue.size();
+      int[] lotSlots = new int[lotCount];
+      long[] lotPoints = new long[lotCount];
+      long[] lotTimestampNanos = new long[lotCount];
+      int i = 0;
+      for (Lot lot : pointsQueue) {
+        lotSlots[i] = lot.getPayer();
+        lotPoints[i] = lot.getPoints();
+        lotTimestampNanos[i++] = lot.getTimestampNanos();
+      }
+      return new LedgerImage(accountId, appliedLsn, availablePointsBalance, payerIds, balances, lotSlots, lotPoints,
+          lotTimestampNanos);
+    } finally {
+      ledgerLock.unlock();
+    }
+  }
+
+  /**
+   * Loads an image into this empty ledger. {@code registryIds} maps the payer ids of the image to registry ids. Debit
+   * lots, which images written before debits were applied at ingestion may hold, are applied to the restored lots.
+   */
+  public void restore(LedgerImage image, int[] registryIds) {
+    ledgerLock.lock();
+    try {
+      startBalanceWrite();
+      int[] payerIds = image.getPayerIds();
+      long[] balances = image.getBalances();
+      for (int slot = 0; slot < payerIds.length; slot++) {
+        pointsBalance.reserve(registryIds[payerIds[slot]], slot);
+      }
+      pointsBalance.publish(payerIds.length);
+      for (int slot = 0; slot < payerIds.length; slot++) {
+        pointsBalance.add(slot, balances[slot]);
+      }
+
+      int[] lotSlots = image.getLotSlots();
+      long[] lotPoints = image.getLotPoints();
+      long[] lotTimestampNanos = image.getLotTimestampNanos();
+      for (int i = 0; i < lotSlots.length; i++) {
+        if (lotPoints[i] > 0) {
+          pointsQueue.offer(lotSlots[i], lotPoints[i], lotTimestampNanos[i]);
+        }
+      }
+      for (int i = 0; i < lotSlots.length; i++) {
+        if (lotPoints[i] < 0) {
+          pointsQueue.debit(lotSlots[i], -lotPoints[i]);
+        }
+      }
+      availablePointsBalance = image.getAvailablePointsBalance();
+      appliedLsn = image.getAppliedLsn();
+      updateNextExpiry();
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Consumes the points from the oldest lots and adds what each payer gave up to {@code payerToSpentPoints}. Callers
+   * hold the ledger lock and have checked that enough points are available.
+   */
+  private void consume(long spendPoints, Collection<PointBalance> payerToSpentPoints) {
+    ensureScratchCapacity(pointsBalance.count());
+    LedgerHistory history = this.history;
+    if (history != null) {
+      history.startEvent(EpochNanos.of(LocalDateTime.now()));
+    }
+    int touched = 0;
+    try {
+      while (spendPoints > 0) {
+        int oldestLot = pointsQueue.peekLot();
+        int payer = pointsQueue.payer(oldestLot);
+        long lotPoints = pointsQueue.points(oldestLot);
+        if (history != null) {
+          history.spend(payer, -Math.min(lotPoints, spendPoints), pointsQueue.timestampNanos(oldestLot));
+        }
+        long pointsSpent;
+        if (lotPoints <= spendPoints) {
+          pointsQueue.pollLot();
+          pointsSpent = lotPoints;
+        } else {
+          pointsQueue.spend(oldestLot, spendPoints);
+          pointsSpent = spendPoints;
+        }
+        availablePointsBalance -= pointsSpent;
+        pointsBalance.add(payer, -pointsSpent);
+        spendPoints -= pointsSpent;
+
+        touched = accumulate(payer, pointsSpent, touched);
+      }
+
+      for (int i = 0; i < touched; i++) {
+        int slot = touchedSlots[i];
+        payerToSpentPoints.add(
+            new PointBalance(payerRegistry.nameOf(pointsBalance.payerId(slot)), -pointsPerSlot[slot]));
+      }
+    } finally {
+      clearScratch(touched);
+    }
+  }
+
+  /**
+   * Recomputes the earliest expiry from the oldest lot of each payer. Called under the lock after lots were added.
+   */
+  private void updateNextExpiry() {
+    if (!pointsExpiry.isEnabled()) {
+      return;
+    }
+    long next = Long.MAX_VALUE;
+    for (int slot = 0; slot < pointsBalance.count(); slot++) {
+      next = Math.min(next, expiresAt(slot));
+    }
+    nextExpiryNanos = next;
+  }
+
+  /**
+   * When the oldest lot of the slot's payer expires, {@link Long#MAX_VALUE} if never.
+   */
+  private long expiresAt(int slot) {
+    long expiry = expiryNanos(slot);
+    long oldest = pointsQueue.oldestTimestampNanos(slot);
+    if (expiry == PointsExpiry.NEVER || oldest == Long.MAX_VALUE) {
+      return Long.MAX_VALUE;
+    }
+    long expiresAt = oldest + expiry;
+    // Saturate rather than wrap for expiries far beyond any timestamp
+    return expiresAt < oldest ? Long.MAX_VALUE : expiresAt;
+  }
+
+  private long expiryNanos(int slot) {
+    if (slot >= expiryNanosBySlot.length) {
+      int length = expiryNanosBySlot.length;
+      expiryNanosBySlot = Arrays.copyOf(expiryNanosBySlot, Math.max(slot + 1, length * 2));
+      Arrays.fill(expiryNanosBySlot, length, expiryNanosBySlot.length, -1);
+    }
+    if (expiryNanosBySlot[slot] < 0) {
+      expiryNanosBySlot[slot] = pointsExpiry.expiryNanos(payerRegistry.nameOf(pointsBalance.payerId(slot)));
+    }
+    return expiryNanosBySlot[slot];
+  }
+
+  private Set<PointBalance> quoted(LotQueue.Quote quote) {
+    Set<PointBalance> payerToQuotedPoints = new HashSet<>();
+    for (int i = 0; i < quote.touched(); i++) {
+      int slot = quote.slot(i);
+      payerToQuotedPoints.add(new PointBalance(payerRegistry.nameOf(pointsBalance.payerId(slot)), -quote.points(slot)));
+    }
+    return payerToQuotedPoints;
+  }
+
+  private byte[] quotedPayer(int slot) {
+    return payerRegistry.quotedNameOf(pointsBalance.payerId(slot));
+  }
+
+  private static String insufficientMessage(long available, long spendPoints) {
+    return "Insufficient Point Balance. Points available: " + available + " Redemption  request: " + spendPoints;
+  }
+
+  /**
+   * Marks the balances as being changed until the ledger is unlocked. Called under the lock, once the write can no longer
+   * be rejected.
+   */
+  private void startBalanceWrite() {
+    if ((balanceSequence & 1) == 0) {
+      balanceSequence++;
+      // Lots are plain fields: keep their changes from becoming visible before the odd sequence
+      VarHandle.releaseFence();
+    }
+  }
+
+  private void unlock() {
+    if ((balanceSequence & 1) != 0) {
+      balanceSequence++;
+    }
+    LedgerHistory history = this.history;
+    if (history != null) {
+      history.publish();
+    }
+    ledgerLock.unlock();
+  }
+
+  private int accumulate(int slot, long points, int touched) {
+    if (!slotTouched[slot]) {
+      slotTouched[slot] = true;
+      touchedSlots[touched++] = slot;
+    }
+    pointsPerSlot[slot] += points;
+    return touched;
+  }
+
+  private void ensureScratchCapacity(int payerCount) {
+    if (pointsPerSlot.length < payerCount) {
+      pointsPerSlot = new long[payerCount];
+      slotTouched = new boolean[payerCount];
+      touchedSlots = new int[payerCount];
+    }
+  }
+
+  private void clearScratch(int touched) {
+    for (int i = 0; i < touched; i++) {
+      pointsPerSlot[touchedSlots[i]] = 0;
+      slotTouched[touchedSlots[i]] = false;
+    }
+  }
+
+}
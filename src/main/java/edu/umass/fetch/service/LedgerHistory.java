@@ -0,0 +1,595 @@
+package edu.umass.fetch.service;
+
+import edu.umass.fetch.request.EpochNanos;
+import edu.umass.fetch.response.JsonResponse;
+import edu.umass.fetch.response.JsonWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append-only record of what changed one account's lots: every transaction added, every part of a lot a spend took and
+ * every payer's points that expired. Rows are kept in columns, in chunks of up to {@value #CHUNK_ROWS}, in the order
+ * the writes were applied, so their times are sorted and a time range is found by binary search. An index of row
+ * numbers and times per payer, and one of the first row of every spend, answer payer and spend queries the same way:
+ * O(log n) to find the start of the range and one step per row returned.
+ *
+ * <p>The ledger appends rows under its lock and publishes them through a volatile row count when it unlocks. Rows never
+ * change once published, so queries read them without the lock. With a spill file, full chunks beyond the rows kept in
+ * memory are moved to the file and only read back by queries that reach them. Without one, the oldest chunks are
+ * dropped so the account never holds more than the rows kept in memory, and queries start at the oldest row left.
+ */
+@Slf4j
+public final class LedgerHistory {
+
+  public static final byte ADD = 1;
+  public static final byte SPEND = 2;
+  public static final byte EXPIRE = 3;
+
+  private static final int CHUNK_SHIFT = 12;
+  private static final int CHUNK_ROWS = 1 << CHUNK_SHIFT;
+  private static final int FIRST_CHUNK_ROWS = 16;
+  private static final int ROW_BYTES = 8 + 4 + 1 + 4 + 8 + 8;
+
+  private static final byte[][] TYPES = {null, quoted("ADD"), quoted("SPEND"), quoted("EXPIRE")};
+  private static final byte[] EVENT = "{\"event\":".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] TYPE = ",\"type\":".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] TIME = ",\"time\":".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] PAYER = "\"payer\":".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] POINTS = ",\"points\":".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] TIMESTAMP = ",\"timestamp\":".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] PAYERS = ",\"payers\":[".getBytes(StandardCharsets.US_ASCII);
+  private static final byte[] LOTS = "],\"lots\":[".getBytes(StandardCharsets.US_ASCII);
+
+  private final HistorySpillFile spillFile;
+  private final int chunksInMemory;
+
+  private volatile Chunk[] chunks = new Chunk[1];
+  private volatile RowIndex[] rowsBySlot = new RowIndex[0];
+  private final RowIndex spends = new RowIndex();
+
+  /**
+   * Rows visible to queries.
+   */
+  private volatile int size;
+
+  /**
+   * The oldest row not dropped. Raised before the chunks it drops are cleared, in a copy of {@link #chunks}, so a query
+   * that reads the chunks first and this second never reaches a cleared chunk.
+   */
+  private volatile int firstRow;
+
+  /**
+   * The rest is only accessed by the ledger's writer. {@code written} runs ahead of {@link #size} during a write.
+   */
+  private int written;
+  private int spilledChunks;
+  private int droppedChunks;
+  private boolean spillFailed;
+  private int event;
+  private long eventNanos = Long.MIN_VALUE;
+  private boolean eventHasRows;
+
+  /**
+   * @param spillFile file to move full chunks to, or null to drop them
+   * @param rowsInMemory rows to keep in memory, rounded down to whole chunks of {@value #CHUNK_ROWS} and at least one:
+   *     with a spill file the full chunks beyond them are moved to it, without one the oldest chunks are dropped
+   */
+  LedgerHistory(HistorySpillFile spillFile, int rowsInMemory) {
+    this.spillFile = spillFile;
+    this.chunksInMemory = Math.max(1, rowsInMemory >>> CHUNK_SHIFT);
+  }
+
+  /**
+   * Starts the rows of one add, spend or expiry, numbered after the previous one. Its rows all get the same time, never
+   * earlier than the previous event's, so the time column stays sorted if the clock steps back.
+   */
+  void startEvent(long nowNanos) {
+    event++;
+    eventNanos = Math.max(eventNanos, nowNanos);
+    eventHasRows = false;
+  }
+
+  /**
+   * A transaction of an add: its points, negative for a debit, and its timestamp.
+   */
+  void add(int slot, long points, long timestampNanos) {
+    append(ADD, slot, points, timestampNanos);
+  }
+
+  /**
+   * Points a spend took from one lot, as a negative number, and the timestamp of the lot.
+   */
+  void spend(int slot, long points, long lotTimestampNanos) {
+    if (!eventHasRows) {
+      spends.add(written, eventNanos);
+    }
+    append(SPEND, slot, points, lotTimestampNanos);
+  }
+
+  /**
+   * Points of one payer that expired, as a negative number, and the cutoff: every lot of the payer up to it expired.
+   */
+  void expire(int slot, long points, long cutoffNanos) {
+    append(EXPIRE, slot, points, cutoffNanos);
+  }
+
+  /**
+   * Makes the rows appended so far visible to queries.
+   */
+  void publish() {
+    if (size != written) {
+      size = written;
+    }
+  }
+
+  /**
+   * Rows of the slot's payer, or of every payer when the slot is negative, from {@code fromNanos} inclusive to
+   * {@code toNanos} exclusive, oldest first, as
+   * {@code [{"event":1,"type":"ADD","time":"...","payer":"NAME","points":100,"timestamp":"..."},...]}. The timestamp
+   * is that of the transaction, of the lot spent from, or the expiry cutoff.
+   */
+  JsonResponse rowsJson(int slot, long fromNanos, long toNanos, IntFunction<byte[]> quotedPayerOfSlot) {
+    int rows = size;
+    if (slot >= 0) {
+      RowIndex[] indexes = rowsBySlot;
+      RowIndex index = slot < indexes.length ? indexes[slot] : null;
+      return out -> {
+        JsonWriter writer = new JsonWriter(out);
+        writer.raw((byte) '[');
+        if (index != null) {
+          Reader reader = new Reader();
+          RowIndex.Entries entries = index.entries;
+          int count = entries.count;
+          int[] rowNumbers = entries.rows;
+          long[] rowNanos = entries.nanos;
+          int first = lowerBound(rowNanos, 0, count, fromNanos);
+          while (first < count && rowNumbers[first] < reader.firstRow) {
+            first++;
+          }
+          for (int i = first; i < count && rowNanos[i] < toNanos && rowNumbers[i] < rows; i++) {
+            if (i > first) {
+              writer.raw((byte) ',');
+            }
+            writeRow(writer, reader, rowNumbers[i], quotedPayerOfSlot);
+          }
+        }
+        writer.raw((byte) ']').flush();
+      };
+    }
+    return out -> {
+      JsonWriter writer = new JsonWriter(out);
+      writer.raw((byte) '[');
+      Reader reader = new Reader();
+      int first = Math.max(firstRowAtOrAfter(fromNanos, rows, reader), reader.firstRow);
+      for (int row = first; row < rows && reader.chunk(row).nanos[row & (CHUNK_ROWS - 1)] < toNanos; row++) {
+        if (row > first) {
+          writer.raw((byte) ',');
+        }
+        writeRow(writer, reader, row, quotedPayerOfSlot);
+      }
+      writer.raw((byte) ']').flush();
+    };
+  }
+
+  /**
+   * Spends from {@code fromNanos} inclusive to {@code toNanos} exclusive, oldest first, each with the points every
+   * payer gave up, as returned to the caller, and the lots it drew from:
+   * {@code [{"event":2,"time":"...","points":300,"payers":[{"payer":"NAME","points":-300}],"lots":[{"payer":"NAME",
+   * "points":-300,"timestamp":"..."}]},...]}.
+   */
+  JsonResponse spendsJson(long fromNanos, long toNanos, IntFunction<byte[]> quotedPayerOfSlot) {
+    int rows = size;
+    return out -> {
+      JsonWriter writer = new JsonWriter(out);
+      writer.raw((byte) '[');
+      Reader reader = new Reader();
+      RowIndex.Entries entries = spends.entries;
+      int count = entries.count;
+      int[] firstRows = entries.rows;
+      long[] spendNanos = entries.nanos;
+      int first = lowerBound(spendNanos, 0, count, fromNanos);
+      while (first < count && firstRows[first] < reader.firstRow) {
+        first++;
+      }
+      for (int i = first; i < count && spendNanos[i] < toNanos && firstRows[i] < rows; i++) {
+        if (i > first) {
+          writer.raw((byte) ',');
+        }
+        writeSpend(writer, reader, firstRows[i], rows, quotedPayerOfSlot);
+      }
+      writer.raw((byte) ']').flush();
+    };
+  }
+
+  private void append(byte kind, int slot, long points, long timestampNanos) {
+    int row = written;
+    int chunkIndex = row >>> CHUNK_SHIFT;
+    int offset = row & (CHUNK_ROWS - 1);
+    Chunk[] current = chunks;
+    if (offset == 0) {
+      if (chunkIndex == current.length) {
+        current = Arrays.copyOf(current, chunkIndex * 2);
+        chunks = current;
+      }
+      current[chunkIndex] = new Chunk(eventNanos, FIRST_CHUNK_ROWS);
+      if (spillFile != null && !spillFailed) {
+        spillFullChunks(current, chunkIndex);
+      }
+      if (spillFile == null || spillFailed) {
+        current = dropOldChunks(current, chunkIndex);
+      }
+    } else if (offset == current[chunkIndex].nanos.length) {
+      current[chunkIndex] = new Chunk(current[chunkIndex], offset * 2);
+    }
+    Chunk chunk = current[chunkIndex];
+    chunk.nanos[offset] = eventNanos;
+    chunk.events[offset] = event;
+    chunk.kinds[offset] = kind;
+    chunk.slots[offset] = slot;
+    chunk.points[offset] = points;
+    chunk.timestamps[offset] = timestampNanos;
+    rowsOf(slot).add(row, eventNanos);
+    eventHasRows = true;
+    written = row + 1;
+  }
+
+  private RowIndex rowsOf(int slot) {
+    RowIndex[] indexes = rowsBySlot;
+    if (slot >= indexes.length) {
+      indexes = Arrays.copyOf(indexes, Math.max(slot + 1, indexes.length * 2));
+      rowsBySlot = indexes;
+    }
+    if (indexes[slot] == null) {
+      indexes[slot] = new RowIndex();
+    }
+    return indexes[slot];
+  }
+
+  /**
+   * Moves the oldest full chunks to the spill file while more than the configured number are in memory. A chunk that
+   * cannot be written stays in memory, spilling stops for the ledger and old chunks are dropped from then on.
+   */
+  private void spillFullChunks(Chunk[] current, int newChunk) {
+    while (newChunk - spilledChunks > chunksInMemory) {
+      Chunk chunk = current[spilledChunks];
+      try {
+        current[spilledChunks] = new Chunk(chunk.firstNanos, spillFile.append(chunk.encode()));
+        spilledChunks++;
+      } catch (IOException e) {
+        log.warn("Could not spill ledger history, keeping it in memory", e);
+        spillFailed = true;
+        return;
+      }
+    }
+  }
+
+  /**
+   * Drops the oldest chunks while the new one and those before it that are kept add up to more than the configured
+   * number, and the index entries of their rows once they are half of an index. Returns the chunks to append to.
+   */
+  private Chunk[] dropOldChunks(Chunk[] current, int newChunk) {
+    int firstKept = Math.max(droppedChunks, newChunk + 1 - chunksInMemory);
+    if (firstKept <= droppedChunks) {
+      return current;
+    }
+    Chunk[] kept = current.clone();
+    Arrays.fill(kept, droppedChunks, firstKept, null);
+    droppedChunks = firstKept;
+    firstRow = firstKept << CHUNK_SHIFT;
+    chunks = kept;
+    for (RowIndex index : rowsBySlot) {
+      if (index != null) {
+        index.dropBefore(firstRow);
+      }
+    }
+    spends.dropBefore(firstRow);
+    return kept;
+  }
+
+  /**
+   * The first row whose time is at or after {@code nanos}, or {@code rows} if none is. Chunks the reader cannot reach
+   * are skipped.
+   */
+  private int firstRowAtOrAfter(long nanos, int rows, Reader reader) {
+    int chunkCount = (rows + CHUNK_ROWS - 1) >>> CHUNK_SHIFT;
+    Chunk[] current = reader.chunks;
+    int low = reader.firstRow >>> CHUNK_SHIFT;
+    int high = chunkCount - 1;
+    int candidate = -1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (current[mid].firstNanos < nanos) {
+        candidate = mid;
+        low = mid + 1;
+      } else {
+        high = mid - 1;
+      }
+    }
+    if (candidate < 0) {
+      return 0;
+    }
+    int start = candidate << CHUNK_SHIFT;
+    long[] chunkNanos = reader.chunk(start).nanos;
+    int index = lowerBound(chunkNanos, 0, Math.min(CHUNK_ROWS, rows - start), nanos);
+    return start + index;
+  }
+
+  private void writeRow(JsonWriter writer, Reader reader, int row, IntFunction<byte[]> quotedPayerOfSlot)
+      throws IOException {
+    Chunk chunk = reader.chunk(row);
+    int i = row & (CHUNK_ROWS - 1);
+    writer.raw(EVENT).number(chunk.events[i])
+        .raw(TYPE).raw(TYPES[chunk.kinds[i]])
+        .raw(TIME).raw(quotedTime(chunk.nanos[i]))
+        .raw((byte) ',').raw(PAYER).raw(quotedPayerOfSlot.apply(chunk.slots[i]))
+        .raw(POINTS).number(chunk.points[i])
+        .raw(TIMESTAMP).raw(quotedTime(chunk.timestamps[i]))
+        .raw((byte) '}');
+  }
+
+  private void writeSpend(JsonWriter writer, Reader reader, int firstRow, int rows,
+      IntFunction<byte[]> quotedPayerOfSlot) throws IOException {
+    Chunk chunk = reader.chunk(firstRow);
+    int spendEvent = chunk.events[firstRow & (CHUNK_ROWS - 1)];
+    long nanos = chunk.nanos[firstRow & (CHUNK_ROWS - 1)];
+    int end = firstRow;
+    long total = 0;
+    // Payers in the order the spend reached them, with what each gave up
+    int[] payerSlots = new int[4];
+    long[] payerPoints = new long[4];
+    int payers = 0;
+    while (end < rows) {
+      chunk = reader.chunk(end);
+      int i = end & (CHUNK_ROWS - 1);
+      if (chunk.events[i] != spendEvent) {
+        break;
+      }
+      int payer = 0;
+      while (payer < payers && payerSlots[payer] != chunk.slots[i]) {
+        payer++;
+      }
+      if (payer == payers) {
+        if (payers == payerSlots.length) {
+          payerSlots = Arrays.copyOf(payerSlots, payers * 2);
+          payerPoints = Arrays.copyOf(payerPoints, payers * 2);
+        }
+        payerSlots[payers++] = chunk.slots[i];
+      }
+      payerPoints[payer] += chunk.points[i];
+      total -= chunk.points[i];
+      end++;
+    }
+
+    writer.raw(EVENT).number(spendEvent)
+        .raw(TIME).raw(quotedTime(nanos))
+        .raw(POINTS).number(total)
+        .raw(PAYERS);
+    for (int payer = 0; payer < payers; payer++) {
+      if (payer > 0) {
+        writer.raw((byte) ',');
+      }
+      writer.raw((byte) '{').raw(PAYER).raw(quotedPayerOfSlot.apply(payerSlots[payer]))
+          .raw(POINTS).number(payerPoints[payer])
+          .raw((byte) '}');
+    }
+    writer.raw(LOTS);
+    for (int row = firstRow; row < end; row++) {
+      chunk = reader.chunk(row);
+      int i = row & (CHUNK_ROWS - 1);
+      if (row > firstRow) {
+        writer.raw((byte) ',');
+      }
+      writer.raw((byte) '{').raw(PAYER).raw(quotedPayerOfSlot.apply(chunk.slots[i]))
+          .raw(POINTS).number(chunk.points[i])
+          .raw(TIMESTAMP).raw(quotedTime(chunk.timestamps[i]))
+          .raw((byte) '}');
+    }
+    writer.raw((byte) ']').raw((byte) '}');
+  }
+
+  private static byte[] quotedTime(long nanos) {
+    return quoted(EpochNanos.toLocalDateTime(nanos).toString());
+  }
+
+  private static byte[] quoted(String value) {
+    return JsonWriter.quoted(value);
+  }
+
+  /**
+   * Index of the first value at or after {@code value} between {@code from} and {@code to}, in a sorted array, or
+   * {@code to} if there is none.
+   */
+  private static int lowerBound(long[] values, int from, int to, long value) {
+    int low = from;
+    int high = to;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (values[mid] < value) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Reads the chunks of one query, keeping the last chunk read back from the spill file. Rows before
+   * {@link #firstRow} may have been dropped.
+   */
+  private final class Reader {
+
+    private final Chunk[] chunks = LedgerHistory.this.chunks;
+    private final int firstRow = LedgerHistory.this.firstRow;
+    private int loadedIndex = -1;
+    private Chunk loaded;
+
+    Chunk chunk(int row) {
+      int index = row >>> CHUNK_SHIFT;
+      Chunk chunk = chunks[index];
+      if (chunk.nanos != null) {
+        return chunk;
+      }
+      if (index != loadedIndex) {
+        try {
+          loaded = new Chunk(chunk.firstNanos, spillFile.read(chunk.spillOffset, CHUNK_ROWS * ROW_BYTES));
+        } catch (IOException e) {
+          throw new UncheckedIOException("Could not read spilled ledger history", e);
+        }
+        loadedIndex = index;
+      }
+      return loaded;
+    }
+  }
+
+  /**
+   * Up to {@value #CHUNK_ROWS} consecutive rows in columns, or the offset of such a chunk in the spill file. Columns
+   * start small and are replaced by a bigger copy as rows are appended; all fields are final, so a query that reads a
+   * chunk through a racy reference still sees every row copied into it.
+   */
+  private static final class Chunk {
+
+    final long firstNanos;
+    final long spillOffset;
+    final long[] nanos;
+    final int[] events;
+    final byte[] kinds;
+    final int[] slots;
+    final long[] points;
+    final long[] timestamps;
+
+    Chunk(long firstNanos, int capacity) {
+      this.firstNanos = firstNanos;
+      this.spillOffset = -1;
+      this.nanos = new long[capacity];
+      this.events = new int[capacity];
+      this.kinds = new byte[capacity];
+      this.slots = new int[capacity];
+      this.points = new long[capacity];
+      this.timestamps = new long[capacity];
+    }
+
+    Chunk(Chunk previous, int capacity) {
+      this.firstNanos = previous.firstNanos;
+      this.spillOffset = -1;
+      this.nanos = Arrays.copyOf(previous.nanos, capacity);
+      this.events = Arrays.copyOf(previous.events, capacity);
+      this.kinds = Arrays.copyOf(previous.kinds, capacity);
+      this.slots = Arrays.copyOf(previous.slots, capacity);
+      this.points = Arrays.copyOf(previous.points, capacity);
+      this.timestamps = Arrays.copyOf(previous.timestamps, capacity);
+    }
+
+    Chunk(long firstNanos, long spillOffset) {
+      this.firstNanos = firstNanos;
+      this.spillOffset = spillOffset;
+      this.nanos = null;
+      this.events = null;
+      this.kinds = null;
+      this.slots = null;
+      this.points = null;
+      this.timestamps = null;
+    }
+
+    /**
+     * Decodes a full chunk read back from the spill file.
+     */
+    Chunk(long firstNanos, ByteBuffer bytes) {
+      this(firstNanos, CHUNK_ROWS);
+      bytes.asLongBuffer().get(nanos);
+      bytes.position(bytes.position() + 8 * CHUNK_ROWS);
+      bytes.asIntBuffer().get(events);
+      bytes.position(bytes.position() + 4 * CHUNK_ROWS);
+      bytes.get(kinds);
+      bytes.asIntBuffer().get(slots);
+      bytes.position(bytes.position() + 4 * CHUNK_ROWS);
+      bytes.asLongBuffer().get(points);
+      bytes.position(bytes.position() + 8 * CHUNK_ROWS);
+      bytes.asLongBuffer().get(timestamps);
+    }
+
+    ByteBuffer encode() {
+      ByteBuffer bytes = ByteBuffer.allocate(CHUNK_ROWS * ROW_BYTES);
+      bytes.asLongBuffer().put(nanos);
+      bytes.position(bytes.position() + 8 * CHUNK_ROWS);
+      bytes.asIntBuffer().put(events);
+      bytes.position(bytes.position() + 4 * CHUNK_ROWS);
+      bytes.put(kinds);
+      bytes.asIntBuffer().put(slots);
+      bytes.position(bytes.position() + 4 * CHUNK_ROWS);
+      bytes.asLongBuffer().put(points);
+      bytes.position(bytes.position() + 8 * CHUNK_ROWS);
+      bytes.asLongBuffer().put(timestamps);
+      return bytes.clear();
+    }
+  }
+
+  /**
+   * Row numbers with their times, in row order. Grown, and cut down after rows are dropped, by copying into new
+   * {@link Entries}; an entry is written before the count that covers it, so a reader that reads the entries and then
+   * their count finds every entry below it.
+   */
+  private static final class RowIndex {
+
+    volatile Entries entries = new Entries(4);
+
+    void add(int row, long rowNanos) {
+      Entries current = entries;
+      int n = current.count;
+      if (n == current.rows.length) {
+        current = current.copy(0, n * 2);
+        entries = current;
+      }
+      current.rows[n] = row;
+      current.nanos[n] = rowNanos;
+      current.count = n + 1;
+    }
+
+    /**
+     * Removes the entries of rows before {@code firstRow}, once they are at least half of the entries, so an index is
+     * never more than twice the rows left and is copied once per as many dropped rows.
+     */
+    void dropBefore(int firstRow) {
+      Entries current = entries;
+      int count = current.count;
+      int dropped = 0;
+      int high = count;
+      while (dropped < high) {
+        int mid = (dropped + high) >>> 1;
+        if (current.rows[mid] < firstRow) {
+          dropped = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      if (dropped > 0 && dropped * 2 >= count) {
+        entries = current.copy(dropped, Math.max(4, (count - dropped) * 2));
+      }
+    }
+
+    static final class Entries {
+
+      final int[] rows;
+      final long[] nanos;
+      volatile int count;
+
+      Entries(int capacity) {
+        rows = new int[capacity];
+        nanos = new long[capacity];
+      }
+
+      Entries copy(int from, int capacity) {
+        Entries copy = new Entries(capacity);
+        System.arraycopy(rows, from, copy.rows, 0, count - from);
+        System.arraycopy(nanos, from, copy.nanos, 0, count - from);
+        copy.count = count - from;
+        return copy;
+      }
+    }
+  }
+}
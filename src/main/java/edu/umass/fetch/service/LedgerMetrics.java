@@ -0,0 +1,221 @@
+package edu.umass.fetch.service;
+
+import edu.umass.fetch.config.LedgerProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Meters of the points ledger. Lot counts are gauges computed from the ledgers when the registry is scraped, so keeping
+ * them costs writes nothing. Rejections are all counted.
+ *
+ * <p>Timing a call costs two clock reads and a histogram update, a few percent of a write and several times a cached
+ * balance read. So by default only one write in 32 and one balance read in 1024 is timed, chosen at random, see
+ * {@link LedgerProperties#getTimedWrites()}. The timers' distributions are those of the samples and their counts are of
+ * sampled calls; exact request counts and latencies per endpoint are in the web server's {@code http.server.requests}
+ * timer.
+ */
+final class LedgerMetrics {
+
+  /**
+   * How long one walk over the ledgers serves the lot gauges, so that a scrape reading every gauge walks them once.
+   */
+  private static final long CENSUS_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  private final MeterRegistry registry;
+  private final int writeSampleMask;
+  private final int balanceReadSampleMask;
+  private final PayerRegistry payerRegistry;
+  private final Supplier<Stream<Ledger>> ledgers;
+
+  private final Timer addTimer;
+  private final Timer spendTimer;
+  private final Timer spendBatchTimer;
+  private final Timer balanceReadTimer;
+  private final DistributionSummary lotsPerSpend;
+  private final Counter negativeBalanceRejections;
+  private final Counter insufficientPointsRejections;
+  private final Counter invalidRejections;
+  private final Counter expiredPoints;
+
+  private long censusNanos;
+  private long totalLots;
+  private long[] lotsByPayerId = new long[0];
+  private int payerGauges;
+
+  /**
+   * @param timedWrites time one write in this many, rounded down to a power of two
+   * @param timedBalanceReads time one balance read in this many, rounded down to a power of two
+   */
+  LedgerMetrics(MeterRegistry registry, int timedWrites, int timedBalanceReads, PayerRegistry payerRegistry,
+      Supplier<Stream<Ledger>> ledgers) {
+    this.registry = registry;
+    int writeSampling = Integer.highestOneBit(Math.max(1, timedWrites));
+    int balanceReadSampling = Integer.highestOneBit(Math.max(1, timedBalanceReads));
+    this.writeSampleMask = writeSampling - 1;
+    this.balanceReadSampleMask = balanceReadSampling - 1;
+    this.payerRegistry = payerRegistry;
+    this.ledgers = ledgers;
+    this.addTimer = timer("ledger.add", "Adds until applied and, with persistence, durable", writeSampling);
+    this.spendTimer = timer("ledger.spend", "Spends until applied and, with persistence, durable", writeSampling);
+    this.spendBatchTimer = timer("ledger.spend.batch", "Batch spends until applied and, with persistence, durable",
+        writeSampling);
+    this.balanceReadTimer = timer("ledger.balance.read", "Balance reads", balanceReadSampling);
+    this.lotsPerSpend = DistributionSummary.builder("ledger.spend.lots")
+        .description("Lots used up by one spend request, one in " + writeSampling + " recorded")
+        .publishPercentileHistogram()
+        .register(registry);
+    this.negativeBalanceRejections = rejections("negative_balance");
+    this.insufficientPointsRejections = rejections("insufficient_points");
+    this.invalidRejections = rejections("invalid");
+    this.expiredPoints = Counter.builder("ledger.expired.points")
+        .description("Points that expired before being spent")
+        .register(registry);
+    Gauge.builder("ledger.lots", this, LedgerMetrics::totalLots)
+        .description("Lots holding points, over all accounts")
+        .register(registry);
+  }
+
+  Timer add() {
+    return addTimer;
+  }
+
+  Timer spend() {
+    return spendTimer;
+  }
+
+  Timer spendBatch() {
+    return spendBatchTimer;
+  }
+
+  /**
+   * Records the lots a spend used up, if the spend is sampled.
+   */
+  void spent(int lots) {
+    if (sampled(writeSampleMask)) {
+      lotsPerSpend.record(lots);
+    }
+  }
+
+  void expired(long points) {
+    expiredPoints.increment(points);
+  }
+
+  /**
+   * Runs the write, timing it if it is sampled and counting it as rejected if it throws.
+   */
+  <T> T time(Timer timer, Supplier<T> write) {
+    long startNanos = sampled(writeSampleMask) ? System.nanoTime() : 0;
+    try {
+      return write.get();
+    } catch (IllegalStateException e) {
+      rejected(e);
+      throw e;
+    } finally {
+      if (startNanos != 0) {
+        timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+  }
+
+  /**
+   * Starts the write and, once its future completes, times it if it is sampled and counts it as rejected if it failed.
+   */
+  <T> CompletableFuture<T> timeAsync(Timer timer, Supplier<CompletableFuture<T>> write) {
+    long startNanos = sampled(writeSampleMask) ? System.nanoTime() : 0;
+    CompletableFuture<T> future = write.get();
+    future.whenComplete((result, e) -> {
+      if (startNanos != 0) {
+        timer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+      }
+      Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+      if (cause instanceof IllegalStateException) {
+        rejected((IllegalStateException) cause);
+      }
+    });
+    return future;
+  }
+
+  BalanceView timeBalanceRead(Supplier<BalanceView> read) {
+    if (!sampled(balanceReadSampleMask)) {
+      return read.get();
+    }
+    long startNanos = System.nanoTime();
+    try {
+      return read.get();
+    } finally {
+      balanceReadTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  private static boolean sampled(int sampleMask) {
+    return (ThreadLocalRandom.current().nextInt() & sampleMask) == 0;
+  }
+
+  private void rejected(IllegalStateException e) {
+    if (e instanceof NegativeBalanceException) {
+      negativeBalanceRejections.increment();
+    } else if (e instanceof InsufficientPointsException) {
+      insufficientPointsRejections.increment();
+    } else {
+      invalidRejections.increment();
+    }
+  }
+
+  private synchronized double totalLots() {
+    takeCensus();
+    return totalLots;
+  }
+
+  private synchronized double payerLots(int payerId) {
+    takeCensus();
+    return payerId < lotsByPayerId.length ? lotsByPayerId[payerId] : 0;
+  }
+
+  /**
+   * Counts the lots of every payer over every ledger, unless the last count is recent enough, and registers a gauge
+   * for each payer seen since the last one.
+   */
+  private void takeCensus() {
+    long now = System.nanoTime();
+    if (censusNanos != 0 && now - censusNanos < CENSUS_NANOS) {
+      return;
+    }
+    long[] counts = new long[payerRegistry.size()];
+    ledgers.get().forEach(ledger -> ledger.countLots(counts));
+    lotsByPayerId = counts;
+    totalLots = Arrays.stream(counts).sum();
+    censusNanos = now;
+
+    for (; payerGauges < counts.length; payerGauges++) {
+      int payerId = payerGauges;
+      Gauge.builder("ledger.payer.lots", this, metrics -> metrics.payerLots(payerId))
+          .description("Lots holding points of one payer, over all accounts")
+          .tag("payer", payerRegistry.nameOf(payerId))
+          .register(registry);
+    }
+  }
+
+  private Timer timer(String name, String description, int sampling) {
+    return Timer.builder(name)
+        .description(description + ", one in " + sampling + " timed")
+        .publishPercentileHistogram()
+        .register(registry);
+  }
+
+  private Counter rejections(String reason) {
+    return Counter.builder("ledger.rejections")
+        .description("Adds and spends rejected, by reason")
+        .tag("reason", reason)
+        .register(registry);
+  }
+}
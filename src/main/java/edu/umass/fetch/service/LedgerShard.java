@@ -0,0 +1,121 @@
+package edu.umass.fetch.service;
+
+import edu.umass.fetch.config.LedgerProperties.Engine;
+import edu.umass.fetch.config.LedgerProperties.LotStorage;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A partition of the accounts. Writes to the shard's accounts run on the shard's own thread, so a hot account only
+ * queues behind the accounts of its own shard. The thread takes writes from an executor queue or, with the
+ * {@link Engine#RING_BUFFER} engine, from a {@link CommandRing}. The lots of the shard's accounts share one
+ * {@link LotStore}, written by that thread alone.
+ */
+class LedgerShard {
+
+  private final Map<String, Ledger> ledgers = new ConcurrentHashMap<>();
+  private final ExecutorService executor;
+  private final CommandRing ring;
+  private final PayerRegistry payerRegistry;
+  private final PointsExpiry pointsExpiry;
+  private final LotStore lotStore;
+
+  /**
+   * Creates the history of each new ledger, or null while history is not recorded.
+   */
+  private volatile Supplier<LedgerHistory> histories;
+
+  LedgerShard(int index, PayerRegistry payerRegistry, PointsExpiry pointsExpiry, Engine engine, int ringSize,
+      LotStorage lotStorage) {
+    this.payerRegistry = payerRegistry;
+    this.pointsExpiry = pointsExpiry;
+    this.lotStore = new LotStore(lotStorage);
+    if (engine == Engine.RING_BUFFER) {
+      this.executor = null;
+      this.ring = new CommandRing("ledger-shard-" + index, ringSize, this::ledger);
+    } else {
+      this.ring = null;
+      this.executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ledger-shard-" + index);
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  /**
+   * Returns the ledger of the account, or null when the account has never been written to.
+   */
+  Ledger find(String accountId) {
+    return ledgers.get(accountId);
+  }
+
+  /**
+   * Returns the ledger of the account, creating it if needed. Callers other than the shard's own thread may only use
+   * it while nothing else is writing, as during log replay.
+   */
+  Ledger ledger(String accountId) {
+    return ledgers.computeIfAbsent(accountId, id -> {
+      Ledger ledger = new Ledger(payerRegistry, pointsExpiry, lotStore);
+      Supplier<LedgerHistory> newHistory = histories;
+      if (newHistory != null) {
+        ledger.recordHistory(newHistory.get());
+      }
+      return ledger;
+    });
+  }
+
+  /**
+   * Records the writes of every ledger from now on, each in a history of its own. Only called while nothing is writing,
+   * as after log replay.
+   */
+  void recordHistory(Supplier<LedgerHistory> histories) {
+    this.histories = histories;
+    for (Ledger ledger : ledgers.values()) {
+      ledger.recordHistory(histories.get());
+    }
+  }
+
+  /**
+   * Every account of the shard with its ledger. Accounts created while iterating may or may not be included.
+   */
+  Set<Map.Entry<String, Ledger>> ledgers() {
+    return ledgers.entrySet();
+  }
+
+  <T> T execute(String accountId, Function<Ledger, T> command) {
+    try {
+      return submit(accountId, command).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Queues the command on the shard's thread without waiting for it. The future fails with whatever the command threw.
+   */
+  <T> CompletableFuture<T> submit(String accountId, Function<Ledger, T> command) {
+    if (ring != null) {
+      return ring.publish(accountId, command);
+    }
+    return CompletableFuture.supplyAsync(() -> command.apply(ledger(accountId)), executor);
+  }
+
+  void shutdown() {
+    if (ring != null) {
+      ring.shutdown();
+    } else {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,28 @@
+package edu.umass.fetch.service;
+
+import edu.umass.fetch.request.EpochNanos;
+import java.time.LocalDateTime;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Points of one transaction that have not been spent yet, as they were when the lot was read from its
+ * {@link LotQueue}. The queue itself keeps lots as records in a {@link LotStore}, spent in place.
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class Lot {
+
+  /**
+   * Slot of the payer in the owning ledger's balance table.
+   */
+  private final int payer;
+  private final long points;
+  private final long timestampNanos;
+
+  public LocalDateTime getTimestamp() {
+    return EpochNanos.toLocalDateTime(timestampNanos);
+  }
+}
@@ -0,0 +1,643 @@
+package edu.umass.fetch.service;
+
+import edu.umass.fetch.config.LedgerProperties.LotStorage;
+import edu.umass.fetch.request.TransactionBatch;
+import java.util.AbstractQueue;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * Open lots in spend order, oldest first. Only lots with points left are queued: debits are taken off the payer's
+ * oldest lots as they arrive, through a second index of the same lots per payer, so a spend never meets a debit.
+ *
+ * <p>Both indexes are radix indexes on the epoch-nanosecond timestamp: lots fall into buckets of about a minute, kept
+ * in a map by bucket number. A lot is appended to its bucket in O(1) whatever its timestamp, so backdated lots cost no
+ * more than in-order ones; a bucket is only sorted, once, when spending reaches it and it received lots out of order.
+ * Lots backdated into the bucket being spent from are inserted in place instead. Spending walks the buckets in order,
+ * and a lot appended in the youngest bucket skips the map entirely.
+ *
+ * <p>Equal timestamps keep arrival order in both indexes, so the oldest lot of the queue is always the oldest lot of
+ * its payer. A lot a debit empties or that expires is dropped from its payer's index at once and from the queue when
+ * spending reaches it.
+ *
+ * <p>Buckets are also linked in order, so {@link #quote} can walk the queue without the map. Whether a bucket is sorted
+ * is volatile and the bucket's order only changes while it is not, so a walk that finds a bucket sorted reads it in
+ * order.
+ *
+ * <p>Lots are records in a {@link LotStore}, and the indexes hold their int handles. The {@link Lot}s the queue hands
+ * out are copies; the ledger works on handles through {@link #peekLot()} and {@link #pollLot()}.
+ */
+public class LotQueue extends AbstractQueue<Lot> {
+
+  /**
+   * Buckets span 2^36 nanoseconds, a little over a minute.
+   */
+  private static final int BUCKET_SHIFT = 36;
+
+  /**
+   * Runs this short are sorted by insertion, longer ones by merging sorted runs.
+   */
+  private static final int INSERTION_SORT_RUN = 16;
+  private static final int[] NO_LOTS = new int[0];
+  private static final BucketedLots[] NO_PAYERS = new BucketedLots[0];
+
+  private final LotStore store;
+  private final BucketedLots lots = new BucketedLots();
+  private BucketedLots[] lotsByPayer = NO_PAYERS;
+  private int size;
+
+  /**
+   * Scratch space of {@link #sortByTimestamp}.
+   */
+  private int[] sortBuffer = NO_LOTS;
+
+  /**
+   * A queue with a store of its own on the heap.
+   */
+  public LotQueue() {
+    this(new LotStore(LotStorage.HEAP));
+  }
+
+  /**
+   * A queue keeping its lots in the store, which may be shared with queues written by the same thread.
+   */
+  LotQueue(LotStore store) {
+    this.store = store;
+  }
+
+  /**
+   * Queues a copy of a lot with points left.
+   *
+   * @throws IllegalArgumentException if the lot has no points left, which must go to {@link #debit(int, long)}
+   */
+  @Override
+  public boolean offer(Lot lot) {
+    offer(lot.getPayer(), lot.getPoints(), lot.getTimestampNanos());
+    return true;
+  }
+
+  /**
+   * Queues a lot with points left.
+   *
+   * @throws IllegalArgumentException if the lot has no points left, which must go to {@link #debit(int, long)}
+   */
+  public void offer(int payer, long points, long timestampNanos) {
+    if (points <= 0) {
+      throw new IllegalArgumentException("Only lots with points left are queued, got " + points);
+    }
+    int lot = store.allocate(payer, points, timestampNanos);
+    lots.add(lot, timestampNanos);
+    payerLots(payer).add(lot, timestampNanos);
+    size++;
+  }
+
+  /**
+   * Queues the credits of a batch, its transactions with points, as {@link #offer(int, long, long)} would one at a
+   * time. The credits are sorted by timestamp once and then appended in order, so each index looks a bucket up once per
+   * bucket rather than once per lot, buckets fill in order and the records of consecutive lots are adjacent in the
+   * store. Lots backdated into the bucket being spent from are appended like the others, and that bucket is sorted
+   * once on the next spend.
+   *
+   * <p>Each credit's timestamp is packed with its position into a long and the longs are sorted as primitives. When the
+   * timestamps span too many nanoseconds to pack whole, their low bits are dropped, and lots that then tie are sorted
+   * by their records.
+   *
+   * @param slots payer slot of each of the batch's payers
+   */
+  void offerAll(TransactionBatch batch, int[] slots) {
+    int[] credits = new int[batch.size()];
+    int count = 0;
+    long oldest = Long.MAX_VALUE;
+    long youngest = Long.MIN_VALUE;
+    for (int i = 0; i < batch.size(); i++) {
+      if (batch.getPoints(i) > 0) {
+        credits[count++] = i;
+        oldest = Math.min(oldest, batch.getTimestampNanos(i));
+        youngest = Math.max(youngest, batch.getTimestampNanos(i));
+      }
+    }
+    int positionBits = 32 - Integer.numberOfLeadingZeros(count);
+    long span = youngest - oldest;
+    int[] added = new int[count];
+    if (span >= 0) {
+      int droppedBits = Math.max(0, 64 - Long.numberOfLeadingZeros(span) - (63 - positionBits));
+      long[] keys = new long[count];
+      for (int i = 0; i < count; i++) {
+        keys[i] = (batch.getTimestampNanos(credits[i]) - oldest) >>> droppedBits << positionBits | i;
+      }
+      Arrays.sort(keys);
+      int positionMask = (1 << positionBits) - 1;
+      for (int i = 0; i < count; i++) {
+        int credit = credits[(int) keys[i] & positionMask];
+        added[i] = store.allocate(slots[batch.getPayerIndex(credit)], batch.getPoints(credit),
+            droppedBits == 0 ? oldest + (keys[i] >>> positionBits) : batch.getTimestampNanos(credit));
+      }
+      if (droppedBits > 0) {
+        int start = 0;
+        while (start < count) {
+          int end = start + 1;
+          while (end < count && keys[end] >>> positionBits == keys[start] >>> positionBits) {
+            end++;
+          }
+          if (end - start > 1) {
+            sortByTimestamp(added, start, end);
+          }
+          start = end;
+        }
+      }
+    } else {
+      for (int i = 0; i < count; i++) {
+        int credit = credits[i];
+        added[i] = store.allocate(slots[batch.getPayerIndex(credit)], batch.getPoints(credit),
+            batch.getTimestampNanos(credit));
+      }
+      sortByTimestamp(added, 0, count, new int[count]);
+    }
+    for (int i = 0; i < count; i++) {
+      int lot = added[i];
+      long timestampNanos = store.timestampNanos(lot);
+      lots.append(lot, timestampNanos);
+      payerLots(store.payer(lot)).append(lot, timestampNanos);
+    }
+    size += count;
+  }
+
+  /**
+   * Takes the points off the oldest lots of the payer, oldest first, and returns what the payer's lots could not cover.
+   * Costs one step per lot emptied or reduced.
+   */
+  public long debit(int payer, long points) {
+    BucketedLots payerLots = payer < lotsByPayer.length ? lotsByPayer[payer] : null;
+    while (points > 0 && payerLots != null && payerLots.size() > 0) {
+      int oldest = payerLots.peek();
+      long lotPoints = store.points(oldest);
+      long taken = Math.min(points, lotPoints);
+      store.setPoints(oldest, lotPoints - taken);
+      points -= taken;
+      if (taken == lotPoints) {
+        payerLots.poll();
+        size--;
+      }
+    }
+    return points;
+  }
+
+  /**
+   * Drops the payer's lots with a timestamp up to {@code cutoffNanos}, oldest first, and returns their points. Costs
+   * one step per lot dropped.
+   */
+  public long expire(int payer, long cutoffNanos) {
+    BucketedLots payerLots = payer < lotsByPayer.length ? lotsByPayer[payer] : null;
+    long points = 0;
+    while (payerLots != null && payerLots.size() > 0 && store.timestampNanos(payerLots.peek()) <= cutoffNanos) {
+      int oldest = payerLots.poll();
+      points += store.points(oldest);
+      store.setPoints(oldest, 0);
+      size--;
+    }
+    return points;
+  }
+
+  /**
+   * Timestamp of the payer's oldest lot, or {@link Long#MAX_VALUE} when the payer has none.
+   */
+  public long oldestTimestampNanos(int payer) {
+    BucketedLots payerLots = payer < lotsByPayer.length ? lotsByPayer[payer] : null;
+    return payerLots == null || payerLots.size() == 0 ? Long.MAX_VALUE : store.timestampNanos(payerLots.peek());
+  }
+
+  /**
+   * Handle of the oldest lot, or -1 when the queue is empty. Lots emptied by debits or expiry are dropped on the way.
+   */
+  int peekLot() {
+    int lot = lots.peek();
+    while (lot >= 0 && store.points(lot) == 0) {
+      lots.poll();
+      store.free(lot);
+      lot = lots.peek();
+    }
+    return lot;
+  }
+
+  /**
+   * Drops the lot {@link #peekLot()} returned, which must not be read afterwards.
+   */
+  void pollLot() {
+    int lot = lots.poll();
+    lotsByPayer[store.payer(lot)].poll();
+    size--;
+    store.free(lot);
+  }
+
+  int payer(int lot) {
+    return store.payer(lot);
+  }
+
+  long points(int lot) {
+    return store.points(lot);
+  }
+
+  long timestampNanos(int lot) {
+    return store.timestampNanos(lot);
+  }
+
+  /**
+   * Takes points off a lot, which keeps its place in the queue.
+   */
+  void spend(int lot, long points) {
+    store.setPoints(lot, store.points(lot) - points);
+  }
+
+  /**
+   * Walks the lots in spend order without changing the queue, adding to the quote what a spend of {@code points} would
+   * take from each payer's lots, and returns the points the lots could not cover. Returns -1, without walking further,
+   * at a bucket that received lots out of order and has not been sorted since, unless {@code sortAllowed}.
+   *
+   * <p>Only a writer may sort, so callers without the ledger lock pass false; they also race with writers and must
+   * discard the result, and any exception, if the ledger changed meanwhile.
+   */
+  long quote(long points, Quote quote, boolean sortAllowed) {
+    for (Bucket bucket = lots.first; bucket != null && points > 0; bucket = bucket.next) {
+      if (!bucket.sorted) {
+        if (!sortAllowed) {
+          return -1;
+        }
+        bucket.sort();
+      }
+      int[] bucketLots = bucket.lots;
+      for (int i = bucket.head, tail = bucket.tail; i < tail && points > 0; i++) {
+        int lot = bucketLots[i];
+        long taken = Math.min(points, store.points(lot));
+        if (taken > 0) {
+          quote.take(store.payer(lot), taken);
+          points -= taken;
+        }
+      }
+    }
+    return points;
+  }
+
+  /**
+   * Removes the oldest lot and returns a copy of it.
+   */
+  @Override
+  public Lot poll() {
+    int lot = peekLot();
+    if (lot < 0) {
+      return null;
+    }
+    Lot copy = copyOf(lot);
+    pollLot();
+    return copy;
+  }
+
+  /**
+   * A copy of the oldest lot, which does not follow later spends.
+   */
+  @Override
+  public Lot peek() {
+    int lot = peekLot();
+    return lot < 0 ? null : copyOf(lot);
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Number of lots of the payer still holding points.
+   */
+  public int size(int payer) {
+    return payer < lotsByPayer.length && lotsByPayer[payer] != null ? lotsByPayer[payer].size() : 0;
+  }
+
+  /**
+   * Iterates over copies of the lots in spend order. Buckets that received lots out of order are sorted on the way.
+   */
+  @Override
+  public Iterator<Lot> iterator() {
+    return new Iterator<Lot>() {
+      private Bucket bucket;
+      private int index;
+
+      @Override
+      public boolean hasNext() {
+        while (bucket == null || index == bucket.tail || store.points(bucket.lots[index]) == 0) {
+          if (bucket != null && index < bucket.tail) {
+            index++;
+          } else {
+            bucket = bucket == null ? lots.first : bucket.next;
+            if (bucket == null) {
+              return false;
+            }
+            bucket.sort();
+            index = bucket.head;
+          }
+        }
+        return true;
+      }
+
+      @Override
+      public Lot next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return copyOf(bucket.lots[index++]);
+      }
+    };
+  }
+
+  private Lot copyOf(int lot) {
+    return new Lot(store.payer(lot), store.points(lot), store.timestampNanos(lot));
+  }
+
+  private BucketedLots payerLots(int payer) {
+    if (payer >= lotsByPayer.length) {
+      lotsByPayer = Arrays.copyOf(lotsByPayer, Math.max(payer + 1, lotsByPayer.length * 2));
+    }
+    BucketedLots payerLots = lotsByPayer[payer];
+    if (payerLots == null) {
+      payerLots = new BucketedLots();
+      lotsByPayer[payer] = payerLots;
+    }
+    return payerLots;
+  }
+
+  /**
+   * Stable sort of the lots in {@code [from, to)} by timestamp: insertion sort of short runs, then merges.
+   */
+  private void sortByTimestamp(int[] lots, int from, int to) {
+    if (sortBuffer.length < to - from) {
+      sortBuffer = new int[Integer.highestOneBit(to - from) << 1];
+    }
+    sortByTimestamp(lots, from, to, sortBuffer);
+  }
+
+  /**
+   * Sorts with {@code buffer}, of at least {@code to - from} entries, as scratch space.
+   */
+  private void sortByTimestamp(int[] lots, int from, int to, int[] buffer) {
+    for (int start = from; start < to; start += INSERTION_SORT_RUN) {
+      int end = Math.min(start + INSERTION_SORT_RUN, to);
+      for (int i = start + 1; i < end; i++) {
+        int lot = lots[i];
+        long timestamp = store.timestampNanos(lot);
+        int j = i - 1;
+        while (j >= start && store.timestampNanos(lots[j]) > timestamp) {
+          lots[j + 1] = lots[j];
+          j--;
+        }
+        lots[j + 1] = lot;
+      }
+    }
+    for (int run = INSERTION_SORT_RUN; run < to - from; run <<= 1) {
+      for (int left = from; left + run < to; left += run << 1) {
+        int middle = left + run;
+        int right = Math.min(middle + run, to);
+        if (store.timestampNanos(lots[middle - 1]) <= store.timestampNanos(lots[middle])) {
+          continue;
+        }
+        System.arraycopy(lots, left, buffer, 0, run);
+        int i = 0;
+        int j = middle;
+        int k = left;
+        while (i < run && j < right) {
+          lots[k++] = store.timestampNanos(lots[j]) < store.timestampNanos(buffer[i]) ? lots[j++] : buffer[i++];
+        }
+        System.arraycopy(buffer, i, lots, k, run - i);
+      }
+    }
+  }
+
+  /**
+   * Points a quote takes from each payer slot, and the slots it took from in the order it reached them. Reused from
+   * quote to quote, so only the slots touched are zeroed again.
+   */
+  static final class Quote {
+
+    private long[] pointsBySlot = new long[0];
+    private int[] touchedSlots = new int[0];
+    private int touched;
+
+    /**
+     * Clears the previous quote and makes room for slots below {@code payerCount}.
+     */
+    void reset(int payerCount) {
+      for (int i = 0; i < touched; i++) {
+        pointsBySlot[touchedSlots[i]] = 0;
+      }
+      touched = 0;
+      if (pointsBySlot.length < payerCount) {
+        pointsBySlot = new long[payerCount];
+        touchedSlots = new int[payerCount];
+      }
+    }
+
+    int touched() {
+      return touched;
+    }
+
+    int slot(int i) {
+      return touchedSlots[i];
+    }
+
+    long points(int slot) {
+      return pointsBySlot[slot];
+    }
+
+    private void take(int slot, long points) {
+      if (pointsBySlot[slot] == 0) {
+        touchedSlots[touched++] = slot;
+      }
+      pointsBySlot[slot] += points;
+    }
+  }
+
+  /**
+   * Lots bucketed by timestamp. The first and last buckets are cached, so spending and in-order appends
+   * only touch the map when a bucket is emptied or opened. So is the bucket last looked up in the map, for runs of
+   * backdated lots in the same bucket.
+   */
+  private final class BucketedLots {
+
+    private final TreeMap<Long, Bucket> buckets = new TreeMap<>();
+    private Bucket first;
+    private Bucket last;
+    private Bucket recent;
+    private int size;
+
+    int size() {
+      return size;
+    }
+
+    void add(int lot, long timestampNanos) {
+      Bucket bucket = bucket(timestampNanos >> BUCKET_SHIFT);
+      if (bucket == first) {
+        bucket.insert(lot, timestampNanos);
+      } else {
+        bucket.add(lot, timestampNanos);
+      }
+      size++;
+    }
+
+    /**
+     * Adds a lot at the end of its bucket, even of the bucket being spent from, which is then sorted on the next spend.
+     */
+    void append(int lot, long timestampNanos) {
+      bucket(timestampNanos >> BUCKET_SHIFT).add(lot, timestampNanos);
+      size++;
+    }
+
+    /**
+     * The bucket with the key, opened if there is none.
+     */
+    private Bucket bucket(long key) {
+      Bucket bucket;
+      if (last != null && key == last.key) {
+        bucket = last;
+      } else if (recent != null && key == recent.key) {
+        bucket = recent;
+      } else if (last == null || key > last.key) {
+        bucket = new Bucket(key);
+        buckets.put(key, bucket);
+        if (last != null) {
+          last.next = bucket;
+        }
+        last = bucket;
+        if (first == null) {
+          first = bucket;
+        }
+      } else {
+        bucket = buckets.get(key);
+        if (bucket == null) {
+          bucket = new Bucket(key);
+          Map.Entry<Long, Bucket> previous = buckets.lowerEntry(key);
+          if (previous == null) {
+            bucket.next = first;
+            first = bucket;
+          } else {
+            bucket.next = previous.getValue().next;
+            previous.getValue().next = bucket;
+          }
+          buckets.put(key, bucket);
+        }
+        recent = bucket;
+      }
+      return bucket;
+    }
+
+    /**
+     * The oldest lot, or -1.
+     */
+    int peek() {
+      return first == null ? -1 : first.peek();
+    }
+
+    int poll() {
+      if (first == null) {
+        return -1;
+      }
+      int lot = first.poll();
+      size--;
+      if (first.size() == 0) {
+        if (recent == first) {
+          recent = null;
+        }
+        buckets.remove(first.key);
+        first = first.next;
+        if (first == null) {
+          last = null;
+        }
+      }
+      return lot;
+    }
+  }
+
+  /**
+   * Lots of one time bucket in the live range [head, tail) of a growable array, in arrival order until sorted.
+   */
+  private final class Bucket {
+
+    private final long key;
+    private int[] lots = new int[4];
+    private int head;
+    private int tail;
+    private volatile boolean sorted = true;
+    /**
+     * Bucket with the next higher key in the same index.
+     */
+    private Bucket next;
+
+    Bucket(long key) {
+      this.key = key;
+    }
+
+    int size() {
+      return tail - head;
+    }
+
+    void add(int lot, long timestampNanos) {
+      if (tail == lots.length) {
+        int size = size();
+        int[] target = size < lots.length / 2 ? lots : new int[lots.length * 2];
+        System.arraycopy(lots, head, target, 0, size);
+        lots = target;
+        head = 0;
+        tail = size;
+      }
+      if (sorted && tail > head && store.timestampNanos(lots[tail - 1]) > timestampNanos) {
+        sorted = false;
+      }
+      lots[tail++] = lot;
+    }
+
+    /**
+     * Adds a lot at its place in timestamp order, after any lot with the same timestamp. Used for the bucket being
+     * spent from, which would otherwise be sorted again on the next spend.
+     */
+    void insert(int lot, long timestampNanos) {
+      sort();
+      add(lot, timestampNanos);
+      if (sorted) {
+        return;
+      }
+      int low = head;
+      int high = tail - 1;
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (store.timestampNanos(lots[middle]) <= timestampNanos) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      System.arraycopy(lots, low, lots, low + 1, tail - 1 - low);
+      lots[low] = lot;
+      sorted = true;
+    }
+
+    /**
+     * Sorts the bucket if lots arrived out of order. The sort is stable, so equal timestamps keep arrival order.
+     */
+    void sort() {
+      if (!sorted) {
+        sortByTimestamp(lots, head, tail);
+        sorted = true;
+      }
+    }
+
+    int peek() {
+      sort();
+      return lots[head];
+    }
+
+    int poll() {
+      sort();
+      return lots[head++];
+    }
+  }
+}
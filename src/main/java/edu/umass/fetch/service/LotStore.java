@@ -0,0 +1,185 @@
+package edu.umass.fetch.service;
+
+import edu.umass.fetch.config.LedgerProperties.LotStorage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Fixed-width records of open lots: payer slot, points left and timestamp, {@value #RECORD_BYTES} bytes each, in slabs
+ * of {@value #SLAB_RECORDS} records allocated as they fill up. A lot is the int handle of its record, so holding
+ * millions of lots costs the garbage collector a few large arrays instead of millions of objects to trace. Records of
+ * lots that are done with go on a free list and are reused before the store grows, so it stays as large as the most
+ * lots ever open at once. The first slab starts at {@value #FIRST_SLAB_RECORDS} records and doubles up to full size, so
+ * a store that only ever holds a few lots stays small.
+ *
+ * <p>On the heap a slab is a primitive array per field. With {@link LotStorage#OFF_HEAP} it is a direct buffer outside
+ * the Java heap, limited by {@code -XX:MaxDirectMemorySize} rather than the heap size, which costs a few nanoseconds
+ * per access more. A store is shared by the ledgers of a shard and written by the shard's writer only. Readers without
+ * the ledger lock may read records concurrently with writes; every read is bounds-checked, so a racing reader sees
+ * stale values or an exception, never memory outside the slabs.
+ */
+final class LotStore {
+
+  private static final int RECORD_BYTES = 20;
+  private static final int PAYER = 0;
+  private static final int POINTS = 4;
+  private static final int TIMESTAMP = 12;
+  private static final int SLAB_SHIFT = 14;
+  private static final int SLAB_RECORDS = 1 << SLAB_SHIFT;
+  private static final int SLAB_MASK = SLAB_RECORDS - 1;
+  private static final int FIRST_SLAB_RECORDS = 64;
+  private static final Slab[] NO_SLABS = new Slab[0];
+
+  private final boolean direct;
+  private volatile Slab[] slabs = NO_SLABS;
+
+  /**
+   * Records handed out at least once, the next new handle.
+   */
+  private int allocated;
+
+  /**
+   * First free record, or -1. A free record holds the next free record in its payer field.
+   */
+  private int freeHead = -1;
+  private int live;
+
+  LotStore(LotStorage storage) {
+    this.direct = storage == LotStorage.OFF_HEAP;
+  }
+
+  int allocate(int payer, long points, long timestampNanos) {
+    int lot = freeHead;
+    if (lot >= 0) {
+      freeHead = payer(lot);
+    } else {
+      if (allocated == Integer.MAX_VALUE) {
+        throw new IllegalStateException("Too many open lots");
+      }
+      lot = allocated++;
+      if ((lot >>> SLAB_SHIFT) == slabs.length || lot == slabs[0].records) {
+        grow(lot);
+      }
+    }
+    setPayer(lot, payer);
+    setPoints(lot, points);
+    Slab slab = slabs[lot >>> SLAB_SHIFT];
+    if (direct) {
+      slab.buffer.putLong(offset(lot) + TIMESTAMP, timestampNanos);
+    } else {
+      slab.timestamps[lot & SLAB_MASK] = timestampNanos;
+    }
+    live++;
+    return lot;
+  }
+
+  /**
+   * Returns the record to the free list. The lot must no longer be in any index.
+   */
+  void free(int lot) {
+    setPayer(lot, freeHead);
+    setPoints(lot, 0);
+    freeHead = lot;
+    live--;
+  }
+
+  int payer(int lot) {
+    Slab slab = slabs[lot >>> SLAB_SHIFT];
+    return direct ? slab.buffer.getInt(offset(lot) + PAYER) : slab.payers[lot & SLAB_MASK];
+  }
+
+  long points(int lot) {
+    Slab slab = slabs[lot >>> SLAB_SHIFT];
+    return direct ? slab.buffer.getLong(offset(lot) + POINTS) : slab.points[lot & SLAB_MASK];
+  }
+
+  void setPoints(int lot, long points) {
+    Slab slab = slabs[lot >>> SLAB_SHIFT];
+    if (direct) {
+      slab.buffer.putLong(offset(lot) + POINTS, points);
+    } else {
+      slab.points[lot & SLAB_MASK] = points;
+    }
+  }
+
+  long timestampNanos(int lot) {
+    Slab slab = slabs[lot >>> SLAB_SHIFT];
+    return direct ? slab.buffer.getLong(offset(lot) + TIMESTAMP) : slab.timestamps[lot & SLAB_MASK];
+  }
+
+  /**
+   * Records in use.
+   */
+  int size() {
+    return live;
+  }
+
+  /**
+   * Bytes of the slabs allocated so far, on or off the heap.
+   */
+  long capacityBytes() {
+    Slab[] slabs = this.slabs;
+    return slabs.length == 0 ? 0 : (slabs[0].records + (long) (slabs.length - 1) * SLAB_RECORDS) * RECORD_BYTES;
+  }
+
+  private void setPayer(int lot, int payer) {
+    Slab slab = slabs[lot >>> SLAB_SHIFT];
+    if (direct) {
+      slab.buffer.putInt(offset(lot) + PAYER, payer);
+    } else {
+      slab.payers[lot & SLAB_MASK] = payer;
+    }
+  }
+
+  private static int offset(int lot) {
+    return (lot & SLAB_MASK) * RECORD_BYTES;
+  }
+
+  /**
+   * Makes room for the new record, doubling the first slab while it is not full size or adding a slab.
+   */
+  private void grow(int lot) {
+    int slab = lot >>> SLAB_SHIFT;
+    if (slab == 0 && lot > 0) {
+      slabs = new Slab[] {new Slab(slabs[0], Math.min(lot * 2, SLAB_RECORDS))};
+    } else {
+      Slab[] grown = Arrays.copyOf(slabs, slab + 1);
+      grown[slab] = new Slab(null, slab == 0 ? FIRST_SLAB_RECORDS : SLAB_RECORDS);
+      slabs = grown;
+    }
+  }
+
+  /**
+   * Records of one slab, in a direct buffer or in one array per field.
+   */
+  private final class Slab {
+
+    private final int records;
+    private final ByteBuffer buffer;
+    private final int[] payers;
+    private final long[] points;
+    private final long[] timestamps;
+
+    /**
+     * A slab of {@code records} records, starting with a copy of {@code from} when given.
+     */
+    Slab(Slab from, int records) {
+      this.records = records;
+      if (direct) {
+        buffer = ByteBuffer.allocateDirect(records * RECORD_BYTES).order(ByteOrder.nativeOrder());
+        if (from != null) {
+          buffer.put(from.buffer.duplicate().clear()).clear();
+        }
+        payers = null;
+        points = null;
+        timestamps = null;
+      } else {
+        buffer = null;
+        payers = from == null ? new int[records] : Arrays.copyOf(from.payers, records);
+        points = from == null ? new long[records] : Arrays.copyOf(from.points, records);
+        timestamps = from == null ? new long[records] : Arrays.copyOf(from.timestamps, records);
+      }
+    }
+  }
+}
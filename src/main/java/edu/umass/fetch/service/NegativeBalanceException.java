@@ -0,0 +1,11 @@
+package edu.umass.fetch.service;
+
+/**
+ * An add was rejected because it would leave a payer's balance below zero.
+ */
+public class NegativeBalanceException extends IllegalStateException {
+
+  public NegativeBalanceException(String payer) {
+    super("Processing these transactions will cause " + payer + " balance to become negative");
+  }
+}
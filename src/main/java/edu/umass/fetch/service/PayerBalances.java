@@ -0,0 +1,120 @@
+package edu.umass.fetch.service;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Balance per payer of one ledger, kept in slots numbered in order of the payer's first transaction. Lots carry the
+ * slot, so the spend loop indexes balances directly; only ingest maps registry ids to slots.
+ *
+ * <p>Writers hold the ledger lock. New slots are reserved past {@link #count()} and only become visible to readers,
+ * which take no lock, once {@link #publish(int)} moves the count over them.
+ */
+final class PayerBalances {
+
+  private static final int LINEAR_SCAN_LIMIT = 8;
+
+  private volatile int count;
+  private volatile int[] payerIds = new int[0];
+  private volatile AtomicLongArray balances = new AtomicLongArray(0);
+
+  /**
+   * Open-addressing index of registry id to slot + 1, built once the ledger has more payers than a linear scan handles
+   * well. Entries of reservations that were never published are left behind and skipped by the id check.
+   */
+  private int[] index;
+  private int indexEntries;
+
+  int count() {
+    return count;
+  }
+
+  int payerId(int slot) {
+    return payerIds[slot];
+  }
+
+  long balance(int slot) {
+    return balances.get(slot);
+  }
+
+  void add(int slot, long delta) {
+    AtomicLongArray current = balances;
+    current.set(slot, current.get(slot) + delta);
+  }
+
+  /**
+   * Slot of the payer among the first {@code limit} slots, or -1.
+   */
+  int find(int payerId, int limit) {
+    int[] ids = payerIds;
+    if (index == null) {
+      for (int slot = 0; slot < limit; slot++) {
+        if (ids[slot] == payerId) {
+          return slot;
+        }
+      }
+      return -1;
+    }
+    int mask = index.length - 1;
+    for (int i = mix(payerId) & mask; index[i] != 0; i = (i + 1) & mask) {
+      int slot = index[i] - 1;
+      if (slot < limit && ids[slot] == payerId) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Assigns the payer to the given slot, which must be the next unused one, without publishing it.
+   */
+  void reserve(int payerId, int slot) {
+    if (slot == payerIds.length) {
+      int capacity = Math.max(2, slot * 2);
+      AtomicLongArray grown = new AtomicLongArray(capacity);
+      AtomicLongArray current = balances;
+      for (int i = 0; i < count; i++) {
+        grown.set(i, current.get(i));
+      }
+      balances = grown;
+      payerIds = Arrays.copyOf(payerIds, capacity);
+    }
+    payerIds[slot] = payerId;
+
+    if (index == null && slot >= LINEAR_SCAN_LIMIT) {
+      rebuildIndex(slot + 1);
+    } else if (index != null) {
+      if (2 * (indexEntries + 1) > index.length) {
+        rebuildIndex(slot + 1);
+      } else {
+        insert(slot);
+      }
+    }
+  }
+
+  void publish(int newCount) {
+    count = newCount;
+  }
+
+  private void rebuildIndex(int slots) {
+    index = new int[Integer.highestOneBit(Math.max(16, slots * 4) - 1) << 1];
+    indexEntries = 0;
+    for (int slot = 0; slot < slots; slot++) {
+      insert(slot);
+    }
+  }
+
+  private void insert(int slot) {
+    int mask = index.length - 1;
+    int i = mix(payerIds[slot]) & mask;
+    while (index[i] != 0) {
+      i = (i + 1) & mask;
+    }
+    index[i] = slot + 1;
+    indexEntries++;
+  }
+
+  private static int mix(int payerId) {
+    return payerId * 0x9E3779B9;
+  }
+}
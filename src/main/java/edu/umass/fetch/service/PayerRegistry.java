@@ -0,0 +1,68 @@
+package edu.umass.fetch.service;
+
+import edu.umass.fetch.response.JsonWriter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns every payer name a dense int id on first sight. Ids are never reused, so they can index flat arrays and be
+ * kept in lots instead of the name.
+ */
+public class PayerRegistry {
+
+  private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+  private volatile String[] names = new String[16];
+  private volatile byte[][] quotedNames = new byte[16][];
+  private int size;
+
+  public int idOf(String payer) {
+    Integer id = ids.get(payer);
+    return id != null ? id : register(payer);
+  }
+
+  /**
+   * Id of the payer, or -1 if the name was never registered.
+   */
+  public int find(String payer) {
+    Integer id = ids.get(payer);
+    return id != null ? id : -1;
+  }
+
+  public String nameOf(int id) {
+    return names[id];
+  }
+
+  /**
+   * The name as a quoted JSON string, encoded once when the payer is registered.
+   */
+  public byte[] quotedNameOf(int id) {
+    return quotedNames[id];
+  }
+
+  public int size() {
+    return ids.size();
+  }
+
+  /**
+   * Every registered name, indexed by id.
+   */
+  public synchronized String[] names() {
+    return Arrays.copyOf(names, size);
+  }
+
+  private synchronized int register(String payer) {
+    Integer id = ids.get(payer);
+    if (id != null) {
+      return id;
+    }
+    if (size == names.length) {
+      names = Arrays.copyOf(names, size * 2);
+      quotedNames = Arrays.copyOf(quotedNames, size * 2);
+    }
+    names[size] = payer;
+    quotedNames[size] = JsonWriter.quoted(payer);
+    ids.put(payer, size);
+    return size++;
+  }
+}
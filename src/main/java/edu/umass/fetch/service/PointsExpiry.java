@@ -0,0 +1,68 @@
+package edu.umass.fetch.service;
+
+import edu.umass.fetch.config.LedgerProperties;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * How long the points of each payer stay spendable, counted from the timestamp of their transaction.
+ */
+public final class PointsExpiry {
+
+  /**
+   * Expiry of points that never expire.
+   */
+  public static final long NEVER = Long.MAX_VALUE;
+
+  static final PointsExpiry NONE = new PointsExpiry(Duration.ZERO, Map.of());
+
+  private final long defaultNanos;
+  private final Map<String, Long> payerNanos = new HashMap<>();
+  private final boolean enabled;
+
+  /**
+   * @param expiry expiry of every payer without its own, zero for never
+   * @param payerExpiry expiry by payer name, zero for never
+   */
+  public PointsExpiry(Duration expiry, Map<String, Duration> payerExpiry) {
+    this.defaultNanos = toNanos(expiry);
+    boolean anyExpiry = defaultNanos != NEVER;
+    for (Map.Entry<String, Duration> payer : payerExpiry.entrySet()) {
+      long nanos = toNanos(payer.getValue());
+      payerNanos.put(payer.getKey(), nanos);
+      anyExpiry |= nanos != NEVER;
+    }
+    this.enabled = anyExpiry;
+  }
+
+  public static PointsExpiry of(LedgerProperties ledgerProperties) {
+    return new PointsExpiry(ledgerProperties.getPointsExpiry(), ledgerProperties.getPayerPointsExpiry());
+  }
+
+  /**
+   * Whether the points of any payer expire at all.
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Nanoseconds the payer's points stay spendable, or {@link #NEVER}.
+   */
+  public long expiryNanos(String payer) {
+    return payerNanos.getOrDefault(payer, defaultNanos);
+  }
+
+  private static long toNanos(Duration expiry) {
+    if (expiry == null || expiry.isZero() || expiry.isNegative()) {
+      return NEVER;
+    }
+    try {
+      return expiry.toNanos();
+    } catch (ArithmeticException e) {
+      // Longer than a long of nanoseconds spans, so longer than any two timestamps are apart
+      return NEVER;
+    }
+  }
+}
@@ -1,106 +1,1022 @@
 package edu.umass.fetch.service;
 
 import com.google.common.annotations.VisibleForTesting;
+import edu.umass.fetch.config.LedgerProperties;
+import edu.umass.fetch.config.PersistenceProperties;
+import edu.umass.fetch.config.ReplicationProperties;
+import edu.umass.fetch.config.ReplicationProperties.Role;
+import edu.umass.fetch.persistence.IdempotencyImage;
+import edu.umass.fetch.persistence.IdempotencyKey;
+import edu.umass.fetch.persistence.LedgerImage;
+import edu.umass.fetch.persistence.LedgerRecords;
+import edu.umass.fetch.persistence.LedgerSnapshots;
+import edu.umass.fetch.persistence.LogFollower;
+import edu.umass.fetch.persistence.LogShipper;
+import edu.umass.fetch.persistence.WriteAheadLog;
+import edu.umass.fetch.request.EpochNanos;
+import edu.umass.fetch.request.SpendMode;
 import edu.umass.fetch.request.SpendTransaction;
 import edu.umass.fetch.request.Transaction;
+import edu.umass.fetch.request.TransactionBatch;
+import edu.umass.fetch.response.JsonResponse;
 import edu.umass.fetch.response.PointBalance;
+import edu.umass.fetch.response.PointBalancesJson;
+import edu.umass.fetch.response.ReplicationStatus;
+import edu.umass.fetch.response.SpendResult;
+import edu.umass.fetch.response.SpendResultsJson;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
-import java.util.stream.Collectors;
-import lombok.Getter;
-import org.apache.commons.collections4.CollectionUtils;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+@Slf4j
 @Service
 public class PointsService {
 
-  @VisibleForTesting
-  @Getter
-  private double availablePointsBalance = 0;
+  public static final String DEFAULT_ACCOUNT = "default";
 
-  @VisibleForTesting
-  @Getter
-  private final Queue<Transaction> pointsQueue = new PriorityQueue<>((o1, o2) -> {
-    if ((o1.getPoints() <= 0 && o2.getPoints() <= 0)
-        || o1.getPoints() > 0 && o2.getPoints() > 0) {
-      return o1.getTimestamp().compareTo(o2.getTimestamp());
-    } else if (o1.getPoints() <= 0) {
-      return -1;
+  private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+  private static final JsonResponse EMPTY_ARRAY = out -> out.write(new byte[] {'[', ']'});
+
+  private final PayerRegistry payerRegistry = new PayerRegistry();
+  private final LedgerShard[] shards;
+
+  /**
+   * Log every accepted add and spend is appended to before it is applied; null when persistence is disabled.
+   */
+  private final WriteAheadLog writeAheadLog;
+  private final Path persistenceDirectory;
+  private final ScheduledExecutorService snapshotScheduler;
+  private final LedgerMetrics metrics;
+  private final PointsExpiry pointsExpiry;
+  private final ScheduledExecutorService expiryScheduler;
+  private final IdempotencyCache idempotencyCache;
+  private final boolean historyEnabled;
+  /**
+   * File full history chunks are moved to; null when they are all kept in memory.
+   */
+  private final HistorySpillFile historySpillFile;
+
+  private final ReplicationProperties replicationProperties;
+  private volatile Role role;
+  /**
+   * Ships the log to followers while this node leads; null otherwise.
+   */
+  private volatile LogShipper logShipper;
+  /**
+   * Streams the leader's log while this node follows; null otherwise.
+   */
+  private volatile LogFollower logFollower;
+  /**
+   * Last record from the leader queued on each shard. Shards apply in order, so these complete once the shard has
+   * applied everything received. Only written by the follower thread.
+   */
+  private final AtomicReferenceArray<CompletableFuture<?>> replicatedWrites;
+
+  public PointsService() {
+    this(new LedgerProperties());
+  }
+
+  public PointsService(LedgerProperties ledgerProperties) {
+    this(ledgerProperties, new PersistenceProperties());
+  }
+
+  public PointsService(LedgerProperties ledgerProperties, PersistenceProperties persistenceProperties) {
+    this(ledgerProperties, persistenceProperties, new CompositeMeterRegistry());
+  }
+
+  public PointsService(LedgerProperties ledgerProperties, PersistenceProperties persistenceProperties,
+      MeterRegistry meterRegistry) {
+    this(ledgerProperties, persistenceProperties, new ReplicationProperties(), meterRegistry);
+  }
+
+  /**
+   * @param meterRegistry registry the ledger's meters are registered with, see {@link LedgerMetrics}
+   */
+  @Autowired
+  public PointsService(LedgerProperties ledgerProperties, PersistenceProperties persistenceProperties,
+      ReplicationProperties replicationProperties, MeterRegistry meterRegistry) {
+    if (replicationProperties.getRole() != Role.NONE && !persistenceProperties.isEnabled()) {
+      throw new IllegalStateException("Replication ships the write-ahead log; set fetch.persistence.enabled");
+    }
+    this.pointsExpiry = PointsExpiry.of(ledgerProperties);
+    this.idempotencyCache = new IdempotencyCache(ledgerProperties.getIdempotencyKeys(),
+        ledgerProperties.getIdempotencyKeyTtl());
+    this.shards = new LedgerShard[Math.max(1, ledgerProperties.getShards())];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = new LedgerShard(i, payerRegistry, pointsExpiry, ledgerProperties.getEngine(),
+          ledgerProperties.getRingSize(), ledgerProperties.getLotStorage());
+    }
+    this.metrics = new LedgerMetrics(meterRegistry, ledgerProperties.getTimedWrites(),
+        ledgerProperties.getTimedBalanceReads(), payerRegistry,
+        () -> Arrays.stream(shards).flatMap(shard -> shard.ledgers().stream()).map(Map.Entry::getValue));
+
+    if (persistenceProperties.isEnabled()) {
+      this.persistenceDirectory = Paths.get(persistenceProperties.getDirectory());
+      LedgerRecords.Visitor replay = replayVisitor(false);
+      try {
+        long snapshotLsn = LedgerSnapshots.load(persistenceDirectory, restoreVisitor());
+        this.writeAheadLog = WriteAheadLog.open(persistenceDirectory,
+            (int) persistenceProperties.getSegmentSize().toBytes(), snapshotLsn,
+            (lsn, type, payload) -> LedgerRecords.decode(lsn, type, payload, replay));
+      } catch (IOException e) {
+        throw new UncheckedIOException("Could not restore the ledgers", e);
+      }
+      this.snapshotScheduler = scheduleSnapshots(persistenceProperties.getSnapshotInterval());
+    } else {
+      this.writeAheadLog = null;
+      this.persistenceDirectory = null;
+      this.snapshotScheduler = null;
+    }
+    this.expiryScheduler = pointsExpiry.isEnabled() ? scheduleExpiry(ledgerProperties.getExpirySweepInterval()) : null;
+
+    // Replayed writes are not recorded, as they would all get the time of the restart
+    this.historyEnabled = ledgerProperties.isHistoryEnabled();
+    this.historySpillFile = historyEnabled ? openHistorySpillFile(ledgerProperties.getHistorySpillDirectory()) : null;
+    if (historyEnabled) {
+      for (LedgerShard shard : shards) {
+        shard.recordHistory(() -> new LedgerHistory(historySpillFile, ledgerProperties.getHistoryRowsInMemory()));
+      }
     }
-    return 1;
-  });
 
-  @Getter
-  private final Map<String, Double> pointsBalance = new HashMap<>();
+    this.replicationProperties = replicationProperties;
+    this.role = replicationProperties.getRole();
+    this.replicatedWrites = new AtomicReferenceArray<>(shards.length);
+    if (role == Role.LEADER) {
+      startLogShipper();
+    } else if (role == Role.FOLLOWER) {
+      this.logFollower = LogFollower.start(replicationProperties.getLeader(),
+          replicationProperties.getReconnectInterval(), writeAheadLog::lastLsn, followerHandler());
+    }
+  }
 
   public void addPoints(List<Transaction> transactions) throws IllegalStateException {
+    addPoints(DEFAULT_ACCOUNT, transactions);
+  }
 
-    if (CollectionUtils.isNotEmpty(transactions)) {
-      Map<String, Double> pointsAddedPerPayer = transactions.stream()
-          .collect(Collectors.groupingBy(Transaction::getPayer, Collectors.summingDouble(Transaction::getPoints)));
+  public void addPoints(String accountId, List<Transaction> transactions) throws IllegalStateException {
+    addPoints(accountId, transactions, null);
+  }
 
-      for (Map.Entry<String, Double> entry : pointsAddedPerPayer.entrySet()) {
-        if (entry.getValue() + pointsBalance.getOrDefault(entry.getKey(), 0.0) < 0) {
-          throw new IllegalStateException(
-              "Processing these transactions will cause " + entry.getKey() + " balance to become negative");
-        }
+  /**
+   * Adds the transactions once per idempotency key: a retry with the key of an earlier add is answered with that add's
+   * outcome instead of adding the transactions again. A null key adds them unconditionally. Large lists are converted
+   * to a {@link TransactionBatch} on the caller's thread, in parallel, rather than by the ledger on the shard's.
+   */
+  public void addPoints(String accountId, List<Transaction> transactions, String idempotencyKey)
+      throws IllegalStateException {
+    if (transactions != null && transactions.size() >= Ledger.BULK_ADD_TRANSACTIONS) {
+      addPoints(accountId, TransactionBatch.of(transactions), idempotencyKey);
+      return;
+    }
+    idempotent(LedgerRecords.ADD, accountId, idempotencyKey, entry -> metrics.time(metrics.add(), () -> {
+      if (writeAheadLog == null) {
+        return execute(accountId, ledger -> {
+          ledger.addPoints(transactions);
+          return null;
+        });
       }
 
-      pointsQueue.addAll(transactions);
-      transactions.forEach(transaction -> {
-        pointsBalance.put(transaction.getPayer(),
-            transaction.getPoints() + pointsBalance.getOrDefault(transaction.getPayer(), 0.0));
-        availablePointsBalance += transaction.getPoints();
+      ByteBuffer record = keyed(LedgerRecords.add(accountId, transactions), entry);
+      long[] lsn = new long[1];
+      execute(accountId, ledger -> {
+        ledger.addPoints(transactions,
+            () -> ledger.setAppliedLsn(lsn[0] = writeAheadLog.append(LedgerRecords.ADD_NANOS, record)));
+        return null;
       });
+      writeAheadLog.sync(lsn[0]);
+      return null;
+    }));
+  }
+
+  /**
+   * Asynchronous form of {@link #addPoints(String, List)}: the future completes once the transactions are applied and,
+   * with persistence, on disk. No thread waits for either. A rejected add fails the future with the
+   * {@link IllegalStateException}, wrapped in a {@link java.util.concurrent.CompletionException}.
+   */
+  public CompletableFuture<Void> addPointsAsync(String accountId, List<Transaction> transactions) {
+    return addPointsAsync(accountId, transactions, null);
+  }
+
+  /**
+   * Asynchronous form of {@link #addPoints(String, List, String)}.
+   */
+  public CompletableFuture<Void> addPointsAsync(String accountId, List<Transaction> transactions,
+      String idempotencyKey) {
+    if (transactions != null && transactions.size() >= Ledger.BULK_ADD_TRANSACTIONS) {
+      TransactionBatch batch;
+      try {
+        batch = TransactionBatch.of(transactions);
+      } catch (IllegalArgumentException e) {
+        return CompletableFuture.failedFuture(e);
+      }
+      return addPointsAsync(accountId, batch, idempotencyKey);
     }
+    return idempotentAsync(LedgerRecords.ADD, accountId, idempotencyKey,
+        entry -> metrics.timeAsync(metrics.add(), () -> {
+          if (writeAheadLog == null) {
+            return submit(accountId, ledger -> {
+              ledger.addPoints(transactions);
+              return null;
+            });
+          }
+
+          ByteBuffer record;
+          try {
+            record = keyed(LedgerRecords.add(accountId, transactions), entry);
+          } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(e);
+          }
+          long[] lsn = new long[1];
+          return durable(submit(accountId, ledger -> {
+            ledger.addPoints(transactions,
+                () -> ledger.setAppliedLsn(lsn[0] = writeAheadLog.append(LedgerRecords.ADD_NANOS, record)));
+            return null;
+          }), lsn);
+        }));
+  }
+
+  /**
+   * Asynchronous form of {@link #addPoints(String, TransactionBatch, String)}.
+   */
+  public CompletableFuture<Void> addPointsAsync(String accountId, TransactionBatch batch, String idempotencyKey) {
+    return idempotentAsync(LedgerRecords.ADD, accountId, idempotencyKey,
+        entry -> metrics.timeAsync(metrics.add(), () -> {
+          if (writeAheadLog == null) {
+            return submit(accountId, ledger -> {
+              ledger.addPoints(batch, null);
+              return null;
+            });
+          }
+
+          ByteBuffer record = keyed(LedgerRecords.add(accountId, batch), entry);
+          long[] lsn = new long[1];
+          return durable(submit(accountId, ledger -> {
+            ledger.addPoints(batch,
+                () -> ledger.setAppliedLsn(lsn[0] = writeAheadLog.append(LedgerRecords.ADD_NANOS, record)));
+            return null;
+          }), lsn);
+        }));
+  }
+
+  /**
+   * Adds a streamed batch atomically: either every transaction is applied or, when a payer would go negative, none.
+   */
+  public void addPoints(String accountId, TransactionBatch batch) throws IllegalStateException {
+    addPoints(accountId, batch, null);
+  }
+
+  /**
+   * Adds a streamed batch once per idempotency key, see {@link #addPoints(String, List, String)}.
+   */
+  public void addPoints(String accountId, TransactionBatch batch, String idempotencyKey) throws IllegalStateException {
+    idempotent(LedgerRecords.ADD, accountId, idempotencyKey, entry -> metrics.time(metrics.add(), () -> {
+      if (writeAheadLog == null) {
+        return execute(accountId, ledger -> {
+          ledger.addPoints(batch, null);
+          return null;
+        });
+      }
+
+      ByteBuffer record = keyed(LedgerRecords.add(accountId, batch), entry);
+      long[] lsn = new long[1];
+      execute(accountId, ledger -> {
+        ledger.addPoints(batch,
+            () -> ledger.setAppliedLsn(lsn[0] = writeAheadLog.append(LedgerRecords.ADD_NANOS, record)));
+        return null;
+      });
+      writeAheadLog.sync(lsn[0]);
+      return null;
+    }));
   }
 
   public Set<PointBalance> spendPoints(SpendTransaction spendTransaction) throws IllegalStateException {
-    double spendPoints = spendTransaction.getPoints();
+    return spendPoints(DEFAULT_ACCOUNT, spendTransaction);
+  }
+
+  public Set<PointBalance> spendPoints(String accountId, SpendTransaction spendTransaction)
+      throws IllegalStateException {
+    return spendPoints(accountId, spendTransaction, null);
+  }
+
+  /**
+   * Spends once per idempotency key: a retry with the key of an earlier spend gets back the points that spend took, or
+   * its rejection, and spends nothing more. A null key spends unconditionally.
+   */
+  public Set<PointBalance> spendPoints(String accountId, SpendTransaction spendTransaction, String idempotencyKey)
+      throws IllegalStateException {
+    return idempotent(LedgerRecords.SPEND, accountId, idempotencyKey, entry -> metrics.time(metrics.spend(), () -> {
+      if (writeAheadLog == null) {
+        return execute(accountId, countingLots(ledger -> ledger.spendPoints(spendTransaction)));
+      }
 
-    if (spendPoints <= 0) {
-      throw new IllegalStateException("Spending negative points is not allowed. Try a positive number greater than zero");
+      ByteBuffer record = keyed(LedgerRecords.spend(accountId, spendTransaction.getPoints()), entry);
+      long[] lsn = new long[1];
+      Set<PointBalance> payerPointsBalances = execute(accountId, countingLots(
+          ledger -> ledger.spendPoints(spendTransaction,
+              () -> ledger.setAppliedLsn(lsn[0] = writeAheadLog.append(LedgerRecords.SPEND, record)))));
+      writeAheadLog.sync(lsn[0]);
+      return payerPointsBalances;
+    }));
+  }
+
+  /**
+   * Asynchronous form of {@link #spendPoints(String, SpendTransaction)}, see
+   * {@link #addPointsAsync(String, List)}.
+   */
+  public CompletableFuture<Set<PointBalance>> spendPointsAsync(String accountId, SpendTransaction spendTransaction) {
+    return spendPointsAsync(accountId, spendTransaction, null);
+  }
+
+  /**
+   * Asynchronous form of {@link #spendPoints(String, SpendTransaction, String)}.
+   */
+  public CompletableFuture<Set<PointBalance>> spendPointsAsync(String accountId, SpendTransaction spendTransaction,
+      String idempotencyKey) {
+    return idempotentAsync(LedgerRecords.SPEND, accountId, idempotencyKey,
+        entry -> metrics.timeAsync(metrics.spend(), () -> {
+          if (writeAheadLog == null) {
+            return submit(accountId, countingLots(ledger -> ledger.spendPoints(spendTransaction)));
+          }
+
+          ByteBuffer record = keyed(LedgerRecords.spend(accountId, spendTransaction.getPoints()), entry);
+          long[] lsn = new long[1];
+          return durable(submit(accountId, countingLots(
+              ledger -> ledger.spendPoints(spendTransaction,
+                  () -> ledger.setAppliedLsn(lsn[0] = writeAheadLog.append(LedgerRecords.SPEND, record))))), lsn);
+        }));
+  }
+
+  /**
+   * Applies the spends in order in one pass over the account's lots, see
+   * {@link Ledger#spendPoints(List, SpendMode, Runnable)}. The batch is logged as a single record.
+   */
+  public List<SpendResult> spendPoints(String accountId, List<SpendTransaction> spendTransactions, SpendMode mode)
+      throws IllegalStateException {
+    return metrics.time(metrics.spendBatch(), () -> {
+      if (writeAheadLog == null) {
+        return execute(accountId,
+            countingLots(ledger -> ledger.spendPoints(spendTransactions, mode, null)));
+      }
+
+      ByteBuffer record = LedgerRecords.spendBatch(accountId, mode, spendTransactions);
+      long[] lsn = new long[1];
+      List<SpendResult> spendResults = execute(accountId, countingLots(
+          ledger -> ledger.spendPoints(spendTransactions, mode,
+              () -> ledger.setAppliedLsn(lsn[0] = writeAheadLog.append(LedgerRecords.SPEND_BATCH, record)))));
+      writeAheadLog.sync(lsn[0]);
+      return spendResults;
+    });
+  }
+
+  /**
+   * What spending the points would take from each payer of the account right now, as {@link #spendPoints} would return
+   * it, without spending anything. Runs on the caller's thread, alongside the account's writes, see
+   * {@link Ledger#quoteSpend(SpendTransaction)}.
+   */
+  public Set<PointBalance> quoteSpend(String accountId, SpendTransaction spendTransaction)
+      throws IllegalStateException {
+    Ledger ledger = shardOf(accountId).find(accountId);
+    return (ledger == null ? new Ledger(payerRegistry) : ledger).quoteSpend(spendTransaction);
+  }
+
+  public Map<String, Long> getPointsBalance() {
+    return getPointsBalance(DEFAULT_ACCOUNT);
+  }
+
+  public Map<String, Long> getPointsBalance(String accountId) {
+    Ledger ledger = shardOf(accountId).find(accountId);
+    return ledger == null ? new HashMap<>() : ledger.getPointsBalance();
+  }
+
+  /**
+   * The balances of the account as of its last completed write, shared by every reader until the next one.
+   */
+  public BalanceView getBalanceView(String accountId) {
+    return metrics.timeBalanceRead(() -> {
+      Ledger ledger = shardOf(accountId).find(accountId);
+      return ledger == null ? BalanceView.EMPTY : ledger.getBalanceView();
+    });
+  }
+
+  /**
+   * The balance map of the account as JSON, serialized once per change to its balances.
+   */
+  public JsonResponse getPointsBalanceJson(String accountId) {
+    return getBalanceView(accountId).toJson();
+  }
+
+  /**
+   * Spend results as JSON, written with the payer names encoded at registration.
+   */
+  public JsonResponse toJson(Set<PointBalance> pointBalances) {
+    return new PointBalancesJson(pointBalances, payer -> payerRegistry.quotedNameOf(payerRegistry.idOf(payer)));
+  }
+
+  /**
+   * Spend batch results as JSON, written with the payer names encoded at registration.
+   */
+  public JsonResponse toJson(List<SpendResult> spendResults) {
+    return new SpendResultsJson(spendResults, payer -> payerRegistry.quotedNameOf(payerRegistry.idOf(payer)));
+  }
+
+  /**
+   * The adds, spent lots and expiries of the account's payer, or of every payer when null, from {@code from} inclusive
+   * to {@code to} exclusive, oldest first. Either end may be null for no bound.
+   */
+  public JsonResponse getHistoryJson(String accountId, String payer, LocalDateTime from, LocalDateTime to) {
+    Ledger ledger = findWithHistory(accountId);
+    return ledger == null ? EMPTY_ARRAY : ledger.history(payer, fromNanos(from), toNanos(to));
+  }
+
+  /**
+   * The spends of the account from {@code from} inclusive to {@code to} exclusive, oldest first, each with the points
+   * every payer gave up and the lots it drew from. Either end may be null for no bound.
+   */
+  public JsonResponse getSpendHistoryJson(String accountId, LocalDateTime from, LocalDateTime to) {
+    Ledger ledger = findWithHistory(accountId);
+    return ledger == null ? EMPTY_ARRAY : ledger.spendHistory(fromNanos(from), toNanos(to));
+  }
+
+  @VisibleForTesting
+  public long getAvailablePointsBalance() {
+    return getAvailablePointsBalance(DEFAULT_ACCOUNT);
+  }
+
+  @VisibleForTesting
+  public long getAvailablePointsBalance(String accountId) {
+    Ledger ledger = shardOf(accountId).find(accountId);
+    return ledger == null ? 0 : ledger.getAvailablePointsBalance();
+  }
+
+  @VisibleForTesting
+  public Queue<Lot> getPointsQueue() {
+    return getPointsQueue(DEFAULT_ACCOUNT);
+  }
+
+  @VisibleForTesting
+  public Queue<Lot> getPointsQueue(String accountId) {
+    Ledger ledger = shardOf(accountId).find(accountId);
+    return ledger == null ? new LotQueue() : ledger.getPointsQueue();
+  }
+
+  /**
+   * Expires the points that are due in every account and returns how many expired. Each account is expired on its
+   * shard's thread, in between writes, and only accounts whose earliest expiry has passed are visited. A follower
+   * expires nothing itself; it applies the leader's expiries.
+   */
+  public long expirePoints() {
+    if (role == Role.FOLLOWER) {
+      return 0;
+    }
+    long nowNanos = EpochNanos.of(LocalDateTime.now());
+    List<CompletableFuture<Long>> expiries = new ArrayList<>();
+    for (LedgerShard shard : shards) {
+      for (Map.Entry<String, Ledger> account : shard.ledgers()) {
+        if (account.getValue().getNextExpiryNanos() <= nowNanos) {
+          expiries.add(shard.submit(account.getKey(), ledger -> expireDue(account.getKey(), ledger)));
+        }
+      }
     }
-    if (spendPoints > availablePointsBalance) {
-      throw new IllegalStateException("Insufficient Point Balance. Points available: " + availablePointsBalance + " Redemption  request: " + spendPoints);
+    long expired = expiries.stream().mapToLong(CompletableFuture::join).sum();
+    if (expired > 0 && writeAheadLog != null) {
+      // Nothing else may sync the expiry records of idle accounts, and followers only receive durable records
+      writeAheadLog.sync();
     }
+    return expired;
+  }
 
-    Map<String, Double> payerToSpentPoints = new HashMap<>();
+  /**
+   * Writes a snapshot of every ledger and deletes the log segments it covers, returning the lsn it covers. Accounts are
+   * copied one at a time under their own lock, so writes carry on meanwhile and only wait for the copy of their own
+   * account.
+   */
+  public synchronized long snapshot() {
+    if (writeAheadLog == null) {
+      throw new IllegalStateException("Snapshots require persistence to be enabled");
+    }
+    long lsn = writeAheadLog.lastLsn();
+    if (role == Role.FOLLOWER) {
+      // A follower queues each record on its shard before logging it, so everything up to lsn is queued by now
+      awaitReplicatedWrites();
+    }
+    try (LedgerSnapshots.Writer writer = LedgerSnapshots.create(persistenceDirectory, lsn)) {
+      for (LedgerShard shard : shards) {
+        for (Map.Entry<String, Ledger> account : shard.ledgers()) {
+          writer.append(account.getValue().image(account.getKey()));
+        }
+      }
+      // The images may reflect records that are not durable yet, and must never outlive them.
+      writeAheadLog.sync();
+      writer.commit(payerRegistry.names(), idempotencyImages());
+      writeAheadLog.truncateThrough(lsn);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not write a snapshot", e);
+    }
+    return lsn;
+  }
 
-    while(spendPoints > 0) {
-      Transaction oldestTransaction = pointsQueue.poll();
-      String payer = oldestTransaction.getPayer();
+  /**
+   * Makes this follower the leader: stops following, waits until everything received from the leader is applied and on
+   * disk, then accepts writes and ships its log to followers. The old leader must be stopped first; its log may hold
+   * records this node never received.
+   */
+  public synchronized ReplicationStatus promote() {
+    if (role != Role.FOLLOWER) {
+      throw new IllegalStateException("Only a follower can be promoted, this node is " + role);
+    }
+    try {
+      logFollower.close();
+    } catch (IOException e) {
+      log.warn("Could not disconnect from the leader", e);
+    }
+    logFollower = null;
+    awaitReplicatedWrites();
+    writeAheadLog.sync();
+    role = Role.LEADER;
+    startLogShipper();
+    log.info("Promoted to leader at lsn {}", writeAheadLog.lastLsn());
+    return getReplicationStatus();
+  }
 
-      double transactionPoints = oldestTransaction.getPoints();
-      double pointsSpentTillNow = payerToSpentPoints.getOrDefault(payer, 0.0);
-      if (transactionPoints < spendPoints) {
-        pointsSpentTillNow += transactionPoints;
-        availablePointsBalance -= transactionPoints;
-        pointsBalance.put(payer, pointsBalance.get(payer) - transactionPoints);
+  public ReplicationStatus getReplicationStatus() {
+    long lastLsn = writeAheadLog == null ? 0 : writeAheadLog.lastLsn();
+    LogShipper shipper = logShipper;
+    LogFollower follower = logFollower;
+    if (follower != null) {
+      return new ReplicationStatus(role, lastLsn, follower.getLeaderLsn(), follower.isConnected(), 0, 0);
+    }
+    return new ReplicationStatus(role, lastLsn, lastLsn, false, shipper == null ? 0 : shipper.getFollowers(),
+        shipper == null ? 0 : shipper.getPort());
+  }
 
-        spendPoints -= transactionPoints;
-      } else {
-        pointsSpentTillNow += spendPoints;
-        availablePointsBalance -= spendPoints;
+  @PreDestroy
+  public void shutdown() {
+    closeReplication();
+    if (snapshotScheduler != null) {
+      snapshotScheduler.shutdownNow();
+    }
+    if (expiryScheduler != null) {
+      expiryScheduler.shutdownNow();
+    }
+    for (LedgerShard shard : shards) {
+      shard.shutdown();
+    }
+    if (writeAheadLog != null) {
+      writeAheadLog.close();
+    }
+    if (historySpillFile != null) {
+      try {
+        historySpillFile.close();
+      } catch (IOException e) {
+        log.warn("Could not delete the history spill file", e);
+      }
+    }
+  }
+
+  /**
+   * Runs the command on the account's shard thread and waits for it, after expiring the account's points that are due.
+   */
+  private <T> T execute(String accountId, Function<Ledger, T> command) {
+    requireLeader();
+    return shardOf(accountId).execute(accountId, expiringFirst(accountId, command));
+  }
+
+  /**
+   * Queues the command on the account's shard thread, to run after the account's points that are due are expired.
+   */
+  private <T> CompletableFuture<T> submit(String accountId, Function<Ledger, T> command) {
+    if (role == Role.FOLLOWER) {
+      return CompletableFuture.failedFuture(notLeader());
+    }
+    return shardOf(accountId).submit(accountId, expiringFirst(accountId, command));
+  }
+
+  /**
+   * Expiring before every write keeps spends and debits off expired lots without waiting for the sweeper.
+   */
+  private <T> Function<Ledger, T> expiringFirst(String accountId, Function<Ledger, T> command) {
+    if (!pointsExpiry.isEnabled()) {
+      return command;
+    }
+    return ledger -> {
+      expireDue(accountId, ledger);
+      return command.apply(ledger);
+    };
+  }
+
+  /**
+   * Expires the account's points that are due by now, logging the expiry ahead of the write that follows it. Runs on
+   * the account's shard thread.
+   */
+  private long expireDue(String accountId, Ledger ledger) {
+    if (ledger.getNextExpiryNanos() == Long.MAX_VALUE) {
+      return 0;
+    }
+    long nowNanos = EpochNanos.of(LocalDateTime.now());
+    long expired = writeAheadLog == null ? ledger.expirePoints(nowNanos, null) : ledger.expirePoints(nowNanos,
+        cutoffNanosByPayer -> ledger.setAppliedLsn(writeAheadLog.append(LedgerRecords.EXPIRE_CUTOFFS,
+            LedgerRecords.expire(accountId, nowNanos, cutoffNanosByPayer))));
+    if (expired > 0) {
+      metrics.expired(expired);
+    }
+    return expired;
+  }
+
+  /**
+   * Runs the request once per idempotency key. A retry with the key of an earlier request gets that request's outcome,
+   * waiting for it if it is still running, and is not applied again. Without a key the request simply runs.
+   */
+  private <T> T idempotent(byte operation, String accountId, String idempotencyKey,
+      Function<IdempotencyCache.Entry, T> request) {
+    if (idempotencyKey == null) {
+      return request.apply(null);
+    }
+    // Checked before the key is taken, so a retry sent to the node once promoted is still applied
+    requireLeader();
+    IdempotencyCache.Entry entry = newIdempotencyEntry(operation, accountId, idempotencyKey);
+    IdempotencyCache.Entry earlier = idempotencyCache.putIfAbsent(entry);
+    if (earlier != null) {
+      return earlier.await();
+    }
+    try {
+      T result = request.apply(entry);
+      idempotencyCache.settle(entry, result, null);
+      return result;
+    } catch (RuntimeException | Error e) {
+      idempotencyCache.settle(entry, null, e);
+      throw e;
+    }
+  }
+
+  /**
+   * Asynchronous form of {@link #idempotent}: a retry gets a future of the earlier request's outcome.
+   */
+  private <T> CompletableFuture<T> idempotentAsync(byte operation, String accountId, String idempotencyKey,
+      Function<IdempotencyCache.Entry, CompletableFuture<T>> request) {
+    if (idempotencyKey == null) {
+      return request.apply(null);
+    }
+    IdempotencyCache.Entry entry;
+    try {
+      requireLeader();
+      entry = newIdempotencyEntry(operation, accountId, idempotencyKey);
+    } catch (IllegalStateException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    IdempotencyCache.Entry earlier = idempotencyCache.putIfAbsent(entry);
+    if (earlier != null) {
+      return earlier.outcome();
+    }
+    CompletableFuture<T> future;
+    try {
+      future = request.apply(entry);
+    } catch (RuntimeException | Error e) {
+      idempotencyCache.settle(entry, null, e);
+      throw e;
+    }
+    return future.whenComplete((result, e) -> idempotencyCache.settle(entry, result, e));
+  }
+
+  private void requireLeader() {
+    if (role == Role.FOLLOWER) {
+      throw notLeader();
+    }
+  }
+
+  private IllegalStateException notLeader() {
+    return new IllegalStateException(
+        "This node follows the leader at " + replicationProperties.getLeader() + "; send writes to the leader");
+  }
+
+  private IdempotencyCache.Entry newIdempotencyEntry(byte operation, String accountId, String idempotencyKey) {
+    if (idempotencyKey.isEmpty() || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+      throw new IllegalStateException(
+          "Idempotency keys must be 1 to " + MAX_IDEMPOTENCY_KEY_LENGTH + " characters long");
+    }
+    return idempotencyCache.newEntry(operation, accountId, idempotencyKey);
+  }
+
+  /**
+   * The record with the idempotency key of the request appended, so that replay restores the key with the write.
+   */
+  private static ByteBuffer keyed(ByteBuffer record, IdempotencyCache.Entry entry) {
+    return entry == null ? record : LedgerRecords.withIdempotencyKey(record, entry.getIdempotencyKey());
+  }
+
+  /**
+   * Outcomes of the live keyed requests that were applied. Requests still running are waited for, so that every keyed
+   * write the snapshot's images reflect has its key in the snapshot too.
+   */
+  private List<IdempotencyImage> idempotencyImages() {
+    List<IdempotencyImage> images = new ArrayList<>();
+    for (IdempotencyCache.Entry entry : idempotencyCache.applied()) {
+      Set<PointBalance> pointBalances = entry.getOperation() == LedgerRecords.SPEND ? entry.await() : Set.of();
+      String[] payers = new String[pointBalances.size()];
+      long[] points = new long[payers.length];
+      int i = 0;
+      for (PointBalance pointBalance : pointBalances) {
+        payers[i] = pointBalance.getPayer();
+        points[i++] = pointBalance.getPoints();
+      }
+      images.add(new IdempotencyImage(entry.getOperation(), entry.getAccountId(), entry.getIdempotencyKey(), payers,
+          points));
+    }
+    return images;
+  }
+
+  /**
+   * Wraps a spend command to record how many lots it used up. Runs on the shard's thread, where the queue size is exact.
+   */
+  private <T> Function<Ledger, T> countingLots(Function<Ledger, T> spend) {
+    return ledger -> {
+      int lots = ledger.getPointsQueue().size();
+      T result = spend.apply(ledger);
+      metrics.spent(lots - ledger.getPointsQueue().size());
+      return result;
+    };
+  }
+
+  /**
+   * Completes with the result of the applied command once its log record, whose lsn the command stored in
+   * {@code lsn[0]}, is on disk.
+   */
+  private <T> CompletableFuture<T> durable(CompletableFuture<T> applied, long[] lsn) {
+    return applied.thenCompose(result -> writeAheadLog.syncAsync(lsn[0]).thenApply(durable -> result));
+  }
+
+  private ScheduledExecutorService scheduleSnapshots(Duration interval) {
+    return schedule("ledger-snapshot", interval, () -> {
+      try {
+        snapshot();
+      } catch (RuntimeException e) {
+        log.error("Periodic snapshot failed; the log is kept until the next one succeeds", e);
+      }
+    });
+  }
+
+  private ScheduledExecutorService scheduleExpiry(Duration interval) {
+    return schedule("ledger-expiry", interval, () -> {
+      try {
+        long expired = expirePoints();
+        if (expired > 0) {
+          log.debug("Expired {} points", expired);
+        }
+      } catch (RuntimeException e) {
+        log.error("Expiry sweep failed; it is retried at the next interval", e);
+      }
+    });
+  }
+
+  /**
+   * Runs the task every interval on a thread of its own, or returns null without scheduling it when the interval is
+   * not positive.
+   */
+  private static ScheduledExecutorService schedule(String threadName, Duration interval, Runnable task) {
+    if (interval.isZero() || interval.isNegative()) {
+      return null;
+    }
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, threadName);
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleWithFixedDelay(task, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+    return scheduler;
+  }
 
-        if (transactionPoints - spendPoints > 0) {
-          pointsQueue.add(new Transaction(payer, transactionPoints - spendPoints, oldestTransaction.getTimestamp()));
+  /**
+   * Loads snapshot images straight into the ledgers. Only used while the service is being constructed.
+   */
+  private LedgerSnapshots.Visitor restoreVisitor() {
+    return new LedgerSnapshots.Visitor() {
+      private int[] registryIds;
+
+      @Override
+      public void payers(String[] names) {
+        registryIds = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+          registryIds[i] = payerRegistry.idOf(names[i]);
+        }
+      }
+
+      @Override
+      public void ledger(LedgerImage image) {
+        shardOf(image.getAccountId()).ledger(image.getAccountId()).restore(image, registryIds);
+      }
+
+      @Override
+      public void idempotencyKey(IdempotencyImage image) {
+        Set<PointBalance> pointBalances = null;
+        if (image.getOperation() == LedgerRecords.SPEND) {
+          pointBalances = new HashSet<>();
+          for (int i = 0; i < image.getPayers().length; i++) {
+            pointBalances.add(new PointBalance(image.getPayers()[i], image.getPoints()[i]));
+          }
+        }
+        idempotencyCache.restore(image.getOperation(), image.getAccountId(), image.getIdempotencyKey(), pointBalances);
+      }
+    };
+  }
+
+  /**
+   * Applies logged commands to the ledgers, bypassing the log. Records an account's ledger already reflects are
+   * skipped. During startup commands run straight away, bypassing the shard threads; records {@code replicated} from
+   * the leader are queued on the shard threads instead, as reads and other accounts' records carry on meanwhile.
+   */
+  private LedgerRecords.Visitor replayVisitor(boolean replicated) {
+    return new LedgerRecords.Visitor() {
+      @Override
+      public void add(long lsn, String accountId, List<Transaction> transactions, IdempotencyKey idempotencyKey) {
+        replay(replicated, lsn, accountId, ledger -> {
+          ledger.addPoints(transactions);
+          if (idempotencyKey != null) {
+            idempotencyCache.restore(LedgerRecords.ADD, accountId, idempotencyKey, null);
+          }
+        });
+      }
+
+      @Override
+      public void spend(long lsn, String accountId, long points, IdempotencyKey idempotencyKey) {
+        replay(replicated, lsn, accountId, ledger -> {
+          Set<PointBalance> pointBalances = ledger.spendPoints(new SpendTransaction(points));
+          if (idempotencyKey != null) {
+            idempotencyCache.restore(LedgerRecords.SPEND, accountId, idempotencyKey, pointBalances);
+          }
+        });
+      }
+
+      @Override
+      public void spendBatch(long lsn, String accountId, SpendMode mode, List<SpendTransaction> spendTransactions) {
+        replay(replicated, lsn, accountId, ledger -> ledger.spendPoints(spendTransactions, mode, null));
+      }
+
+      @Override
+      public void expire(long lsn, String accountId, long nowNanos, Map<String, Long> cutoffNanosByPayer) {
+        replay(replicated, lsn, accountId, ledger -> {
+          if (cutoffNanosByPayer == null) {
+            ledger.expirePoints(nowNanos, null);
+          } else {
+            ledger.applyExpiry(nowNanos, cutoffNanosByPayer);
+          }
+        });
+      }
+    };
+  }
+
+  private void replay(boolean replicated, long lsn, String accountId, Consumer<Ledger> command) {
+    Function<Ledger, Void> apply = ledger -> {
+      if (lsn > ledger.getAppliedLsn()) {
+        command.accept(ledger);
+        ledger.setAppliedLsn(lsn);
+      }
+      return null;
+    };
+    int shard = shardIndex(accountId);
+    if (!replicated) {
+      apply.apply(shards[shard].ledger(accountId));
+      return;
+    }
+    replicatedWrites.set(shard, shards[shard].submit(accountId, apply).whenComplete((applied, e) -> {
+      if (e != null) {
+        log.error("Could not apply record {} from the leader to account {}", lsn, accountId, e);
+      }
+    }));
+  }
+
+  /**
+   * Waits until the shards have applied every record received from the leader so far.
+   */
+  private void awaitReplicatedWrites() {
+    for (int i = 0; i < replicatedWrites.length(); i++) {
+      CompletableFuture<?> replicated = replicatedWrites.get(i);
+      if (replicated != null) {
+        replicated.exceptionally(e -> null).join();
+      }
+    }
+  }
+
+  /**
+   * Keeps the follower's log and ledgers in step with the leader's: each record is queued on its shard, then appended
+   * to the local log under the leader's lsn, so the node can restart or be promoted from its own log.
+   */
+  private LogFollower.Handler followerHandler() {
+    LedgerRecords.Visitor apply = replayVisitor(true);
+    return new LogFollower.Handler() {
+      @Override
+      public void snapshot(long lsn, InputStream in, long length) throws IOException {
+        if (writeAheadLog.lastLsn() != 0) {
+          throw new IOException("Only a follower with an empty log can install the leader's snapshot");
         }
-        pointsBalance.put(oldestTransaction.getPayer(), pointsBalance.get(payer) - spendPoints);
-        spendPoints = 0;
+        LedgerSnapshots.install(persistenceDirectory, lsn, in, length);
+        LedgerSnapshots.load(persistenceDirectory, restoreVisitor());
+        writeAheadLog.restartAt(lsn);
+      }
+
+      @Override
+      public void record(long lsn, byte type, ByteBuffer payload) {
+        if (lsn != writeAheadLog.lastLsn() + 1) {
+          throw new IllegalStateException(
+              "The leader sent record " + lsn + " but the follower's log ends at " + writeAheadLog.lastLsn());
+        }
+        LedgerRecords.decode(lsn, type, payload.duplicate(), apply);
+        writeAheadLog.append(type, payload);
+      }
+
+      @Override
+      public void caughtUp(long leaderLsn) {
+        writeAheadLog.sync();
       }
+    };
+  }
 
-      payerToSpentPoints.put(payer, pointsSpentTillNow);
+  private void startLogShipper() {
+    try {
+      logShipper = LogShipper.start(writeAheadLog, persistenceDirectory, replicationProperties.getPort());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not listen for followers on port " + replicationProperties.getPort(), e);
     }
+  }
+
+  private void closeReplication() {
+    try {
+      if (logFollower != null) {
+        logFollower.close();
+      }
+      if (logShipper != null) {
+        logShipper.close();
+      }
+    } catch (IOException e) {
+      log.warn("Could not close the replication connections", e);
+    }
+  }
+
+  /**
+   * The account's ledger, or null when it has never been written to.
+   */
+  private Ledger findWithHistory(String accountId) {
+    if (!historyEnabled) {
+      throw new IllegalStateException("History is not recorded. Set fetch.ledger.history-enabled to record it");
+    }
+    return shardOf(accountId).find(accountId);
+  }
+
+  private static long fromNanos(LocalDateTime from) {
+    return from == null ? Long.MIN_VALUE : EpochNanos.saturated(from);
+  }
+
+  private static long toNanos(LocalDateTime to) {
+    return to == null ? Long.MAX_VALUE : EpochNanos.saturated(to);
+  }
+
+  /**
+   * Opens the history spill file in the directory, or returns null for none when the directory is empty or the file
+   * cannot be created, in which case history is kept in memory.
+   */
+  private static HistorySpillFile openHistorySpillFile(String directory) {
+    if (directory == null || directory.isEmpty()) {
+      return null;
+    }
+    try {
+      return HistorySpillFile.open(Paths.get(directory));
+    } catch (IOException e) {
+      log.warn("Could not open the history spill file in {}, keeping history in memory", directory, e);
+      return null;
+    }
+  }
+
+  private LedgerShard shardOf(String accountId) {
+    return shards[shardIndex(accountId)];
+  }
 
-    return payerToSpentPoints.entrySet()
-        .stream()
-        .map(entry -> new PointBalance(entry.getKey(), -1 * entry.getValue()))
-        .collect(Collectors.toSet());
+  private int shardIndex(String accountId) {
+    int hash = accountId.hashCode();
+    return Math.floorMod(hash ^ (hash >>> 16), shards.length);
   }
 
 }
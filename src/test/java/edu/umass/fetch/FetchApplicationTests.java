@@ -4,13 +4,21 @@ import static org.springframework.test.util.AssertionErrors.assertEquals;
 import static org.springframework.test.util.AssertionErrors.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import edu.umass.fetch.config.LedgerProperties;
+import edu.umass.fetch.request.SpendMode;
 import edu.umass.fetch.request.SpendTransaction;
 import edu.umass.fetch.request.Transaction;
 import edu.umass.fetch.response.PointBalance;
+import edu.umass.fetch.response.SpendResult;
 import edu.umass.fetch.service.PointsService;
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.apache.commons.collections4.CollectionUtils;
 import org.apache.commons.collections4.MapUtils;
@@ -38,19 +46,19 @@ class FetchApplicationTests {
 
     assertTrue("The points per payer map is not empty", MapUtils.isEmpty(pointsService.getPointsBalance()));
     assertTrue("The transaction queue is not empty", CollectionUtils.isEmpty(pointsService.getPointsQueue()));
-    assertEquals("The available points balance is not zero", 0.0, pointsService.getAvailablePointsBalance());
+    assertEquals("The available points balance is not zero", 0L, pointsService.getAvailablePointsBalance());
   }
 
   @Test
   void testAddPoints_SinglePayer_SingleTransaction_PositivePoints() {
     List<Transaction> transactionList = new ArrayList<>();
-    transactionList.add(new Transaction("PAYER-1", 1000.0, LocalDateTime.now()));
+    transactionList.add(new Transaction("PAYER-1", 1000, LocalDateTime.now()));
     pointsService.addPoints(transactionList);
 
     assertEquals("The points per payer map is not size 1", 1, pointsService.getPointsBalance().size());
-    assertEquals("The points for Payer 1 is not 1000.0", 1000.0, pointsService.getPointsBalance().get("PAYER-1"));
+    assertEquals("The points for Payer 1 is not 1000", 1000L, pointsService.getPointsBalance().get("PAYER-1"));
     assertEquals("The transaction queue is not size 1", 1, pointsService.getPointsQueue().size());
-    assertEquals("The available points balance is not 1000.0", 1000.0, pointsService.getAvailablePointsBalance());
+    assertEquals("The available points balance is not 1000", 1000L, pointsService.getAvailablePointsBalance());
   }
 
 
@@ -60,15 +68,16 @@ class FetchApplicationTests {
     List<Transaction> transactionList = new ArrayList<>();
     LocalDateTime timestamp1 = LocalDateTime.now();
     LocalDateTime timestamp2 = timestamp1.plusSeconds(20);
-    transactionList.add(new Transaction("PAYER-1", 1000.0, timestamp1));
-    transactionList.add(new Transaction("PAYER-1", -800.0, timestamp2));
+    transactionList.add(new Transaction("PAYER-1", 1000, timestamp1));
+    transactionList.add(new Transaction("PAYER-1", -800, timestamp2));
     pointsService.addPoints(transactionList);
 
     assertEquals("The points per payer map is not size 1", 1, pointsService.getPointsBalance().size());
-    assertEquals("The points for Payer 1 is not 200.0", 200.0, pointsService.getPointsBalance().get("PAYER-1"));
-    assertEquals("The transaction queue is not size 2", 2, pointsService.getPointsQueue().size());
-    assertEquals("The top transaction in queue does not have " + timestamp2 + " as timestamp", timestamp2, pointsService.getPointsQueue().peek().getTimestamp());
-    assertEquals("The available points balance is not 200.0", 200.0, pointsService.getAvailablePointsBalance());
+    assertEquals("The points for Payer 1 is not 200", 200L, pointsService.getPointsBalance().get("PAYER-1"));
+    assertEquals("The transaction queue is not size 1", 1, pointsService.getPointsQueue().size());
+    assertEquals("The debit was not taken off the oldest lot", 200L, pointsService.getPointsQueue().peek().getPoints());
+    assertEquals("The top transaction in queue does not have " + timestamp1 + " as timestamp", timestamp1, pointsService.getPointsQueue().peek().getTimestamp());
+    assertEquals("The available points balance is not 200", 200L, pointsService.getAvailablePointsBalance());
   }
 
   @Test
@@ -77,14 +86,14 @@ class FetchApplicationTests {
     List<Transaction> transactionList = new ArrayList<>();
     LocalDateTime timestamp1 = LocalDateTime.now();
     LocalDateTime timestamp2 = timestamp1.plusSeconds(20);
-    transactionList.add(new Transaction("PAYER-1", 1000.0, timestamp1));
-    transactionList.add(new Transaction("PAYER-1", -1200.0, timestamp2));
+    transactionList.add(new Transaction("PAYER-1", 1000, timestamp1));
+    transactionList.add(new Transaction("PAYER-1", -1200, timestamp2));
 
     IllegalStateException e = assertThrows(IllegalStateException.class, () -> pointsService.addPoints(transactionList));
     Assertions.assertEquals("Processing these transactions will cause PAYER-1 balance to become negative", e.getMessage());
     assertTrue("The points per payer map is not empty", MapUtils.isEmpty(pointsService.getPointsBalance()));
     assertTrue("The transaction queue is not empty", CollectionUtils.isEmpty(pointsService.getPointsQueue()));
-    assertEquals("The available points balance is not zero", 0.0, pointsService.getAvailablePointsBalance());
+    assertEquals("The available points balance is not zero", 0L, pointsService.getAvailablePointsBalance());
   }
 
   @Test
@@ -92,16 +101,16 @@ class FetchApplicationTests {
     List<Transaction> transactionList = new ArrayList<>();
     LocalDateTime timestamp1 = LocalDateTime.now();
     LocalDateTime timestamp2 = timestamp1.minusSeconds(20);
-    transactionList.add(new Transaction("PAYER-1", 1000.0, timestamp1));
-    transactionList.add(new Transaction("PAYER-2", 300.0, timestamp2));
+    transactionList.add(new Transaction("PAYER-1", 1000, timestamp1));
+    transactionList.add(new Transaction("PAYER-2", 300, timestamp2));
     pointsService.addPoints(transactionList);
 
     assertEquals("The points per payer map is not size 2", 2, pointsService.getPointsBalance().size());
-    assertEquals("The points for Payer 1 is not 1000.0", 1000.0, pointsService.getPointsBalance().get("PAYER-1"));
-    assertEquals("The points for Payer 2 is not 300.0", 300.0, pointsService.getPointsBalance().get("PAYER-2"));
+    assertEquals("The points for Payer 1 is not 1000", 1000L, pointsService.getPointsBalance().get("PAYER-1"));
+    assertEquals("The points for Payer 2 is not 300", 300L, pointsService.getPointsBalance().get("PAYER-2"));
     assertEquals("The transaction queue is not size 2", 2, pointsService.getPointsQueue().size());
     assertEquals("The top transaction in queue does not have " + timestamp2 + " as timestamp", timestamp2, pointsService.getPointsQueue().peek().getTimestamp());
-    assertEquals("The available points balance is not 1300.0", 1300.0, pointsService.getAvailablePointsBalance());
+    assertEquals("The available points balance is not 1300", 1300L, pointsService.getAvailablePointsBalance());
   }
 
   @Test
@@ -111,18 +120,18 @@ class FetchApplicationTests {
     LocalDateTime timestamp2 = timestamp1.plusSeconds(20);
     LocalDateTime timestamp3 = timestamp1.plusSeconds(30);
     LocalDateTime timestamp4 = timestamp1.plusSeconds(400);
-    transactionList.add(new Transaction("PAYER-1", 1000.0, timestamp1));
-    transactionList.add(new Transaction("PAYER-2", -300.0, timestamp2));
-    transactionList.add(new Transaction("PAYER-1", -200.0, timestamp3));
-    transactionList.add(new Transaction("PAYER-2", 500.0, timestamp4));
+    transactionList.add(new Transaction("PAYER-1", 1000, timestamp1));
+    transactionList.add(new Transaction("PAYER-2", -300, timestamp2));
+    transactionList.add(new Transaction("PAYER-1", -200, timestamp3));
+    transactionList.add(new Transaction("PAYER-2", 500, timestamp4));
     pointsService.addPoints(transactionList);
 
     assertEquals("The points per payer map is not size 2", 2, pointsService.getPointsBalance().size());
-    assertEquals("The points for Payer 1 is not 800.0", 800.0, pointsService.getPointsBalance().get("PAYER-1"));
-    assertEquals("The points for Payer 2 is not 200.0", 200.0, pointsService.getPointsBalance().get("PAYER-2"));
-    assertEquals("The transaction queue is not size 4", 4, pointsService.getPointsQueue().size());
-    assertEquals("The top transaction in queue does not have " + timestamp2 + " as timestamp", timestamp2, pointsService.getPointsQueue().peek().getTimestamp());
-    assertEquals("The available points balance is not 1000.0", 1000.0, pointsService.getAvailablePointsBalance());
+    assertEquals("The points for Payer 1 is not 800", 800L, pointsService.getPointsBalance().get("PAYER-1"));
+    assertEquals("The points for Payer 2 is not 200", 200L, pointsService.getPointsBalance().get("PAYER-2"));
+    assertEquals("The transaction queue is not size 2", 2, pointsService.getPointsQueue().size());
+    assertEquals("The top transaction in queue does not have " + timestamp1 + " as timestamp", timestamp1, pointsService.getPointsQueue().peek().getTimestamp());
+    assertEquals("The available points balance is not 1000", 1000L, pointsService.getAvailablePointsBalance());
   }
 
   @Test
@@ -132,15 +141,63 @@ class FetchApplicationTests {
     LocalDateTime timestamp2 = timestamp1.plusSeconds(20);
     LocalDateTime timestamp3 = timestamp1.plusSeconds(30);
     LocalDateTime timestamp4 = timestamp1.plusSeconds(400);
-    transactionList.add(new Transaction("PAYER-1", 1000.0, timestamp1));
-    transactionList.add(new Transaction("PAYER-2", -300.0, timestamp2));
-    transactionList.add(new Transaction("PAYER-1", -200.0, timestamp3));
-    transactionList.add(new Transaction("PAYER-2", 100.0, timestamp4));
+    transactionList.add(new Transaction("PAYER-1", 1000, timestamp1));
+    transactionList.add(new Transaction("PAYER-2", -300, timestamp2));
+    transactionList.add(new Transaction("PAYER-1", -200, timestamp3));
+    transactionList.add(new Transaction("PAYER-2", 100, timestamp4));
 
     assertThrows(IllegalStateException.class, () -> pointsService.addPoints(transactionList));
     assertTrue("The points per payer map is not empty", MapUtils.isEmpty(pointsService.getPointsBalance()));
     assertTrue("The transaction queue is not empty", CollectionUtils.isEmpty(pointsService.getPointsQueue()));
-    assertEquals("The available points balance is not zero", 0.0, pointsService.getAvailablePointsBalance());
+    assertEquals("The available points balance is not zero", 0L, pointsService.getAvailablePointsBalance());
+  }
+
+  @Test
+  void testAddPoints_ManyPayers_RejectedBatchAddsNoPayers() {
+    List<Transaction> transactionList1 = new ArrayList<>();
+    LocalDateTime timestamp1 = LocalDateTime.now();
+    for (int i = 0; i < 20; i++) {
+      transactionList1.add(new Transaction("PAYER-" + i, 100, timestamp1.plusSeconds(i)));
+    }
+    pointsService.addPoints(transactionList1);
+
+    List<Transaction> transactionList2 = new ArrayList<>();
+    for (int i = 20; i < 40; i++) {
+      transactionList2.add(new Transaction("PAYER-" + i, 100, timestamp1.plusSeconds(i)));
+    }
+    transactionList2.add(new Transaction("PAYER-0", -200, timestamp1.plusSeconds(40)));
+
+    assertThrows(IllegalStateException.class, () -> pointsService.addPoints(transactionList2));
+    assertEquals("The points per payer map is not size 20", 20, pointsService.getPointsBalance().size());
+
+    List<Transaction> transactionList3 = new ArrayList<>();
+    transactionList3.add(new Transaction("PAYER-39", 500, timestamp1.plusSeconds(41)));
+    transactionList3.add(new Transaction("PAYER-19", -100, timestamp1.plusSeconds(42)));
+    pointsService.addPoints(transactionList3);
+
+    assertEquals("The points per payer map is not size 21", 21, pointsService.getPointsBalance().size());
+    assertEquals("The points for Payer 39 is not 500", 500L, pointsService.getPointsBalance().get("PAYER-39"));
+    assertEquals("The points for Payer 19 is not 0", 0L, pointsService.getPointsBalance().get("PAYER-19"));
+    assertEquals("The points for Payer 0 is not 100", 100L, pointsService.getPointsBalance().get("PAYER-0"));
+    assertEquals("The available points balance is not 2400", 2400L, pointsService.getAvailablePointsBalance());
+  }
+
+  @Test
+  void testAddPoints_MissingTimestamp_AddsNothing() {
+    LocalDateTime timestamp = LocalDateTime.now();
+    List<Transaction> transactionList = Arrays.asList(
+        new Transaction("PAYER-1", 100, timestamp),
+        new Transaction("PAYER-2", 200, null));
+
+    assertThrows(IllegalArgumentException.class, () -> pointsService.addPoints(transactionList));
+    assertTrue("The points per payer map is not empty", MapUtils.isEmpty(pointsService.getPointsBalance()));
+    assertTrue("The transaction queue is not empty", CollectionUtils.isEmpty(pointsService.getPointsQueue()));
+    assertEquals("The available points balance is not zero", 0L, pointsService.getAvailablePointsBalance());
+
+    pointsService.addPoints(Collections.singletonList(new Transaction("PAYER-1", 100, timestamp)));
+    pointsService.spendPoints(new SpendTransaction(10));
+    assertEquals("The points for Payer 1 is not 90", 90L, pointsService.getPointsBalance().get("PAYER-1"));
+    assertEquals("The available points balance is not 90", 90L, pointsService.getAvailablePointsBalance());
   }
 
   /**
@@ -154,10 +211,10 @@ class FetchApplicationTests {
   @Test
   void testSpendPoints_ZeroPoints() {
     List<Transaction> transactionList = new ArrayList<>();
-    transactionList.add(new Transaction("PAYER-1", 1000.0, LocalDateTime.now()));
+    transactionList.add(new Transaction("PAYER-1", 1000, LocalDateTime.now()));
     pointsService.addPoints(transactionList);
 
-    SpendTransaction spendTransaction = new SpendTransaction(0.0);
+    SpendTransaction spendTransaction = new SpendTransaction(0);
 
     IllegalStateException e = assertThrows(IllegalStateException.class, () -> pointsService.spendPoints(spendTransaction));
     Assertions.assertEquals("Spending negative points is not allowed. Try a positive number greater than zero", e.getMessage());
@@ -166,10 +223,10 @@ class FetchApplicationTests {
   @Test
   void testSpendPoints_NegativePoints() {
     List<Transaction> transactionList = new ArrayList<>();
-    transactionList.add(new Transaction("PAYER-1", 1000.0, LocalDateTime.now()));
+    transactionList.add(new Transaction("PAYER-1", 1000, LocalDateTime.now()));
     pointsService.addPoints(transactionList);
 
-    SpendTransaction spendTransaction = new SpendTransaction(-40.0);
+    SpendTransaction spendTransaction = new SpendTransaction(-40);
 
     IllegalStateException e = assertThrows(IllegalStateException.class, () -> pointsService.spendPoints(spendTransaction));
     Assertions.assertEquals("Spending negative points is not allowed. Try a positive number greater than zero", e.getMessage());
@@ -178,13 +235,13 @@ class FetchApplicationTests {
   @Test
   void testSpendPoints_MoreThanAvailablePoints() {
     List<Transaction> transactionList = new ArrayList<>();
-    transactionList.add(new Transaction("PAYER-1", 1000.0, LocalDateTime.now()));
+    transactionList.add(new Transaction("PAYER-1", 1000, LocalDateTime.now()));
     pointsService.addPoints(transactionList);
 
-    SpendTransaction spendTransaction = new SpendTransaction(4000.0);
+    SpendTransaction spendTransaction = new SpendTransaction(4000);
 
     IllegalStateException e = assertThrows(IllegalStateException.class, () -> pointsService.spendPoints(spendTransaction));
-    Assertions.assertEquals("Insufficient Point Balance. Points available: " + 1000.0 + " Redemption  request: " + 4000.0, e.getMessage());
+    Assertions.assertEquals("Insufficient Point Balance. Points available: " + 1000L + " Redemption  request: " + 4000L, e.getMessage());
   }
 
   @Test
@@ -192,31 +249,31 @@ class FetchApplicationTests {
     List<Transaction> transactionList = new ArrayList<>();
 
     LocalDateTime timestamp1 = LocalDateTime.now();
-    transactionList.add(new Transaction("PAYER-1", 1000.0, timestamp1));
+    transactionList.add(new Transaction("PAYER-1", 1000, timestamp1));
     pointsService.addPoints(transactionList);
 
-    SpendTransaction spendTransaction1 = new SpendTransaction(800.0);
+    SpendTransaction spendTransaction1 = new SpendTransaction(800);
     Set<PointBalance> pointBalances1 = pointsService.spendPoints(spendTransaction1);
 
     assertEquals("The points were not deducted from only 1 payer", pointBalances1.size(), 1);
     assertEquals("Payer is not PAYER-1", "PAYER-1", pointBalances1.stream().map(PointBalance::getPayer).findAny().get());
-    assertEquals("Points deducted for PAYER-1 is not -800.0", -800.0, pointBalances1.stream().map(PointBalance::getPoints).findAny().get());
+    assertEquals("Points deducted for PAYER-1 is not -800", -800L, pointBalances1.stream().map(PointBalance::getPoints).findAny().get());
     assertEquals("The points per payer map is not size 1", 1, pointsService.getPointsBalance().size());
-    assertEquals("The points for Payer 1 is not 200.0", 200.0, pointsService.getPointsBalance().get("PAYER-1"));
+    assertEquals("The points for Payer 1 is not 200", 200L, pointsService.getPointsBalance().get("PAYER-1"));
     assertEquals("The transaction queue is not size 1", 1, pointsService.getPointsQueue().size());
     assertEquals("The top transaction in queue does not have " + timestamp1 + " as timestamp", timestamp1, pointsService.getPointsQueue().peek().getTimestamp());
-    assertEquals("The available points balance is not 200.0", 200.0, pointsService.getAvailablePointsBalance());
+    assertEquals("The available points balance is not 200", 200L, pointsService.getAvailablePointsBalance());
 
-    SpendTransaction spendTransaction2 = new SpendTransaction(200.0);
+    SpendTransaction spendTransaction2 = new SpendTransaction(200);
     Set<PointBalance> pointBalances2 = pointsService.spendPoints(spendTransaction2);
 
     assertEquals("The points were not deducted from only 1 payer", pointBalances2.size(), 1);
     assertEquals("Payer is not PAYER-1", "PAYER-1", pointBalances2.stream().map(PointBalance::getPayer).findAny().get());
-    assertEquals("Points deducted for PAYER-1 is not -200.0", -200.0, pointBalances2.stream().map(PointBalance::getPoints).findAny().get());
+    assertEquals("Points deducted for PAYER-1 is not -200", -200L, pointBalances2.stream().map(PointBalance::getPoints).findAny().get());
     assertEquals("The points per payer map is not size 1", 1, pointsService.getPointsBalance().size());
-    assertEquals("The points for Payer 1 is not 0.0", 0.0, pointsService.getPointsBalance().get("PAYER-1"));
+    assertEquals("The points for Payer 1 is not 0", 0L, pointsService.getPointsBalance().get("PAYER-1"));
     assertTrue("The transaction queue is not empty", CollectionUtils.isEmpty(pointsService.getPointsQueue()));
-    assertEquals("The available points balance is not 0.0", 0.0, pointsService.getAvailablePointsBalance());
+    assertEquals("The available points balance is not 0", 0L, pointsService.getAvailablePointsBalance());
   }
 
   @Test
@@ -225,32 +282,32 @@ class FetchApplicationTests {
 
     LocalDateTime timestamp1 = LocalDateTime.now();
     LocalDateTime timestamp2 = LocalDateTime.now().plusSeconds(20);
-    transactionList.add(new Transaction("PAYER-1", -200.0, timestamp1));
-    transactionList.add(new Transaction("PAYER-1", 1200.0, timestamp2));
+    transactionList.add(new Transaction("PAYER-1", -200, timestamp1));
+    transactionList.add(new Transaction("PAYER-1", 1200, timestamp2));
     pointsService.addPoints(transactionList);
 
-    SpendTransaction spendTransaction1 = new SpendTransaction(800.0);
+    SpendTransaction spendTransaction1 = new SpendTransaction(800);
     Set<PointBalance> pointBalances1 = pointsService.spendPoints(spendTransaction1);
 
     assertEquals("The points were not deducted from only 1 payer", pointBalances1.size(), 1);
     assertEquals("Payer is not PAYER-1", "PAYER-1", pointBalances1.stream().map(PointBalance::getPayer).findAny().get());
-    assertEquals("Points deducted for PAYER-1 is not -800.0", -800.0, pointBalances1.stream().map(PointBalance::getPoints).findAny().get());
+    assertEquals("Points deducted for PAYER-1 is not -800", -800L, pointBalances1.stream().map(PointBalance::getPoints).findAny().get());
     assertEquals("The points per payer map is not size 1", 1, pointsService.getPointsBalance().size());
-    assertEquals("The points for PAYER-1 is not 200.0", 200.0, pointsService.getPointsBalance().get("PAYER-1"));
+    assertEquals("The points for PAYER-1 is not 200", 200L, pointsService.getPointsBalance().get("PAYER-1"));
     assertEquals("The transaction queue is not size 1", 1, pointsService.getPointsQueue().size());
     assertEquals("The top transaction in queue does not have " + timestamp2 + " as timestamp", timestamp2, pointsService.getPointsQueue().peek().getTimestamp());
-    assertEquals("The available points balance is not 200.0", 200.0, pointsService.getAvailablePointsBalance());
+    assertEquals("The available points balance is not 200", 200L, pointsService.getAvailablePointsBalance());
 
-    SpendTransaction spendTransaction2 = new SpendTransaction(200.0);
+    SpendTransaction spendTransaction2 = new SpendTransaction(200);
     Set<PointBalance> pointBalances2 = pointsService.spendPoints(spendTransaction2);
 
     assertEquals("The points were not deducted from only 1 payer", pointBalances2.size(), 1);
     assertEquals("Payer is not PAYER-1", "PAYER-1", pointBalances2.stream().map(PointBalance::getPayer).findAny().get());
-    assertEquals("Points deducted for PAYER-1 is not -200.0", -200.0, pointBalances2.stream().map(PointBalance::getPoints).findAny().get());
+    assertEquals("Points deducted for PAYER-1 is not -200", -200L, pointBalances2.stream().map(PointBalance::getPoints).findAny().get());
     assertEquals("The points per payer map is not size 1", 1, pointsService.getPointsBalance().size());
-    assertEquals("The points for PAYER-1 is not 0.0", 0.0, pointsService.getPointsBalance().get("PAYER-1"));
+    assertEquals("The points for PAYER-1 is not 0", 0L, pointsService.getPointsBalance().get("PAYER-1"));
     assertTrue("The transaction queue is not empty", CollectionUtils.isEmpty(pointsService.getPointsQueue()));
-    assertEquals("The available points balance is not 0.0", 0.0, pointsService.getAvailablePointsBalance());
+    assertEquals("The available points balance is not 0", 0L, pointsService.getAvailablePointsBalance());
   }
 
   @Test
@@ -259,83 +316,235 @@ class FetchApplicationTests {
     LocalDateTime timestamp1 = LocalDateTime.now();
     LocalDateTime timestamp2 = LocalDateTime.now().plusSeconds(20);
     LocalDateTime timestamp3 = LocalDateTime.now().plusSeconds(30);
-    transactionList1.add(new Transaction("PAYER-1", 200.0, timestamp1));
-    transactionList1.add(new Transaction("PAYER-2", 1200.0, timestamp2));
-    transactionList1.add(new Transaction("PAYER-1", -100.0, timestamp3));
+    transactionList1.add(new Transaction("PAYER-1", 200, timestamp1));
+    transactionList1.add(new Transaction("PAYER-2", 1200, timestamp2));
+    transactionList1.add(new Transaction("PAYER-1", -100, timestamp3));
     pointsService.addPoints(transactionList1);
 
-    SpendTransaction spendTransaction1 = new SpendTransaction(800.0);
+    SpendTransaction spendTransaction1 = new SpendTransaction(800);
     Set<PointBalance> pointBalances1 = pointsService.spendPoints(spendTransaction1);
 
     assertEquals("The points were not deducted from 2 payers", 2, pointBalances1.size());
     assertEquals("Payer is not PAYER-1", "PAYER-1", pointBalances1.stream().map(PointBalance::getPayer)
         .filter(payer -> payer.equals("PAYER-1")).findAny().get());
-    assertEquals("Points deducted for PAYER-1 is not -100.0", -100.0, pointBalances1.stream().filter(pointBalance -> pointBalance.getPayer().equals("PAYER-1"))
+    assertEquals("Points deducted for PAYER-1 is not -100", -100L, pointBalances1.stream().filter(pointBalance -> pointBalance.getPayer().equals("PAYER-1"))
         .map(PointBalance::getPoints).findAny().get());
     assertEquals("Payer is not PAYER-2", "PAYER-2", pointBalances1.stream().map(PointBalance::getPayer)
         .filter(payer -> payer.equals("PAYER-2")).findAny().get());
-    assertEquals("Points deducted for PAYER-2 is not -700.0", -700.0, pointBalances1.stream().filter(pointBalance -> pointBalance.getPayer().equals("PAYER-2"))
+    assertEquals("Points deducted for PAYER-2 is not -700", -700L, pointBalances1.stream().filter(pointBalance -> pointBalance.getPayer().equals("PAYER-2"))
         .map(PointBalance::getPoints).findAny().get());
     assertEquals("The points per payer map is not size 2", 2, pointsService.getPointsBalance().size());
-    assertEquals("The points for Payer 1 is not 0.0", 0.0, pointsService.getPointsBalance().get("PAYER-1"));
-    assertEquals("The points for Payer 2 is not 500.0", 500.0, pointsService.getPointsBalance().get("PAYER-2"));
+    assertEquals("The points for Payer 1 is not 0", 0L, pointsService.getPointsBalance().get("PAYER-1"));
+    assertEquals("The points for Payer 2 is not 500", 500L, pointsService.getPointsBalance().get("PAYER-2"));
     assertEquals("The transaction queue is not size 1", 1, pointsService.getPointsQueue().size());
     assertEquals("The top transaction in queue does not have " + timestamp2 + " as timestamp", timestamp2, pointsService.getPointsQueue().peek().getTimestamp());
-    assertEquals("The available points balance is not 500.0", 500.0, pointsService.getAvailablePointsBalance());
+    assertEquals("The available points balance is not 500", 500L, pointsService.getAvailablePointsBalance());
 
-    SpendTransaction spendTransaction2 = new SpendTransaction(200.0);
+    SpendTransaction spendTransaction2 = new SpendTransaction(200);
     Set<PointBalance> pointBalances2 = pointsService.spendPoints(spendTransaction2);
 
 
     assertEquals("The points were not deducted from 1 payer", 1, pointBalances2.size());
     assertEquals("Payer is not PAYER-2", "PAYER-2", pointBalances2.stream().map(PointBalance::getPayer)
         .filter(payer -> payer.equals("PAYER-2")).findAny().get());
-    assertEquals("Points deducted for PAYER-2 is not -200.0", -200.0, pointBalances2.stream().filter(pointBalance -> pointBalance.getPayer().equals("PAYER-2"))
+    assertEquals("Points deducted for PAYER-2 is not -200", -200L, pointBalances2.stream().filter(pointBalance -> pointBalance.getPayer().equals("PAYER-2"))
         .map(PointBalance::getPoints).findAny().get());
     assertEquals("The points per payer map is not size 2", 2, pointsService.getPointsBalance().size());
-    assertEquals("The points for Payer 1 is not 0.0", 0.0, pointsService.getPointsBalance().get("PAYER-1"));
-    assertEquals("The points for Payer 2 is not 300.0", 300.0, pointsService.getPointsBalance().get("PAYER-2"));
+    assertEquals("The points for Payer 1 is not 0", 0L, pointsService.getPointsBalance().get("PAYER-1"));
+    assertEquals("The points for Payer 2 is not 300", 300L, pointsService.getPointsBalance().get("PAYER-2"));
     assertEquals("The transaction queue is not size 1", 1, pointsService.getPointsQueue().size());
     assertEquals("The top transaction in queue does not have " + timestamp2 + " as timestamp", timestamp2, pointsService.getPointsQueue().peek().getTimestamp());
-    assertEquals("The available points balance is not 300.0", 300.0, pointsService.getAvailablePointsBalance());
+    assertEquals("The available points balance is not 300", 300L, pointsService.getAvailablePointsBalance());
 
     List<Transaction> transactionList2 = new ArrayList<>();
     LocalDateTime timestamp4 = timestamp1.minusSeconds(100);
     LocalDateTime timestamp5 = timestamp1.minusSeconds(200);
-    transactionList2.add(new Transaction("PAYER-1", 300.0, timestamp4));
-    transactionList2.add(new Transaction("PAYER-2", -100.0, timestamp5));
+    transactionList2.add(new Transaction("PAYER-1", 300, timestamp4));
+    transactionList2.add(new Transaction("PAYER-2", -100, timestamp5));
     pointsService.addPoints(transactionList2);
 
     assertEquals("The points per payer map is not size 2", 2, pointsService.getPointsBalance().size());
-    assertEquals("The points for Payer 1 is not 300.0", 300.0, pointsService.getPointsBalance().get("PAYER-1"));
-    assertEquals("The points for Payer 2 is not 200.0", 200.0, pointsService.getPointsBalance().get("PAYER-2"));
-    assertEquals("The transaction queue is not size 3", 3, pointsService.getPointsQueue().size());
-    assertEquals("The top transaction in queue does not have " + timestamp5 + " as timestamp", timestamp5, pointsService.getPointsQueue().peek().getTimestamp());
-    assertEquals("The available points balance is not 500.0", 500.0, pointsService.getAvailablePointsBalance());
+    assertEquals("The points for Payer 1 is not 300", 300L, pointsService.getPointsBalance().get("PAYER-1"));
+    assertEquals("The points for Payer 2 is not 200", 200L, pointsService.getPointsBalance().get("PAYER-2"));
+    assertEquals("The transaction queue is not size 2", 2, pointsService.getPointsQueue().size());
+    assertEquals("The top transaction in queue does not have " + timestamp4 + " as timestamp", timestamp4, pointsService.getPointsQueue().peek().getTimestamp());
+    assertEquals("The available points balance is not 500", 500L, pointsService.getAvailablePointsBalance());
 
-    SpendTransaction spendTransaction3 = new SpendTransaction(400.0);
+    SpendTransaction spendTransaction3 = new SpendTransaction(400);
     Set<PointBalance> pointBalances3 = pointsService.spendPoints(spendTransaction3);
 
     assertEquals("The points were not deducted from 2 payers", 2, pointBalances3.size());
     assertEquals("Payer is not PAYER-1", "PAYER-1", pointBalances3.stream().map(PointBalance::getPayer)
         .filter(payer -> payer.equals("PAYER-1")).findAny().get());
-    assertEquals("Points deducted for PAYER-1 is not -300.0", -300.0, pointBalances3.stream().filter(pointBalance -> pointBalance.getPayer().equals("PAYER-1"))
+    assertEquals("Points deducted for PAYER-1 is not -300", -300L, pointBalances3.stream().filter(pointBalance -> pointBalance.getPayer().equals("PAYER-1"))
         .map(PointBalance::getPoints).findAny().get());
     assertEquals("Payer is not PAYER-2", "PAYER-2", pointBalances3.stream().map(PointBalance::getPayer)
         .filter(payer -> payer.equals("PAYER-2")).findAny().get());
-    assertEquals("Points deducted for PAYER-2 is not -100.0", -100.0, pointBalances3.stream().filter(pointBalance -> pointBalance.getPayer().equals("PAYER-2"))
+    assertEquals("Points deducted for PAYER-2 is not -100", -100L, pointBalances3.stream().filter(pointBalance -> pointBalance.getPayer().equals("PAYER-2"))
         .map(PointBalance::getPoints).findAny().get());
     assertEquals("The points per payer map is not size 2", 2, pointsService.getPointsBalance().size());
-    assertEquals("The points for Payer 1 is not 0.0", 0.0, pointsService.getPointsBalance().get("PAYER-1"));
-    assertEquals("The points for Payer 2 is not 100.0", 100.0, pointsService.getPointsBalance().get("PAYER-2"));
+    assertEquals("The points for Payer 1 is not 0", 0L, pointsService.getPointsBalance().get("PAYER-1"));
+    assertEquals("The points for Payer 2 is not 100", 100L, pointsService.getPointsBalance().get("PAYER-2"));
     assertEquals("The transaction queue is not size 1", 1, pointsService.getPointsQueue().size());
     assertEquals("The top transaction in queue does not have " + timestamp2 + " as timestamp", timestamp2, pointsService.getPointsQueue().peek().getTimestamp());
-    assertEquals("The available points balance is not 100.0", 100.0, pointsService.getAvailablePointsBalance());
+    assertEquals("The available points balance is not 100", 100L, pointsService.getAvailablePointsBalance());
+
+  }
+
+  @Test
+  void testSpendPoints_DebitOfOnePayer_DoesNotOffsetAnother() {
+    LocalDateTime timestamp1 = LocalDateTime.now();
+    pointsService.addPoints(Arrays.asList(
+        new Transaction("PAYER-1", 500, timestamp1),
+        new Transaction("PAYER-2", 500, timestamp1.plusSeconds(10)),
+        new Transaction("PAYER-2", -300, timestamp1.plusSeconds(20))));
+
+    Set<PointBalance> pointBalances = pointsService.spendPoints(new SpendTransaction(400));
+
+    assertEquals("The spend was not charged to PAYER-1 only",
+        Collections.singleton(new PointBalance("PAYER-1", -400)), pointBalances);
+    assertEquals("The points for Payer 2 is not 200", 200L, pointsService.getPointsBalance().get("PAYER-2"));
+    assertEquals("The available points balance is not 300", 300L, pointsService.getAvailablePointsBalance());
+  }
+
+  @Test
+  void testSpendPointsBatch_AllOrNothing_InvalidSpendRejectsBatch() {
+    List<Transaction> transactionList = new ArrayList<>();
+    transactionList.add(new Transaction("PAYER-1", 200, LocalDateTime.now()));
+    transactionList.add(new Transaction("PAYER-2", 300, LocalDateTime.now().plusSeconds(10)));
+    pointsService.addPoints(transactionList);
+
+    List<SpendTransaction> spendTransactions = Arrays.asList(
+        new SpendTransaction(100), new SpendTransaction(300), new SpendTransaction(200));
+    IllegalStateException e = assertThrows(IllegalStateException.class,
+        () -> pointsService.spendPoints(PointsService.DEFAULT_ACCOUNT, spendTransactions, SpendMode.ALL_OR_NOTHING));
 
+    assertEquals("Error message is not as expected",
+        "Spend 2: Insufficient Point Balance. Points available: 100 Redemption  request: 200", e.getMessage());
+    assertEquals("The available points balance is not 500", 500L, pointsService.getAvailablePointsBalance());
+    assertEquals("The transaction queue is not size 2", 2, pointsService.getPointsQueue().size());
+  }
+
+  @Test
+  void testSpendPointsBatch_PerItem_MatchesSingleSpends() {
+    List<Transaction> transactionList = new ArrayList<>();
+    LocalDateTime timestamp = LocalDateTime.now();
+    transactionList.add(new Transaction("PAYER-1", 200, timestamp));
+    transactionList.add(new Transaction("PAYER-2", 1200, timestamp.plusSeconds(20)));
+    transactionList.add(new Transaction("PAYER-1", -100, timestamp.plusSeconds(30)));
+    pointsService.addPoints(transactionList);
+
+    List<SpendResult> spendResults = pointsService.spendPoints(PointsService.DEFAULT_ACCOUNT, Arrays.asList(
+        new SpendTransaction(800), new SpendTransaction(0), new SpendTransaction(5000), new SpendTransaction(200)),
+        SpendMode.PER_ITEM);
+
+    assertEquals("There is not one result per spend", 4, spendResults.size());
+    assertEquals("The first spend did not take 100 from PAYER-1 and 700 from PAYER-2",
+        new HashSet<>(Arrays.asList(new PointBalance("PAYER-1", -100), new PointBalance("PAYER-2", -700))),
+        new HashSet<>(spendResults.get(0).getPointBalances()));
+    assertTrue("The zero spend was not rejected", !spendResults.get(1).isAccepted());
+    assertTrue("The oversized spend was not rejected", !spendResults.get(2).isAccepted());
+    assertEquals("The last spend did not take 200 from PAYER-2",
+        Collections.singletonList(new PointBalance("PAYER-2", -200)), spendResults.get(3).getPointBalances());
+    assertEquals("The points for Payer 2 is not 300", 300L, pointsService.getPointsBalance().get("PAYER-2"));
+    assertEquals("The available points balance is not 300", 300L, pointsService.getAvailablePointsBalance());
   }
 
   /**
    * SPEND POINTS UNIT TESTS - START
    **/
 
+  @Test
+  void testSpendPoints_RetryWithIdempotencyKey_SpendsOnce() {
+    pointsService.addPoints(Arrays.asList(
+        new Transaction("PAYER-1", 300, LocalDateTime.now().minusHours(1)),
+        new Transaction("PAYER-2", 300, LocalDateTime.now())));
+
+    Set<PointBalance> first = pointsService.spendPoints(PointsService.DEFAULT_ACCOUNT, new SpendTransaction(400), "spend-1");
+    Set<PointBalance> retry = pointsService.spendPoints(PointsService.DEFAULT_ACCOUNT, new SpendTransaction(400), "spend-1");
+    IllegalStateException e = assertThrows(IllegalStateException.class,
+        () -> pointsService.spendPoints(PointsService.DEFAULT_ACCOUNT, new SpendTransaction(400), "spend-2"));
+    pointsService.addPoints(Collections.singletonList(new Transaction("PAYER-1", 500, LocalDateTime.now())));
+    IllegalStateException retried = assertThrows(IllegalStateException.class,
+        () -> pointsService.spendPoints(PointsService.DEFAULT_ACCOUNT, new SpendTransaction(400), "spend-2"));
+
+    assertEquals("The retry did not return the points of the first spend", first, retry);
+    assertEquals("The retried rejection differs from the first one", e.getMessage(), retried.getMessage());
+    assertEquals("The available points balance is not 700", 700L, pointsService.getAvailablePointsBalance());
+  }
+
+  @Test
+  void testQuoteSpend_MatchesSpendWithoutSpending() {
+    LocalDateTime now = LocalDateTime.now();
+    pointsService.addPoints(Arrays.asList(
+        new Transaction("PAYER-1", 300, now.minusHours(1)),
+        new Transaction("PAYER-2", 400, now),
+        new Transaction("PAYER-3", 200, now.minusDays(2)),
+        new Transaction("PAYER-1", -100, now)));
+
+    Set<PointBalance> quote = pointsService.quoteSpend(PointsService.DEFAULT_ACCOUNT, new SpendTransaction(500));
+    assertEquals("The quote spent points", 800L, pointsService.getAvailablePointsBalance());
+    IllegalStateException e = assertThrows(IllegalStateException.class,
+        () -> pointsService.quoteSpend(PointsService.DEFAULT_ACCOUNT, new SpendTransaction(900)));
+    Set<PointBalance> spent = pointsService.spendPoints(new SpendTransaction(500));
+
+    assertEquals("The quote differs from the spend", spent, quote);
+    assertEquals("The quote is not PAYER-3's and PAYER-1's lots", new HashSet<>(Arrays.asList(
+        new PointBalance("PAYER-3", -200), new PointBalance("PAYER-1", -200), new PointBalance("PAYER-2", -100))),
+        quote);
+    assertTrue("The quote was not refused for lack of points", e.getMessage().startsWith("Insufficient"));
+  }
+
+  /**
+   * POINTS EXPIRY UNIT TESTS - START
+   **/
+
+  @Test
+  void testSpendPoints_ExpiredLotsAreNeverSpent() {
+    PointsService expiringService = new PointsService(expiry(Duration.ofDays(30), Map.of()));
+    LocalDateTime now = LocalDateTime.now();
+    expiringService.addPoints(Arrays.asList(
+        new Transaction("PAYER-1", 500, now.minusDays(40)),
+        new Transaction("PAYER-2", 300, now.minusDays(10))));
+
+    IllegalStateException e = assertThrows(IllegalStateException.class,
+        () -> expiringService.spendPoints(new SpendTransaction(400)));
+    Set<PointBalance> pointBalances = expiringService.spendPoints(new SpendTransaction(200));
+
+    assertTrue("The spend was not refused for lack of unexpired points", e.getMessage().startsWith("Insufficient"));
+    assertEquals("The spend was not charged to PAYER-2 only",
+        Collections.singleton(new PointBalance("PAYER-2", -200)), pointBalances);
+    assertEquals("The expired points of Payer 1 are still in its balance", 0L,
+        expiringService.getPointsBalance().get("PAYER-1"));
+    assertEquals("The available points balance is not 100", 100L, expiringService.getAvailablePointsBalance());
+    assertEquals("The transaction queue is not size 1", 1, expiringService.getPointsQueue().size());
+    expiringService.shutdown();
+  }
+
+  @Test
+  void testExpirePoints_PayerExpiryOverridesDefault() {
+    PointsService expiringService = new PointsService(
+        expiry(Duration.ofDays(30), Map.of("PAYER-1", Duration.ofDays(5), "PAYER-3", Duration.ZERO)));
+    LocalDateTime now = LocalDateTime.now();
+    expiringService.addPoints(Arrays.asList(
+        new Transaction("PAYER-1", 100, now.minusDays(10)),
+        new Transaction("PAYER-1", 200, now.minusDays(1)),
+        new Transaction("PAYER-2", 400, now.minusDays(10)),
+        new Transaction("PAYER-3", 800, now.minusDays(400))));
+
+    assertEquals("Only the older lot of Payer 1 did not expire", 100L, expiringService.expirePoints());
+    assertEquals("Nothing more is due", 0L, expiringService.expirePoints());
+    assertEquals("The points for Payer 1 is not 200", 200L, expiringService.getPointsBalance().get("PAYER-1"));
+    assertEquals("The available points balance is not 1400", 1400L, expiringService.getAvailablePointsBalance());
+    assertEquals("The transaction queue is not size 3", 3, expiringService.getPointsQueue().size());
+    expiringService.shutdown();
+  }
+
+  private static LedgerProperties expiry(Duration pointsExpiry, Map<String, Duration> payerPointsExpiry) {
+    LedgerProperties ledgerProperties = new LedgerProperties();
+    ledgerProperties.setPointsExpiry(pointsExpiry);
+    ledgerProperties.setPayerPointsExpiry(payerPointsExpiry);
+    return ledgerProperties;
+  }
+
 }
@@ -0,0 +1,222 @@
+package edu.umass.fetch;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+import edu.umass.fetch.config.LedgerProperties;
+import edu.umass.fetch.config.LedgerProperties.Engine;
+import edu.umass.fetch.request.SpendTransaction;
+import edu.umass.fetch.request.Transaction;
+import edu.umass.fetch.response.PointBalance;
+import edu.umass.fetch.service.BalanceView;
+import edu.umass.fetch.service.Lot;
+import edu.umass.fetch.service.PointsService;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+
+class PointsServiceConcurrencyTests {
+
+  private static final int PAYERS = 8;
+  private static final int ACCOUNTS = 64;
+  private static final int OPERATIONS_PER_THREAD = 20_000;
+
+  @Test
+  void testConcurrentAddAndSpend_InvariantsHold() throws Exception {
+    PointsService pointsService = new PointsService();
+    long[] totals = runWorkload(pointsService, Math.max(4, Runtime.getRuntime().availableProcessors() * 2), 1);
+
+    assertLedgerConsistent(pointsService, 1, totals[0] - totals[1]);
+  }
+
+  @Test
+  void testConcurrentAddAndSpend_MultipleAccounts_InvariantsHold() throws Exception {
+    PointsService pointsService = new PointsService();
+    long[] totals = runWorkload(pointsService, Math.max(4, Runtime.getRuntime().availableProcessors() * 2), ACCOUNTS);
+
+    assertLedgerConsistent(pointsService, ACCOUNTS, totals[0] - totals[1]);
+  }
+
+  @Test
+  void testConcurrentAddAndSpend_RingBuffer_InvariantsHold() throws Exception {
+    LedgerProperties ledgerProperties = new LedgerProperties();
+    ledgerProperties.setEngine(Engine.RING_BUFFER);
+    // A small ring makes callers wait for free slots as well
+    ledgerProperties.setRingSize(8);
+    PointsService pointsService = new PointsService(ledgerProperties);
+    long[] totals = runWorkload(pointsService, Math.max(4, Runtime.getRuntime().availableProcessors() * 2), ACCOUNTS);
+
+    assertLedgerConsistent(pointsService, ACCOUNTS, totals[0] - totals[1]);
+    pointsService.shutdown();
+    assertThrows(RejectedExecutionException.class, () -> pointsService.spendPoints(new SpendTransaction(1)));
+  }
+
+  @Test
+  void testBalanceView_ReadersNeverSeeTornWrites() throws Exception {
+    PointsService pointsService = new PointsService();
+    LocalDateTime epoch = LocalDateTime.now();
+    int readers = 3;
+    ExecutorService executor = Executors.newFixedThreadPool(readers);
+    AtomicBoolean writing = new AtomicBoolean(true);
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int t = 0; t < readers; t++) {
+      futures.add(executor.submit(() -> {
+        long lastVersion = -1;
+        int views = 0;
+        while (writing.get()) {
+          BalanceView view = pointsService.getBalanceView("ACCOUNT");
+          Map<String, Long> balances = view.toMap();
+          assertEquals("A view shows half of a write", balances.get("PAYER-A"), balances.get("PAYER-B"));
+          assertTrue("A view is older than one read before it", view.getVersion() >= lastVersion);
+          lastVersion = view.getVersion();
+          views++;
+        }
+        return views;
+      }));
+    }
+    for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+      pointsService.addPoints("ACCOUNT", Arrays.asList(new Transaction("PAYER-A", 10, epoch.plusSeconds(i)),
+          new Transaction("PAYER-B", 10, epoch.plusSeconds(i))));
+    }
+    writing.set(false);
+    for (Future<Integer> future : futures) {
+      assertTrue("A reader saw no views", future.get() > 0);
+    }
+    executor.shutdown();
+
+    BalanceView view = pointsService.getBalanceView("ACCOUNT");
+    assertTrue("An unchanged ledger did not share its view", view == pointsService.getBalanceView("ACCOUNT"));
+    assertEquals("The view does not have the last write", 10L * OPERATIONS_PER_THREAD, view.toMap().get("PAYER-A"));
+  }
+
+  @Test
+  void testQuoteSpend_QuotesNeverSeeTornWrites() throws Exception {
+    PointsService pointsService = new PointsService();
+    LocalDateTime epoch = LocalDateTime.now();
+    pointsService.addPoints("ACCOUNT", Arrays.asList(new Transaction("PAYER-A", 10, epoch),
+        new Transaction("PAYER-B", 10, epoch), new Transaction("PAYER-A", 10, epoch.plusSeconds(1)),
+        new Transaction("PAYER-B", 10, epoch.plusSeconds(1))));
+    Set<PointBalance> pair = Set.of(new PointBalance("PAYER-A", -10), new PointBalance("PAYER-B", -10));
+    int readers = 3;
+    ExecutorService executor = Executors.newFixedThreadPool(readers);
+    AtomicBoolean writing = new AtomicBoolean(true);
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int t = 0; t < readers; t++) {
+      futures.add(executor.submit(() -> {
+        int quotes = 0;
+        while (writing.get()) {
+          // Lots always come in pairs of the same timestamp, so a quote of 20 points takes one lot of each payer
+          assertEquals("A quote shows half of a write", pair,
+              pointsService.quoteSpend("ACCOUNT", new SpendTransaction(20)));
+          quotes++;
+        }
+        return quotes;
+      }));
+    }
+    for (int i = 2; i < OPERATIONS_PER_THREAD; i++) {
+      pointsService.addPoints("ACCOUNT", Arrays.asList(new Transaction("PAYER-A", 10, epoch.plusSeconds(i)),
+          new Transaction("PAYER-B", 10, epoch.plusSeconds(i))));
+      pointsService.spendPoints("ACCOUNT", new SpendTransaction(20));
+    }
+    writing.set(false);
+    for (Future<Integer> future : futures) {
+      assertTrue("A reader made no quotes", future.get() > 0);
+    }
+    executor.shutdown();
+    pointsService.shutdown();
+  }
+
+  /**
+   * Runs a mixed add / spend / balance workload over the given number of accounts and returns the points added and the
+   * points spent across all of them.
+   */
+  private long[] runWorkload(PointsService pointsService, int threads, int accounts) throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CountDownLatch startSignal = new CountDownLatch(1);
+    List<Future<long[]>> futures = new ArrayList<>();
+    LocalDateTime epoch = LocalDateTime.now();
+
+    for (int t = 0; t < threads; t++) {
+      futures.add(executor.submit(() -> {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long added = 0;
+        long spent = 0;
+        startSignal.await();
+        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+          String accountId = accountId(random.nextInt(accounts));
+          int operation = random.nextInt(10);
+          if (operation < 5) {
+            long points = 1 + random.nextInt(100);
+            pointsService.addPoints(accountId, Collections.singletonList(new Transaction("PAYER-" + random.nextInt(PAYERS),
+                points, epoch.plusSeconds(random.nextInt(1_000_000)))));
+            added += points;
+          } else if (operation < 9) {
+            try {
+              Set<PointBalance> balances = pointsService.spendPoints(accountId,
+                  new SpendTransaction(1 + random.nextInt(150)));
+              for (PointBalance balance : balances) {
+                assertTrue("Spend breakdown is not negative", balance.getPoints() < 0);
+                spent -= balance.getPoints();
+              }
+            } catch (IllegalStateException e) {
+              assertTrue("Unexpected rejection: " + e.getMessage(), e.getMessage().startsWith("Insufficient"));
+            }
+          } else {
+            pointsService.getPointsBalance(accountId).values()
+                .forEach(balance -> assertTrue("Balance read is negative", balance >= 0));
+          }
+        }
+        return new long[] {added, spent};
+      }));
+    }
+
+    startSignal.countDown();
+    long[] totals = new long[2];
+    for (Future<long[]> future : futures) {
+      long[] result = future.get();
+      totals[0] += result[0];
+      totals[1] += result[1];
+    }
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.MINUTES);
+    return totals;
+  }
+
+  private void assertLedgerConsistent(PointsService pointsService, int accounts, long expectedBalance) {
+    long availableTotal = 0;
+    for (int account = 0; account < accounts; account++) {
+      String accountId = accountId(account);
+      long available = pointsService.getAvailablePointsBalance(accountId);
+      long payerTotal = pointsService.getPointsBalance(accountId).values().stream()
+          .mapToLong(Long::longValue).sum();
+      long queueTotal = pointsService.getPointsQueue(accountId).stream().mapToLong(Lot::getPoints).sum();
+
+      assertEquals("Sum of payer balances does not match available balance of " + accountId, available, payerTotal);
+      assertEquals("Sum of queued lots does not match available balance of " + accountId, available,
+          queueTotal);
+      assertTrue("A queued lot of " + accountId + " has non-positive points",
+          pointsService.getPointsQueue(accountId).stream().allMatch(lot -> lot.getPoints() > 0));
+      availableTotal += available;
+    }
+    assertEquals("Available balance does not match points added minus points spent", expectedBalance, availableTotal);
+  }
+
+  private static String accountId(int account) {
+    return account == 0 ? PointsService.DEFAULT_ACCOUNT : "ACCOUNT-" + account;
+  }
+
+}
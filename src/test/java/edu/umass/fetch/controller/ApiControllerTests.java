@@ -0,0 +1,94 @@
+package edu.umass.fetch.controller;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+import edu.umass.fetch.request.SpendTransaction;
+import edu.umass.fetch.request.Transaction;
+import edu.umass.fetch.service.PointsService;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.MockMvc;
+
+@SpringBootTest
+@AutoConfigureMockMvc
+class ApiControllerTests {
+
+  private static final LocalDateTime TIMESTAMP = LocalDateTime.of(2021, 3, 1, 10, 15, 30);
+
+  @Autowired
+  MockMvc mockMvc;
+
+  @Autowired
+  PointsService pointsService;
+
+  @Test
+  void testGetPointsBalance_NotModifiedUntilAWrite() throws Exception {
+    pointsService.addPoints("ETAG", Collections.singletonList(new Transaction("DANNON", 300, TIMESTAMP)));
+
+    MockHttpServletResponse first = mockMvc.perform(get("/getPointsBalance").param("accountId", "ETAG"))
+        .andReturn().getResponse();
+    String eTag = first.getHeader(HttpHeaders.ETAG);
+    assertEquals("The balance was not answered with 200", 200, first.getStatus());
+    assertTrue("The balance has no ETag", eTag != null && !eTag.isEmpty());
+
+    MockHttpServletResponse unchanged = mockMvc.perform(get("/getPointsBalance").param("accountId", "ETAG")
+        .header(HttpHeaders.IF_NONE_MATCH, eTag))
+        .andReturn().getResponse();
+    assertEquals("An unchanged balance was not answered with 304", 304, unchanged.getStatus());
+    assertEquals("The 304 has a body", "", unchanged.getContentAsString());
+
+    pointsService.spendPoints("ETAG", new SpendTransaction(100));
+    MockHttpServletResponse changed = mockMvc.perform(get("/getPointsBalance").param("accountId", "ETAG")
+        .header(HttpHeaders.IF_NONE_MATCH, eTag))
+        .andReturn().getResponse();
+    assertEquals("A changed balance was not answered with 200", 200, changed.getStatus());
+    assertTrue("The changed balance kept its ETag", !eTag.equals(changed.getHeader(HttpHeaders.ETAG)));
+    assertTrue("The changed balance is not in the body", changed.getContentAsString().contains("200"));
+  }
+
+  @Test
+  void testAddTransactions_MissingPayer_BadRequest() throws Exception {
+    MockHttpServletResponse response = mockMvc.perform(post("/addTransactions")
+        .param("accountId", "SMALL-BAD-ROW")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("[{\"payer\": \"PAYER-1\", \"points\": 100, \"timestamp\": \"" + TIMESTAMP + "\"},"
+            + "{\"points\": 200, \"timestamp\": \"" + TIMESTAMP + "\"}]"))
+        .andReturn().getResponse();
+
+    assertEquals("A list with a bad row is not answered with 400", 400, response.getStatus());
+    assertTrue("Points of the rejected list were added", pointsService.getPointsBalance("SMALL-BAD-ROW").isEmpty());
+  }
+
+  @Test
+  void testAddTransactions_LargeListWithMissingTimestamp_BadRequest() throws Exception {
+    StringBuilder body = new StringBuilder("[");
+    for (int i = 0; i < 2000; i++) {
+      body.append(i == 0 ? "" : ",").append("{\"payer\": \"PAYER-").append(i % 3).append("\", \"points\": 10");
+      body.append(i == 1500 ? "}" : ", \"timestamp\": \"" + TIMESTAMP.plusSeconds(i) + "\"}");
+    }
+    body.append("]");
+
+    MockHttpServletResponse response = mockMvc.perform(post("/addTransactions")
+        .param("accountId", "LARGE-BAD-ROW")
+        .contentType(MediaType.APPLICATION_JSON)
+        .content(body.toString()))
+        .andReturn().getResponse();
+
+    assertEquals("A large list with a bad row is not answered with 400", 400, response.getStatus());
+    assertTrue("The answer does not name the bad row", response.getContentAsString().contains("1500"));
+    assertTrue("Points of the rejected list were added",
+        pointsService.getPointsBalance("LARGE-BAD-ROW").isEmpty());
+    assertEquals("The available points balance is not zero", 0L,
+        pointsService.getAvailablePointsBalance("LARGE-BAD-ROW"));
+  }
+}
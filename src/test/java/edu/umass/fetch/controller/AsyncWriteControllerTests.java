@@ -0,0 +1,106 @@
+package edu.umass.fetch.controller;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+
+import edu.umass.fetch.service.PointsService;
+import java.time.LocalDateTime;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+@SpringBootTest(properties = "fetch.web.execution-mode=async")
+@AutoConfigureMockMvc
+class AsyncWriteControllerTests {
+
+  private static final LocalDateTime TIMESTAMP = LocalDateTime.of(2021, 3, 1, 10, 15, 30);
+
+  @Autowired
+  MockMvc mockMvc;
+
+  @Autowired
+  PointsService pointsService;
+
+  @Test
+  void testAddAndSpend_Completed() throws Exception {
+    MockHttpServletResponse added = perform(addTransactions("ASYNC-1",
+        "{\"payer\": \"DANNON\", \"points\": 300, \"timestamp\": \"" + TIMESTAMP + "\"},"
+            + "{\"payer\": \"UNILEVER\", \"points\": 200, \"timestamp\": \"" + TIMESTAMP.plusHours(1) + "\"}"));
+    assertEquals("The add was not answered with 200", 200, added.getStatus());
+    assertEquals("The add was not confirmed", "Transactions added successfully", added.getContentAsString());
+
+    MockHttpServletResponse spent = perform(spendPoints("ASYNC-1", 400));
+    assertEquals("The spend was not answered with 200", 200, spent.getStatus());
+    assertTrue("The spend did not take 300 from DANNON", spent.getContentAsString().contains("-300"));
+    assertTrue("The spend did not take 100 from UNILEVER", spent.getContentAsString().contains("-100"));
+    assertEquals("The available points balance is not 100", 100L, pointsService.getAvailablePointsBalance("ASYNC-1"));
+  }
+
+  @Test
+  void testAdd_NegativeBalance_Unprocessable() throws Exception {
+    MockHttpServletResponse response = perform(addTransactions("ASYNC-2",
+        "{\"payer\": \"DANNON\", \"points\": 100, \"timestamp\": \"" + TIMESTAMP + "\"},"
+            + "{\"payer\": \"DANNON\", \"points\": -200, \"timestamp\": \"" + TIMESTAMP.plusHours(1) + "\"}"));
+
+    assertEquals("The add was not answered with 422", 422, response.getStatus());
+    assertTrue("The rejected add added points", pointsService.getPointsBalance("ASYNC-2").isEmpty());
+  }
+
+  @Test
+  void testSpend_InsufficientPoints_Unprocessable() throws Exception {
+    perform(addTransactions("ASYNC-3", "{\"payer\": \"DANNON\", \"points\": 100, \"timestamp\": \"" + TIMESTAMP
+        + "\"}"));
+
+    MockHttpServletResponse response = perform(spendPoints("ASYNC-3", 500));
+
+    assertEquals("The spend was not answered with 422", 422, response.getStatus());
+    assertEquals("The available points balance is not 100", 100L, pointsService.getAvailablePointsBalance("ASYNC-3"));
+  }
+
+  @Test
+  void testSpend_RetryWithIdempotencyKey_SpendsOnce() throws Exception {
+    perform(addTransactions("ASYNC-4", "{\"payer\": \"DANNON\", \"points\": 1000, \"timestamp\": \"" + TIMESTAMP
+        + "\"}"));
+
+    MockHttpServletResponse first = perform(spendPoints("ASYNC-4", 300)
+        .header(ApiController.IDEMPOTENCY_KEY_HEADER, "spend-1"));
+    MockHttpServletResponse retry = perform(spendPoints("ASYNC-4", 300)
+        .header(ApiController.IDEMPOTENCY_KEY_HEADER, "spend-1"));
+
+    assertEquals("The retry was not answered with 200", 200, retry.getStatus());
+    assertEquals("The retry did not return the first outcome", first.getContentAsString(),
+        retry.getContentAsString());
+    assertEquals("The available points balance is not 700", 700L, pointsService.getAvailablePointsBalance("ASYNC-4"));
+  }
+
+  private static MockHttpServletRequestBuilder addTransactions(String accountId, String transactions) {
+    return post("/addTransactions")
+        .param("accountId", accountId)
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("[" + transactions + "]");
+  }
+
+  private static MockHttpServletRequestBuilder spendPoints(String accountId, long points) {
+    return post("/spendPoints")
+        .param("accountId", accountId)
+        .contentType(MediaType.APPLICATION_JSON)
+        .content("{\"points\": " + points + "}");
+  }
+
+  /**
+   * Sends the request and, once its future completed, dispatches it again to write the response.
+   */
+  private MockHttpServletResponse perform(MockHttpServletRequestBuilder request) throws Exception {
+    MvcResult started = mockMvc.perform(request).andReturn();
+    assertTrue("The request was not handled asynchronously", started.getRequest().isAsyncStarted());
+    return mockMvc.perform(asyncDispatch(started)).andReturn().getResponse();
+  }
+}
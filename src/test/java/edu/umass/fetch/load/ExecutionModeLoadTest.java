@@ -0,0 +1,225 @@
+package edu.umass.fetch.load;
+
+import edu.umass.fetch.FetchApplication;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Closed-loop load test of the REST layer in each execution mode, with persistence on so that every add and spend waits
+ * for the log to be forced. For each number of connections, that many clients each send their next request as soon as
+ * the previous one is answered, cycling through add, add, spend and balance over 64 accounts. Prints throughput and
+ * latency percentiles per level, and the most connections each mode served without errors and within the p99 target.
+ *
+ * <p>Run with {@code ./mvnw -Pload-test verify [-Dload.args="--seconds=10 --connections=16,256,1024 --p99-ms=100"]}.
+ * The {@code virtual-threads} mode is skipped unless the JVM is Java 21 or later; point {@code -Dload.java} at one.
+ */
+public class ExecutionModeLoadTest {
+
+  private static final int ACCOUNTS = 64;
+
+  private final HttpClient httpClient;
+  private final String baseUrl;
+  private final String timestamp = LocalDateTime.now().toString();
+
+  private ExecutionModeLoadTest(HttpClient httpClient, String baseUrl) {
+    this.httpClient = httpClient;
+    this.baseUrl = baseUrl;
+  }
+
+  public static void main(String[] args) throws Exception {
+    // Devtools would otherwise run main a second time in its restart class loader
+    System.setProperty("spring.devtools.restart.enabled", "false");
+    int seconds = 10;
+    int[] connectionLevels = {16, 64, 256, 1024};
+    double p99TargetMillis = 100;
+    List<String> modes = new ArrayList<>(List.of("blocking", "async"));
+    if (Runtime.version().feature() >= 21) {
+      modes.add("virtual-threads");
+    }
+    for (String arg : args) {
+      String[] option = arg.split("=", 2);
+      switch (option[0]) {
+        case "--seconds":
+          seconds = Integer.parseInt(option[1]);
+          break;
+        case "--connections":
+          connectionLevels = Arrays.stream(option[1].split(",")).mapToInt(Integer::parseInt).toArray();
+          break;
+        case "--p99-ms":
+          p99TargetMillis = Double.parseDouble(option[1]);
+          break;
+        case "--modes":
+          modes = List.of(option[1].split(","));
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + arg);
+      }
+    }
+
+    List<String> summary = new ArrayList<>();
+    System.out.printf("%-16s %11s %10s %9s %9s %9s %7s%n", "mode", "connections", "req/s", "p50 ms", "p99 ms",
+        "max ms", "errors");
+    for (String mode : modes) {
+      int sustained = 0;
+      Path directory = Files.createTempDirectory("fetch-load-");
+      ConfigurableApplicationContext context = new SpringApplicationBuilder(FetchApplication.class)
+          .properties("server.port=0", "fetch.web.execution-mode=" + mode, "fetch.persistence.enabled=true",
+              "fetch.persistence.directory=" + directory, "fetch.persistence.snapshot-interval=0",
+              "server.tomcat.max-connections=" + (Arrays.stream(connectionLevels).max().getAsInt() + 100),
+              "logging.level.root=warn", "spring.main.banner-mode=off")
+          .run();
+      ExecutorService clientExecutor = Executors.newFixedThreadPool(2);
+      try {
+        HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10)).executor(clientExecutor).build();
+        ExecutionModeLoadTest loadTest = new ExecutionModeLoadTest(httpClient,
+            "http://localhost:" + context.getEnvironment().getProperty("local.server.port"));
+        loadTest.run(Math.min(16, connectionLevels[0]), Math.max(2, seconds / 2));
+        for (int connections : connectionLevels) {
+          Result result = loadTest.run(connections, seconds);
+          System.out.printf("%-16s %11d %10.0f %9.2f %9.2f %9.2f %7d%n", mode, connections,
+              result.requests / (double) seconds, result.percentileMillis(50), result.percentileMillis(99),
+              result.percentileMillis(100), result.errors);
+          if (result.errors == 0 && result.percentileMillis(99) <= p99TargetMillis) {
+            sustained = connections;
+          }
+        }
+      } finally {
+        context.close();
+        clientExecutor.shutdownNow();
+        delete(directory);
+      }
+      summary.add(String.format("%s: %d connections within p99 %.0f ms", mode, sustained, p99TargetMillis));
+    }
+    summary.forEach(System.out::println);
+    System.exit(0);
+  }
+
+  /**
+   * Keeps {@code connections} requests in flight for the given time and collects the latency of each answered one.
+   */
+  private Result run(int connections, int seconds) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    CountDownLatch finished = new CountDownLatch(connections);
+    Client[] clients = new Client[connections];
+    for (int i = 0; i < connections; i++) {
+      clients[i] = new Client(i, deadline, finished);
+      clients[i].sendNext();
+    }
+    finished.await();
+
+    Result result = new Result();
+    for (Client client : clients) {
+      result.add(client);
+    }
+    return result;
+  }
+
+  private HttpRequest request(int client, int sequence) {
+    String accountId = "load-" + (client + sequence) % ACCOUNTS;
+    switch (sequence & 3) {
+      case 0:
+      case 1:
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/addTransactions?accountId=" + accountId))
+            .header("Content-Type", "application/json")
+            .POST(BodyPublishers.ofString("[{\"payer\":\"PAYER-" + (sequence & 7) + "\",\"points\":10,\"timestamp\":\""
+                + timestamp + "\"}]"))
+            .build();
+      case 2:
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/spendPoints?accountId=" + accountId))
+            .header("Content-Type", "application/json")
+            .POST(BodyPublishers.ofString("{\"points\":5}"))
+            .build();
+      default:
+        return HttpRequest.newBuilder(URI.create(baseUrl + "/getPointsBalance?accountId=" + accountId)).GET().build();
+    }
+  }
+
+  /**
+   * One connection's worth of sequential requests. Only the client's own completions touch its fields.
+   */
+  private final class Client {
+
+    private final int id;
+    private final long deadline;
+    private final CountDownLatch finished;
+    private long[] latencies = new long[1024];
+    private int requests;
+    private int errors;
+
+    Client(int id, long deadline, CountDownLatch finished) {
+      this.id = id;
+      this.deadline = deadline;
+      this.finished = finished;
+    }
+
+    void sendNext() {
+      if (System.nanoTime() >= deadline) {
+        finished.countDown();
+        return;
+      }
+      long start = System.nanoTime();
+      httpClient.sendAsync(request(id, requests + errors), BodyHandlers.discarding())
+          .whenComplete((response, e) -> {
+            // 422 is a rejected spend, an answer like any other
+            if (e != null || response.statusCode() >= 500) {
+              errors++;
+            } else {
+              if (requests == latencies.length) {
+                latencies = Arrays.copyOf(latencies, requests * 2);
+              }
+              latencies[requests++] = System.nanoTime() - start;
+            }
+            sendNext();
+          });
+    }
+  }
+
+  private static final class Result {
+
+    private long[] latencies = new long[0];
+    private int requests;
+    private int errors;
+
+    void add(Client client) {
+      latencies = Arrays.copyOf(latencies, requests + client.requests);
+      System.arraycopy(client.latencies, 0, latencies, requests, client.requests);
+      requests += client.requests;
+      errors += client.errors;
+    }
+
+    double percentileMillis(double percentile) {
+      if (requests == 0) {
+        return Double.NaN;
+      }
+      Arrays.sort(latencies);
+      int index = (int) Math.ceil(percentile / 100 * requests) - 1;
+      return latencies[Math.max(0, index)] / 1e6;
+    }
+  }
+
+  private static void delete(Path directory) throws IOException {
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+}
@@ -0,0 +1,530 @@
+package edu.umass.fetch.load;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.umass.fetch.FetchApplication;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * Replays a workload against the REST API and reports throughput and latency percentiles per endpoint, failing the run
+ * when a latency or error objective is missed. Like {@link ExecutionModeLoadTest} it is closed-loop: each of the
+ * {@code --concurrency} clients sends its next request as soon as the previous one is answered.
+ *
+ * <p>The workload is either synthetic, drawn from a mix of adds, spends and balance reads with accounts and payers
+ * picked by a Zipfian distribution, or recorded: a JSON Lines file with one request per line, sent in order and from
+ * the start again once all were sent, for example
+ * {@code {"request_id": "r-1", "method": "POST", "path": "/spendPoints?accountId=A", "body": {"points": 100}}}. Every
+ * line needs a method and a path starting with {@code /}, and a file with a line that does not fit is rejected with
+ * the line number rather than replayed; an object or array body is sent as JSON, a string body as is, and
+ * {@code headers} such as {@code Idempotency-Key} are added to the request.
+ *
+ * <p>Unless {@code --url} points at a running app, one is started in this JVM on a free port, with {@code --set}
+ * properties on top of the defaults. Latencies are recorded in HdrHistograms, which come with Micrometer.
+ *
+ * <p>Run with {@code ./mvnw -Pworkload verify [-Dworkload.args="..."]}. Options, with their defaults:
+ * <ul>
+ *   <li>{@code --seconds=30}, {@code --warmup-seconds=5}, {@code --concurrency=64}</li>
+ *   <li>{@code --workload=path/to/requests.jsonl} to replay a recording instead of a synthetic workload</li>
+ *   <li>{@code --mix=add:50,spend:25,balance:25}, {@code --accounts=1000}, {@code --payers=100},
+ *   {@code --zipf=1.1} (exponent; 0 picks uniformly), {@code --batch-size=1} or a range such as {@code 1-100}</li>
+ *   <li>{@code --slo=/spendPoints:p99=50,all:p99.9=200} latency objectives in ms, per endpoint or across all;
+ *   {@code --max-error-rate=0.001}</li>
+ *   <li>{@code --url=http://host:port}, {@code --set=fetch.persistence.enabled=true} (repeatable)</li>
+ * </ul>
+ * Answers of 500 and above and failed connections count as errors; a 422 is a rejected write, an answer like any other.
+ * The exit status is 1 when an objective was missed.
+ */
+public class WorkloadReplayer {
+
+  private static final String ALL = "all";
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private final HttpClient httpClient;
+  private final String baseUrl;
+  private final Workload workload;
+
+  private WorkloadReplayer(HttpClient httpClient, String baseUrl, Workload workload) {
+    this.httpClient = httpClient;
+    this.baseUrl = baseUrl;
+    this.workload = workload;
+  }
+
+  public static void main(String[] args) throws Exception {
+    // Devtools would otherwise run main a second time in its restart class loader
+    System.setProperty("spring.devtools.restart.enabled", "false");
+    Options options = Options.parse(args);
+    Workload workload = options.workload();
+    String url = options.url;
+    ConfigurableApplicationContext context = null;
+    if (url == null) {
+      context = new SpringApplicationBuilder(FetchApplication.class)
+          .properties(options.properties.toArray(new String[0]))
+          .run();
+      url = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+    }
+    ExecutorService clientExecutor = Executors.newFixedThreadPool(2);
+    boolean met;
+    try {
+      HttpClient httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+          .connectTimeout(Duration.ofSeconds(10)).executor(clientExecutor).build();
+      WorkloadReplayer replayer = new WorkloadReplayer(httpClient, url, workload);
+      if (options.warmupSeconds > 0) {
+        replayer.run(options.concurrency, options.warmupSeconds);
+      }
+      Map<String, Stats> stats = replayer.run(options.concurrency, options.seconds);
+      print(stats, options.seconds);
+      met = check(stats, options.sloMillis, options.maxErrorRate);
+    } finally {
+      if (context != null) {
+        context.close();
+      }
+      clientExecutor.shutdownNow();
+    }
+    System.exit(met ? 0 : 1);
+  }
+
+  /**
+   * Keeps {@code concurrency} requests in flight for the given time and returns the stats per endpoint, and of all
+   * endpoints together under {@value #ALL}.
+   */
+  private Map<String, Stats> run(int concurrency, int seconds) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    CountDownLatch finished = new CountDownLatch(concurrency);
+    Client[] clients = new Client[concurrency];
+    SplittableRandom seeds = new SplittableRandom(42);
+    for (int i = 0; i < concurrency; i++) {
+      clients[i] = new Client(seeds.split(), deadline, finished);
+      clients[i].sendNext();
+    }
+    finished.await();
+
+    Map<String, Stats> stats = new TreeMap<>();
+    Stats all = new Stats();
+    for (Client client : clients) {
+      client.stats.forEach((endpoint, clientStats) -> {
+        stats.computeIfAbsent(endpoint, e -> new Stats()).add(clientStats);
+        all.add(clientStats);
+      });
+    }
+    stats.put(ALL, all);
+    return stats;
+  }
+
+  private static void print(Map<String, Stats> stats, int seconds) {
+    System.out.printf("%-24s %9s %9s %9s %9s %9s %9s %9s %7s%n", "endpoint", "requests", "req/s", "p50 ms", "p90 ms",
+        "p99 ms", "p99.9 ms", "max ms", "errors");
+    stats.forEach((endpoint, endpointStats) -> System.out.printf("%-24s %9d %9.0f %9.2f %9.2f %9.2f %9.2f %9.2f %7d%n",
+        endpoint, endpointStats.latencies.getTotalCount(), endpointStats.latencies.getTotalCount() / (double) seconds,
+        endpointStats.percentileMillis(50), endpointStats.percentileMillis(90), endpointStats.percentileMillis(99),
+        endpointStats.percentileMillis(99.9), endpointStats.latencies.getMaxValue() / 1e6, endpointStats.errors));
+  }
+
+  /**
+   * Prints each objective with the value measured and returns whether all were met. An objective for an endpoint that
+   * was never answered is missed.
+   */
+  static boolean check(Map<String, Stats> stats, Map<String, Double> sloMillis, double maxErrorRate) {
+    boolean met = true;
+    for (Map.Entry<String, Double> objective : sloMillis.entrySet()) {
+      int colon = objective.getKey().lastIndexOf(':');
+      String endpoint = objective.getKey().substring(0, colon);
+      double percentile = Double.parseDouble(objective.getKey().substring(colon + 2));
+      Stats endpointStats = stats.get(endpoint);
+      double measured = endpointStats == null ? Double.NaN : endpointStats.percentileMillis(percentile);
+      boolean ok = measured <= objective.getValue();
+      System.out.printf("SLO %s p%s <= %s ms: %.2f ms %s%n", endpoint, objective.getKey().substring(colon + 2),
+          objective.getValue(), measured, ok ? "met" : "MISSED");
+      met &= ok;
+    }
+    Stats all = stats.get(ALL);
+    long requests = all.latencies.getTotalCount() + all.errors;
+    double errorRate = requests == 0 ? 1 : all.errors / (double) requests;
+    boolean ok = errorRate <= maxErrorRate;
+    System.out.printf("SLO error rate <= %.4f: %.4f %s%n", maxErrorRate, errorRate, ok ? "met" : "MISSED");
+    return met && ok;
+  }
+
+  /**
+   * The command line options, see the class comment.
+   */
+  static final class Options {
+
+    int seconds = 30;
+    int warmupSeconds = 5;
+    int concurrency = 64;
+    String url;
+    Path recording;
+    final SyntheticWorkload synthetic = new SyntheticWorkload();
+    /**
+     * Objectives in ms keyed by {@code endpoint:pNN}.
+     */
+    final Map<String, Double> sloMillis = new LinkedHashMap<>();
+    double maxErrorRate = 0.001;
+    final List<String> properties = new ArrayList<>(List.of("server.port=0", "logging.level.root=warn",
+        "spring.main.banner-mode=off"));
+
+    static Options parse(String... args) {
+      Options options = new Options();
+      for (String arg : args) {
+        String[] option = arg.split("=", 2);
+        switch (option[0]) {
+          case "--seconds":
+            options.seconds = Integer.parseInt(option[1]);
+            break;
+          case "--warmup-seconds":
+            options.warmupSeconds = Integer.parseInt(option[1]);
+            break;
+          case "--concurrency":
+            options.concurrency = Integer.parseInt(option[1]);
+            break;
+          case "--url":
+            options.url = option[1];
+            break;
+          case "--workload":
+            options.recording = Paths.get(option[1]);
+            break;
+          case "--mix":
+            options.synthetic.mix(option[1]);
+            break;
+          case "--accounts":
+            options.synthetic.accounts = Integer.parseInt(option[1]);
+            break;
+          case "--payers":
+            options.synthetic.payers = Integer.parseInt(option[1]);
+            break;
+          case "--zipf":
+            options.synthetic.exponent = Double.parseDouble(option[1]);
+            break;
+          case "--batch-size":
+            String[] range = option[1].split("-", 2);
+            options.synthetic.minBatchSize = Integer.parseInt(range[0]);
+            options.synthetic.maxBatchSize = Integer.parseInt(range[range.length - 1]);
+            break;
+          case "--slo":
+            for (String objective : option[1].split(",")) {
+              // endpoint:pNN=ms, split at the last colon since endpoints are paths
+              int colon = objective.lastIndexOf(':');
+              String[] target = objective.substring(colon + 1).split("=", 2);
+              if (colon < 0 || target.length < 2 || !target[0].startsWith("p")) {
+                throw new IllegalArgumentException("Objective " + objective + " is not endpoint:pNN=ms");
+              }
+              options.sloMillis.put(objective.substring(0, colon) + ":" + target[0], Double.parseDouble(target[1]));
+            }
+            break;
+          case "--max-error-rate":
+            options.maxErrorRate = Double.parseDouble(option[1]);
+            break;
+          case "--set":
+            options.properties.add(option[1]);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown option " + arg);
+        }
+      }
+      return options;
+    }
+
+    Workload workload() throws IOException {
+      return recording == null ? synthetic.prepare() : RecordedWorkload.read(recording);
+    }
+  }
+
+  /**
+   * Requests to send, drawn with the random of the client asking.
+   */
+  interface Workload {
+
+    Request next(SplittableRandom random);
+  }
+
+  static final class Request {
+
+    final String method;
+    final String path;
+    final String body;
+    final Map<String, String> headers;
+
+    Request(String method, String path, String body, Map<String, String> headers) {
+      this.method = method;
+      this.path = path;
+      this.body = body;
+      this.headers = headers;
+    }
+
+    /**
+     * The path without its query, which stats are kept by.
+     */
+    String endpoint() {
+      int query = path.indexOf('?');
+      return query < 0 ? path : path.substring(0, query);
+    }
+
+    HttpRequest toHttpRequest(String baseUrl) {
+      HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(baseUrl + path))
+          .method(method, body == null ? BodyPublishers.noBody() : BodyPublishers.ofString(body));
+      if (body != null) {
+        builder.header("Content-Type", "application/json");
+      }
+      headers.forEach(builder::header);
+      return builder.build();
+    }
+  }
+
+  static final class RecordedWorkload implements Workload {
+
+    private static final Set<String> METHODS = new LinkedHashSet<>(List.of("GET", "POST", "PUT", "PATCH", "DELETE"));
+
+    private final Request[] requests;
+    private final AtomicLong next = new AtomicLong();
+
+    private RecordedWorkload(Request[] requests) {
+      this.requests = requests;
+    }
+
+    static RecordedWorkload read(Path file) throws IOException {
+      List<Request> requests = new ArrayList<>();
+      try (BufferedReader reader = Files.newBufferedReader(file)) {
+        int lineNumber = 0;
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+          lineNumber++;
+          if (line.isBlank()) {
+            continue;
+          }
+          String where = "Line " + lineNumber + " of " + file;
+          JsonNode node;
+          try {
+            node = OBJECT_MAPPER.readTree(line);
+          } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException(where + " is not JSON: " + e.getOriginalMessage());
+          }
+          if (!node.isObject()) {
+            throw new IllegalArgumentException(where + " is not a JSON object");
+          }
+          JsonNode method = node.get("method");
+          if (method == null || !method.isTextual() || !METHODS.contains(method.asText())) {
+            throw new IllegalArgumentException(where + " has no method, or not one of " + METHODS);
+          }
+          JsonNode path = node.get("path");
+          if (path == null || !path.isTextual() || !path.asText().startsWith("/")) {
+            throw new IllegalArgumentException(where + " has no path starting with /");
+          }
+          JsonNode body = node.get("body");
+          String bodyText = body == null || body.isNull() ? null : body.isTextual() ? body.asText() : body.toString();
+          Map<String, String> headers = new LinkedHashMap<>();
+          if (node.has("headers")) {
+            if (!node.get("headers").isObject()) {
+              throw new IllegalArgumentException(where + " has headers that are not an object");
+            }
+            for (Iterator<Map.Entry<String, JsonNode>> fields = node.get("headers").fields(); fields.hasNext(); ) {
+              Map.Entry<String, JsonNode> header = fields.next();
+              headers.put(header.getKey(), header.getValue().asText());
+            }
+          }
+          requests.add(new Request(method.asText(), path.asText(), bodyText, headers));
+        }
+      }
+      if (requests.isEmpty()) {
+        throw new IllegalArgumentException(file + " holds no requests");
+      }
+      return new RecordedWorkload(requests.toArray(new Request[0]));
+    }
+
+    @Override
+    public Request next(SplittableRandom random) {
+      return requests[(int) (next.getAndIncrement() % requests.length)];
+    }
+
+    int size() {
+      return requests.length;
+    }
+  }
+
+  static final class SyntheticWorkload implements Workload {
+
+    private static final Map<String, String> NO_HEADERS = Map.of();
+
+    private final String timestamp = LocalDateTime.now().withNano(0).toString();
+    int addWeight = 50;
+    int spendWeight = 25;
+    int balanceWeight = 25;
+    int accounts = 1000;
+    int payers = 100;
+    double exponent = 1.1;
+    int minBatchSize = 1;
+    int maxBatchSize = 1;
+    private Zipf accountDistribution;
+    private Zipf payerDistribution;
+
+    void mix(String mix) {
+      addWeight = 0;
+      spendWeight = 0;
+      balanceWeight = 0;
+      for (String entry : mix.split(",")) {
+        String[] weight = entry.split(":", 2);
+        switch (weight[0]) {
+          case "add":
+            addWeight = Integer.parseInt(weight[1]);
+            break;
+          case "spend":
+            spendWeight = Integer.parseInt(weight[1]);
+            break;
+          case "balance":
+            balanceWeight = Integer.parseInt(weight[1]);
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown request kind " + weight[0] + " in --mix");
+        }
+      }
+    }
+
+    SyntheticWorkload prepare() {
+      if (addWeight + spendWeight + balanceWeight <= 0) {
+        throw new IllegalArgumentException("The --mix has no requests");
+      }
+      accountDistribution = new Zipf(accounts, exponent);
+      payerDistribution = new Zipf(payers, exponent);
+      return this;
+    }
+
+    @Override
+    public Request next(SplittableRandom random) {
+      String accountId = "load-" + accountDistribution.next(random);
+      int kind = random.nextInt(addWeight + spendWeight + balanceWeight);
+      if (kind < addWeight) {
+        int batchSize = random.nextInt(minBatchSize, maxBatchSize + 1);
+        StringBuilder body = new StringBuilder("[");
+        for (int i = 0; i < batchSize; i++) {
+          body.append(i == 0 ? "" : ",").append("{\"payer\":\"PAYER-").append(payerDistribution.next(random))
+              .append("\",\"points\":").append(1 + random.nextInt(1000)).append(",\"timestamp\":\"")
+              .append(timestamp).append("\"}");
+        }
+        return new Request("POST", "/addTransactions?accountId=" + accountId, body.append(']').toString(),
+            NO_HEADERS);
+      }
+      if (kind < addWeight + spendWeight) {
+        return new Request("POST", "/spendPoints?accountId=" + accountId,
+            "{\"points\":" + (1 + random.nextInt(100)) + "}", NO_HEADERS);
+      }
+      return new Request("GET", "/getPointsBalance?accountId=" + accountId, null, NO_HEADERS);
+    }
+  }
+
+  /**
+   * Zipfian distribution over {@code 0..n-1}: item k is drawn with a probability proportional to {@code 1/(k+1)^s}.
+   * Draws binary-search the cumulative probabilities.
+   */
+  static final class Zipf {
+
+    private final double[] cumulative;
+
+    Zipf(int n, double exponent) {
+      cumulative = new double[n];
+      double sum = 0;
+      for (int k = 0; k < n; k++) {
+        sum += 1 / Math.pow(k + 1, exponent);
+        cumulative[k] = sum;
+      }
+      for (int k = 0; k < n; k++) {
+        cumulative[k] /= sum;
+      }
+    }
+
+    int next(SplittableRandom random) {
+      int index = Arrays.binarySearch(cumulative, random.nextDouble());
+      return Math.min(index < 0 ? -index - 1 : index, cumulative.length - 1);
+    }
+  }
+
+  /**
+   * Latencies in nanoseconds, to three significant digits, and errors of one endpoint.
+   */
+  static final class Stats {
+
+    private final Histogram latencies;
+    private long errors;
+
+    Stats() {
+      this(new Histogram(3), 0);
+    }
+
+    Stats(Histogram latencies, long errors) {
+      this.latencies = latencies;
+      this.errors = errors;
+    }
+
+    void add(Stats other) {
+      latencies.add(other.latencies);
+      errors += other.errors;
+    }
+
+    double percentileMillis(double percentile) {
+      return latencies.getTotalCount() == 0 ? Double.NaN : latencies.getValueAtPercentile(percentile) / 1e6;
+    }
+  }
+
+  /**
+   * One connection's worth of sequential requests. Only the client's own completions touch its fields.
+   */
+  private final class Client {
+
+    private final SplittableRandom random;
+    private final long deadline;
+    private final CountDownLatch finished;
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+
+    Client(SplittableRandom random, long deadline, CountDownLatch finished) {
+      this.random = random;
+      this.deadline = deadline;
+      this.finished = finished;
+    }
+
+    void sendNext() {
+      if (System.nanoTime() >= deadline) {
+        finished.countDown();
+        return;
+      }
+      Request request = workload.next(random);
+      Stats endpointStats = stats.computeIfAbsent(request.endpoint(), endpoint -> new Stats());
+      long start = System.nanoTime();
+      httpClient.sendAsync(request.toHttpRequest(baseUrl), BodyHandlers.discarding())
+          .whenComplete((response, e) -> {
+            if (e != null || response.statusCode() >= 500) {
+              endpointStats.errors++;
+            } else {
+              endpointStats.latencies.recordValue(System.nanoTime() - start);
+            }
+            sendNext();
+          });
+    }
+  }
+}
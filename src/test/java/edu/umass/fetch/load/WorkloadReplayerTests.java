@@ -0,0 +1,130 @@
+package edu.umass.fetch.load;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertFalse;
+import static org.springframework.test.util.AssertionErrors.assertNull;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+import edu.umass.fetch.load.WorkloadReplayer.Options;
+import edu.umass.fetch.load.WorkloadReplayer.RecordedWorkload;
+import edu.umass.fetch.load.WorkloadReplayer.Request;
+import edu.umass.fetch.load.WorkloadReplayer.Stats;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WorkloadReplayerTests {
+
+  private static final Path SAMPLE = Paths.get("src/test/resources/workloads/sample.jsonl");
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void testRead_SampleWorkload() throws IOException {
+    RecordedWorkload workload = RecordedWorkload.read(SAMPLE);
+
+    assertEquals("Not every line was read", 7, workload.size());
+    Request add = workload.next(null);
+    assertEquals("The method was not read", "POST", add.method);
+    assertEquals("The add went to the wrong endpoint", "/addTransactions", add.endpoint());
+    assertTrue("The array body was not sent as JSON", add.body.startsWith("[{\"payer\":\"DANNON\""));
+    workload.next(null);
+    Request balance = workload.next(null);
+    assertEquals("The method of the balance read was not read", "GET", balance.method);
+    assertNull("A request without a body has one", balance.body);
+    Request spend = workload.next(null);
+    assertEquals("The object body was not sent as JSON", "{\"points\":500}", spend.body);
+    assertEquals("The headers were not read", Map.of("Idempotency-Key", "spend-1"), spend.headers);
+    workload.next(null);
+    workload.next(null);
+    workload.next(null);
+    assertEquals("The workload did not start again once all were sent", add, workload.next(null));
+  }
+
+  @Test
+  void testRead_LineWithoutPath_Rejected() throws IOException {
+    assertRejected("Line 3 ", "has no path", "{\"method\": \"GET\", \"path\": \"/getPointsBalance\"}", "",
+        "{\"method\": \"GET\"}");
+  }
+
+  @Test
+  void testRead_MalformedLines_Rejected() throws IOException {
+    String balance = "{\"method\": \"GET\", \"path\": \"/getPointsBalance\"}";
+    assertRejected("Line 2 ", "has no method", balance, "{\"path\": \"/getPointsBalance\"}");
+    assertRejected("Line 2 ", "has no method", balance, "{\"method\": \"FETCH\", \"path\": \"/getPointsBalance\"}");
+    assertRejected("Line 2 ", "has no method", balance,
+        "{\"request_id\": \"user-001\", \"title\": \"Add an endpoint\", \"body\": \"Please add...\"}");
+    assertRejected("Line 2 ", "has no path", balance, "{\"method\": \"GET\", \"path\": \"getPointsBalance\"}");
+    assertRejected("Line 2 ", "is not JSON", balance, "{\"method\": \"GET\", ");
+    assertRejected("Line 2 ", "is not a JSON object", balance, "[1, 2]");
+    assertRejected("Line 1 ", "headers", "{\"method\": \"GET\", \"path\": \"/getPointsBalance\", \"headers\": []}");
+  }
+
+  @Test
+  void testParse_MixAndObjectives() {
+    Options options = Options.parse("--mix=add:10,balance:90", "--slo=/spendPoints:p99=50,all:p99.9=200",
+        "--max-error-rate=0.01", "--set=fetch.persistence.enabled=true");
+
+    assertEquals("The add weight is wrong", 10, options.synthetic.addWeight);
+    assertEquals("A kind left out of the mix is still sent", 0, options.synthetic.spendWeight);
+    assertEquals("The balance weight is wrong", 90, options.synthetic.balanceWeight);
+    assertEquals("The objectives are wrong", Map.of("/spendPoints:p99", 50.0, "all:p99.9", 200.0), options.sloMillis);
+    assertEquals("The error rate is wrong", 0.01, options.maxErrorRate);
+    assertTrue("The property was not set", options.properties.contains("fetch.persistence.enabled=true"));
+  }
+
+  @Test
+  void testParse_MalformedOptions_Rejected() {
+    assertThrows(IllegalArgumentException.class, () -> Options.parse("--mix=add:10,refund:5"));
+    assertThrows(IllegalArgumentException.class, () -> Options.parse("--slo=/spendPoints=50"));
+    assertThrows(IllegalArgumentException.class, () -> Options.parse("--rate=100"));
+    assertThrows(IllegalArgumentException.class, () -> Options.parse("--mix=add:0").workload());
+  }
+
+  @Test
+  void testCheck_ObjectivesMetAndMissed() {
+    Map<String, Stats> stats = Map.of("/spendPoints", stats(0), "all", stats(0));
+
+    assertTrue("Objectives above the latencies were missed",
+        WorkloadReplayer.check(stats, Map.of("/spendPoints:p99", 50.0, "all:p50", 15.0), 0.001));
+    assertFalse("A p99 below the slowest 1% was met",
+        WorkloadReplayer.check(stats, Map.of("/spendPoints:p99", 20.0), 0.001));
+    assertFalse("An objective for an endpoint never answered was met",
+        WorkloadReplayer.check(stats, Map.of("/addTransactions:p99", 50.0), 0.001));
+  }
+
+  @Test
+  void testCheck_ErrorRateMissed() {
+    Map<String, Stats> stats = Map.of("/spendPoints", stats(2), "all", stats(2));
+
+    assertTrue("2 errors in 1002 requests missed a rate of 0.01", WorkloadReplayer.check(stats, Map.of(), 0.01));
+    assertFalse("2 errors in 1002 requests met a rate of 0.001", WorkloadReplayer.check(stats, Map.of(), 0.001));
+  }
+
+  private void assertRejected(String line, String reason, String... lines) throws IOException {
+    Path file = Files.write(directory.resolve("requests.jsonl"), List.of(lines));
+
+    IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> RecordedWorkload.read(file));
+    assertTrue("The message does not name the line: " + e.getMessage(), e.getMessage().startsWith(line));
+    assertTrue("The message does not tell what is wrong: " + e.getMessage(), e.getMessage().contains(reason));
+  }
+
+  /**
+   * 980 answers in 10 ms and 20 in 40 ms.
+   */
+  private static Stats stats(long errors) {
+    Histogram latencies = new Histogram(3);
+    latencies.recordValueWithCount(TimeUnit.MILLISECONDS.toNanos(10), 980);
+    latencies.recordValueWithCount(TimeUnit.MILLISECONDS.toNanos(40), 20);
+    return new Stats(latencies, errors);
+  }
+}
@@ -0,0 +1,160 @@
+package edu.umass.fetch.persistence;
+
+import edu.umass.fetch.config.LedgerProperties;
+import edu.umass.fetch.config.PersistenceProperties;
+import edu.umass.fetch.request.Transaction;
+import edu.umass.fetch.service.PointsService;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Time to open a persistent service, each iteration opening the same directory once. {@link LiveLots} compares
+ * rebuilding the lots from the log with loading them from a snapshot.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ColdStartBenchmark {
+
+  private static final LocalDateTime TIMESTAMP = LocalDateTime.of(2021, 3, 1, 10, 15, 30);
+
+  /**
+   * A log of single-lot adds and spends over 1024 accounts, three adds to a spend.
+   */
+  @State(Scope.Benchmark)
+  public static class Log {
+
+    @Param({"1000000"})
+    int records;
+
+    Path directory;
+    PointsService pointsService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      directory = Files.createTempDirectory("fetch-cold-start");
+      try (WriteAheadLog log = WriteAheadLog.open(directory, 64 << 20, 0, (lsn, type, payload) -> { })) {
+        for (int i = 0; i < records; i++) {
+          String accountId = "ACCOUNT-" + ((i / 4) & 1023);
+          ByteBuffer record = i % 4 == 3
+              ? LedgerRecords.spend(accountId, 1)
+              : LedgerRecords.add(accountId, Collections.singletonList(
+                  new Transaction("PAYER-" + (i & 7), 10, TIMESTAMP.plusSeconds(i))));
+          log.append(i % 4 == 3 ? LedgerRecords.SPEND : LedgerRecords.ADD_NANOS, record);
+        }
+      }
+    }
+
+    @TearDown(Level.Iteration)
+    public void shutdown() {
+      pointsService.shutdown();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      FileSystemUtils.deleteRecursively(directory);
+    }
+  }
+
+  /**
+   * Live lots added in batches of 1000 over 8 accounts, once into a directory holding only the log and once into one
+   * where a snapshot covers them.
+   */
+  @State(Scope.Benchmark)
+  public static class LiveLots {
+
+    @Param({"1000000", "10000000"})
+    int lots;
+
+    Path logDirectory;
+    Path snapshotDirectory;
+    PointsService pointsService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+      logDirectory = Files.createTempDirectory("fetch-cold-start");
+      populate(logDirectory, lots).shutdown();
+      snapshotDirectory = Files.createTempDirectory("fetch-cold-start");
+      PointsService snapshotted = populate(snapshotDirectory, lots);
+      snapshotted.snapshot();
+      snapshotted.shutdown();
+    }
+
+    @TearDown(Level.Iteration)
+    public void shutdown() {
+      pointsService.shutdown();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+      FileSystemUtils.deleteRecursively(logDirectory);
+      FileSystemUtils.deleteRecursively(snapshotDirectory);
+    }
+  }
+
+  @Benchmark
+  public PointsService replayLog(Log state) {
+    state.pointsService = open(state.directory);
+    return state.pointsService;
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+  public PointsService liveLotsFromLog(LiveLots state) {
+    state.pointsService = open(state.logDirectory);
+    return state.pointsService;
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+  public PointsService liveLotsFromSnapshot(LiveLots state) {
+    state.pointsService = open(state.snapshotDirectory);
+    return state.pointsService;
+  }
+
+  private static PointsService populate(Path directory, int lots) {
+    PointsService pointsService = open(directory);
+    for (int batch = 0; batch < lots / 1000; batch++) {
+      List<Transaction> transactions = new ArrayList<>(1000);
+      for (int i = 0; i < 1000; i++) {
+        transactions.add(new Transaction("PAYER-" + (i & 31), 10, TIMESTAMP.plusSeconds(batch * 1000L + i)));
+      }
+      pointsService.addPoints("ACCOUNT-" + (batch & 7), transactions);
+    }
+    return pointsService;
+  }
+
+  private static PointsService open(Path directory) {
+    PersistenceProperties persistenceProperties = new PersistenceProperties();
+    persistenceProperties.setEnabled(true);
+    persistenceProperties.setDirectory(directory.toString());
+    persistenceProperties.setSegmentSize(DataSize.ofMegabytes(64));
+    persistenceProperties.setSnapshotInterval(Duration.ZERO);
+    return new PointsService(new LedgerProperties(), persistenceProperties);
+  }
+}
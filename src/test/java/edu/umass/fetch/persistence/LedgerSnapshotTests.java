@@ -0,0 +1,157 @@
+package edu.umass.fetch.persistence;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+import edu.umass.fetch.config.LedgerProperties;
+import edu.umass.fetch.config.PersistenceProperties;
+import edu.umass.fetch.request.SpendTransaction;
+import edu.umass.fetch.request.Transaction;
+import edu.umass.fetch.response.PointBalance;
+import edu.umass.fetch.service.PointsService;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+class LedgerSnapshotTests {
+
+  private static final LocalDateTime TIMESTAMP = LocalDateTime.of(2021, 3, 1, 10, 15, 30, 123_456_789);
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void testSnapshot_RestoresStateAndReplaysTheTail() throws IOException {
+    PointsService pointsService = open(DataSize.ofKilobytes(1));
+    for (int i = 0; i < 40; i++) {
+      pointsService.addPoints("ACCOUNT-1", Arrays.asList(
+          new Transaction("PAYER-" + (i % 3), 100, TIMESTAMP.plusSeconds(i)),
+          new Transaction("PAYER-" + (i % 3), -20, TIMESTAMP.plusSeconds(i))));
+    }
+    pointsService.spendPoints("ACCOUNT-1", new SpendTransaction(1250));
+    pointsService.addPoints("ACCOUNT-2", Collections.singletonList(new Transaction("PAYER-1", 50, TIMESTAMP)));
+    assertTrue("The log did not roll over to several segments", segments().size() > 2);
+
+    pointsService.snapshot();
+    assertEquals("Segments covered by the snapshot were not deleted", 1, segments().size());
+
+    pointsService.addPoints("ACCOUNT-1", Collections.singletonList(
+        new Transaction("PAYER-NEW", 70, TIMESTAMP.minusDays(1))));
+    pointsService.spendPoints("ACCOUNT-1", new SpendTransaction(100));
+    Map<String, Long> balances = pointsService.getPointsBalance("ACCOUNT-1");
+    int queueSize = pointsService.getPointsQueue("ACCOUNT-1").size();
+    LocalDateTime oldest = pointsService.getPointsQueue("ACCOUNT-1").peek().getTimestamp();
+    pointsService.shutdown();
+
+    PointsService restarted = open(DataSize.ofKilobytes(1));
+
+    assertEquals("Balances of ACCOUNT-1 differ after restart", balances, restarted.getPointsBalance("ACCOUNT-1"));
+    assertEquals("The available points balance of ACCOUNT-1 is not 1920", 1920L,
+        restarted.getAvailablePointsBalance("ACCOUNT-1"));
+    assertEquals("The available points balance of ACCOUNT-2 is not 50", 50L,
+        restarted.getAvailablePointsBalance("ACCOUNT-2"));
+    assertEquals("The transaction queue of ACCOUNT-1 has a different size", queueSize,
+        restarted.getPointsQueue("ACCOUNT-1").size());
+    assertEquals("The top lot in queue has a different timestamp", oldest,
+        restarted.getPointsQueue("ACCOUNT-1").peek().getTimestamp());
+    restarted.shutdown();
+  }
+
+  @Test
+  void testSnapshot_KeepsIdempotencyKeysOfDeletedSegments() throws IOException {
+    PointsService pointsService = open(DataSize.ofKilobytes(1));
+    pointsService.addPoints("ACCOUNT-1", Collections.singletonList(new Transaction("PAYER-1", 1000, TIMESTAMP)));
+    Set<PointBalance> spent = pointsService.spendPoints("ACCOUNT-1", new SpendTransaction(300), "spend-1");
+    for (int i = 0; i < 40; i++) {
+      pointsService.addPoints("ACCOUNT-2", Collections.singletonList(new Transaction("PAYER-2", 10, TIMESTAMP)));
+    }
+    pointsService.snapshot();
+    assertEquals("Segments covered by the snapshot were not deleted", 1, segments().size());
+    pointsService.shutdown();
+
+    PointsService restarted = open(DataSize.ofKilobytes(1));
+
+    assertEquals("The retried spend did not return the first outcome", spent,
+        restarted.spendPoints("ACCOUNT-1", new SpendTransaction(300), "spend-1"));
+    assertEquals("The available points balance of ACCOUNT-1 is not 700", 700L,
+        restarted.getAvailablePointsBalance("ACCOUNT-1"));
+    restarted.shutdown();
+  }
+
+  @Test
+  void testSnapshot_WhileWriting_RestartMatchesEveryAccount() throws Exception {
+    int threads = 4;
+    PointsService pointsService = open(DataSize.ofKilobytes(64));
+    AtomicBoolean running = new AtomicBoolean(true);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<?>> writers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      int thread = t;
+      writers.add(executor.submit(() -> {
+        for (int i = 0; running.get() || i < 200; i++) {
+          String accountId = "ACCOUNT-" + (i % 16);
+          pointsService.addPoints(accountId, Collections.singletonList(
+              new Transaction("PAYER-" + thread + "-" + (i % 5), 10, TIMESTAMP.plusSeconds(i))));
+          if (i % 3 == 2) {
+            pointsService.spendPoints(accountId, new SpendTransaction(5));
+          }
+        }
+      }));
+    }
+    for (int i = 0; i < 5; i++) {
+      pointsService.snapshot();
+    }
+    running.set(false);
+    for (Future<?> writer : writers) {
+      writer.get();
+    }
+    executor.shutdown();
+
+    Map<String, Map<String, Long>> balances = new HashMap<>();
+    for (int account = 0; account < 16; account++) {
+      balances.put("ACCOUNT-" + account, pointsService.getPointsBalance("ACCOUNT-" + account));
+    }
+    pointsService.shutdown();
+
+    PointsService restarted = open(DataSize.ofKilobytes(64));
+    for (int account = 0; account < 16; account++) {
+      assertEquals("Balances of ACCOUNT-" + account + " differ after restart", balances.get("ACCOUNT-" + account),
+          restarted.getPointsBalance("ACCOUNT-" + account));
+    }
+    restarted.shutdown();
+  }
+
+  private PointsService open(DataSize segmentSize) {
+    PersistenceProperties persistenceProperties = new PersistenceProperties();
+    persistenceProperties.setEnabled(true);
+    persistenceProperties.setDirectory(directory.toString());
+    persistenceProperties.setSegmentSize(segmentSize);
+    persistenceProperties.setSnapshotInterval(Duration.ZERO);
+    return new PointsService(new LedgerProperties(), persistenceProperties);
+  }
+
+  private List<Path> segments() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(path -> path.getFileName().toString().endsWith(".log")).sorted()
+          .collect(Collectors.toList());
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package edu.umass.fetch.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+import edu.umass.fetch.config.LedgerProperties;
+import edu.umass.fetch.config.PersistenceProperties;
+import edu.umass.fetch.config.ReplicationProperties;
+import edu.umass.fetch.config.ReplicationProperties.Role;
+import edu.umass.fetch.request.SpendTransaction;
+import edu.umass.fetch.request.Transaction;
+import edu.umass.fetch.service.PointsService;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+class ReplicationTests {
+
+  private static final LocalDateTime TIMESTAMP = LocalDateTime.of(2021, 3, 1, 10, 15, 30);
+
+  @TempDir
+  Path leaderDirectory;
+
+  @TempDir
+  Path followerDirectory;
+
+  @Test
+  void testFollower_AppliesTheLeadersLogAndRejectsWrites() throws InterruptedException {
+    PointsService leader = open(leaderDirectory, Role.LEADER, null);
+    PointsService follower = open(followerDirectory, Role.FOLLOWER, leader);
+    try {
+      for (int i = 0; i < 50; i++) {
+        leader.addPoints("ACCOUNT-" + (i % 5), Collections.singletonList(
+            new Transaction("PAYER-" + (i % 3), 100, TIMESTAMP.plusSeconds(i))));
+      }
+      leader.spendPoints("ACCOUNT-1", new SpendTransaction(250));
+
+      awaitReplicated(leader, follower, "ACCOUNT-0", "ACCOUNT-1", "ACCOUNT-2", "ACCOUNT-3", "ACCOUNT-4");
+      for (int i = 0; i < 5; i++) {
+        assertEquals("Balances of ACCOUNT-" + i + " differ on the follower",
+            leader.getPointsBalance("ACCOUNT-" + i), follower.getPointsBalance("ACCOUNT-" + i));
+      }
+      assertEquals("The leader does not count its follower", 1, leader.getReplicationStatus().getFollowers());
+      assertThrows(IllegalStateException.class, () -> follower.addPoints("ACCOUNT-1", Collections.singletonList(
+          new Transaction("PAYER-1", 100, TIMESTAMP))));
+      assertThrows(IllegalStateException.class, () -> follower.spendPoints("ACCOUNT-1", new SpendTransaction(10)));
+    } finally {
+      follower.shutdown();
+      leader.shutdown();
+    }
+  }
+
+  @Test
+  void testPromote_FollowerTakesWritesAndShipsItsLog(@TempDir Path secondFollowerDirectory)
+      throws InterruptedException {
+    PointsService leader = open(leaderDirectory, Role.LEADER, null);
+    PointsService follower = open(followerDirectory, Role.FOLLOWER, leader);
+    PointsService secondFollower = null;
+    try {
+      leader.addPoints("ACCOUNT-1", Collections.singletonList(new Transaction("PAYER-1", 300, TIMESTAMP)));
+      awaitReplicated(leader, follower, "ACCOUNT-1");
+      leader.shutdown();
+
+      follower.promote();
+      assertEquals("The promoted node is not the leader", Role.LEADER, follower.getReplicationStatus().getRole());
+      follower.spendPoints("ACCOUNT-1", new SpendTransaction(100));
+      assertEquals("The available points balance of ACCOUNT-1 is not 200", 200L,
+          follower.getAvailablePointsBalance("ACCOUNT-1"));
+
+      secondFollower = open(secondFollowerDirectory, Role.FOLLOWER, follower);
+      awaitReplicated(follower, secondFollower, "ACCOUNT-1");
+      assertEquals("The new leader's spend did not reach its follower", 200L,
+          secondFollower.getAvailablePointsBalance("ACCOUNT-1"));
+    } finally {
+      if (secondFollower != null) {
+        secondFollower.shutdown();
+      }
+      follower.shutdown();
+      leader.shutdown();
+    }
+  }
+
+  @Test
+  void testFollower_StartsFromTheLeadersSnapshot() throws InterruptedException {
+    PointsService leader = open(leaderDirectory, Role.LEADER, null);
+    PointsService follower = null;
+    try {
+      for (int i = 0; i < 40; i++) {
+        leader.addPoints("ACCOUNT-1", Collections.singletonList(
+            new Transaction("PAYER-" + (i % 3), 100, TIMESTAMP.plusSeconds(i))));
+      }
+      leader.snapshot();
+      leader.spendPoints("ACCOUNT-1", new SpendTransaction(1250));
+
+      follower = open(followerDirectory, Role.FOLLOWER, leader);
+      awaitReplicated(leader, follower, "ACCOUNT-1");
+      Map<String, Long> balances = leader.getPointsBalance("ACCOUNT-1");
+      assertEquals("Balances of ACCOUNT-1 differ on the follower", balances, follower.getPointsBalance("ACCOUNT-1"));
+      assertEquals("The available points balance of ACCOUNT-1 is not 2750", 2750L,
+          follower.getAvailablePointsBalance("ACCOUNT-1"));
+    } finally {
+      if (follower != null) {
+        follower.shutdown();
+      }
+      leader.shutdown();
+    }
+  }
+
+  @Test
+  void testReplication_RequiresPersistence() {
+    ReplicationProperties replicationProperties = new ReplicationProperties();
+    replicationProperties.setRole(Role.LEADER);
+    assertThrows(IllegalStateException.class, () -> new PointsService(new LedgerProperties(),
+        new PersistenceProperties(), replicationProperties, new CompositeMeterRegistry()));
+  }
+
+  private static PointsService open(Path directory, Role role, PointsService leader) {
+    PersistenceProperties persistenceProperties = new PersistenceProperties();
+    persistenceProperties.setEnabled(true);
+    persistenceProperties.setDirectory(directory.toString());
+    persistenceProperties.setSegmentSize(DataSize.ofKilobytes(1));
+    persistenceProperties.setSnapshotInterval(Duration.ZERO);
+    ReplicationProperties replicationProperties = new ReplicationProperties();
+    replicationProperties.setRole(role);
+    replicationProperties.setPort(0);
+    replicationProperties.setReconnectInterval(Duration.ofMillis(50));
+    if (leader != null) {
+      replicationProperties.setLeader("localhost:" + leader.getReplicationStatus().getPort());
+    }
+    return new PointsService(new LedgerProperties(), persistenceProperties, replicationProperties,
+        new CompositeMeterRegistry());
+  }
+
+  /**
+   * Waits until the follower's log holds the leader's and the accounts' balances match the leader's.
+   */
+  private static void awaitReplicated(PointsService leader, PointsService follower, String... accountIds)
+      throws InterruptedException {
+    long lastLsn = leader.getReplicationStatus().getLastLsn();
+    await(() -> follower.getReplicationStatus().getLastLsn() >= lastLsn && Arrays.stream(accountIds)
+        .allMatch(accountId -> leader.getPointsBalance(accountId).equals(follower.getPointsBalance(accountId))));
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+    while (!condition.getAsBoolean()) {
+      assertTrue("Timed out waiting for the follower", System.nanoTime() < deadline);
+      Thread.sleep(10);
+    }
+  }
+}
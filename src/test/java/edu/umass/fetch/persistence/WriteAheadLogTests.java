@@ -0,0 +1,310 @@
+package edu.umass.fetch.persistence;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertNull;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+import edu.umass.fetch.config.LedgerProperties;
+import edu.umass.fetch.config.PersistenceProperties;
+import edu.umass.fetch.request.EpochNanos;
+import edu.umass.fetch.request.SpendMode;
+import edu.umass.fetch.request.SpendTransaction;
+import edu.umass.fetch.request.Transaction;
+import edu.umass.fetch.response.PointBalance;
+import edu.umass.fetch.service.PointsService;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+class WriteAheadLogTests {
+
+  private static final LocalDateTime TIMESTAMP = LocalDateTime.of(2021, 3, 1, 10, 15, 30, 123_456_789);
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void testRestart_ReplaysAddsAndSpends() {
+    PointsService pointsService = open(DataSize.ofMegabytes(1));
+    pointsService.addPoints("ACCOUNT-1", Arrays.asList(
+        new Transaction("PAYER-1", 1000, TIMESTAMP),
+        new Transaction("PAYER-2", 300, TIMESTAMP.minusSeconds(20))));
+    pointsService.spendPoints("ACCOUNT-1", new SpendTransaction(500));
+    pointsService.addPoints("ACCOUNT-2", Collections.singletonList(new Transaction("PAYER-1", 50, TIMESTAMP)));
+    Map<String, Long> balances = pointsService.getPointsBalance("ACCOUNT-1");
+    pointsService.shutdown();
+
+    PointsService restarted = open(DataSize.ofMegabytes(1));
+
+    assertEquals("Balances of ACCOUNT-1 differ after restart", balances, restarted.getPointsBalance("ACCOUNT-1"));
+    assertEquals("The available points balance of ACCOUNT-1 is not 800", 800L,
+        restarted.getAvailablePointsBalance("ACCOUNT-1"));
+    assertEquals("The available points balance of ACCOUNT-2 is not 50", 50L,
+        restarted.getAvailablePointsBalance("ACCOUNT-2"));
+    assertEquals("The top lot in queue does not have " + TIMESTAMP + " as timestamp", TIMESTAMP,
+        restarted.getPointsQueue("ACCOUNT-1").peek().getTimestamp());
+    restarted.shutdown();
+  }
+
+  @Test
+  void testRestart_RetryWithIdempotencyKey_IsNotAppliedAgain() {
+    PointsService pointsService = open(DataSize.ofMegabytes(1));
+    pointsService.addPoints("ACCOUNT-1", Collections.singletonList(new Transaction("PAYER-1", 1000, TIMESTAMP)),
+        "add-1");
+    Set<PointBalance> spent = pointsService.spendPoints("ACCOUNT-1", new SpendTransaction(300), "spend-1");
+    pointsService.shutdown();
+
+    PointsService restarted = open(DataSize.ofMegabytes(1));
+    restarted.addPoints("ACCOUNT-1", Collections.singletonList(new Transaction("PAYER-1", 1000, TIMESTAMP)), "add-1");
+
+    assertEquals("The retried spend did not return the first outcome", spent,
+        restarted.spendPoints("ACCOUNT-1", new SpendTransaction(300), "spend-1"));
+    assertEquals("The available points balance of ACCOUNT-1 is not 700", 700L,
+        restarted.getAvailablePointsBalance("ACCOUNT-1"));
+    restarted.shutdown();
+  }
+
+  @Test
+  void testRestart_ReplaysExpiryAtTheTimeItRan() {
+    LedgerProperties ledgerProperties = new LedgerProperties();
+    ledgerProperties.setPointsExpiry(Duration.ofDays(30));
+    LocalDateTime now = LocalDateTime.now();
+    PointsService pointsService = new PointsService(ledgerProperties, persistence(DataSize.ofMegabytes(1)));
+    pointsService.addPoints("ACCOUNT-1", Arrays.asList(
+        new Transaction("PAYER-1", 100, now.minusDays(40)),
+        new Transaction("PAYER-2", 100, now)));
+    pointsService.spendPoints("ACCOUNT-1", new SpendTransaction(50));
+    Map<String, Long> balances = pointsService.getPointsBalance("ACCOUNT-1");
+    pointsService.shutdown();
+
+    PointsService restarted = new PointsService(ledgerProperties, persistence(DataSize.ofMegabytes(1)));
+
+    assertEquals("The expired points of PAYER-1 were spent", Map.of("PAYER-1", 0L, "PAYER-2", 50L), balances);
+    assertEquals("Balances of ACCOUNT-1 differ after restart", balances, restarted.getPointsBalance("ACCOUNT-1"));
+    assertEquals("The available points balance of ACCOUNT-1 differs after restart",
+        balances.values().stream().mapToLong(Long::longValue).sum(), restarted.getAvailablePointsBalance("ACCOUNT-1"));
+    restarted.shutdown();
+  }
+
+  @Test
+  void testRestart_ExpirySettingsChanged_ReplaysTheLoggedExpiry() {
+    LedgerProperties expiring = new LedgerProperties();
+    expiring.setPointsExpiry(Duration.ofDays(30));
+    expiring.setPayerPointsExpiry(Map.of("PAYER-2", Duration.ofDays(5)));
+    LocalDateTime now = LocalDateTime.now();
+    PointsService pointsService = new PointsService(expiring, persistence(DataSize.ofMegabytes(1)));
+    pointsService.addPoints("ACCOUNT-1", Arrays.asList(
+        new Transaction("PAYER-1", 100, now.minusDays(40)),
+        new Transaction("PAYER-2", 100, now.minusDays(10)),
+        new Transaction("PAYER-3", 100, now.minusDays(20))));
+    pointsService.spendPoints("ACCOUNT-1", new SpendTransaction(100));
+    Map<String, Long> balances = pointsService.getPointsBalance("ACCOUNT-1");
+    pointsService.shutdown();
+
+    // Expiring again under either setting would drop nothing, and the replayed spend would take PAYER-1's lot
+    LedgerProperties neverExpiring = new LedgerProperties();
+    PointsService restarted = new PointsService(neverExpiring, persistence(DataSize.ofMegabytes(1)));
+    Map<String, Long> replayed = restarted.getPointsBalance("ACCOUNT-1");
+    restarted.shutdown();
+    LedgerProperties expiringLater = new LedgerProperties();
+    expiringLater.setPointsExpiry(Duration.ofDays(60));
+    PointsService restartedAgain = new PointsService(expiringLater, persistence(DataSize.ofMegabytes(1)));
+
+    assertEquals("The expired points were spent", Map.of("PAYER-1", 0L, "PAYER-2", 0L, "PAYER-3", 0L), balances);
+    assertEquals("Balances differ after a restart without expiry", balances, replayed);
+    assertEquals("Balances differ after a restart with a longer expiry", balances,
+        restartedAgain.getPointsBalance("ACCOUNT-1"));
+    restartedAgain.shutdown();
+  }
+
+  @Test
+  void testRestart_ReplaysSpendBatches() {
+    PointsService pointsService = open(DataSize.ofMegabytes(1));
+    pointsService.addPoints(Arrays.asList(
+        new Transaction("PAYER-1", 100, TIMESTAMP),
+        new Transaction("PAYER-2", 300, TIMESTAMP.plusSeconds(1))));
+    pointsService.spendPoints(PointsService.DEFAULT_ACCOUNT, Arrays.asList(
+        new SpendTransaction(150), new SpendTransaction(1000), new SpendTransaction(50)), SpendMode.PER_ITEM);
+    Map<String, Long> balances = pointsService.getPointsBalance();
+    pointsService.shutdown();
+
+    PointsService restarted = open(DataSize.ofMegabytes(1));
+
+    assertEquals("Balances differ after restart", balances, restarted.getPointsBalance());
+    assertEquals("The available points balance is not 200", 200L, restarted.getAvailablePointsBalance());
+    restarted.shutdown();
+  }
+
+  @Test
+  void testRestart_RejectedCommandsAreNotLogged() {
+    PointsService pointsService = open(DataSize.ofMegabytes(1));
+    pointsService.addPoints(Collections.singletonList(new Transaction("PAYER-1", 100, TIMESTAMP)));
+    try {
+      pointsService.spendPoints(new SpendTransaction(200));
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    pointsService.shutdown();
+
+    PointsService restarted = open(DataSize.ofMegabytes(1));
+
+    assertEquals("The available points balance is not 100", 100L, restarted.getAvailablePointsBalance());
+    restarted.shutdown();
+  }
+
+  @Test
+  void testCrash_TruncatedTailRecordIsDiscarded() throws IOException {
+    PointsService pointsService = open(DataSize.ofKilobytes(64));
+    pointsService.addPoints(Collections.singletonList(new Transaction("PAYER-1", 100, TIMESTAMP)));
+    pointsService.addPoints(Collections.singletonList(new Transaction("PAYER-1", 200, TIMESTAMP.plusSeconds(1))));
+    pointsService.shutdown();
+
+    Path segment = segments().get(0);
+    try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+      file.setLength(dataLength(segment) - 5);
+    }
+
+    PointsService restarted = open(DataSize.ofKilobytes(64));
+    assertEquals("The available points balance is not 100", 100L, restarted.getAvailablePointsBalance());
+
+    restarted.addPoints(Collections.singletonList(new Transaction("PAYER-1", 400, TIMESTAMP.plusSeconds(2))));
+    restarted.shutdown();
+
+    PointsService recovered = open(DataSize.ofKilobytes(64));
+    assertEquals("The available points balance is not 500", 500L, recovered.getAvailablePointsBalance());
+    assertEquals("The transaction queue is not size 2", 2, recovered.getPointsQueue().size());
+    recovered.shutdown();
+  }
+
+  @Test
+  void testCrash_CorruptRecordDiscardsItAndEverythingAfter() throws IOException {
+    PointsService pointsService = open(DataSize.ofKilobytes(1));
+    for (int i = 0; i < 40; i++) {
+      pointsService.addPoints(Collections.singletonList(new Transaction("PAYER-1", 1, TIMESTAMP.plusSeconds(i))));
+    }
+    pointsService.shutdown();
+    List<Path> segments = segments();
+    assertTrue("The log did not roll over to several segments", segments.size() > 2);
+
+    try (RandomAccessFile file = new RandomAccessFile(segments.get(1).toFile(), "rw")) {
+      file.seek(30);
+      file.write(file.read() ^ 0xFF);
+    }
+
+    PointsService recovered = open(DataSize.ofKilobytes(1));
+    long available = recovered.getAvailablePointsBalance();
+    assertTrue("Records from the corrupt segment onwards were replayed", available > 0 && available < 40);
+    assertEquals("Segments after the corrupt one were not removed", 2, segments().size());
+    recovered.shutdown();
+  }
+
+  @Test
+  void testRecover_SegmentMissingWithoutSnapshot_Fails() throws IOException {
+    PointsService pointsService = open(DataSize.ofKilobytes(1));
+    for (int i = 0; i < 40; i++) {
+      pointsService.addPoints(Collections.singletonList(new Transaction("PAYER-1", 1, TIMESTAMP.plusSeconds(i))));
+    }
+    pointsService.shutdown();
+    List<Path> segments = segments();
+    assertTrue("The log did not roll over to several segments", segments.size() > 2);
+
+    Files.delete(segments.get(0));
+
+    IOException e = assertThrows(IOException.class,
+        () -> WriteAheadLog.open(directory, 1024, 0, (lsn, type, payload) -> { }));
+    assertTrue("The message does not tell where the log starts", e.getMessage().contains("only covers up to lsn 0"));
+    // A snapshot covering every record would have made the missing segment redundant
+    try (WriteAheadLog log = WriteAheadLog.open(directory, 1024, 40, (lsn, type, payload) -> { })) {
+      assertEquals("The log does not end at the last record", 40L, log.lastLsn());
+    }
+  }
+
+  @Test
+  void testDecode_RecordsWithMicrosecondTimestamps() {
+    long micros = EpochNanos.of(TIMESTAMP) / 1_000;
+    ByteBuffer add = ByteBuffer.allocate(64);
+    LedgerRecords.putString(add, "ACCOUNT-1".getBytes(StandardCharsets.UTF_8));
+    add.putInt(1);
+    LedgerRecords.putString(add, "PAYER-1".getBytes(StandardCharsets.UTF_8));
+    add.putLong(100);
+    add.putLong(micros);
+    ByteBuffer expire = ByteBuffer.allocate(64);
+    LedgerRecords.putString(expire, "ACCOUNT-1".getBytes(StandardCharsets.UTF_8));
+    expire.putLong(micros);
+
+    List<Transaction> added = new ArrayList<>();
+    long[] expiredAt = new long[1];
+    LedgerRecords.Visitor visitor = new LedgerRecords.Visitor() {
+      @Override
+      public void add(long lsn, String accountId, List<Transaction> transactions, IdempotencyKey idempotencyKey) {
+        added.addAll(transactions);
+      }
+
+      @Override
+      public void spend(long lsn, String accountId, long points, IdempotencyKey idempotencyKey) {
+      }
+
+      @Override
+      public void spendBatch(long lsn, String accountId, SpendMode mode, List<SpendTransaction> spendTransactions) {
+      }
+
+      @Override
+      public void expire(long lsn, String accountId, long nowNanos, Map<String, Long> cutoffNanosByPayer) {
+        expiredAt[0] = nowNanos;
+        assertNull("A record without cutoffs was decoded with some", cutoffNanosByPayer);
+      }
+    };
+    LedgerRecords.decode(1, LedgerRecords.ADD, add.flip(), visitor);
+    LedgerRecords.decode(2, LedgerRecords.EXPIRE, expire.flip(), visitor);
+
+    assertEquals("The add was not decoded", 1, added.size());
+    assertEquals("The microsecond timestamp of the add was read wrong", TIMESTAMP.withNano(123_456_000),
+        added.get(0).getTimestamp());
+    assertEquals("The microsecond time of the expiry was read wrong", micros * 1_000, expiredAt[0]);
+  }
+
+  private PointsService open(DataSize segmentSize) {
+    return new PointsService(new LedgerProperties(), persistence(segmentSize));
+  }
+
+  private PersistenceProperties persistence(DataSize segmentSize) {
+    PersistenceProperties persistenceProperties = new PersistenceProperties();
+    persistenceProperties.setEnabled(true);
+    persistenceProperties.setDirectory(directory.toString());
+    persistenceProperties.setSegmentSize(segmentSize);
+    return persistenceProperties;
+  }
+
+  private List<Path> segments() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(path -> path.getFileName().toString().endsWith(".log")).sorted()
+          .collect(Collectors.toList());
+    }
+  }
+
+  private static long dataLength(Path segment) throws IOException {
+    byte[] bytes = Files.readAllBytes(segment);
+    int end = bytes.length;
+    while (end > 0 && bytes[end - 1] == 0) {
+      end--;
+    }
+    return end;
+  }
+}
@@ -0,0 +1,44 @@
+package edu.umass.fetch.request;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.exc.InvalidFormatException;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import org.junit.jupiter.api.Test;
+
+class PointsDeserializerTests {
+
+  private final ObjectMapper objectMapper = new ObjectMapper();
+
+  @Test
+  void testWholePoints() throws Exception {
+    SpendTransaction spendTransaction = objectMapper.readValue("{\"points\": 5000}", SpendTransaction.class);
+
+    assertEquals("Points are not 5000", 5000L, spendTransaction.getPoints());
+  }
+
+  @Test
+  void testDecimalWithoutFraction_Accepted() throws Exception {
+    SpendTransaction spendTransaction = objectMapper.readValue("{\"points\": 5000.0}", SpendTransaction.class);
+
+    assertEquals("Points are not 5000", 5000L, spendTransaction.getPoints());
+  }
+
+  @Test
+  void testDecimalWithFraction_Rejected() {
+    assertThrows(InvalidFormatException.class,
+        () -> objectMapper.readValue("{\"points\": 5000.5}", SpendTransaction.class));
+  }
+
+  @Test
+  void testDecimalWithFraction_Scaled() throws Exception {
+    SimpleModule module = new SimpleModule().addDeserializer(Long.class, new PointsDeserializer(2));
+    ObjectMapper scaledMapper = new ObjectMapper().registerModule(module);
+
+    assertEquals("Points are not 500050", 500050L, scaledMapper.readValue("5000.5", Long.class));
+    assertThrows(InvalidFormatException.class, () -> scaledMapper.readValue("5000.125", Long.class));
+  }
+
+}
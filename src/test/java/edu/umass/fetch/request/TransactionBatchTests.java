@@ -0,0 +1,105 @@
+package edu.umass.fetch.request;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import edu.umass.fetch.service.PointsService;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class TransactionBatchTests {
+
+  private final ObjectReader reader = new ObjectMapper().findAndRegisterModules().readerFor(Transaction.class);
+
+  @Test
+  void testRead_JsonArray() throws IOException {
+    TransactionBatch batch = read("[{\"payer\": \"DANNON\", \"points\": 1000, \"timestamp\": \"2020-11-02T14:00:00\"},"
+        + "{\"payer\": \"UNILEVER\", \"points\": 200, \"timestamp\": \"2020-10-31T11:00:00\"},"
+        + "{\"payer\": \"DANNON\", \"points\": -200, \"timestamp\": \"2020-10-31T15:00:00\"}]");
+
+    assertEquals("The batch is not size 3", 3, batch.size());
+    assertEquals("The batch does not have 2 payers", 2, batch.getPayerCount());
+    assertEquals("The DANNON total is not 800", 800L, batch.getPayerTotal(0));
+    assertEquals("The batch total is not 1000", 1000L, batch.getTotalPoints());
+    assertEquals("The third transaction is not DANNON's", 0, batch.getPayerIndex(2));
+    assertEquals("The timestamp of the second transaction is wrong", LocalDateTime.of(2020, 10, 31, 11, 0),
+        EpochNanos.toLocalDateTime(batch.getTimestampNanos(1)));
+  }
+
+  @Test
+  void testRead_Ndjson() throws IOException {
+    TransactionBatch batch = read("{\"payer\": \"DANNON\", \"points\": 300, \"timestamp\": \"2020-10-31T10:00:00\"}\n"
+        + "{\"payer\": \"MILLER COORS\", \"points\": 10000, \"timestamp\": \"2020-11-01T14:00:00\"}\n");
+
+    assertEquals("The batch is not size 2", 2, batch.size());
+    assertEquals("The second payer is not MILLER COORS", "MILLER COORS", batch.getPayer(1));
+  }
+
+  @Test
+  void testRead_MissingPayer_Rejected() {
+    assertThrows(IllegalArgumentException.class,
+        () -> read("[{\"points\": 300, \"timestamp\": \"2020-10-31T10:00:00\"}]"));
+  }
+
+  @Test
+  void testOf_LargeListMatchesAddingOneByOne() {
+    List<Transaction> transactions = new ArrayList<>();
+    TransactionBatch expected = new TransactionBatch();
+    for (int i = 0; i < 200_000; i++) {
+      Transaction transaction = new Transaction("PAYER-" + (i * 7 % 23), i % 5 == 0 ? -i : i,
+          LocalDateTime.of(2020, 10, 31, 10, 0).plusSeconds(i));
+      transactions.add(transaction);
+      expected.add(transaction.getPayer(), transaction.getPoints(), transaction.getTimestamp());
+    }
+
+    TransactionBatch batch = TransactionBatch.of(transactions);
+
+    assertEquals("The batch is not size 200000", 200_000, batch.size());
+    assertEquals("The batch total differs", expected.getTotalPoints(), batch.getTotalPoints());
+    assertEquals("The batch does not have 23 payers", 23, batch.getPayerCount());
+    for (int payer = 0; payer < batch.getPayerCount(); payer++) {
+      assertEquals("Payers are not in order of first appearance", expected.getPayer(payer), batch.getPayer(payer));
+      assertEquals("The total of " + batch.getPayer(payer) + " differs", expected.getPayerTotal(payer),
+          batch.getPayerTotal(payer));
+      assertEquals("The debits of " + batch.getPayer(payer) + " differ", expected.getPayerDebits(payer),
+          batch.getPayerDebits(payer));
+    }
+    for (int i = 0; i < batch.size(); i++) {
+      if (batch.getPayerIndex(i) != expected.getPayerIndex(i) || batch.getPoints(i) != expected.getPoints(i)
+          || batch.getTimestampNanos(i) != expected.getTimestampNanos(i)) {
+        assertEquals("Transaction " + i + " differs", expected.getPayerIndex(i), batch.getPayerIndex(i));
+      }
+    }
+
+    transactions.set(150_000, new Transaction(null, 1, LocalDateTime.of(2020, 10, 31, 10, 0)));
+    assertThrows(IllegalArgumentException.class, () -> TransactionBatch.of(transactions));
+  }
+
+  @Test
+  void testAddPoints_NegativePayerTotal_AddsNothing() throws IOException {
+    PointsService pointsService = new PointsService();
+    pointsService.addPoints("ACCOUNT-1",
+        read("{\"payer\": \"DANNON\", \"points\": 300, \"timestamp\": \"2020-10-31T10:00:00\"}"));
+
+    TransactionBatch batch = read("{\"payer\": \"UNILEVER\", \"points\": 200, \"timestamp\": \"2020-10-31T11:00:00\"}"
+        + "{\"payer\": \"DANNON\", \"points\": -400, \"timestamp\": \"2020-10-31T15:00:00\"}");
+    assertThrows(IllegalStateException.class, () -> pointsService.addPoints("ACCOUNT-1", batch));
+
+    Map<String, Long> balances = pointsService.getPointsBalance("ACCOUNT-1");
+    assertEquals("A rejected batch changed the balances", Map.of("DANNON", 300L), balances);
+    assertEquals("A rejected batch added lots", 1, pointsService.getPointsQueue("ACCOUNT-1").size());
+    pointsService.shutdown();
+  }
+
+  private TransactionBatch read(String body) throws IOException {
+    return TransactionBatch.read(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), reader);
+  }
+}
@@ -0,0 +1,61 @@
+package edu.umass.fetch.response;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.umass.fetch.request.SpendTransaction;
+import edu.umass.fetch.request.Transaction;
+import edu.umass.fetch.service.PointsService;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class JsonWriterTests {
+
+  private static final LocalDateTime TIMESTAMP = LocalDateTime.of(2021, 3, 1, 10, 15, 30);
+
+  @Test
+  void testNumbers() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    JsonWriter writer = new JsonWriter(out);
+    for (long value : new long[] {0, 7, -42, 1_000_000, Long.MAX_VALUE, Long.MIN_VALUE}) {
+      writer.number(value).raw((byte) ' ');
+    }
+    writer.flush();
+
+    assertEquals("Numbers are written wrong", "0 7 -42 1000000 9223372036854775807 -9223372036854775808 ",
+        out.toString(StandardCharsets.US_ASCII));
+  }
+
+  @Test
+  void testQuoted_EscapesQuotesBackslashesAndControlCharacters() {
+    assertEquals("Payer name is escaped wrong", "\"A\\\"B\\\\C\\u000aÉ\"",
+        new String(JsonWriter.quoted("A\"B\\C\nÉ"), StandardCharsets.UTF_8));
+  }
+
+  @Test
+  void testBalanceJson_FollowsEverySpend() throws IOException {
+    PointsService pointsService = new PointsService();
+    pointsService.addPoints(Arrays.asList(
+        new Transaction("PAYER-\"1\"", 1000, TIMESTAMP),
+        new Transaction("PAYER-2", 300, TIMESTAMP.minusSeconds(20))));
+    assertEquals("Balance JSON differs from the balances", Map.of("PAYER-\"1\"", 1000, "PAYER-2", 300),
+        balances(pointsService));
+
+    pointsService.spendPoints(new SpendTransaction(500));
+
+    assertEquals("Balance JSON was not rebuilt after a spend", Map.of("PAYER-\"1\"", 800, "PAYER-2", 0),
+        balances(pointsService));
+    pointsService.shutdown();
+  }
+
+  private static Map<?, ?> balances(PointsService pointsService) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    pointsService.getPointsBalanceJson(PointsService.DEFAULT_ACCOUNT).writeTo(out);
+    return new ObjectMapper().readValue(out.toByteArray(), Map.class);
+  }
+}
@@ -0,0 +1,81 @@
+package edu.umass.fetch.response;
+
+import edu.umass.fetch.request.SpendTransaction;
+import edu.umass.fetch.request.Transaction;
+import edu.umass.fetch.service.PointsService;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of writing the balance map and a spend result to the response stream, with the bytes discarded.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseWritingBenchmark {
+
+  @Param({"4", "64"})
+  int payers;
+
+  PointsService pointsService;
+  Set<PointBalance> spendResult;
+  OutputStream out;
+
+  @Setup
+  public void setUp(Blackhole blackhole) {
+    pointsService = new PointsService();
+    List<Transaction> transactions = new ArrayList<>();
+    for (int i = 0; i < payers; i++) {
+      transactions.add(new Transaction("PAYER-" + i, 1_000_000, LocalDateTime.of(2021, 1, 1, 0, 0).plusSeconds(i)));
+    }
+    pointsService.addPoints("ACCOUNT", transactions);
+    spendResult = pointsService.spendPoints("ACCOUNT", new SpendTransaction(1_000_000L * payers / 2 + 7));
+    out = new OutputStream() {
+      @Override
+      public void write(int b) {
+        blackhole.consume(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        blackhole.consume(b);
+      }
+    };
+  }
+
+  @TearDown
+  public void tearDown() {
+    pointsService.shutdown();
+  }
+
+  @Benchmark
+  public void balanceCached() throws IOException {
+    pointsService.getPointsBalanceJson("ACCOUNT").writeTo(out);
+  }
+
+  @Benchmark
+  public void spendWriter() throws IOException {
+    pointsService.toJson(spendResult).writeTo(out);
+  }
+}
@@ -0,0 +1,66 @@
+package edu.umass.fetch.service;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertNull;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+import edu.umass.fetch.persistence.LedgerRecords;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+class IdempotencyCacheTests {
+
+  private long nowMillis = 1_000_000;
+  private final IdempotencyCache cache = new IdempotencyCache(3, Duration.ofMinutes(1), () -> nowMillis);
+
+  @Test
+  void testPutIfAbsent_RetryGetsTheFirstOutcome() {
+    IdempotencyCache.Entry first = cache.newEntry(LedgerRecords.SPEND, "ACCOUNT-1", "key-1");
+    assertNull("The first request was not new", cache.putIfAbsent(first));
+    IdempotencyCache.Entry retry = cache.putIfAbsent(cache.newEntry(LedgerRecords.SPEND, "ACCOUNT-1", "key-1"));
+    cache.settle(first, "spent", null);
+
+    assertTrue("The retry did not find the first request", retry == first);
+    assertEquals("The retry did not get the first outcome", "spent", retry.await());
+    assertNull("The key was shared with another account",
+        cache.putIfAbsent(cache.newEntry(LedgerRecords.SPEND, "ACCOUNT-2", "key-1")));
+    assertNull("The key was shared with another operation",
+        cache.putIfAbsent(cache.newEntry(LedgerRecords.ADD, "ACCOUNT-1", "key-1")));
+  }
+
+  @Test
+  void testSettle_RejectionIsKeptAndFailureFreesTheKey() {
+    IdempotencyCache.Entry rejected = cache.newEntry(LedgerRecords.SPEND, "ACCOUNT-1", "rejected");
+    cache.putIfAbsent(rejected);
+    cache.settle(rejected, null, new InsufficientPointsException("Insufficient"));
+    IdempotencyCache.Entry failed = cache.newEntry(LedgerRecords.SPEND, "ACCOUNT-1", "failed");
+    cache.putIfAbsent(failed);
+    cache.settle(failed, null, new UncheckedIOException(new IOException("Disk full")));
+
+    IdempotencyCache.Entry retry = cache.putIfAbsent(cache.newEntry(LedgerRecords.SPEND, "ACCOUNT-1", "rejected"));
+    assertThrows(InsufficientPointsException.class, retry::await);
+    assertNull("A failed request kept its key",
+        cache.putIfAbsent(cache.newEntry(LedgerRecords.SPEND, "ACCOUNT-1", "failed")));
+  }
+
+  @Test
+  void testEviction_OldestDroppedBySizeAndByAge() {
+    for (int i = 0; i < 4; i++) {
+      IdempotencyCache.Entry entry = cache.newEntry(LedgerRecords.ADD, "ACCOUNT-1", "key-" + i);
+      cache.putIfAbsent(entry);
+      cache.settle(entry, null, null);
+      nowMillis += 1000;
+    }
+    assertEquals("The cache grew past its size", 3, cache.size());
+    assertNull("The oldest key was not dropped",
+        cache.putIfAbsent(cache.newEntry(LedgerRecords.ADD, "ACCOUNT-1", "key-0")));
+
+    nowMillis += Duration.ofMinutes(1).toMillis();
+    assertNull("An expired key was still answered",
+        cache.putIfAbsent(cache.newEntry(LedgerRecords.ADD, "ACCOUNT-1", "key-3")));
+    assertEquals("Expired keys were not dropped", 1, cache.size());
+  }
+}
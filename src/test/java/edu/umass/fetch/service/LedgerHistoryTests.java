@@ -0,0 +1,165 @@
+package edu.umass.fetch.service;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import edu.umass.fetch.config.LedgerProperties;
+import edu.umass.fetch.request.EpochNanos;
+import edu.umass.fetch.request.SpendTransaction;
+import edu.umass.fetch.request.Transaction;
+import edu.umass.fetch.response.JsonResponse;
+import edu.umass.fetch.response.JsonWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntFunction;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LedgerHistoryTests {
+
+  private static final LocalDateTime START = LocalDateTime.of(2021, 1, 1, 0, 0);
+  private static final String ACCOUNT = PointsService.DEFAULT_ACCOUNT;
+
+  @TempDir
+  Path directory;
+
+  @Test
+  void testSpendHistory_RecordsLotsAndPayerBreakdown() throws IOException {
+    PointsService pointsService = new PointsService();
+    pointsService.addPoints(Arrays.asList(new Transaction("DANNON", 300, START),
+        new Transaction("UNILEVER", 200, START.plusHours(1)), new Transaction("DANNON", 1000, START.plusHours(2))));
+    pointsService.spendPoints(new SpendTransaction(600));
+
+    List<Map<String, Object>> spends = read(pointsService.getSpendHistoryJson(ACCOUNT, null, null));
+    pointsService.shutdown();
+
+    assertEquals("Not one spend was recorded", 1, spends.size());
+    Map<String, Object> spend = spends.get(0);
+    assertEquals("Spent points are wrong", 600, spend.get("points"));
+    assertEquals("Payer breakdown is wrong", List.of(Map.of("payer", "DANNON", "points", -400),
+        Map.of("payer", "UNILEVER", "points", -200)), spend.get("payers"));
+    assertEquals("Lots spent from are wrong", List.of(
+        Map.of("payer", "DANNON", "points", -300, "timestamp", START.toString()),
+        Map.of("payer", "UNILEVER", "points", -200, "timestamp", START.plusHours(1).toString()),
+        Map.of("payer", "DANNON", "points", -100, "timestamp", START.plusHours(2).toString())),
+        spend.get("lots"));
+  }
+
+  @Test
+  void testHistory_FiltersByPayerAndTime() throws Exception {
+    PointsService pointsService = new PointsService();
+    pointsService.addPoints(Arrays.asList(new Transaction("DANNON", 300, START),
+        new Transaction("UNILEVER", 200, START.plusHours(1))));
+    Thread.sleep(2);
+    LocalDateTime between = LocalDateTime.now();
+    Thread.sleep(2);
+    pointsService.spendPoints(new SpendTransaction(400));
+
+    List<Map<String, Object>> all = read(pointsService.getHistoryJson(ACCOUNT, null, null, null));
+    List<Map<String, Object>> dannon = read(pointsService.getHistoryJson(ACCOUNT, "DANNON", null, null));
+    List<Map<String, Object>> before = read(pointsService.getHistoryJson(ACCOUNT, null, null, between));
+    List<Map<String, Object>> after = read(pointsService.getHistoryJson(ACCOUNT, "UNILEVER", between, null));
+    List<Map<String, Object>> unknown = read(pointsService.getHistoryJson(ACCOUNT, "MILLER COORS", null, null));
+    pointsService.shutdown();
+
+    assertEquals("Not every row was recorded", 4, all.size());
+    assertEquals("Rows are out of order", List.of("ADD", "ADD", "SPEND", "SPEND"), types(all));
+    assertEquals("DANNON's rows are wrong", List.of("ADD", "SPEND"), types(dannon));
+    assertEquals("Rows before the spend are wrong", List.of("ADD", "ADD"), types(before));
+    assertEquals("UNILEVER's rows after the add are wrong", List.of("SPEND"), types(after));
+    assertEquals("UNILEVER's spent points are wrong", -100, after.get(0).get("points"));
+    assertTrue("A payer without rows has history", unknown.isEmpty());
+  }
+
+  @Test
+  void testHistory_RejectedAddRecordsNoRows() throws IOException {
+    PointsService pointsService = new PointsService();
+    pointsService.addPoints(Arrays.asList(new Transaction("DANNON", 300, START)));
+    assertThrows(IllegalArgumentException.class, () -> pointsService.addPoints(Arrays.asList(
+        new Transaction("DANNON", 100, START.plusHours(1)), new Transaction(null, 100, START.plusHours(2)))));
+
+    List<Map<String, Object>> all = read(pointsService.getHistoryJson(ACCOUNT, null, null, null));
+    pointsService.shutdown();
+
+    assertEquals("The rejected add recorded rows", List.of("ADD"), types(all));
+  }
+
+  @Test
+  void testHistory_SpillsOldRowsToDisk() throws IOException {
+    int rows = 3 * 4096 + 10;
+    try (HistorySpillFile spillFile = HistorySpillFile.open(directory)) {
+      LedgerHistory history = new LedgerHistory(spillFile, 4096);
+      long startNanos = EpochNanos.of(START);
+      for (int i = 0; i < rows; i++) {
+        history.startEvent(startNanos + i);
+        history.add(i % 2, i + 1, startNanos + i);
+        history.publish();
+      }
+      IntFunction<byte[]> payers = slot -> JsonWriter.quoted(slot == 0 ? "DANNON" : "UNILEVER");
+
+      assertEquals("The oldest full chunks were not spilled", 2L * 4096 * 33, spillFile.size());
+      List<Map<String, Object>> all = read(history.rowsJson(-1, Long.MIN_VALUE, Long.MAX_VALUE, payers));
+      assertEquals("Not every row was read back", rows, all.size());
+      for (int i = 0; i < rows; i++) {
+        assertEquals("Row " + i + " was read back wrong", i + 1, all.get(i).get("points"));
+      }
+      List<Map<String, Object>> unilever = read(history.rowsJson(1, startNanos + 4000, startNanos + 5000, payers));
+      assertEquals("UNILEVER's rows across a spilled chunk are wrong", 500, unilever.size());
+      assertEquals("UNILEVER's first row in range is wrong", 4002, unilever.get(0).get("points"));
+      assertEquals("UNILEVER's first row in range has the wrong time", START.plusNanos(4001).toString(),
+          unilever.get(0).get("time"));
+    }
+  }
+
+  @Test
+  void testHistory_DefaultConfig_KeepsAtMostRowsInMemory() throws IOException {
+    int rowsInMemory = new LedgerProperties().getHistoryRowsInMemory();
+    PointsService pointsService = new PointsService();
+    int batches = 2 * rowsInMemory / 1000;
+    for (int batch = 0; batch < batches; batch++) {
+      List<Transaction> transactions = new ArrayList<>(1000);
+      for (int i = 0; i < 1000; i++) {
+        transactions.add(new Transaction(i % 2 == 0 ? "DANNON" : "UNILEVER", 10, START.plusSeconds(batch * 1000L + i)));
+      }
+      pointsService.addPoints(transactions);
+    }
+    pointsService.spendPoints(new SpendTransaction(30));
+
+    List<Map<String, Object>> all = read(pointsService.getHistoryJson(ACCOUNT, null, null, null));
+    List<Map<String, Object>> dannon = read(pointsService.getHistoryJson(ACCOUNT, "DANNON", null, null));
+    List<Map<String, Object>> spends = read(pointsService.getSpendHistoryJson(ACCOUNT, null, null));
+    pointsService.shutdown();
+
+    assertTrue("More rows than history-rows-in-memory were kept: " + all.size(), all.size() <= rowsInMemory);
+    assertTrue("Not the newest chunks were kept: " + all.size(), all.size() > rowsInMemory - 4096);
+    assertEquals("The newest add is not in history", START.plusSeconds(batches * 1000L - 1).toString(),
+        all.get(all.size() - 4).get("timestamp"));
+    assertEquals("The spend is not the last event", List.of("SPEND", "SPEND", "SPEND"),
+        types(all.subList(all.size() - 3, all.size())));
+    assertTrue("DANNON has rows that were dropped", dannon.size() <= all.size() / 2 + 2);
+    assertTrue("DANNON has a row older than the oldest kept",
+        (Integer) dannon.get(0).get("event") >= (Integer) all.get(0).get("event"));
+    assertEquals("The spend is not in history", 1, spends.size());
+  }
+
+  private static List<String> types(List<Map<String, Object>> rows) {
+    List<String> types = new ArrayList<>();
+    rows.forEach(row -> types.add((String) row.get("type")));
+    return types;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Map<String, Object>> read(JsonResponse response) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    response.writeTo(out);
+    return new ObjectMapper().readValue(out.toByteArray(), List.class);
+  }
+}
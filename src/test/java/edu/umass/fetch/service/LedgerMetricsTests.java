@@ -0,0 +1,67 @@
+package edu.umass.fetch.service;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+
+import edu.umass.fetch.config.LedgerProperties;
+import edu.umass.fetch.config.PersistenceProperties;
+import edu.umass.fetch.request.SpendTransaction;
+import edu.umass.fetch.request.Transaction;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class LedgerMetricsTests {
+
+  private static final LocalDateTime START = LocalDateTime.of(2021, 1, 1, 0, 0);
+
+  private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+  private final PointsService pointsService = new PointsService(everyWriteTimed(), new PersistenceProperties(),
+      registry);
+
+  @AfterEach
+  void tearDown() {
+    pointsService.shutdown();
+  }
+
+  @Test
+  void testRejections_CountedByReason() {
+    pointsService.addPoints(List.of(new Transaction("DANNON", 100, START)));
+    assertThrows(NegativeBalanceException.class,
+        () -> pointsService.addPoints(List.of(new Transaction("DANNON", -200, START.plusHours(1)))));
+    assertThrows(InsufficientPointsException.class, () -> pointsService.spendPoints(new SpendTransaction(500)));
+    assertThrows(InsufficientPointsException.class, () -> pointsService.spendPoints(new SpendTransaction(500)));
+
+    assertEquals("Negative balance rejections were not counted", 1.0,
+        registry.get("ledger.rejections").tag("reason", "negative_balance").counter().count());
+    assertEquals("Insufficient points rejections were not counted", 2.0,
+        registry.get("ledger.rejections").tag("reason", "insufficient_points").counter().count());
+    assertEquals("Not every add was timed", 2L, registry.get("ledger.add").timer().count());
+    assertEquals("Not every spend was timed", 2L, registry.get("ledger.spend").timer().count());
+  }
+
+  @Test
+  void testLotGauges_CountLotsPerPayerAndPerSpend() {
+    pointsService.addPoints(Arrays.asList(new Transaction("DANNON", 100, START),
+        new Transaction("UNILEVER", 100, START.plusHours(1)), new Transaction("DANNON", 100, START.plusHours(2))));
+    pointsService.addPoints("ACCOUNT-2", List.of(new Transaction("DANNON", 100, START)));
+    pointsService.spendPoints(new SpendTransaction(150));
+
+    assertEquals("The spend did not use up one lot", 1.0,
+        registry.get("ledger.spend.lots").summary().totalAmount());
+    assertEquals("Lots over all accounts are wrong", 3.0, registry.get("ledger.lots").gauge().value());
+    assertEquals("DANNON's lots are wrong", 2.0,
+        registry.get("ledger.payer.lots").tag("payer", "DANNON").gauge().value());
+    assertEquals("UNILEVER's lots are wrong", 1.0,
+        registry.get("ledger.payer.lots").tag("payer", "UNILEVER").gauge().value());
+  }
+
+  private static LedgerProperties everyWriteTimed() {
+    LedgerProperties properties = new LedgerProperties();
+    properties.setTimedWrites(1);
+    return properties;
+  }
+}
@@ -0,0 +1,122 @@
+package edu.umass.fetch.service;
+
+import edu.umass.fetch.request.EpochNanos;
+import edu.umass.fetch.request.Transaction;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the lot queue against the PriorityQueue of Transactions it replaced: a partial spend of the oldest lot, and a
+ * spend that drains k lots which are then added back at the young end. The backdated benchmarks add a lot a second, each
+ * drained lot back at a random time in the last minute or anywhere in the span of the queue.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LotQueueBenchmark {
+
+  private static final Comparator<Transaction> PRIORITY_QUEUE_ORDER = Comparator.comparing(Transaction::getTimestamp);
+
+  @Param({"1000", "100000"})
+  int lots;
+
+  @Param({"1", "100"})
+  int drained;
+
+  private PriorityQueue<Transaction> priorityQueue;
+  private LotQueue lotQueue;
+  private LocalDateTime youngest;
+  private long youngestNanos;
+  private final Random random = new Random(42);
+
+  @Setup
+  public void setUp() {
+    LocalDateTime start = LocalDateTime.now();
+    priorityQueue = new PriorityQueue<>(PRIORITY_QUEUE_ORDER);
+    lotQueue = new LotQueue();
+    for (int i = 0; i < lots; i++) {
+      LocalDateTime timestamp = start.plusSeconds(i);
+      priorityQueue.add(new Transaction("PAYER-" + (i % 16), Long.MAX_VALUE, timestamp));
+      lotQueue.offer(i % 16, Long.MAX_VALUE, EpochNanos.of(timestamp));
+    }
+    youngest = start.plusSeconds(lots);
+    youngestNanos = EpochNanos.of(youngest);
+  }
+
+  @Benchmark
+  public Transaction priorityQueuePartialSpend() {
+    Transaction oldest = priorityQueue.poll();
+    Transaction remaining = new Transaction(oldest.getPayer(), oldest.getPoints() - 1, oldest.getTimestamp());
+    priorityQueue.add(remaining);
+    return remaining;
+  }
+
+  @Benchmark
+  public int lotQueuePartialSpend() {
+    int oldest = lotQueue.peekLot();
+    lotQueue.spend(oldest, 1);
+    return oldest;
+  }
+
+  @Benchmark
+  public int priorityQueueDrain() {
+    for (int i = 0; i < drained; i++) {
+      Transaction oldest = priorityQueue.poll();
+      youngest = youngest.plusNanos(1);
+      priorityQueue.add(new Transaction(oldest.getPayer(), oldest.getPoints(), youngest));
+    }
+    return priorityQueue.size();
+  }
+
+  @Benchmark
+  public int lotQueueDrain() {
+    for (int i = 0; i < drained; i++) {
+      int oldest = lotQueue.peekLot();
+      int payer = lotQueue.payer(oldest);
+      long points = lotQueue.points(oldest);
+      lotQueue.pollLot();
+      lotQueue.offer(payer, points, ++youngestNanos);
+    }
+    return lotQueue.size();
+  }
+
+  @Benchmark
+  public int lotQueueBackdatedLastMinute() {
+    return backdate(60);
+  }
+
+  @Benchmark
+  public int lotQueueBackdatedAnywhere() {
+    return backdate(lots);
+  }
+
+  private int backdate(int maxSeconds) {
+    for (int i = 0; i < drained; i++) {
+      int oldest = lotQueue.peekLot();
+      int payer = lotQueue.payer(oldest);
+      long points = lotQueue.points(oldest);
+      lotQueue.pollLot();
+      youngestNanos += 1_000_000_000L;
+      long timestamp = youngestNanos - random.nextInt(maxSeconds) * 1_000_000_000L;
+      lotQueue.offer(payer, points, timestamp);
+    }
+    return lotQueue.size();
+  }
+}
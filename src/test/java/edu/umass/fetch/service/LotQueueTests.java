@@ -0,0 +1,177 @@
+package edu.umass.fetch.service;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+import edu.umass.fetch.config.LedgerProperties.LotStorage;
+import edu.umass.fetch.request.EpochNanos;
+import edu.umass.fetch.request.TransactionBatch;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class LotQueueTests {
+
+  private static final long MINUTE_NANOS = 60_000_000_000L;
+
+  @Test
+  void testPoll_BackdatedLots_OldestFirst() {
+    LotQueue lotQueue = new LotQueue();
+    Random random = new Random(7);
+    for (int i = 0; i < 5000; i++) {
+      long youngest = i * MINUTE_NANOS / 10;
+      lotQueue.offer(new Lot(0, 1, youngest - random.nextInt(i + 1) * MINUTE_NANOS / 10));
+    }
+
+    long previous = Long.MIN_VALUE;
+    while (!lotQueue.isEmpty()) {
+      long timestamp = lotQueue.poll().getTimestampNanos();
+      assertTrue("A lot came out of order", timestamp >= previous);
+      previous = timestamp;
+    }
+  }
+
+  @Test
+  void testIterator_EqualTimestampsInArrivalOrder() {
+    LotQueue lotQueue = new LotQueue();
+    lotQueue.offer(new Lot(0, 100, 5 * MINUTE_NANOS));
+    lotQueue.offer(new Lot(1, 200, 5 * MINUTE_NANOS));
+    lotQueue.offer(new Lot(3, 300, -MINUTE_NANOS));
+    lotQueue.offer(new Lot(4, 400, 5 * MINUTE_NANOS));
+
+    List<Integer> payers = new ArrayList<>();
+    lotQueue.forEach(lot -> payers.add(lot.getPayer()));
+    assertEquals("Lots are not in spend order", List.of(3, 0, 1, 4), payers);
+  }
+
+  @Test
+  void testPoll_LotsLessThanAMicrosecondApartKeepTheirOrder() {
+    LotQueue lotQueue = new LotQueue();
+    lotQueue.offer(new Lot(0, 100, MINUTE_NANOS + 900));
+    lotQueue.offer(new Lot(1, 200, MINUTE_NANOS + 100));
+    lotQueue.offer(new Lot(2, 300, MINUTE_NANOS + 500));
+
+    Lot oldest = lotQueue.poll();
+    assertEquals("The oldest lot is not PAYER 1's", 1, oldest.getPayer());
+    assertEquals("The oldest lot lost its nanoseconds", EpochNanos.toLocalDateTime(MINUTE_NANOS + 100),
+        oldest.getTimestamp());
+    assertEquals("The next lot is not PAYER 2's", 2, lotQueue.poll().getPayer());
+    assertEquals("The youngest lot is not PAYER 0's", 0, lotQueue.poll().getPayer());
+  }
+
+  @Test
+  void testOfferAll_SameOrderAsOfferingOneByOne() {
+    Random random = new Random(11);
+    for (long spanMinutes : new long[] {1, 10_000, Long.MAX_VALUE / MINUTE_NANOS / 2}) {
+      LotQueue oneByOne = new LotQueue();
+      LotQueue bulk = new LotQueue();
+      for (int i = 0; i < 100; i++) {
+        oneByOne.offer(i % 4, 10, i * MINUTE_NANOS);
+        bulk.offer(i % 4, 10, i * MINUTE_NANOS);
+      }
+      // Spending makes the oldest bucket the one lots are inserted into in place
+      oneByOne.pollLot();
+      bulk.pollLot();
+
+      TransactionBatch batch = new TransactionBatch();
+      for (int i = 0; i < 5000; i++) {
+        long timestampNanos = (i % 7 == 0 ? 0 : (long) (random.nextDouble() * spanMinutes) * MINUTE_NANOS)
+            + random.nextInt(1000);
+        batch.add("PAYER-" + (i % 4), i % 50 == 0 ? -1 : 1 + i, EpochNanos.toLocalDateTime(timestampNanos));
+        if (batch.getPoints(i) > 0) {
+          oneByOne.offer(batch.getPayerIndex(i), batch.getPoints(i), batch.getTimestampNanos(i));
+        }
+      }
+      bulk.offerAll(batch, new int[] {0, 1, 2, 3});
+
+      assertEquals("The queues differ in size", oneByOne.size(), bulk.size());
+      assertEquals("PAYER-2's index differs in size", oneByOne.size(2), bulk.size(2));
+      while (!oneByOne.isEmpty()) {
+        Lot expected = oneByOne.poll();
+        Lot actual = bulk.poll();
+        assertEquals("A lot came out of order", expected.getTimestampNanos(), actual.getTimestampNanos());
+        assertEquals("Lots with equal timestamps are not in arrival order", expected.getPoints(), actual.getPoints());
+      }
+    }
+  }
+
+  @Test
+  void testOffer_OffHeapStoreReusesRecordsOfSpentLots() {
+    LotStore lotStore = new LotStore(LotStorage.OFF_HEAP);
+    LotQueue first = new LotQueue(lotStore);
+    LotQueue second = new LotQueue(lotStore);
+    for (int i = 0; i < 50_000; i++) {
+      first.offer(i % 3, i + 1, i * MINUTE_NANOS / 100);
+      second.offer(0, 1, 0);
+      if (i % 2 == 1) {
+        first.spend(first.peekLot(), 1);
+        first.pollLot();
+        second.pollLot();
+      }
+    }
+    long capacityBytes = lotStore.capacityBytes();
+    for (int i = 0; i < 50_000; i++) {
+      first.offer(1, 7, 0);
+      first.pollLot();
+    }
+
+    assertEquals("Records were not freed", 50_000, lotStore.size());
+    assertEquals("The store grew although records were free", capacityBytes, lotStore.capacityBytes());
+    assertEquals("The oldest lot lost its points", 25_001L, first.peek().getPoints());
+    assertEquals("The debit was not covered", 0L, first.debit(2, 100_000));
+    assertEquals("PAYER 2 does not have three lots fewer", 8330, first.size(2));
+  }
+
+  @Test
+  void testDebit_TakesFromOldestLotsOfThePayerOnly() {
+    LotQueue lotQueue = new LotQueue();
+    lotQueue.offer(new Lot(0, 100, 2 * MINUTE_NANOS));
+    lotQueue.offer(new Lot(1, 500, MINUTE_NANOS));
+    lotQueue.offer(new Lot(0, 200, 3 * MINUTE_NANOS));
+    lotQueue.offer(new Lot(0, 300, 0));
+
+    assertEquals("The debit was not covered", 0L, lotQueue.debit(0, 450));
+    assertEquals("The emptied lots are still queued", 2, lotQueue.size());
+    assertEquals("The oldest lot is not PAYER 1's", 1, lotQueue.poll().getPayer());
+    assertEquals("The partly debited lot does not have 150 points", 150L, lotQueue.peek().getPoints());
+    assertEquals("Points beyond the payer's lots were not returned", 50L, lotQueue.debit(0, 200));
+    assertTrue("The queue is not empty", lotQueue.isEmpty());
+  }
+
+  @Test
+  void testQuote_WalksBucketsInSpendOrder() {
+    LotQueue lotQueue = new LotQueue();
+    lotQueue.offer(new Lot(0, 100, 10 * MINUTE_NANOS));
+    lotQueue.offer(new Lot(1, 100, 30 * MINUTE_NANOS));
+    lotQueue.offer(new Lot(2, 100, 20 * MINUTE_NANOS));
+    lotQueue.offer(new Lot(3, 100, 0));
+    lotQueue.offer(new Lot(1, 100, 31 * MINUTE_NANOS));
+    lotQueue.offer(new Lot(2, 100, 30 * MINUTE_NANOS + 1));
+
+    LotQueue.Quote quote = new LotQueue.Quote();
+    quote.reset(4);
+    assertEquals("The quote was not covered", 0L, lotQueue.quote(350, quote, false));
+    assertEquals("The quote did not take the oldest lots", List.of(100L, 50L, 100L, 100L), toList(quote));
+    quote.reset(4);
+    assertEquals("Points beyond the lots were not returned", 50L, lotQueue.quote(650, quote, false));
+    assertEquals("The quote changed the queue", 6, lotQueue.size());
+
+    // Sorted by the spend reaching the bucket before it received a lot out of order
+    lotQueue.poll();
+    lotQueue.offer(new Lot(0, 100, 31 * MINUTE_NANOS - 1));
+    quote.reset(4);
+    assertEquals("A quote without sorting walked an unsorted bucket", -1L, lotQueue.quote(700, quote, false));
+    quote.reset(4);
+    assertEquals("The quote was not covered", 0L, lotQueue.quote(500, quote, true));
+    assertEquals("The quote did not sort the bucket", List.of(200L, 100L, 200L, 0L), toList(quote));
+  }
+
+  private static List<Long> toList(LotQueue.Quote quote) {
+    List<Long> pointsBySlot = new ArrayList<>();
+    for (int slot = 0; slot < 4; slot++) {
+      pointsBySlot.add(quote.points(slot));
+    }
+    return pointsBySlot;
+  }
+}
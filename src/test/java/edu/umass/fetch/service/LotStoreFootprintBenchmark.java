@@ -0,0 +1,81 @@
+package edu.umass.fetch.service;
+
+import edu.umass.fetch.config.LedgerProperties.LotStorage;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Memory held per open lot, and the full collection pause with the lots resident. {@code OBJECTS} keeps one {@link Lot}
+ * object per lot in a list, as the queue did before lots became {@link LotStore} records; {@code HEAP} and
+ * {@code OFF_HEAP} fill a {@link LotQueue} over a store of that kind. The bytes per lot, on the heap and in direct
+ * buffers, are printed once the lots are in; the benchmark times {@code System.gc()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g", "-XX:MaxDirectMemorySize=3g"})
+public class LotStoreFootprintBenchmark {
+
+  @Param({"OBJECTS", "HEAP", "OFF_HEAP"})
+  String storage;
+
+  @Param({"1000000", "10000000"})
+  int lots;
+
+  private List<Lot> lotObjects;
+  private LotQueue lotQueue;
+
+  @Setup
+  public void setUp() {
+    long heapBefore = heapUsed();
+    long directBefore = directUsed();
+    if (storage.equals("OBJECTS")) {
+      lotObjects = new ArrayList<>(lots);
+      for (int i = 0; i < lots; i++) {
+        lotObjects.add(new Lot(i % 16, i + 1, i));
+      }
+    } else {
+      lotQueue = new LotQueue(new LotStore(LotStorage.valueOf(storage)));
+      for (int i = 0; i < lots; i++) {
+        lotQueue.offer(i % 16, i + 1, i);
+      }
+    }
+    System.out.printf("%n%s: %.1f heap bytes and %.1f direct bytes per lot%n", storage,
+        (double) (heapUsed() - heapBefore) / lots, (double) (directUsed() - directBefore) / lots);
+  }
+
+  @Benchmark
+  public int fullCollection() {
+    System.gc();
+    return lotObjects == null ? lotQueue.size() : lotObjects.size();
+  }
+
+  private static long heapUsed() {
+    System.gc();
+    System.gc();
+    return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+  }
+
+  private static long directUsed() {
+    return ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+        .filter(pool -> pool.getName().equals("direct"))
+        .mapToLong(BufferPoolMXBean::getMemoryUsed)
+        .sum();
+  }
+}
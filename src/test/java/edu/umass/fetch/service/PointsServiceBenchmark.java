@@ -0,0 +1,544 @@
+package edu.umass.fetch.service;
+
+import edu.umass.fetch.config.LedgerProperties;
+import edu.umass.fetch.config.LedgerProperties.Engine;
+import edu.umass.fetch.config.PersistenceProperties;
+import edu.umass.fetch.persistence.LedgerRecords;
+import edu.umass.fetch.request.SpendMode;
+import edu.umass.fetch.request.SpendTransaction;
+import edu.umass.fetch.request.Transaction;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hot paths of the points ledger. Run with {@code ./mvnw -Pbenchmarks verify}; results land in
+ * target/jmh-result.json.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointsServiceBenchmark {
+
+  private static final LocalDateTime START = LocalDateTime.of(2021, 1, 1, 0, 0);
+  private static final int PIPELINED = 1000;
+
+  /**
+   * Adds one batch to an empty ledger. The ledger is replaced before every call so batches never pile up.
+   */
+  @State(Scope.Thread)
+  public static class BatchAdd {
+
+    @Param({"1", "100", "10000", "100000"})
+    int batchSize;
+
+    @Param({"16"})
+    int payers;
+
+    List<Transaction> batch;
+    PayerRegistry payerRegistry = new PayerRegistry();
+    Ledger ledger;
+
+    @Setup(Level.Trial)
+    public void createBatch() {
+      batch = transactions(batchSize, payers, new Random(42));
+    }
+
+    @Setup(Level.Invocation)
+    public void createLedger() {
+      ledger = new Ledger(payerRegistry);
+    }
+  }
+
+  /**
+   * Adds one large batch through the service to a new account. The service is replaced before every call so the lots
+   * of earlier calls do not pile up. {@code SAME_MINUTE} batches land in a single time bucket, out of order.
+   */
+  @State(Scope.Thread)
+  public static class BulkAdd {
+
+    @Param({"100000", "1000000"})
+    int batchSize;
+
+    @Param({"SPREAD", "SAME_MINUTE"})
+    String timestamps;
+
+    List<Transaction> batch;
+    PointsService pointsService;
+
+    @Setup(Level.Trial)
+    public void createBatch() {
+      Random random = new Random(42);
+      if (timestamps.equals("SPREAD")) {
+        batch = transactions(batchSize, 16, random);
+        return;
+      }
+      batch = new ArrayList<>(batchSize);
+      for (int i = 0; i < batchSize; i++) {
+        batch.add(new Transaction("PAYER-" + random.nextInt(16), 1 + random.nextInt(1_000),
+            START.plusNanos(random.nextInt(60_000_000) * 1_000L)));
+      }
+    }
+
+    @Setup(Level.Invocation)
+    public void createService() {
+      pointsService = new PointsService(shards(1));
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+      pointsService.shutdown();
+    }
+  }
+
+  /**
+   * Spends exactly the points of the oldest {@code lots} lots, so every call drains that many lots.
+   */
+  @State(Scope.Thread)
+  public static class Drain {
+
+    @Param({"1", "100", "10000"})
+    int lots;
+
+    List<Transaction> batch;
+    SpendTransaction spend;
+    PayerRegistry payerRegistry = new PayerRegistry();
+    Ledger ledger;
+
+    @Setup(Level.Trial)
+    public void createBatch() {
+      batch = new ArrayList<>(lots);
+      for (int i = 0; i < lots; i++) {
+        batch.add(new Transaction("PAYER-" + (i % 16), 10, START.plusSeconds(i)));
+      }
+      spend = new SpendTransaction(10L * lots);
+    }
+
+    @Setup(Level.Invocation)
+    public void fillLedger() {
+      ledger = new Ledger(payerRegistry);
+      ledger.addPoints(batch);
+    }
+  }
+
+  /**
+   * A single account receiving balance reads, small adds and spends in a fixed mix.
+   */
+  @State(Scope.Thread)
+  public static class Mixed {
+
+    @Param({"4", "64", "1024"})
+    int payers;
+
+    @Param({"50"})
+    int readPercent;
+
+    /**
+     * Whether the service's meters are registered with a Prometheus registry rather than a registry that drops them.
+     */
+    @Param({"false", "true"})
+    boolean metered;
+
+    PointsService pointsService;
+    int[] operations;
+    List<List<Transaction>> adds;
+    SpendTransaction spend;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      pointsService = new PointsService(shards(1), new PersistenceProperties(),
+          metered ? new PrometheusMeterRegistry(PrometheusConfig.DEFAULT) : new CompositeMeterRegistry());
+      Random random = new Random(42);
+      pointsService.addPoints(transactions(10_000, payers, random));
+      operations = new int[4096];
+      adds = new ArrayList<>(operations.length);
+      for (int i = 0; i < operations.length; i++) {
+        operations[i] = random.nextInt(100) < readPercent ? 0 : 1 + random.nextInt(2);
+        adds.add(Collections.singletonList(new Transaction("PAYER-" + random.nextInt(payers), 10,
+            START.plusSeconds(10_000 + i))));
+      }
+      spend = new SpendTransaction(10);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      pointsService.shutdown();
+    }
+  }
+
+  /**
+   * Every benchmark thread hits the same service, spread over {@code accounts} accounts.
+   */
+  @State(Scope.Benchmark)
+  public static class Contended {
+
+    @Param({"1", "64"})
+    int accounts;
+
+    @Param({"EXECUTOR", "RING_BUFFER"})
+    Engine engine;
+
+    PointsService pointsService;
+    String[] accountIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      LedgerProperties properties = shards(Runtime.getRuntime().availableProcessors());
+      properties.setEngine(engine);
+      pointsService = new PointsService(properties);
+      accountIds = new String[accounts];
+      for (int i = 0; i < accounts; i++) {
+        accountIds[i] = "ACCOUNT-" + i;
+        pointsService.addPoints(accountIds[i], transactions(1_000, 16, new Random(i)));
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      pointsService.shutdown();
+    }
+  }
+
+  /**
+   * Every benchmark thread hits the same default service, spread over 64 accounts, in the mix of
+   * PointsServiceConcurrencyTests. Scale the callers with {@code -Djmh.args="-t N"}.
+   */
+  @State(Scope.Benchmark)
+  public static class Shared {
+
+    PointsService pointsService;
+    String[] accountIds;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      pointsService = new PointsService();
+      accountIds = new String[64];
+      for (int i = 0; i < accountIds.length; i++) {
+        accountIds[i] = "ACCOUNT-" + i;
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      pointsService.shutdown();
+    }
+  }
+
+  /**
+   * One caller keeping {@code PIPELINED} writes to one account in flight, half small adds and half spends, and only
+   * waiting for the last of them.
+   */
+  @State(Scope.Thread)
+  public static class Pipelined {
+
+    @Param({"EXECUTOR", "RING_BUFFER"})
+    Engine engine;
+
+    PointsService pointsService;
+    List<List<Transaction>> adds;
+    SpendTransaction spend = new SpendTransaction(5);
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[PIPELINED];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      LedgerProperties properties = shards(1);
+      properties.setEngine(engine);
+      pointsService = new PointsService(properties);
+      adds = new ArrayList<>(PIPELINED);
+      for (int i = 0; i < PIPELINED; i++) {
+        adds.add(Collections.singletonList(new Transaction("PAYER-" + (i % 16), 10, START.plusSeconds(i))));
+      }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      pointsService.shutdown();
+    }
+  }
+
+  /**
+   * The meters alone, around a write that does nothing, to tell their cost apart from the noise of the writes.
+   */
+  @State(Scope.Thread)
+  public static class Instrumentation {
+
+    @Param({"false", "true"})
+    boolean metered;
+
+    LedgerMetrics metrics;
+    Object result = new Object();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      LedgerProperties properties = new LedgerProperties();
+      metrics = new LedgerMetrics(
+          metered ? new PrometheusMeterRegistry(PrometheusConfig.DEFAULT) : new CompositeMeterRegistry(),
+          properties.getTimedWrites(), properties.getTimedBalanceReads(), new PayerRegistry(), Stream::empty);
+    }
+  }
+
+  /**
+   * A reconciliation job of {@code spends} spends of one lot each, against an account refilled with exactly those lots
+   * before every call.
+   */
+  @State(Scope.Thread)
+  public static class Reconciliation {
+
+    @Param({"1000"})
+    int spends;
+
+    PointsService pointsService;
+    List<Transaction> lots;
+    List<SpendTransaction> spendTransactions;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      pointsService = new PointsService(shards(1));
+      lots = new ArrayList<>(spends);
+      spendTransactions = new ArrayList<>(spends);
+      for (int i = 0; i < spends; i++) {
+        lots.add(new Transaction("PAYER-" + (i % 16), 10, START.plusSeconds(i)));
+        spendTransactions.add(new SpendTransaction(10));
+      }
+    }
+
+    @Setup(Level.Invocation)
+    public void refill() {
+      pointsService.addPoints(lots);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      pointsService.shutdown();
+    }
+  }
+
+  /**
+   * An idempotency cache holding {@code keys} settled keys, ten minutes' worth at 100k keys a minute, and a service
+   * whose account has already seen one keyed spend.
+   */
+  @State(Scope.Thread)
+  public static class Idempotency {
+
+    @Param({"1000000"})
+    int keys;
+
+    IdempotencyCache cache;
+    String[] settledKeys;
+    long nextKey;
+    PointsService pointsService;
+    SpendTransaction spend = new SpendTransaction(5);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      cache = new IdempotencyCache(keys, Duration.ofMinutes(10));
+      settledKeys = new String[keys];
+      for (int i = 0; i < keys; i++) {
+        settledKeys[i] = "key-" + i;
+        IdempotencyCache.Entry entry = cache.newEntry(LedgerRecords.SPEND, PointsService.DEFAULT_ACCOUNT,
+            settledKeys[i]);
+        cache.putIfAbsent(entry);
+        cache.settle(entry, null, null);
+      }
+      nextKey = keys;
+      pointsService = new PointsService(shards(1));
+      pointsService.addPoints(transactions(1_000, 16, new Random(42)));
+      pointsService.spendPoints(PointsService.DEFAULT_ACCOUNT, spend, "spend-1");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      pointsService.shutdown();
+    }
+  }
+
+  @Benchmark
+  public Ledger addBatch(BatchAdd state) {
+    state.ledger.addPoints(state.batch);
+    return state.ledger;
+  }
+
+  @Benchmark
+  public PointsService addBulk(BulkAdd state) {
+    state.pointsService.addPoints(PointsService.DEFAULT_ACCOUNT, state.batch);
+    return state.pointsService;
+  }
+
+  @Benchmark
+  public Set<?> spendDrainingLots(Drain state) {
+    return state.ledger.spendPoints(state.spend);
+  }
+
+  @Benchmark
+  public Object mixedReadWrite(Mixed state) {
+    int index = state.next++ & (state.operations.length - 1);
+    switch (state.operations[index]) {
+      case 0:
+        return state.pointsService.getPointsBalance();
+      case 1:
+        state.pointsService.addPoints(state.adds.get(index));
+        return null;
+      default:
+        return state.pointsService.spendPoints(state.spend);
+    }
+  }
+
+  /**
+   * A balance read of an account no write has changed since the last read.
+   */
+  @Benchmark
+  public Object unchangedBalanceRead(Mixed state) {
+    return state.pointsService.getBalanceView(PointsService.DEFAULT_ACCOUNT);
+  }
+
+  /**
+   * A quote of the spend on an account no write is changing, walking the lots it would reach without the lock.
+   */
+  @Benchmark
+  public Object quoteSpend(Mixed state) {
+    return state.pointsService.quoteSpend(PointsService.DEFAULT_ACCOUNT, state.spend);
+  }
+
+  @Benchmark
+  public Object timedWrite(Instrumentation state) {
+    return state.metrics.time(state.metrics.spend(), () -> state.result);
+  }
+
+  @Benchmark
+  public Object reconcileOneByOne(Reconciliation state) {
+    Object last = null;
+    for (SpendTransaction spendTransaction : state.spendTransactions) {
+      last = state.pointsService.spendPoints(spendTransaction);
+    }
+    return last;
+  }
+
+  @Benchmark
+  public Object reconcileBatch(Reconciliation state) {
+    return state.pointsService.spendPoints(PointsService.DEFAULT_ACCOUNT, state.spendTransactions,
+        SpendMode.ALL_OR_NOTHING);
+  }
+
+  /**
+   * Time per write when the caller does not wait for each write before sending the next.
+   */
+  @Benchmark
+  @OperationsPerInvocation(PIPELINED)
+  public Object pipelinedAddSpend(Pipelined state) {
+    for (int i = 0; i < PIPELINED; i += 2) {
+      state.futures[i] = state.pointsService.addPointsAsync(PointsService.DEFAULT_ACCOUNT, state.adds.get(i));
+      state.futures[i + 1] = state.pointsService.spendPointsAsync(PointsService.DEFAULT_ACCOUNT, state.spend);
+    }
+    return state.futures[PIPELINED - 1].join();
+  }
+
+  @Benchmark
+  @Threads(4)
+  public Object contendedAddSpend(Contended state) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    String accountId = state.accountIds[random.nextInt(state.accountIds.length)];
+    if (random.nextBoolean()) {
+      state.pointsService.addPoints(accountId, Collections.singletonList(
+          new Transaction("PAYER-" + random.nextInt(16), 10, START.plusSeconds(random.nextInt(100_000)))));
+      return null;
+    }
+    Map<String, Long> balances = state.pointsService.getPointsBalance(accountId);
+    return balances.isEmpty() ? null : state.pointsService.spendPoints(accountId, new SpendTransaction(5));
+  }
+
+  /**
+   * Half small adds, 40% spends and 10% balance reads. A spend finding too few points is still timed.
+   */
+  @Benchmark
+  public Object sharedAddSpendRead(Shared state) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    String accountId = state.accountIds[random.nextInt(state.accountIds.length)];
+    int operation = random.nextInt(10);
+    if (operation < 5) {
+      state.pointsService.addPoints(accountId, Collections.singletonList(new Transaction("PAYER-" + random.nextInt(8),
+          1 + random.nextInt(100), START.plusSeconds(random.nextInt(1_000_000)))));
+      return null;
+    } else if (operation < 9) {
+      try {
+        return state.pointsService.spendPoints(accountId, new SpendTransaction(1 + random.nextInt(150)));
+      } catch (IllegalStateException e) {
+        return e;
+      }
+    }
+    return state.pointsService.getPointsBalance(accountId);
+  }
+
+  /**
+   * A retry found in a full cache.
+   */
+  @Benchmark
+  public Object idempotencyHit(Idempotency state) {
+    String key = state.settledKeys[ThreadLocalRandom.current().nextInt(state.settledKeys.length)];
+    return state.cache.putIfAbsent(state.cache.newEntry(LedgerRecords.SPEND, PointsService.DEFAULT_ACCOUNT, key));
+  }
+
+  /**
+   * A new key added to a full cache, evicting the oldest.
+   */
+  @Benchmark
+  public Object idempotencyInsert(Idempotency state) {
+    IdempotencyCache.Entry entry = state.cache.newEntry(LedgerRecords.SPEND, PointsService.DEFAULT_ACCOUNT,
+        "key-" + state.nextKey++);
+    state.cache.putIfAbsent(entry);
+    state.cache.settle(entry, null, null);
+    return entry;
+  }
+
+  /**
+   * A retried spend answered from the cache, without going to the shard.
+   */
+  @Benchmark
+  public Object retriedSpend(Idempotency state) {
+    return state.pointsService.spendPoints(PointsService.DEFAULT_ACCOUNT, state.spend, "spend-1");
+  }
+
+  private static List<Transaction> transactions(int count, int payers, Random random) {
+    List<Transaction> transactions = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      transactions.add(new Transaction("PAYER-" + random.nextInt(payers), 1 + random.nextInt(1_000),
+          START.plusSeconds(random.nextInt(1_000_000))));
+    }
+    return transactions;
+  }
+
+  private static LedgerProperties shards(int shards) {
+    LedgerProperties properties = new LedgerProperties();
+    properties.setShards(shards);
+    return properties;
+  }
+}